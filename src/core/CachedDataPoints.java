@@ -0,0 +1,379 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * Materialized, read-only time series used by the {@link QueryCache}.
+ * <p>
+ * The result of a query is lazy: a {@link SpanGroup} aggregates its spans
+ * every time it's iterated on.  This class copies the result of such an
+ * iteration into plain arrays, along with the resolved names of the series,
+ * so that it can be kept in memory and served again without any further
+ * computation or UID lookup.  The series of the consecutive buckets of a
+ * query can then be stitched back together with {@link #merge}.
+ * @since 2.0
+ */
+final class CachedDataPoints implements DataPoints {
+
+  /** Rough size of the object headers and references of an instance. */
+  private static final int OVERHEAD = 128;
+
+  private final String metric;
+  private final Map<String, String> tags;
+  private final List<String> aggregated_tags;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int aggregated_size;
+  /** Timestamps in milliseconds, sorted. */
+  private final long[] timestamps;
+  /** Values, the bits of a double when the value isn't an integer. */
+  private final long[] values;
+  /** Whether or not each value is an integer. */
+  private final boolean[] integers;
+
+  private CachedDataPoints(final String metric, final Map<String, String> tags,
+                           final List<String> aggregated_tags,
+                           final List<String> tsuids,
+                           final List<Annotation> annotations,
+                           final int aggregated_size,
+                           final long[] timestamps, final long[] values,
+                           final boolean[] integers) {
+    this.metric = metric;
+    this.tags = tags;
+    this.aggregated_tags = aggregated_tags;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.aggregated_size = aggregated_size;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.integers = integers;
+  }
+
+  /**
+   * Copies the data points and resolves the names of a query result.
+   * @param dps The result to materialize.
+   * @param start The start of the range queried in milliseconds, inclusive.
+   * @param end The end of the range queried in milliseconds, inclusive.
+   * @return A deferred resolved once all the names have been looked up.
+   */
+  static Deferred<CachedDataPoints> materialize(final DataPoints dps,
+                                                final long start,
+                                                final long end) {
+    int n = 0;
+    long[] timestamps = new long[64];
+    long[] values = new long[64];
+    boolean[] integers = new boolean[64];
+    final SeekableView it = dps.iterator();
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      if (n == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, n * 2);
+        values = Arrays.copyOf(values, n * 2);
+        integers = Arrays.copyOf(integers, n * 2);
+      }
+      timestamps[n] = dp.timestamp();
+      integers[n] = dp.isInteger();
+      values[n] = integers[n] ? dp.longValue()
+        : Double.doubleToRawLongBits(dp.doubleValue());
+      n++;
+    }
+    final long[] final_timestamps = Arrays.copyOf(timestamps, n);
+    final long[] final_values = Arrays.copyOf(values, n);
+    final boolean[] final_integers = Arrays.copyOf(integers, n);
+    final List<String> tsuids = dps.getTSUIDs() == null
+      ? Collections.<String>emptyList()
+      : new ArrayList<String>(dps.getTSUIDs());
+    final List<Annotation> annotations = dps.getAnnotations() == null
+      ? Collections.<Annotation>emptyList()
+      : new ArrayList<Annotation>(dps.getAnnotations());
+    // the scans of adjacent buckets overlap, only count the raw data points
+    // of this bucket so that merge() doesn't count any of them twice
+    final int aggregated_size = dps instanceof SpanGroup
+      ? ((SpanGroup) dps).aggregatedSizeInRange(start, end) : dps.aggregatedSize();
+
+    final class AggregatedTagsCB
+      implements Callback<CachedDataPoints, List<String>> {
+      private final String metric;
+      private final Map<String, String> tags;
+
+      AggregatedTagsCB(final String metric, final Map<String, String> tags) {
+        this.metric = metric;
+        this.tags = tags;
+      }
+
+      public CachedDataPoints call(final List<String> aggregated_tags) {
+        return new CachedDataPoints(metric, tags, aggregated_tags, tsuids,
+            annotations, aggregated_size, final_timestamps, final_values,
+            final_integers);
+      }
+    }
+
+    final class TagsCB
+      implements Callback<Deferred<CachedDataPoints>, Map<String, String>> {
+      private final String metric;
+
+      TagsCB(final String metric) {
+        this.metric = metric;
+      }
+
+      public Deferred<CachedDataPoints> call(final Map<String, String> tags) {
+        return dps.getAggregatedTagsAsync()
+          .addCallback(new AggregatedTagsCB(metric, tags));
+      }
+    }
+
+    final class MetricCB
+      implements Callback<Deferred<CachedDataPoints>, String> {
+      public Deferred<CachedDataPoints> call(final String metric) {
+        return dps.getTagsAsync().addCallbackDeferring(new TagsCB(metric));
+      }
+    }
+
+    return dps.metricNameAsync().addCallbackDeferring(new MetricCB());
+  }
+
+  /**
+   * Stitches the series of consecutive buckets together.
+   * <p>
+   * Tags that don't have the same value in every bucket are moved to the
+   * aggregated tags, like a {@link SpanGroup} does with its spans.  Data
+   * points outside of the time range are dropped, as well as the data points
+   * of a bucket that overlap with the previous one.
+   * @param series The series of the same group, sorted by bucket.
+   * @param start The start time of the query in milliseconds, inclusive.
+   * @param end The end time of the query in milliseconds, inclusive.
+   * @return A single series covering the whole time range.
+   */
+  static CachedDataPoints merge(final List<CachedDataPoints> series,
+                                final long start, final long end) {
+    final CachedDataPoints first = series.get(0);
+    final HashMap<String, String> tags =
+      new HashMap<String, String>(first.tags);
+    final LinkedHashSet<String> aggregated_tags =
+      new LinkedHashSet<String>(first.aggregated_tags);
+    final LinkedHashSet<String> tsuids = new LinkedHashSet<String>();
+    final HashSet<String> annotation_keys = new HashSet<String>();
+    final ArrayList<Annotation> annotations = new ArrayList<Annotation>();
+    int aggregated_size = 0;
+    int max_points = 0;
+    for (final CachedDataPoints dps : series) {
+      for (final Map.Entry<String, String> tag : dps.tags.entrySet()) {
+        final String value = tags.get(tag.getKey());
+        if (value != null && !value.equals(tag.getValue())) {
+          tags.remove(tag.getKey());
+          aggregated_tags.add(tag.getKey());
+        }
+      }
+      tags.keySet().retainAll(dps.tags.keySet());
+      aggregated_tags.addAll(dps.aggregated_tags);
+      tsuids.addAll(dps.tsuids);
+      for (final Annotation note : dps.annotations) {
+        // the scans of consecutive buckets overlap so we may see a note twice
+        if (annotation_keys.add(note.getTSUID() + ':' + note.getStartTime())) {
+          annotations.add(note);
+        }
+      }
+      // each bucket only counted its own raw data points
+      aggregated_size += dps.aggregated_size;
+      max_points += dps.timestamps.length;
+    }
+    for (final CachedDataPoints dps : series) {
+      for (final String tagk : dps.tags.keySet()) {
+        if (!tags.containsKey(tagk)) {
+          aggregated_tags.add(tagk);
+        }
+      }
+    }
+
+    final long[] timestamps = new long[max_points];
+    final long[] values = new long[max_points];
+    final boolean[] integers = new boolean[max_points];
+    int n = 0;
+    for (final CachedDataPoints dps : series) {
+      for (int i = 0; i < dps.timestamps.length; i++) {
+        final long timestamp = dps.timestamps[i];
+        if (timestamp < start || timestamp > end
+            || (n > 0 && timestamp <= timestamps[n - 1])) {
+          continue;
+        }
+        timestamps[n] = timestamp;
+        values[n] = dps.values[i];
+        integers[n] = dps.integers[i];
+        n++;
+      }
+    }
+    return new CachedDataPoints(first.metric, tags,
+        new ArrayList<String>(aggregated_tags), new ArrayList<String>(tsuids),
+        annotations, aggregated_size, Arrays.copyOf(timestamps, n),
+        Arrays.copyOf(values, n), Arrays.copyOf(integers, n));
+  }
+
+  /** @return An estimate of the memory used by this instance, in bytes. */
+  long estimatedBytes() {
+    long bytes = OVERHEAD + timestamps.length * 17L + metric.length() * 2;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      bytes += 64 + (tag.getKey().length() + tag.getValue().length()) * 2;
+    }
+    for (final String tagk : aggregated_tags) {
+      bytes += 48 + tagk.length() * 2;
+    }
+    for (final String tsuid : tsuids) {
+      bytes += 48 + tsuid.length() * 2;
+    }
+    return bytes + annotations.size() * 256;
+  }
+
+  public String metricName() {
+    return metric;
+  }
+
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(tags);
+  }
+
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(aggregated_tags);
+  }
+
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  public int size() {
+    return timestamps.length;
+  }
+
+  public int aggregatedSize() {
+    return aggregated_size;
+  }
+
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  public long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  public boolean isInteger(final int i) {
+    return integers[i];
+  }
+
+  public long longValue(final int i) {
+    if (!integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a long in "
+          + this);
+    }
+    return values[i];
+  }
+
+  public double doubleValue(final int i) {
+    if (integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  public String toString() {
+    return "CachedDataPoints(metric=" + metric + ", tags=" + tags
+      + ", aggregated_tags=" + aggregated_tags + ", size=" + size() + ')';
+  }
+
+  /** Iterator over the arrays, seeks with a binary search. */
+  private final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the current data point, -1 before the first call to next. */
+    private int index = -1;
+
+    public boolean hasNext() {
+      return index < timestamps.length - 1;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements in " + this);
+      }
+      index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      int i = Arrays.binarySearch(timestamps, timestamp);
+      if (i < 0) {
+        i = -i - 1;  // insertion point: the first timestamp after
+      }
+      index = i - 1;  // so next() returns it
+    }
+
+    public long timestamp() {
+      return timestamps[index];
+    }
+
+    public boolean isInteger() {
+      return integers[index];
+    }
+
+    public long longValue() {
+      return CachedDataPoints.this.longValue(index);
+    }
+
+    public double doubleValue() {
+      return CachedDataPoints.this.doubleValue(index);
+    }
+
+    public double toDouble() {
+      return integers[index] ? values[index]
+        : Double.longBitsToDouble(values[index]);
+    }
+
+    public String toString() {
+      return "CachedDataPoints.Iterator(index=" + index + ')';
+    }
+  }
+}
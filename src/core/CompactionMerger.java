@@ -0,0 +1,260 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hbase.async.KeyValue;
+
+/**
+ * Merges the columns of a partially compacted row into a single column.
+ * <p>
+ * Each column of a row is already sorted: single data points trivially, and
+ * compacted columns because that's how we write them.  So instead of
+ * breaking the row down into one {@link Internal.Cell} per data point and
+ * sorting them like {@link CompactionQueue#complexCompact} used to, this
+ * does a k-way merge of the columns with a binary heap of cursors, and
+ * copies the qualifiers and values straight into the output arrays.  The
+ * only allocations are the output arrays and a few arrays of one entry per
+ * column.
+ * <p>
+ * The result is the same as with the sort: data points are ordered by time,
+ * data points with the same timestamp coming from different columns are
+ * taken in column order, true duplicates are dropped and conflicting
+ * duplicates are rejected.
+ * @since 2.0
+ */
+final class CompactionMerger {
+
+  private CompactionMerger() {
+    // Can't create instances of this utility class.
+  }
+
+  /**
+   * Compacts a partially compacted row.
+   * @param row The row to compact.  Assumed to have 2 elements or more.
+   * @param sort Whether or not we have a mix of ms and s qualifiers.
+   * @return A {@link KeyValue} containing the result of the merge of all the
+   * {@code KeyValue}s given in argument, or {@code null} if one of the
+   * compacted columns isn't sorted and the row needs to be sorted instead.
+   * @throws IllegalDataException if one of the cells cannot be read because
+   * it's corrupted or in a format we don't understand, or if two data points
+   * have the same timestamp but different values.
+   */
+  static KeyValue merge(final ArrayList<KeyValue> row, final boolean sort) {
+    final int ncols = row.size();
+    // Cursors: where we are in the qualifier and value of each column.
+    final int[] qual_idx = new int[ncols];
+    final int[] val_idx = new int[ncols];
+    // Time offset of the data point each cursor is on.
+    final int[] offsets = new int[ncols];
+    // Min-heap of the columns with data points left, by offset then column.
+    final int[] heap = new int[ncols];
+    int heap_size = 0;
+
+    // First pass: validate the columns and size the output.
+    int max_qual_len = 0;
+    int max_val_len = 1;  // Reserve an extra byte for meta-data.
+    for (int c = 0; c < ncols; c++) {
+      final KeyValue kv = row.get(c);
+      final byte[] qual = kv.qualifier();
+      final byte[] val = kv.value();
+      final int len = qual.length;
+      if (len % 2 != 0) {
+        continue;  // Not a data point.
+      }
+      max_qual_len += len;
+      if (isSingle(qual)) {
+        max_val_len += val.length;
+      } else {
+        int vlen = 0;
+        int last_offset = -1;
+        for (int i = 0; i < len; i += Internal.inMilliseconds(qual[i]) ? 4 : 2) {
+          final int offset = Internal.getOffsetFromQualifier(qual, i);
+          if (offset < last_offset) {
+            return null;  // Not sorted, let the caller sort the row.
+          }
+          last_offset = offset;
+          vlen += Internal.getValueLengthFromQualifier(qual, i);
+        }
+        // Remember the last byte is metadata.
+        if (vlen != val.length - 1) {
+          throw new IllegalDataException("Corrupted value: couldn't break down"
+            + " into individual values (consumed " + vlen + " bytes, but was"
+            + " expecting to consume " + (val.length - 1) + "): " + kv);
+        }
+        max_val_len += vlen;
+        if (len == 0) {
+          continue;  // No data points.
+        }
+      }
+      offsets[c] = Internal.getOffsetFromQualifier(qual, 0);
+      heap_size = push(heap, heap_size, offsets, c);
+    }
+
+    final byte[] qualifier = new byte[max_qual_len];
+    final byte[] value = new byte[max_val_len];
+    int qual_len = 0;
+    int val_len = 0;
+    // Where the last data point written starts, to check for duplicates.
+    int last_delta = -1;
+    int last_qual = -1;
+    int last_val = -1;
+    while (heap_size > 0) {
+      final int c = heap[0];
+      final KeyValue kv = row.get(c);
+      final byte[] qual = kv.qualifier();
+      final int delta = offsets[c];
+      final int qi = qual_idx[c];
+      final int vi = val_idx[c];
+      // Decode the data point the cursor is on.
+      final byte[] src_val;
+      final int qlen;
+      final int vlen;
+      byte q1;
+      if (isSingle(qual)) {
+        src_val = qual.length == 2
+          ? Internal.fixFloatingPointValue(qual[1], kv.value()) : kv.value();
+        qlen = qual.length;
+        vlen = src_val.length;
+        q1 = qual.length == 2
+          ? Internal.fixQualifierFlags(qual[1], vlen) : qual[1];
+      } else {
+        src_val = kv.value();
+        qlen = Internal.inMilliseconds(qual[qi]) ? 4 : 2;
+        vlen = Internal.getValueLengthFromQualifier(qual, qi);
+        q1 = qual[qi + 1];
+      }
+
+      if (delta == last_delta) {
+        // The only troublesome case is where we have two (or more) data
+        // points with the same time delta, but different flags or values.
+        if (q1 != qualifier[last_qual + 1]
+            || vlen != val_len - last_val
+            || !regionEquals(src_val, vi, value, last_val, vlen)) {
+          throw new IllegalDataException("Found out of order or duplicate"
+            + " data: delta=" + delta + ", qualifier="
+            + Arrays.toString(Arrays.copyOfRange(qual, qi, qi + qlen))
+            + ", value=" + Arrays.toString(Arrays.copyOfRange(src_val, vi,
+                                                             vi + vlen))
+            + ", in row=" + row + " -- run an fsck.");
+        }
+        // else: we're good, this is a true duplicate, skip it.
+      } else {
+        last_delta = delta;
+        last_qual = qual_len;
+        last_val = val_len;
+        System.arraycopy(qual, qi, qualifier, qual_len, qlen);
+        qualifier[qual_len + 1] = q1;
+        qual_len += qlen;
+        System.arraycopy(src_val, vi, value, val_len, vlen);
+        val_len += vlen;
+      }
+
+      // Move the cursor forward.
+      qual_idx[c] = qi + qlen;
+      val_idx[c] = vi + vlen;
+      if (qual_idx[c] < qual.length) {
+        offsets[c] = Internal.getOffsetFromQualifier(qual, qual_idx[c]);
+        siftDown(heap, heap_size, offsets, 0);
+      } else {
+        heap[0] = heap[--heap_size];
+        siftDown(heap, heap_size, offsets, 0);
+      }
+    }
+
+    if (sort) {
+      // Keep the same order of the cells as the sort did, the caller relies
+      // on it to delete the cells once the row has been compacted.
+      Collections.sort(row, new Internal.KeyValueComparator());
+    }
+    final byte[] final_qual = qual_len == qualifier.length
+      ? qualifier : Arrays.copyOf(qualifier, qual_len);
+    final byte[] final_val = val_len + 1 == value.length
+      ? value : Arrays.copyOf(value, val_len + 1);
+    // Set the meta flag in the values if we have a mix of seconds and ms,
+    // otherwise we just leave them alone.
+    if (sort) {
+      final_val[final_val.length - 1] |= Const.MS_MIXED_COMPACT;
+    }
+    final KeyValue first = row.get(0);
+    return new KeyValue(first.key(), first.family(), final_qual, final_val);
+  }
+
+  /** @return Whether the qualifier is that of a single data point. */
+  private static boolean isSingle(final byte[] qual) {
+    return qual.length == 2
+      || (qual.length == 4 && Internal.inMilliseconds(qual[0]));
+  }
+
+  private static boolean regionEquals(final byte[] a, final int a_idx,
+                                      final byte[] b, final int b_idx,
+                                      final int len) {
+    for (int i = 0; i < len; i++) {
+      if (a[a_idx + i] != b[b_idx + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return Whether column {@code a} comes before column {@code b}. */
+  private static boolean before(final int[] offsets, final int a, final int b) {
+    return offsets[a] < offsets[b] || (offsets[a] == offsets[b] && a < b);
+  }
+
+  /**
+   * Adds a column to the heap.
+   * @return The new size of the heap.
+   */
+  private static int push(final int[] heap, final int size,
+                          final int[] offsets, final int column) {
+    int i = size;
+    heap[i] = column;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (!before(offsets, heap[i], heap[parent])) {
+        break;
+      }
+      final int tmp = heap[i];
+      heap[i] = heap[parent];
+      heap[parent] = tmp;
+      i = parent;
+    }
+    return size + 1;
+  }
+
+  /** Restores the heap property from the given index down. */
+  private static void siftDown(final int[] heap, final int size,
+                               final int[] offsets, int i) {
+    while (true) {
+      final int left = 2 * i + 1;
+      if (left >= size) {
+        return;
+      }
+      int min = left;
+      if (left + 1 < size && before(offsets, heap[left + 1], heap[left])) {
+        min = left + 1;
+      }
+      if (!before(offsets, heap[min], heap[i])) {
+        return;
+      }
+      final int tmp = heap[i];
+      heap[i] = heap[min];
+      heap[min] = tmp;
+      i = min;
+    }
+  }
+}
@@ -14,9 +14,12 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -33,6 +36,7 @@ import org.hbase.async.PleaseThrottleException;
 
 import net.opentsdb.core.Internal.Cell;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.utils.JSON;
 
@@ -40,10 +44,18 @@ import net.opentsdb.utils.JSON;
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
- * thread that periodically goes through the queue and look for "old rows" to
- * compact.  A row is considered "old" if the timestamp in the row key is
- * older than a certain threshold.
+ * to this queue.  There is a separate thread that periodically goes through
+ * the queue and look for "old rows" to compact.  A row is considered "old" if
+ * the timestamp in the row key is older than a certain threshold.
+ * <p>
+ * The rows are bucketed by base time so that the old rows can be found
+ * without going through the whole queue, and the rows of each bucket are
+ * spread over hash-striped shards so that adding a row is an O(1) operation
+ * that rarely contends with other writers or with the flushes.  Each shard
+ * only keeps the TSUIDs of its rows, packed in a {@link TsuidSet}.  The
+ * memory used by the queue is capped by
+ * {@code tsd.storage.compaction.max_queue_bytes}: once full, new rows are
+ * not queued and are left uncompacted, instead of running out of memory.
  * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
@@ -52,18 +64,33 @@ import net.opentsdb.utils.JSON;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * With {@code tsd.storage.compaction.write_back} enabled, the data points
+ * written to a row are also kept in a compact in-memory buffer, the value
+ * associated with the row in the queue.  When the row becomes old enough (plus
+ * a grace period for late data points), the compacted cell is built from the
+ * buffer instead of reading the row back from HBase.  Rows for which the
+ * buffer might be incomplete fall back to reading the row: rows of the hour
+ * during which the TSD started, rows that received data points after they
+ * were due for compaction, rows written through {@link IncomingDataPoints}
+ * and rows we ran out of buffer memory for.  This assumes that each series
+ * is only written through a single TSD.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
   /** Used to sort individual columns from a data row */
   private static final Internal.KeyValueComparator COMPARATOR = 
     new Internal.KeyValueComparator();
+
+  /** Number of shards of each bucket, a power of 2. */
+  private static final int SHARDS =
+    Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2);
   
   /**
    * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
+   * Because counting the rows of every shard has O(N) complexity.
    */
   private final AtomicInteger size = new AtomicInteger();
 
@@ -71,6 +98,29 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   private final AtomicLong complex_compactions = new AtomicLong();
   private final AtomicLong written_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
+  private final AtomicLong write_back_rows = new AtomicLong();
+  private final AtomicLong write_back_fallbacks = new AtomicLong();
+  /** Size of the cells we compacted and wrote back, before and after. */
+  private final AtomicLong bytes_before = new AtomicLong();
+  private final AtomicLong bytes_after = new AtomicLong();
+  /** Number of rows removed from the queue to be compacted. */
+  private final AtomicLong flushed_rows = new AtomicLong();
+
+  /** Latency of the reads of the rows to compact, in milliseconds. */
+  private final Histogram get_latency = new Histogram(16000, (short) 2, 100);
+  /** Latency of the writes of the compacted cells, in milliseconds. */
+  private final Histogram put_latency = new Histogram(16000, (short) 2, 100);
+  /**
+   * Time spent compacting the cells of a row, in microseconds.  Linear up to
+   * 1ms, then exponential up to 16s so slow compactions stand out.
+   */
+  private final Histogram cpu_time =
+    new Histogram(16000000, (short) 10, 1000);
+
+  /** Number of flush cycles of the compaction thread completed. */
+  private final AtomicLong flush_cycles = new AtomicLong();
+  /** Summary of the last flush cycle completed. */
+  private volatile FlushCycle<?> last_cycle;
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
@@ -78,28 +128,251 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** On how many bytes do we encode metrics IDs.  */
   private final short metric_width;
 
+  /** Rows to compact, bucketed by the base time of the rows. */
+  private final ConcurrentHashMap<Long, Bucket> buckets =
+    new ConcurrentHashMap<Long, Bucket>();
+
+  /** The bucket of the last row added, most rows are for the current hour. */
+  private volatile Bucket last_bucket;
+
+  /** Whether or not to buffer the data points of the rows to compact. */
+  private final boolean write_back;
+
+  /**
+   * How long to wait for late data points once a row is old enough before
+   * compacting it, in seconds.  Only used with write-back compactions.
+   */
+  private final int write_back_grace;
+
+  /** Maximum number of bytes used by the write-back buffers. */
+  private final long write_back_max_bytes;
+
+  /**
+   * Base time of the first row we can buffer: rows of the hour during which
+   * we started may have been written to before.
+   */
+  private final long write_back_start;
+
+  /** Number of bytes used by the write-back buffers. */
+  private final AtomicLong write_back_bytes = new AtomicLong();
+
+  /** Maximum number of bytes used by the rows of the queue. */
+  private final long max_queue_bytes;
+
+  /** Number of bytes used by the rows of the queue, buffers excluded. */
+  private final AtomicLong queue_bytes = new AtomicLong();
+
+  /** Number of rows not queued because the queue was full. */
+  private final AtomicLong dropped_rows = new AtomicLong();
+
+  /** Paces the flushes, null if compactions are disabled. */
+  private final CompactionScheduler scheduler;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
+    write_back = tsdb.config.enable_compactions()
+      && tsdb.config.getBoolean("tsd.storage.compaction.write_back");
+    write_back_grace = write_back
+      ? tsdb.config.getInt("tsd.storage.compaction.write_back_grace") : 0;
+    write_back_max_bytes = write_back
+      ? tsdb.config.getLong("tsd.storage.compaction.write_back_max_bytes") : 0;
+    final long now = System.currentTimeMillis() / 1000;
+    write_back_start = now - (now % Const.MAX_TIMESPAN) + Const.MAX_TIMESPAN;
+    max_queue_bytes = tsdb.config.enable_compactions()
+      ? tsdb.config.getLong("tsd.storage.compaction.max_queue_bytes") : 0;
     if (tsdb.config.enable_compactions()) {
+      scheduler = new CompactionScheduler(tsdb.config);
       startCompactionThread();
+    } else {
+      scheduler = null;
     }
   }
 
-  @Override
   public int size() {
     return size.get();
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    final RowKey.Key key = new RowKey.Key(row);
+    final long base_time = Bytes.getUnsignedInt(row, metric_width);
+    while (true) {
+      final Bucket bucket = bucket(base_time);
+      final Shard shard = bucket.shard(key);
+      synchronized (shard) {
+        if (bucket.removed) {
+          continue;  // The bucket was retired under our feet, use a new one.
+        }
+        addRow(shard, key);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Schedules a row for compaction and buffers the data point written to it
+   * if write-back compactions are enabled.
+   * @param row The row key, will not be modified.
+   * @param base_time The base time of the row.
+   * @param qualifier The qualifier of the data point written.
+   * @param value The value of the data point written.
+   */
+  public void add(final byte[] row, final long base_time,
+                  final byte[] qualifier, final byte[] value) {
+    if (!write_back) {
+      add(row);
+      return;
+    }
+    final RowKey.Key key = new RowKey.Key(row);
+    while (true) {
+      final Bucket bucket = bucket(base_time);
+      final Shard shard = bucket.shard(key);
+      synchronized (shard) {
+        if (bucket.removed) {
+          continue;  // The bucket was retired under our feet, use a new one.
+        }
+        RowBuffer buffer = shard.buffers == null ? null
+          : shard.buffers.get(key);
+        if (buffer == null) {
+          // Rows that may have already been compacted or been written to
+          // before we started go through the regular compaction.
+          final long now = System.currentTimeMillis() / 1000;
+          if (base_time < write_back_start
+              || base_time <= now - Const.MAX_TIMESPAN - 1 - write_back_grace
+              || write_back_bytes.get() >= write_back_max_bytes
+              || shard.rows.contains(row)) {
+            addRow(shard, key);
+            return;
+          }
+          buffer = new RowBuffer();
+          write_back_bytes.addAndGet(RowBuffer.INITIAL_SIZE);
+          if (shard.buffers == null) {
+            shard.buffers = new HashMap<RowKey.Key, RowBuffer>();
+          }
+          shard.buffers.put(key, buffer);
+          size.incrementAndGet();
+        }
+        final int grown = buffer.add(qualifier, value);
+        if (grown > 0
+            && write_back_bytes.addAndGet(grown) > write_back_max_bytes) {
+          // Out of memory for buffers, this row falls back to a regular
+          // compaction.
+          addRow(shard, key);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds a row to a shard, without buffering.  Must be called with the lock
+   * of the shard held.
+   * @param shard The shard of the row.
+   * @param key The row key.
+   */
+  private void addRow(final Shard shard, final RowKey.Key key) {
+    if (shard.buffers != null) {
+      final RowBuffer buffer = shard.buffers.remove(key);
+      if (buffer != null) {
+        // We don't know what's being written to this row, forget its buffer.
+        release(buffer);
+        size.decrementAndGet();
+      }
+    }
+    if (queue_bytes.get() >= max_queue_bytes && !shard.rows.contains(key.row)) {
+      // Out of memory for the queue, leave this row uncompacted.
+      if (dropped_rows.incrementAndGet() % 10000 == 1) {
+        LOG.warn("Compaction queue full (" + queue_bytes.get()
+                 + " bytes), dropped " + dropped_rows.get() + " rows so far");
+      }
+      return;
+    }
+    final long bytes = shard.rows.bytes();
+    if (shard.rows.add(key.row)) {
+      size.incrementAndGet();
+      queue_bytes.addAndGet(shard.rows.bytes() - bytes);
+    }
+  }
+
+  /**
+   * Returns the bucket for the given base time, creating it if needed.
+   * @param base_time The base time of a row.
+   * @return A bucket that wasn't retired when we looked it up.
+   */
+  private Bucket bucket(final long base_time) {
+    Bucket bucket = last_bucket;
+    if (bucket != null && bucket.base_time == base_time && !bucket.removed) {
+      return bucket;
+    }
+    while (true) {
+      bucket = buckets.get(base_time);
+      if (bucket == null) {
+        bucket = new Bucket(base_time, metric_width);
+        final Bucket existing = buckets.putIfAbsent(base_time, bucket);
+        if (existing != null) {
+          bucket = existing;
+        } else {
+          queue_bytes.addAndGet(bucket.bytes());
+        }
+      }
+      if (!bucket.removed) {
+        break;
+      }
+      buckets.remove(base_time, bucket);
+    }
+    last_bucket = bucket;
+    return bucket;
+  }
+
+  /**
+   * Throws away all the rows queued, without compacting them.
+   * @return The number of rows discarded.
+   */
+  private int discardAll() {
+    int n = 0;
+    for (final Bucket bucket : buckets.values()) {
+      n += discard(bucket);
+      buckets.remove(bucket.base_time, bucket);
+    }
+    last_bucket = null;
+    return n;
+  }
+
+  /**
+   * Retires a bucket and throws away its rows and buffers.  Like when a
+   * flush retires a bucket, writers see it was removed once they hold the
+   * lock of a shard, and add their rows to a new bucket instead.
+   * @return The number of rows discarded.
+   */
+  private int discard(final Bucket bucket) {
+    bucket.removed = true;
+    int n = 0;
+    for (final Shard shard : bucket.shards) {
+      synchronized (shard) {
+        n += shard.rows.size();
+        queue_bytes.addAndGet(-shard.rows.bytes());
+        shard.rows.clear();
+        if (shard.buffers != null) {
+          n += shard.buffers.size();
+          for (final RowBuffer buffer : shard.buffers.values()) {
+            release(buffer);
+          }
+          shard.buffers = null;
+        }
+      }
     }
+    size.addAndGet(-n);
+    return n;
+  }
+
+  /** Discards a buffer that was removed from the queue. */
+  private void release(final RowBuffer buffer) {
+    write_back_bytes.addAndGet(-buffer.capacity());
+    buffer.discard();
   }
 
   /**
@@ -130,16 +403,75 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
     // The remaining stats only make sense with compactions enabled.
     collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.bytes", queue_bytes);
+    collector.record("compaction.queue.dropped", dropped_rows);
+    final long oldest = oldestBaseTime();
+    collector.record("compaction.queue.oldest_age", oldest == Long.MAX_VALUE
+      ? 0 : Math.max(0, System.currentTimeMillis() / 1000 - oldest));
+    collector.record("compaction.bytes", bytes_before, "type=before");
+    collector.record("compaction.bytes", bytes_after, "type=after");
+    synchronized (get_latency) {
+      collector.record("compaction.latency", get_latency, "rpc=read");
+    }
+    synchronized (put_latency) {
+      collector.record("compaction.latency", put_latency, "rpc=put");
+    }
+    synchronized (cpu_time) {
+      collector.record("compaction.cpu_time", cpu_time, null);
+    }
+    collector.record("compaction.flush.cycles", flush_cycles);
+    final FlushCycle<?> cycle = last_cycle;
+    if (cycle != null) {
+      collector.record("compaction.flush.last.rows", cycle.rows);
+      collector.record("compaction.flush.last.duration", cycle.duration);
+      collector.record("compaction.flush.last.errors", cycle.errors);
+      collector.record("compaction.flush.last.bytes_saved",
+                       cycle.bytes_saved);
+    }
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (write_back) {
+      collector.record("compaction.write_back", write_back_rows,
+                       "type=buffered");
+      collector.record("compaction.write_back", write_back_fallbacks,
+                       "type=fallback");
+      collector.record("compaction.write_back.bytes", write_back_bytes);
+    }
+    collector.record("compaction.throttles", handle_read_error.throttles,
+                     "rpc=read");
+    collector.record("compaction.throttles", handle_write_error.throttles,
+                     "rpc=put");
+    collector.record("compaction.throttles", handle_delete_error.throttles,
+                     "rpc=delete");
+    scheduler.collectStats(collector);
+  }
+
+  /** @return The total number of compaction errors, throttling included. */
+  private long errors() {
+    return handle_read_error.errors + handle_read_error.throttles
+      + handle_write_error.errors + handle_write_error.throttles
+      + handle_delete_error.errors + handle_delete_error.throttles;
+  }
+
+  /** @return The base time of the oldest rows in the queue, if any. */
+  private long oldestBaseTime() {
+    long oldest = Long.MAX_VALUE;
+    for (final Long base_time : buckets.keySet()) {
+      oldest = Math.min(oldest, base_time);
+    }
+    return oldest;
   }
 
   /**
    * Flushes all the rows in the compaction queue older than the cutoff time.
+   * <p>
+   * Buckets are flushed oldest first, one shard after the other.  Once a
+   * bucket has been emptied it's retired: rows added to it concurrently are
+   * either flushed right away or added to a new bucket by {@link #add}.
    * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
    * @param maxflushes How many rows to flush off the queue at once.
    * This integer is expected to be strictly positive.
@@ -148,45 +480,50 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
     assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
-    // We can't possibly flush more entries than size().
+    // We can't possibly flush more entries than size().  Even if the queue
+    // is empty, go through the old buckets to retire them.
     maxflushes = Math.min(maxflushes, size());
-    if (maxflushes == 0) {  // Because size() might be 0.
-      return Deferred.fromResult(new ArrayList<Object>(0));
+    final ArrayList<Bucket> old = new ArrayList<Bucket>();
+    for (final Bucket bucket : buckets.values()) {
+      if (bucket.base_time <= cut_off) {
+        old.add(bucket);
+      }
     }
+    Collections.sort(old);
+    final int concurrency = scheduler != null
+      ? scheduler.concurrency() : Integer.MAX_VALUE;
     final ArrayList<Deferred<Object>> ds =
-      new ArrayList<Deferred<Object>>(Math.min(maxflushes,
-                                               MAX_CONCURRENT_FLUSHES));
+      new ArrayList<Deferred<Object>>(Math.min(maxflushes, concurrency));
     int nflushes = 0;
-    int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      if (seed == row.hashCode() % 3) {
-        continue;
-      }
-      final long base_time = Bytes.getUnsignedInt(row, metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == MAX_CONCURRENT_FLUSHES) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
+    // Start with a random shard so that TSDs compacting the same rows at the
+    // same time don't all start with the same ones.
+    final int seed = (int) System.nanoTime();
+    for (final Bucket bucket : old) {
+      final byte[] timestamp = Bytes.fromInt((int) bucket.base_time);
+      for (int i = 0; i < SHARDS; i++) {
+        if (maxflushes == 0 || nflushes == concurrency) {
+          // We kicked off the compaction of too many rows already, let's
+          // wait until they're done before kicking off more.
+          break;
+        }
+        final int n = drain(bucket.shards[(seed + i) & (SHARDS - 1)],
+            Math.min(maxflushes, concurrency - nflushes), timestamp, ds);
+        nflushes += n;
+        maxflushes -= n;
       }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
+      // Retire the bucket if it's empty and flush the rows added in the
+      // mean time.
+      if (bucket.isEmpty()) {
+        bucket.removed = true;
+        buckets.remove(bucket.base_time, bucket);
+        for (final Shard shard : bucket.shards) {
+          drain(shard, Integer.MAX_VALUE, timestamp, ds);
+        }
+        queue_bytes.addAndGet(-bucket.bytes());
       }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == MAX_CONCURRENT_FLUSHES && maxflushes > 0) {
+    if (nflushes == concurrency && maxflushes > 0) {
       // We're not done yet.  Once this group of flushes completes, we need
       // to kick off more.
       tsdb.flush();  // Speed up this batch by telling the client to flush.
@@ -206,6 +543,118 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return group;
   }
 
+  /**
+   * Removes rows from a shard and kicks off their compaction.
+   * @param shard The shard to drain.
+   * @param max The maximum number of rows to remove.
+   * @param timestamp The base time of the rows of the shard.
+   * @param ds Where to add the deferreds of the compactions.
+   * @return The number of rows removed.
+   */
+  private int drain(final Shard shard, final int max, final byte[] timestamp,
+                    final ArrayList<Deferred<Object>> ds) {
+    final ArrayList<byte[]> rows = new ArrayList<byte[]>();
+    final ArrayList<RowBuffer> buffers = new ArrayList<RowBuffer>();
+    synchronized (shard) {
+      if (shard.buffers != null) {
+        final Iterator<Map.Entry<RowKey.Key, RowBuffer>> it =
+          shard.buffers.entrySet().iterator();
+        while (rows.size() < max && it.hasNext()) {
+          final Map.Entry<RowKey.Key, RowBuffer> entry = it.next();
+          rows.add(entry.getKey().row);
+          buffers.add(entry.getValue());
+          it.remove();
+        }
+      }
+      if (rows.size() < max && !shard.rows.isEmpty()) {
+        final long bytes = shard.rows.bytes();
+        shard.rows.drain(max - rows.size(), timestamp, rows);
+        queue_bytes.addAndGet(shard.rows.bytes() - bytes);
+      }
+    }
+    final int n = rows.size();
+    size.addAndGet(-n);
+    flushed_rows.addAndGet(n);
+    for (int i = 0; i < n; i++) {
+      compactEntry(rows.get(i), i < buffers.size() ? buffers.get(i) : null,
+                   ds);
+    }
+    return n;
+  }
+
+  /**
+   * Kicks off the compaction of a row removed from the queue.
+   * @param row The row key.
+   * @param buffer The buffer of the row, or {@code null} to read the row
+   * back from HBase.
+   * @param ds Where to add the deferred of the compaction, if any.
+   */
+  private void compactEntry(final byte[] row, final RowBuffer buffer,
+                            final ArrayList<Deferred<Object>> ds) {
+    final RecordLatencyCB latency = new RecordLatencyCB();
+    if (buffer != null) {
+      final ArrayList<KeyValue> kvs = buffer.toKeyValues(row);
+      release(buffer);
+      write_back_rows.incrementAndGet();
+      try {
+        rollup(kvs);
+        final Deferred<Object> d = compact(kvs, null, null, false);
+        if (d != null) {
+          ds.add(d.addBoth(latency));
+        }
+        return;
+      } catch (RuntimeException e) {
+        LOG.error("Failed to compact the buffered row, falling back to "
+                  + "reading it back", e);
+      }
+    }
+    if (write_back) {
+      write_back_fallbacks.incrementAndGet();
+    }
+    ds.add(tsdb.get(row)
+           .addBoth(new RecordHistogramCB<ArrayList<KeyValue>>(get_latency))
+           .addCallbacks(compactcb, handle_read_error)
+           .addBoth(latency));
+  }
+
+  /** Adds to a latency histogram how long an RPC took, in milliseconds. */
+  private static final class RecordHistogramCB<T> implements Callback<T, T> {
+    private final long start = System.currentTimeMillis();
+    private final Histogram histogram;
+
+    RecordHistogramCB(final Histogram histogram) {
+      this.histogram = histogram;
+    }
+
+    public T call(final T arg) {
+      final int elapsed = (int) (System.currentTimeMillis() - start);
+      synchronized (histogram) {
+        histogram.add(Math.max(0, elapsed));
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "record RPC latency";
+    }
+  }
+
+  /** Reports how long a compaction took to the scheduler. */
+  private final class RecordLatencyCB implements Callback<Object, Object> {
+    private final long start = System.currentTimeMillis();
+
+    public Object call(final Object arg) {
+      if (scheduler != null) {
+        scheduler.record(System.currentTimeMillis() - start);
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "record compaction latency";
+    }
+  }
+
   private final CompactCB compactcb = new CompactCB();
 
   /**
@@ -216,6 +665,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
     public Object call(final ArrayList<KeyValue> row) {
+      rollup(row);
       return compact(row, null);
     }
     public String toString() {
@@ -232,10 +682,46 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   KeyValue compact(final ArrayList<KeyValue> row, 
       List<Annotation> annotations) {
     final KeyValue[] compacted = { null };
-    compact(row, compacted, annotations);
+    compact(row, compacted, annotations, false);
     return compacted[0];
   }
 
+  /**
+   * Compacts a row right away and writes the result back to HBase, even if
+   * compactions are disabled in the config.  Used to compact old rows offline.
+   * @param row The row containing all the KVs to compact.  Must be non-null.
+   * @return A {@link Deferred} that will be called back once the compacted
+   * row has been written, the individual cells deleted and its rollups
+   * written, and that fails if any of those failed.  Annotations found in
+   * the row are left alone.
+   */
+  Deferred<Object> compactRow(final ArrayList<KeyValue> row) {
+    final Deferred<Object> rollup = rollup(row);
+    final Deferred<Object> d =
+      compact(row, null, new ArrayList<Annotation>(), true);
+    return Deferred.group(rollup, d == null ? Deferred.fromResult(null) : d)
+      .addCallback(new Callback<Object, ArrayList<Object>>() {
+        public Object call(final ArrayList<Object> results) {
+          return results.get(1);
+        }
+        public String toString() {
+          return "compact row";
+        }
+      });
+  }
+
+  /**
+   * Writes the rollups of a row about to be compacted, if rollups are
+   * enabled.  The compactions of the queue don't wait for them, failures
+   * are logged and counted by {@link Rollups}.
+   * @param row The row, before it's compacted.
+   * @return A deferred called back once the rollups are written.
+   */
+  private Deferred<Object> rollup(final ArrayList<KeyValue> row) {
+    return tsdb.rollups == null ? Deferred.fromResult(null)
+      : tsdb.rollups.write(row);
+  }
+
   /**
    * Compacts a row into a single {@link KeyValue}.
    * <p>
@@ -249,12 +735,16 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * a {@link KeyValue} containing the compacted form of this row.
    * If non-null, we will also not write the compacted form back to HBase
    * unless the timestamp in the row key is old enough.
+   * @param annotations Where to add the annotations found in the row.
+   * @param force Whether or not to write back the compacted form even if
+   * compactions are disabled.
    * @return A {@link Deferred} if the compaction processed required a write
    * to HBase, otherwise {@code null}.
    */
   private Deferred<Object> compact(final ArrayList<KeyValue> row,
                                    final KeyValue[] compacted, 
-                                   List<Annotation> annotations) {
+                                   List<Annotation> annotations,
+                                   final boolean force) {
     if (row.size() <= 1) {
       if (row.isEmpty()) {  // Maybe the row got deleted in the mean time?
         LOG.debug("Attempted to compact a row that doesn't exist.");
@@ -291,6 +781,8 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // logic required to compact it is more complex.
     boolean write = true;  // Do we need to write a compacted cell?
     final KeyValue compact;
+    final long start = System.nanoTime();
+    long before = 0;  // Size of the cells we're compacting.
     {
       boolean trivial = true;  // Are we doing a trivial compaction?
       boolean ms_in_row = false;
@@ -327,6 +819,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             continue;
           }
           trivial = false;
+          before += len + kv.value().length;
           // We only do this here because no qualifier can be < 2 bytes.
           if (len > longest.qualifier().length) {
             longest = kv;
@@ -340,6 +833,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             ms_in_row = s_in_row = true;
           }
         } else {
+          before += len + kv.value().length;
           if (Internal.inMilliseconds(qual[0])) {
             ms_in_row = true;
           } else {
@@ -379,7 +873,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // the case where this KV is an old, incorrectly encoded floating
         // point value that needs to be fixed.  This is guaranteed to not
         // recurse again.
-        return compact(row, compacted, annotations);
+        return compact(row, compacted, annotations, force);
       } else if (trivial) {
         trivial_compactions.incrementAndGet();
         compact = trivialCompact(row, qual_len, val_len, (ms_in_row && s_in_row));
@@ -437,6 +931,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // overwrite an existing cell we would then delete.
       }
     }
+    final int elapsed = (int) ((System.nanoTime() - start) / 1000);
+    synchronized (cpu_time) {
+      cpu_time.add(Math.max(0, elapsed));
+    }
     if (compacted != null) {  // Caller is interested in the compacted form.
       compacted[0] = compact;
       final long base_time = Bytes.getUnsignedInt(compact.key(), metric_width);
@@ -446,18 +944,21 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         return null;              // ... Don't write back compacted.
       }
     }
-    if (!tsdb.config.enable_compactions()) {
+    if (!force && !tsdb.config.enable_compactions()) {
       return null;
     }
 
     final byte[] key = compact.key();
     //LOG.debug("Compacting row " + Arrays.toString(key));
     deleted_cells.addAndGet(row.size());  // We're going to delete this.
+    bytes_before.addAndGet(before);
+    bytes_after.addAndGet(compact.qualifier().length + compact.value().length);
     if (write) {
       final byte[] qual = compact.qualifier();
       final byte[] value = compact.value();
       written_cells.incrementAndGet();
       return tsdb.put(key, qual, value)
+        .addBoth(new RecordHistogramCB<Object>(put_latency))
         .addCallbacks(new DeleteCompactedCB(row), handle_write_error);
     } else {
       // We had nothing to write, because one of the cells is already the
@@ -548,6 +1049,28 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * for various reasons, such as TSDs dying in the middle of a compaction or
    * races involved with TSDs trying to compact the same row at the same
    * time, or old data being slowly written to a TSD.
+   * <p>
+   * The columns are merged with {@link CompactionMerger}, unless one of them
+   * isn't sorted, in which case we fall back to {@link #sortCompact}.
+   * @param row The row to compact.  Assumed to have 2 elements or more.
+   * @param estimated_nvalues Estimate of the number of values to compact.
+   * @param sort Whether or not we have a mix of ms and s qualifiers
+   * @return a {@link KeyValue} containing the result of the merge of all the
+   * {@code KeyValue}s given in argument.
+   * @throws IllegalDataException if one of the cells cannot be read because
+   * it's corrupted or in a format we don't understand.
+   */
+  static KeyValue complexCompact(final ArrayList<KeyValue> row,
+                                 final int estimated_nvalues, 
+                                 final boolean sort) {
+    final KeyValue merged = CompactionMerger.merge(row, sort);
+    return merged != null ? merged 
+      : sortCompact(row, estimated_nvalues, sort);
+  }
+
+  /**
+   * Compacts a partially compacted row by breaking it down into individual
+   * data points and sorting them.
    * @param row The row to compact.  Assumed to have 2 elements or more.
    * @param estimated_nvalues Estimate of the number of values to compact.
    * Used to pre-allocate a collection of the right size, so it's better to
@@ -559,9 +1082,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * @throws IllegalDataException if one of the cells cannot be read because
    * it's corrupted or in a format we don't understand.
    */
-  static KeyValue complexCompact(final ArrayList<KeyValue> row,
-                                 final int estimated_nvalues, 
-                                 final boolean sort) {
+  static KeyValue sortCompact(final ArrayList<KeyValue> row,
+                              final int estimated_nvalues, 
+                              final boolean sort) {
     // We know at least one of the cells contains multiple values, and we need
     // to merge all the cells together in a sorted fashion.  We use a simple
     // strategy: split all the cells into individual objects, sort them,
@@ -689,6 +1212,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
     private volatile int errors;
 
+    /** Number of times HBase asked us to throttle. */
+    private volatile int throttles;
+
     private final String what;
 
     /**
@@ -701,6 +1227,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
     public Object call(final Exception e) {
       if (e instanceof PleaseThrottleException) {  // HBase isn't keeping up.
+        throttles++;  // Not atomic either, see below.
         final HBaseRpc rpc = ((PleaseThrottleException) e).getFailedRpc();
         if (rpc instanceof HBaseRpc.HasKey) {
           // We failed to compact this row.  Whether it's because of a failed
@@ -725,8 +1252,6 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
   /** Starts a compaction thread.  Only one such thread is needed.  */
   private void startCompactionThread() {
     final Thrd thread = new Thrd();
@@ -734,22 +1259,6 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     thread.start();
   }
 
-  /** How frequently the compaction thread wakes up flush stuff.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_INTERVAL = 10;  // seconds
-
-  /** Minimum number of rows we'll attempt to compact at once.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MIN_FLUSH_THRESHOLD = 100;  // rows
-
-  /** Maximum number of rows we'll compact concurrently.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MAX_CONCURRENT_FLUSHES = 10000;  // rows
-
-  /** If this is X then we'll flush X times faster than we really need.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_SPEED = 2;  // multiplicative factor
-
   /**
    * Background thread to trigger periodic compactions.
    */
@@ -761,33 +1270,26 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     public void run() {
       while (true) {
         try {
+          // See how HBase coped with the previous flushes.
+          scheduler.adjust(errors());
           final int size = size();
           // Flush if  we have too many rows to recompact.
           // Note that in we might not be able to actually
           // flush anything if the rows aren't old enough.
-          if (size > MIN_FLUSH_THRESHOLD) {
+          if (size > scheduler.minFlushes()) {
             // How much should we flush during this iteration?  This scheme is
             // adaptive and flushes at a rate that is proportional to the size
-            // of the queue, so we flush more aggressively if the queue is big.
-            // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
-            // and we better compact them all in less than 1h, otherwise we're
-            // going to "fall behind" when after a new hour starts (as we'll be
-            // inserting a ton of new rows then).  So slice MAX_TIMESPAN using
-            // FLUSH_INTERVAL to compute what fraction of `size' we need to
-            // flush at each iteration.  Note that `size' will usually account
-            // for many rows that can't be flushed yet (not old enough) so we're
-            // overshooting a bit (flushing more aggressively than necessary).
-            // This isn't a problem at all.  The only thing that matters is that
-            // the rate at which we flush stuff is proportional to how much work
-            // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
-            // is added to make flush even faster than we need.  For example, if
-            // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
-            // for the previous hour, we'll take only 30m.  This is desirable so
-            // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(MIN_FLUSH_THRESHOLD,
-              size * FLUSH_INTERVAL * FLUSH_SPEED / Const.MAX_TIMESPAN);
+            // of the queue, so we flush more aggressively if the queue is big,
+            // or if we're falling behind, unless HBase is struggling.  Note
+            // that `size' will usually account for many rows that can't be
+            // flushed yet (not old enough) so we're overshooting a bit.
             final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            final long cut_off =
+              now / 1000 - Const.MAX_TIMESPAN - 1 - write_back_grace;
+            final int maxflushes = scheduler.maxFlushes(size,
+                cut_off - oldestBaseTime());
+            flush(cut_off, maxflushes)
+              .addBoth(new FlushCycle<ArrayList<Object>>(size));
             if (LOG.isDebugEnabled()) {
               final int newsize = size();
               LOG.debug("flush() took " + (System.currentTimeMillis() - now)
@@ -799,9 +1301,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
-          final int sz = size.get();
-          CompactionQueue.super.clear();
-          size.set(0);
+          final int sz = discardAll();
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
           LOG.error("Uncaught *Throwable* in compaction thread", e);
@@ -823,7 +1323,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           return;
         }
         try {
-          Thread.sleep(FLUSH_INTERVAL * 1000);
+          Thread.sleep(scheduler.interval() * 1000L);
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
           flush();
@@ -834,24 +1334,187 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /**
-   * Helper to sort the byte arrays in the compaction queue.
+   * Summary of a flush cycle of the compaction thread, from the moment the
+   * flush starts until all the compactions it kicked off are done.  The
+   * counters are snapshots of the queue's, so they're only approximate if
+   * cycles overlap.
+   */
+  private final class FlushCycle<T> implements Callback<T, T> {
+    private final long start = System.currentTimeMillis();
+    private final int queue_size;
+    private final long start_rows = flushed_rows.get();
+    private final long start_errors = errors();
+    private final long start_before = bytes_before.get();
+    private final long start_after = bytes_after.get();
+
+    private long rows;
+    private long duration;
+    private long errors;
+    private long bytes_saved;
+
+    FlushCycle(final int queue_size) {
+      this.queue_size = queue_size;
+    }
+
+    public T call(final T arg) {
+      rows = flushed_rows.get() - start_rows;
+      duration = System.currentTimeMillis() - start;
+      errors = errors() - start_errors;
+      bytes_saved = (bytes_before.get() - start_before)
+        - (bytes_after.get() - start_after);
+      flush_cycles.incrementAndGet();
+      last_cycle = this;
+      if (rows > 0) {
+        LOG.info("Compacted " + rows + " rows out of " + queue_size + " in "
+                 + duration + "ms, " + errors + " errors, " + bytes_saved
+                 + " bytes saved, queue size now " + size());
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "flush cycle summary";
+    }
+  }
+
+  /**
+   * The data points written to a row to compact, kept for write-back
+   * compactions.  Each data point is stored as the length of its qualifier,
+   * its qualifier, the length of its value and its value, all packed in a
+   * single array.  Guarded by the lock of its shard.
+   */
+  private static final class RowBuffer {
+    static final int INITIAL_SIZE = 64;
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+    private int length;
+
+    /**
+     * Appends a data point.
+     * @return The number of bytes the buffer grew by.
+     */
+    int add(final byte[] qualifier, final byte[] value) {
+      final int needed = length + 2 + qualifier.length + value.length;
+      int grown = 0;
+      if (needed > buf.length) {
+        final byte[] newbuf = new byte[Math.max(needed, buf.length * 2)];
+        System.arraycopy(buf, 0, newbuf, 0, length);
+        grown = newbuf.length - buf.length;
+        buf = newbuf;
+      }
+      buf[length++] = (byte) qualifier.length;
+      System.arraycopy(qualifier, 0, buf, length, qualifier.length);
+      length += qualifier.length;
+      buf[length++] = (byte) value.length;
+      System.arraycopy(value, 0, buf, length, value.length);
+      length += value.length;
+      return grown;
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    void discard() {
+      buf = null;
+      length = 0;
+    }
+
+    /**
+     * Returns the buffered cells as they'd be read back from HBase: sorted
+     * by qualifier and with the last value written to a qualifier only.
+     */
+    ArrayList<KeyValue> toKeyValues(final byte[] row) {
+      final TreeMap<byte[], byte[]> cells =
+        new TreeMap<byte[], byte[]>(Bytes.MEMCMP);
+      int i = 0;
+      while (i < length) {
+        final byte[] qualifier = new byte[buf[i++]];
+        System.arraycopy(buf, i, qualifier, 0, qualifier.length);
+        i += qualifier.length;
+        final byte[] value = new byte[buf[i++]];
+        System.arraycopy(buf, i, value, 0, value.length);
+        i += value.length;
+        cells.put(qualifier, value);
+      }
+      final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(cells.size());
+      for (final Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+        kvs.add(new KeyValue(row, TSDB.FAMILY, cell.getKey(),
+                             cell.getValue()));
+      }
+      return kvs;
+    }
+  }
+
+  /**
+   * The rows to compact that share the same base time.
    * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
+   * The rows are spread over a number of independent shards so that the
+   * threads writing data points for the same hour don't all contend on the
+   * same locks.
    */
-  private static final class Cmp implements Comparator<byte[]> {
+  private static final class Bucket implements Comparable<Bucket> {
+    /** The base time of the rows of this bucket. */
+    final long base_time;
+    final Shard[] shards;
+    /** Once set, no more rows can be added to this bucket. */
+    volatile boolean removed;
 
-    /** On how many bytes do we encode metrics IDs.  */
-    private final short metric_width;
+    Bucket(final long base_time, final short metric_width) {
+      this.base_time = base_time;
+      shards = new Shard[SHARDS];
+      for (int i = 0; i < SHARDS; i++) {
+        shards[i] = new Shard(metric_width);
+      }
+    }
 
-    public Cmp(final TSDB tsdb) {
-      metric_width = tsdb.metrics.width();
+    /** @return The shard the given row belongs to. */
+    Shard shard(final RowKey.Key key) {
+      final int h = key.hashCode();
+      return shards[(h ^ (h >>> 16)) & (SHARDS - 1)];
     }
 
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, metric_width, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
+    /** @return The memory used by the rows of this bucket, in bytes. */
+    long bytes() {
+      long bytes = 0;
+      for (final Shard shard : shards) {
+        synchronized (shard) {
+          bytes += shard.rows.bytes();
+        }
+      }
+      return bytes;
+    }
+
+    boolean isEmpty() {
+      for (final Shard shard : shards) {
+        synchronized (shard) {
+          if (!shard.rows.isEmpty()
+              || (shard.buffers != null && !shard.buffers.isEmpty())) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    public int compareTo(final Bucket other) {
+      return base_time < other.base_time ? -1
+        : base_time == other.base_time ? 0 : 1;
+    }
+  }
+
+  /**
+   * Some of the rows of a bucket.  Rows compacted from HBase are kept in a
+   * compact set, rows with write-back buffers in a map.  A row is never in
+   * both.  Guarded by its own lock.
+   */
+  private static final class Shard {
+    final TsuidSet rows;
+    /** Lazily created since most shards have no buffers. */
+    HashMap<RowKey.Key, RowBuffer> buffers;
+
+    Shard(final short metric_width) {
+      rows = new TsuidSet(metric_width);
     }
   }
 
@@ -0,0 +1,208 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Decides how many rows the compaction thread flushes and how many
+ * compactions can be in flight at once, based on how HBase is coping.
+ * <p>
+ * The number of concurrent compactions follows an additive increase,
+ * multiplicative decrease scheme: every time the compaction thread wakes up
+ * the scheduler looks at the compactions completed since the last time.  If
+ * HBase asked us to throttle, compactions failed or their average latency
+ * exceeded {@code tsd.storage.compaction.target_latency}, the concurrency is
+ * halved.  If the latency was well under the target, the concurrency grows
+ * back by a tenth of its maximum.  This way a slow region server makes the
+ * TSD back off instead of hitting it with thousands of GETs at the top of
+ * every hour.
+ * <p>
+ * The number of rows to flush at each iteration is proportional to the size
+ * of the queue, and is increased when the oldest rows of the queue are
+ * overdue so that a TSD that fell behind catches up once HBase recovers.
+ * <p>
+ * {@link #interval}, {@link #maxFlushes} and {@link #adjust} are only called
+ * from the compaction thread, {@link #record} is thread-safe.
+ * @since 2.0
+ */
+final class CompactionScheduler {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(CompactionScheduler.class);
+
+  /** Maximum factor by which the flushes speed up when falling behind. */
+  private static final int MAX_CATCH_UP = 4;
+
+  /** How frequently the compaction thread wakes up to flush stuff, in s. */
+  private final int interval;
+
+  /** Minimum number of rows we'll attempt to compact at once. */
+  private final int min_flushes;
+
+  /** Maximum number of rows we'll compact concurrently. */
+  private final int max_concurrent;
+
+  /** If this is X then we'll flush X times faster than we really need. */
+  private final int flush_speed;
+
+  /** Average compaction latency above which we back off, in ms. */
+  private final int target_latency;
+
+  /** Current number of rows we're allowed to compact concurrently. */
+  private volatile int concurrency;
+
+  /** Sum of the latencies of the compactions since the last adjustment. */
+  private final AtomicLong latency_sum = new AtomicLong();
+  /** Number of compactions completed since the last adjustment. */
+  private final AtomicLong latency_count = new AtomicLong();
+
+  /** Number of errors seen at the last adjustment. */
+  private long last_errors;
+
+  /** Average latency seen at the last adjustment, in ms. */
+  private volatile long last_latency;
+
+  /** Number of times we backed off. */
+  private final AtomicLong backoffs = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param config The configuration to read the scheduler settings from.
+   * @throws IllegalArgumentException if one of the settings is invalid.
+   */
+  CompactionScheduler(final Config config) {
+    interval = config.getInt("tsd.storage.compaction.flush_interval");
+    min_flushes = config.getInt("tsd.storage.compaction.min_flush_threshold");
+    max_concurrent =
+      config.getInt("tsd.storage.compaction.max_concurrent_flushes");
+    flush_speed = config.getInt("tsd.storage.compaction.flush_speed");
+    target_latency = config.getInt("tsd.storage.compaction.target_latency");
+    if (interval < 1) {
+      throw new IllegalArgumentException("Invalid compaction flush interval: "
+          + interval);
+    }
+    if (min_flushes < 1) {
+      throw new IllegalArgumentException("Invalid compaction flush threshold: "
+          + min_flushes);
+    }
+    if (max_concurrent < 1) {
+      throw new IllegalArgumentException(
+          "Invalid maximum number of concurrent compactions: " + max_concurrent);
+    }
+    if (flush_speed < 1) {
+      throw new IllegalArgumentException("Invalid compaction flush speed: "
+          + flush_speed);
+    }
+    if (target_latency < 1) {
+      throw new IllegalArgumentException("Invalid compaction target latency: "
+          + target_latency);
+    }
+    concurrency = max_concurrent;
+  }
+
+  /** @return How long the compaction thread sleeps between flushes, in s. */
+  int interval() {
+    return interval;
+  }
+
+  /** @return How many rows we can currently compact at once. */
+  int concurrency() {
+    return concurrency;
+  }
+
+  /** @return The minimum number of rows in the queue before we flush. */
+  int minFlushes() {
+    return min_flushes;
+  }
+
+  /**
+   * Computes how many rows to flush during this iteration.
+   * <p>
+   * Let's suppose MAX_TIMESPAN = 1h.  We have {@code size} rows to compact,
+   * and we better compact them all in less than 1h, otherwise we're going to
+   * "fall behind" when after a new hour starts (as we'll be inserting a ton
+   * of new rows then).  So slice MAX_TIMESPAN using the interval to compute
+   * what fraction of {@code size} we need to flush at each iteration, and
+   * multiply that by the flush speed so we evict old entries a bit faster.
+   * If the oldest rows have been due for more than an hour, we're behind
+   * and flush even faster.
+   * @param size The number of rows in the queue.
+   * @param overdue How long the oldest rows of the queue have been due for
+   * compaction, in seconds, 0 or less if no row is due.
+   * @return The maximum number of rows to flush, strictly positive.
+   */
+  int maxFlushes(final int size, final long overdue) {
+    long maxflushes = (long) size * interval * flush_speed
+      / Const.MAX_TIMESPAN;
+    if (overdue > Const.MAX_TIMESPAN) {
+      maxflushes *= Math.min(MAX_CATCH_UP, overdue / Const.MAX_TIMESPAN + 1);
+    }
+    // Don't try to flush more than we can run concurrently during an interval
+    // when HBase is struggling.
+    if (concurrency < max_concurrent) {
+      maxflushes = Math.min(maxflushes, concurrency);
+    }
+    return (int) Math.max(min_flushes, Math.min(maxflushes, size));
+  }
+
+  /**
+   * Records the latency of a compaction.
+   * @param latency How long the compaction took, in ms.
+   */
+  void record(final long latency) {
+    latency_sum.addAndGet(latency);
+    latency_count.incrementAndGet();
+  }
+
+  /**
+   * Adjusts the concurrency given what happened since the last call.
+   * @param errors The total number of compaction errors so far, including
+   * the times HBase asked us to throttle.
+   */
+  void adjust(final long errors) {
+    final long count = latency_count.getAndSet(0);
+    final long sum = latency_sum.getAndSet(0);
+    final long new_errors = errors - last_errors;
+    last_errors = errors;
+    final long latency = count == 0 ? 0 : sum / count;
+    last_latency = latency;
+    final int previous = concurrency;
+    if (new_errors > 0 || latency > target_latency) {
+      concurrency = Math.max(1, previous / 2);
+      backoffs.incrementAndGet();
+    } else if (latency < target_latency / 2 && previous < max_concurrent) {
+      concurrency = Math.min(max_concurrent,
+                             previous + Math.max(1, max_concurrent / 10));
+    }
+    if (concurrency != previous) {
+      LOG.info("Compaction concurrency " + previous + " -> " + concurrency
+               + " (latency=" + latency + "ms, errors=" + new_errors + ')');
+    }
+  }
+
+  /**
+   * Collects the stats of the scheduler.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("compaction.scheduler.concurrency", concurrency);
+    collector.record("compaction.scheduler.latency", last_latency);
+    collector.record("compaction.scheduler.backoffs", backoffs);
+  }
+}
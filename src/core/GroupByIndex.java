@@ -0,0 +1,286 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assigns the row keys of a query to the groups of its 'GROUP BY'.
+ * <p>
+ * The key of a group is the concatenation of the value IDs of the tags we
+ * group by, in the order of the tag name IDs.  Both the tags of a row key
+ * and the tags we group by are sorted, so the key is extracted in a single
+ * merge over the two.  The offsets of the values found in a row are kept, as
+ * the next row usually has the same tags at the same place, in which case
+ * they're checked instead of merging again.
+ * <p>
+ * Groups are numbered from 0 in the order in which they're first seen.  The
+ * keys are packed in a single byte array and looked up through an
+ * open-addressing hash table of group numbers, so no object is allocated
+ * for a row unless it starts a new group.
+ * <p>
+ * This class is not thread-safe.
+ * @since 2.0
+ */
+final class GroupByIndex {
+
+  /** Initial number of slots, a power of 2. */
+  private static final int INITIAL_SLOTS = 16;
+
+  /** Where the tags start in the row keys. */
+  private final int tags_offset;
+  private final short name_width;
+  private final short value_width;
+  /** The tag name IDs we group by, sorted. */
+  private final byte[][] group_bys;
+  /** Width of the key of a group. */
+  private final int key_width;
+
+  /** Key of the row being looked up. */
+  private final byte[] key;
+  /** Offsets of the group by values in the last row that had them all. */
+  private final int[] offsets;
+  /** Length of that last row, -1 until we find one. */
+  private int offsets_row_length = -1;
+
+  /** The keys of the groups, {@code key_width} bytes each. */
+  private byte[] data;
+  /** Group numbers plus 1, 0 for empty slots. */
+  private int[] slots;
+  /** Number of groups. */
+  private int size;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to get the UID widths from.
+   * @param group_bys The tag name IDs to group by, sorted.
+   */
+  GroupByIndex(final TSDB tsdb, final List<byte[]> group_bys) {
+    this(tsdb.metrics.width(), tsdb.tag_names.width(),
+         tsdb.tag_values.width(), group_bys);
+  }
+
+  /**
+   * Constructor.
+   * @param metric_width Width of the metric UIDs.
+   * @param name_width Width of the tag name UIDs.
+   * @param value_width Width of the tag value UIDs.
+   * @param group_bys The tag name IDs to group by, sorted.
+   */
+  GroupByIndex(final short metric_width, final short name_width,
+               final short value_width, final List<byte[]> group_bys) {
+    tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    this.name_width = name_width;
+    this.value_width = value_width;
+    this.group_bys = group_bys.toArray(new byte[group_bys.size()][]);
+    key_width = group_bys.size() * value_width;
+    key = new byte[key_width];
+    offsets = new int[group_bys.size()];
+    data = new byte[INITIAL_SLOTS * key_width];
+    slots = new int[INITIAL_SLOTS];
+  }
+
+  /** @return The number of groups. */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Finds the group of a row, creating it if needed.
+   * @param row The row key.
+   * @return The number of the group, which is {@link #size} minus 1 if the
+   * row started a new group, or -1 if the row doesn't have all the tags we
+   * group by.
+   */
+  int add(final byte[] row) {
+    if (!extractKey(row)) {
+      return -1;
+    }
+    int h = 1;
+    for (final byte b : key) {
+      h = 31 * h + b;
+    }
+    int i = (h ^ (h >>> 16)) & (slots.length - 1);
+    while (slots[i] != 0) {
+      if (matches(slots[i] - 1)) {
+        return slots[i] - 1;
+      }
+      i = (i + 1) & (slots.length - 1);
+    }
+    if ((size + 1) * key_width > data.length) {
+      data = Arrays.copyOf(data, data.length * 2);
+    }
+    System.arraycopy(key, 0, data, size * key_width, key_width);
+    slots[i] = ++size;
+    if (size * 4 > slots.length * 3) {
+      rehash(slots.length * 2);
+    }
+    return size - 1;
+  }
+
+  /**
+   * Returns the key of a group.
+   * @param group The number of the group.
+   * @return A copy of the value IDs of the group, concatenated.
+   */
+  byte[] key(final int group) {
+    return Arrays.copyOfRange(data, group * key_width,
+                              (group + 1) * key_width);
+  }
+
+  /**
+   * Returns the groups ordered by key, which is the order in which the
+   * results of a query are returned.
+   * @return The numbers of the groups.
+   */
+  Integer[] sortedGroups() {
+    final Integer[] groups = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      groups[i] = i;
+    }
+    Arrays.sort(groups, new Comparator<Integer>() {
+      public int compare(final Integer a, final Integer b) {
+        final int offset_a = a * key_width;
+        final int offset_b = b * key_width;
+        for (int i = 0; i < key_width; i++) {
+          final int cmp = (data[offset_a + i] & 0xFF)
+            - (data[offset_b + i] & 0xFF);
+          if (cmp != 0) {
+            return cmp;
+          }
+        }
+        return 0;
+      }
+    });
+    return groups;
+  }
+
+  /**
+   * Copies the value IDs of the tags we group by from a row into
+   * {@link #key}.
+   * @return {@code false} if one of the tags is missing from the row.
+   */
+  private boolean extractKey(final byte[] row) {
+    if (row.length != offsets_row_length || !offsetsMatch(row)) {
+      offsets_row_length = -1;
+      if (!findOffsets(row)) {
+        return false;
+      }
+      offsets_row_length = row.length;
+    }
+    for (int i = 0; i < offsets.length; i++) {
+      System.arraycopy(row, offsets[i], key, i * value_width, value_width);
+    }
+    return true;
+  }
+
+  /** @return Whether the tags we group by are at {@link #offsets} in a row. */
+  private boolean offsetsMatch(final byte[] row) {
+    for (int i = 0; i < offsets.length; i++) {
+      if (compareName(row, offsets[i] - name_width, group_bys[i]) != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Finds the offsets of the values of the tags we group by in a row, by
+   * merging its sorted tags with the sorted tag names we group by.
+   * @return {@code false} if one of the tags is missing from the row.
+   */
+  private boolean findOffsets(final byte[] row) {
+    final int tag_width = name_width + value_width;
+    int i = 0;
+    for (int pos = tags_offset;
+         pos + tag_width <= row.length && i < group_bys.length;
+         pos += tag_width) {
+      final int cmp = compareName(row, pos, group_bys[i]);
+      if (cmp == 0) {
+        offsets[i++] = pos + name_width;
+      } else if (cmp > 0) {
+        // We went past that tag name, so the row doesn't have it, unless its
+        // tags aren't sorted.  Fall back to a linear search to find out.
+        return findOffsetsUnsorted(row);
+      }
+    }
+    return i == group_bys.length;
+  }
+
+  /**
+   * Finds the offsets of the values of the tags we group by in a row, one
+   * tag at a time, for row keys that don't have their tags sorted.
+   * @return {@code false} if one of the tags is missing from the row.
+   */
+  private boolean findOffsetsUnsorted(final byte[] row) {
+    final int tag_width = name_width + value_width;
+    for (int i = 0; i < group_bys.length; i++) {
+      offsets[i] = -1;
+      for (int pos = tags_offset; pos + tag_width <= row.length;
+           pos += tag_width) {
+        if (compareName(row, pos, group_bys[i]) == 0) {
+          offsets[i] = pos + name_width;
+          break;
+        }
+      }
+      if (offsets[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares the tag name at the given offset in a row with a tag name ID,
+   * as unsigned bytes.
+   */
+  private int compareName(final byte[] row, final int offset,
+                          final byte[] name) {
+    for (int i = 0; i < name_width; i++) {
+      final int cmp = (row[offset + i] & 0xFF) - (name[i] & 0xFF);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  /** @return Whether a group has the key in {@link #key}. */
+  private boolean matches(final int group) {
+    final int offset = group * key_width;
+    for (int i = 0; i < key_width; i++) {
+      if (data[offset + i] != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Grows the hash table. */
+  private void rehash(final int nslots) {
+    slots = new int[nslots];
+    for (int group = 0; group < size; group++) {
+      int h = 1;
+      for (int i = group * key_width; i < (group + 1) * key_width; i++) {
+        h = 31 * h + data[i];
+      }
+      int i = (h ^ (h >>> 16)) & (nslots - 1);
+      while (slots[i] != 0) {
+        i = (i + 1) & (nslots - 1);
+      }
+      slots[i] = group + 1;
+    }
+  }
+}
@@ -92,7 +92,7 @@ final class IncomingDataPoints implements WritableDataPoints {
    * @throws IllegalArgumentException if any of the arguments aren't valid.
    */
   static void checkMetricAndTags(final String metric, final Map<String, String> tags) {
-    if (tags.size() <= 0) {
+    if (tags == null || tags.size() <= 0) {
       throw new IllegalArgumentException("Need at least one tags (metric="
           + metric + ", tags=" + tags + ')');
     } else if (tags.size() > Const.MAX_NUM_TAGS) {
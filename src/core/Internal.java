@@ -18,6 +18,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Map;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -114,6 +117,51 @@ public final class Internal {
     return tsdb.metrics.width();
   }
 
+  /** @see TSDB#compactRow */
+  public static Deferred<Object> compactRow(final TSDB tsdb,
+                                            final ArrayList<KeyValue> row) {
+    return tsdb.compactRow(row);
+  }
+
+  /**
+   * Writes the rollups of a row without compacting it, e.g. because it was
+   * compacted before rollups were enabled.
+   * @param tsdb The TSDB to write with.
+   * @param row The cells of the row.
+   * @return A deferred called back once the rollups are written, right away
+   * if rollups are disabled.
+   */
+  public static Deferred<Object> rollupRow(final TSDB tsdb,
+                                           final ArrayList<KeyValue> row) {
+    return tsdb.rollups == null ? Deferred.fromResult(null)
+      : tsdb.rollups.write(row);
+  }
+
+  /**
+   * Marks hours complete for a metric once all of its raw rows in them were
+   * rolled up, so that queries answer them from the rollups alone.
+   * @param tsdb The TSDB to write with.
+   * @param metric The UID of the metric.
+   * @param start_base The base time of the first raw row, in seconds.
+   * @param end_base The base time of the last raw row, in seconds.
+   * @return A deferred called back once the marks are written, right away
+   * if rollups are disabled.
+   */
+  public static Deferred<Object> markRolledUp(final TSDB tsdb,
+                                              final byte[] metric,
+                                              final long start_base,
+                                              final long end_base) {
+    if (tsdb.rollups == null) {
+      return Deferred.fromResult(null);
+    }
+    return tsdb.rollups.markComplete(metric, start_base, end_base)
+      .addCallback(new Callback<Object, ArrayList<Object>>() {
+        public Object call(final ArrayList<Object> ignored) {
+          return null;
+        }
+      });
+  }
+
   /** @see CompactionQueue#complexCompact  */
   public static KeyValue complexCompact(final KeyValue kv) {
     final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
@@ -0,0 +1,946 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Keeps running aggregates of the series of configured metrics, grouped by
+ * a subset of their tags, and writes them as series of their own.
+ * <p>
+ * A rule such as {@code sys.cpu.user:dc} keeps, for every value of the
+ * {@code dc} tag and every interval of {@code tsd.preaggregate.interval}
+ * aligned on the epoch, the sum of the average of each {@code sys.cpu.user}
+ * series in that interval.  Queries that ask for it, sum the series
+ * downsampled with an average over the interval and filter or group on
+ * exactly the kept tags read the aggregates instead of every series of the
+ * metric, see {@link #route}.  Their data points are at the start of each
+ * interval, and an interval where a series has no data point doesn't count
+ * that series, where {@code sum:1m-avg} on the raw data would interpolate
+ * it, so they don't always match the same query on the raw data.
+ * <p>
+ * The aggregates are stored in {@code tsd.storage.hbase.preaggregate_table}
+ * with the same row keys as raw data points, except that the row keys only
+ * have the kept tags.  Each TSD writes its own share of an interval, in a
+ * cell whose qualifier is the one of a data point at the start of the
+ * interval followed by a random ID of the TSD, and the shares are summed
+ * when read.  So a series must be written through a single TSD during an
+ * interval, since averages don't add up, and the shares of the intervals a
+ * TSD hadn't written when it crashed are lost.  All the TSDs must have the
+ * same rules.
+ * <p>
+ * An interval is written once {@code tsd.preaggregate.flush_delay} seconds
+ * have elapsed after its end.  Points stored after their interval was
+ * written are counted as late and mark their interval with a cell of their
+ * own, so that queries compute the aggregates of that hour from the raw
+ * data instead.  A TSD only writes the intervals it saw whole: points of
+ * the intervals before the one after it started are late too, and when it
+ * shuts down it marks the intervals that haven't ended rather than writing
+ * a partial share, which a restarted TSD would add to.  Queries do the same before the time the first TSD started
+ * aggregating a metric, which is stored in a row of its own, and for the
+ * intervals that may not have been written yet.  Series missing one of the
+ * kept tags aren't aggregated, nor read by the queries routed here.  Each
+ * metric can have at most one rule, so that the rows of a metric in the
+ * table all have the same tags.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.0
+ */
+final class PreAggregator implements TimerTask {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(PreAggregator.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** How often to look for intervals to write, in milliseconds. */
+  private static final int TICK = 1000;
+
+  /** Flags of the cells written, a double on 8 bytes. */
+  private static final short FLAGS = Const.FLAG_FLOAT | 0x7;
+
+  /** Width of the qualifiers of the shares, see {@link #shareQualifier}. */
+  static final short SHARE_QUALIFIER_WIDTH = 2 + 8;
+
+  /** Width of the qualifiers of late marks, see {@link #lateQualifier}. */
+  static final short LATE_QUALIFIER_WIDTH = 3;
+
+  /** Value of the late marks. */
+  private static final byte[] LATE = { 1 };
+
+  /** Qualifier of the time the aggregates of a metric start at. */
+  private static final byte[] START_QUALIFIER = "start".getBytes(CHARSET);
+
+  /** How many late marks to remember, so they're only written once. */
+  private static final int MAX_LATE_MARKS = 10000;
+
+  /**
+   * How long queries wait before resolving a rule again after one of its
+   * UIDs was missing, in milliseconds.
+   */
+  private static final int RESOLVE_RETRY_INTERVAL = 60000;
+
+  private final TSDB tsdb;
+  private final Timer timer;
+  /** Name of the table the aggregates are stored in. */
+  private final byte[] table;
+  /** Length of the intervals aggregated, in seconds. */
+  private final int interval;
+  /** How long to wait after the end of an interval, in seconds. */
+  private final int flush_delay;
+  /** The rules, keyed on metric name.  Never modified. */
+  private final HashMap<String, Rule> rules;
+  /** Random ID of this instance, in the qualifiers of its shares. */
+  private final byte[] writer_id;
+  /** Start of the first interval this instance sees whole, in seconds. */
+  private final long first_interval;
+
+  /**
+   * Intervals being aggregated, keyed on the row key of the aggregate series
+   * with the start of the interval in place of the base time.
+   */
+  private final ConcurrentHashMap<RowKey.Key, Bucket> buckets =
+    new ConcurrentHashMap<RowKey.Key, Bucket>();
+
+  /**
+   * Time before which the intervals were written, or are being written, and
+   * no longer take data points, in seconds.  Only increases.
+   */
+  private volatile long flushed_until;
+
+  /** The intervals whose late mark was written, keyed like the buckets. */
+  private final Cache<RowKey.Key, Boolean> late_marks =
+    CacheBuilder.newBuilder().maximumSize(MAX_LATE_MARKS).build();
+
+  private volatile boolean stopped;
+
+  private final AtomicLong points = new AtomicLong();
+  private final AtomicLong late_points = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong routed_queries = new AtomicLong();
+
+  /**
+   * Constructor.  The flushes are scheduled right away.
+   * @param tsdb The TSDB to resolve UIDs and write with.
+   * @param timer The timer used to schedule the flushes.
+   * @param config The configuration to read the rules and table from.
+   * @throws IllegalArgumentException if the rules, interval or delay are
+   * invalid.
+   */
+  PreAggregator(final TSDB tsdb, final Timer timer, final Config config) {
+    this.tsdb = tsdb;
+    this.timer = timer;
+    table = config.getString("tsd.storage.hbase.preaggregate_table")
+      .getBytes(CHARSET);
+    final long interval_ms =
+      DateTime.parseDuration(config.getString("tsd.preaggregate.interval"));
+    if (interval_ms % 1000 != 0
+        || Const.MAX_TIMESPAN % (interval_ms / 1000) != 0) {
+      throw new IllegalArgumentException("Invalid tsd.preaggregate.interval: "
+          + config.getString("tsd.preaggregate.interval")
+          + ", it must divide an hour in whole seconds");
+    }
+    interval = (int) (interval_ms / 1000);
+    flush_delay = config.getInt("tsd.preaggregate.flush_delay");
+    if (flush_delay < 0) {
+      throw new IllegalArgumentException(
+          "tsd.preaggregate.flush_delay must be positive: " + flush_delay);
+    }
+    rules = parseRules(config.getString("tsd.preaggregate.rules"));
+    writer_id = new byte[8];
+    new SecureRandom().nextBytes(writer_id);
+    final long now = System.currentTimeMillis() / 1000;
+    first_interval = now - (now % interval) + interval;
+    flushed_until = watermark(now);
+    timer.newTimeout(this, TICK, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Parses a semicolon separated list of rules, each made of a metric name
+   * followed by a colon and the comma separated names of the tags to keep,
+   * e.g. {@code sys.cpu.user:dc;sys.mem.free:dc,rack}.
+   * @return The rules keyed on metric name.
+   * @throws IllegalArgumentException if a rule is malformed or if a metric
+   * has more than one rule.
+   */
+  static HashMap<String, Rule> parseRules(final String spec) {
+    final HashMap<String, Rule> rules = new HashMap<String, Rule>();
+    for (final String rule : Tags.splitString(spec, ';')) {
+      if (rule.trim().isEmpty()) {
+        continue;
+      }
+      final int colon = rule.indexOf(':');
+      if (colon <= 0) {
+        throw new IllegalArgumentException("Invalid pre-aggregation rule: "
+            + rule + ", expected metric:tagk1,tagk2");
+      }
+      final String metric = rule.substring(0, colon).trim();
+      Tags.validateString("metric name", metric);
+      final TreeSet<String> tags = new TreeSet<String>();
+      for (final String tag : Tags.splitString(rule.substring(colon + 1),
+                                               ',')) {
+        if (!tag.trim().isEmpty()) {
+          Tags.validateString("tag name", tag.trim());
+          tags.add(tag.trim());
+        }
+      }
+      if (rules.put(metric, new Rule(metric, tags.toArray(
+          new String[tags.size()]))) != null) {
+        throw new IllegalArgumentException(
+            "More than one pre-aggregation rule for " + metric);
+      }
+    }
+    if (rules.isEmpty()) {
+      throw new IllegalArgumentException(
+          "No pre-aggregation rule in: " + spec);
+    }
+    return rules;
+  }
+
+  /** @return The name of the table the aggregates are stored in. */
+  byte[] table() {
+    return table;
+  }
+
+  /**
+   * Tells whether the data points of a series are aggregated, in which case
+   * they must be passed to {@link #add} once stored.
+   * @param metric The name of the metric.
+   * @param tags The tags of the series.
+   * @return Whether the metric has a rule and the series all its tags.
+   */
+  boolean accepts(final String metric, final Map<String, String> tags) {
+    final Rule rule = rules.get(metric);
+    if (rule == null || stopped) {
+      return false;
+    }
+    for (final String tag : rule.tags) {
+      if (!tags.containsKey(tag)) {
+        return false;  // Not aggregated, don't bother resolving the rule.
+      }
+    }
+    // The UIDs were just resolved for this point so they're cached.
+    return rule.tag_ids != null || rule.resolve(tsdb);
+  }
+
+  /**
+   * Adds a stored data point to the aggregates of its metric.
+   * @param metric The name of the metric, {@link #accepts accepted} with
+   * the tags of the series.
+   * @param row The row key of the data point, will not be modified.
+   * @param timestamp The timestamp in seconds or milliseconds.
+   * @param value The encoded value.
+   * @param flags The flags of the value.
+   */
+  void add(final String metric, final byte[] row, final long timestamp,
+           final byte[] value, final short flags) {
+    final Rule rule = rules.get(metric);
+    if (rule == null || rule.tag_ids == null) {
+      return;
+    }
+    if (!rule.start_recorded.get()
+        && rule.start_recorded.compareAndSet(false, true)) {
+      recordStart(rule);
+    }
+
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0
+      ? timestamp / 1000 : timestamp;
+    final long start = seconds - (seconds % interval);
+    final byte[] key = aggregateKey(rule, row, start);
+    if (key == null) {
+      return;  // The series doesn't have all the kept tags.
+    }
+    final double v = (flags & Const.FLAG_FLOAT) != 0
+      ? Internal.extractFloatingPointValue(value, 0, (byte) flags)
+      : Internal.extractIntegerValue(value, 0, (byte) flags);
+
+    final RowKey.Key bucket_key = new RowKey.Key(key);
+    boolean late = start < first_interval
+      || start + interval <= flushed_until;
+    while (!late) {
+      Bucket bucket = buckets.get(bucket_key);
+      if (bucket == null) {
+        bucket = new Bucket(key, start);
+        final Bucket existing = buckets.putIfAbsent(bucket_key, bucket);
+        if (existing != null) {
+          bucket = existing;
+        }
+      }
+      synchronized (bucket) {
+        if (bucket.closed) {
+          continue;  // Flushed under our feet, start a new bucket.
+        }
+        // The flush may have removed the bucket it wrote before we created
+        // this one, which would be written as a second share of ours.
+        late = start + interval <= flushed_until;
+        if (!late) {
+          bucket.add(row, v);
+        }
+      }
+      if (!late) {
+        points.incrementAndGet();
+        return;
+      }
+    }
+    markLate(bucket_key);
+  }
+
+  /**
+   * Builds the row key of the aggregate a data point belongs to.
+   * @param rule The resolved rule of the metric.
+   * @param row The row key of the data point.
+   * @param start The start of the interval, in seconds.
+   * @return The row key with only the kept tags and the start of the
+   * interval as its base time, or {@code null} if a kept tag is missing.
+   */
+  private byte[] aggregateKey(final Rule rule, final byte[] row,
+                              final long start) {
+    final short metric_width = tsdb.metrics.width();
+    final short name_width = tsdb.tag_names.width();
+    final short tag_width = (short) (name_width + tsdb.tag_values.width());
+    final int tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    final byte[] key =
+      new byte[tags_offset + rule.tag_ids.length * tag_width];
+    System.arraycopy(row, 0, key, 0, metric_width);
+    Bytes.setInt(key, (int) start, metric_width);
+    int kept = 0;
+    for (int pos = tags_offset; pos < row.length; pos += tag_width) {
+      for (final byte[] tag_id : rule.tag_ids) {
+        if (startsWith(row, pos, tag_id)) {
+          System.arraycopy(row, pos, key, tags_offset + kept * tag_width,
+                           tag_width);
+          kept++;
+          break;
+        }
+      }
+    }
+    return kept == rule.tag_ids.length ? key : null;
+  }
+
+  /** @return Whether the bytes of an array at an offset start with an ID. */
+  private static boolean startsWith(final byte[] array, final int offset,
+                                    final byte[] id) {
+    for (int i = 0; i < id.length; i++) {
+      if (array[offset + i] != id[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Sets the base time of the row of a time in a row key. */
+  private void setBaseTime(final byte[] key, final long time) {
+    Bytes.setInt(key, (int) (time - (time % Const.MAX_TIMESPAN)),
+                 tsdb.metrics.width());
+  }
+
+  /**
+   * Counts a late data point and writes the late mark of its interval, if
+   * it wasn't already.
+   * @param bucket_key The row key of the aggregate with the start of the
+   * interval in place of the base time.
+   */
+  private void markLate(final RowKey.Key bucket_key) {
+    late_points.incrementAndGet();
+    writeLateMark(bucket_key);
+  }
+
+  /**
+   * Writes the late mark of an interval, if it wasn't already.  Failures are
+   * logged and counted, the returned deferred never fails.
+   * @param bucket_key The row key of the aggregate with the start of the
+   * interval in place of the base time.
+   * @return A deferred called back once the mark is written.
+   */
+  private Deferred<Object> writeLateMark(final RowKey.Key bucket_key) {
+    if (late_marks.asMap().putIfAbsent(bucket_key, Boolean.TRUE) != null) {
+      return Deferred.fromResult(null);
+    }
+    final byte[] key = bucket_key.row.clone();
+    final long start = Bytes.getUnsignedInt(key, tsdb.metrics.width());
+    setBaseTime(key, start);
+    final PutRequest put = new PutRequest(table, key, TSDB.FAMILY,
+                                          lateQualifier(start), LATE);
+
+    /** Logs and counts the failed writes, the next late point retries. */
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        late_marks.invalidate(bucket_key);
+        errors.incrementAndGet();
+        LOG.error("Failed to write the late mark " + put, e);
+        return null;
+      }
+      public String toString() {
+        return "handle late mark write error";
+      }
+    }
+
+    return tsdb.client.put(put).addErrback(new ErrorCB());
+  }
+
+  /**
+   * Records the start of the first interval this instance sees whole as
+   * the time the aggregates of a metric start at, unless a time was already
+   * recorded.
+   */
+  private void recordStart(final Rule rule) {
+    final PutRequest put = new PutRequest(table, startKey(rule.metric_id),
+        TSDB.FAMILY, START_QUALIFIER, Bytes.fromLong(first_interval));
+
+    /** Logs and counts the failed writes, the next point retries. */
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        rule.start_recorded.set(false);
+        errors.incrementAndGet();
+        LOG.error("Failed to record the start of the pre-aggregates of "
+                  + rule.metric, e);
+        return null;
+      }
+      public String toString() {
+        return "handle pre-aggregate start write error";
+      }
+    }
+
+    tsdb.client.compareAndSet(put, HBaseClient.EMPTY_ARRAY)
+      .addErrback(new ErrorCB());
+  }
+
+  /** @return The row key of the time the aggregates of a metric start at. */
+  private byte[] startKey(final byte[] metric) {
+    final byte[] key = new byte[metric.length + Const.TIMESTAMP_BYTES];
+    System.arraycopy(metric, 0, key, 0, metric.length);
+    return key;
+  }
+
+  /**
+   * Returns the time the aggregates of a metric start at, before which
+   * they must be computed from the raw data.
+   * @param metric The UID of the metric.
+   * @return A deferred time in seconds, {@code Long.MAX_VALUE} if the
+   * metric has no aggregates yet.
+   */
+  Deferred<Long> coverageStart(final byte[] metric) {
+    final Rule rule = find(metric);
+    if (rule == null) {
+      return Deferred.fromResult(Long.MAX_VALUE);
+    } else if (rule.start != Long.MAX_VALUE) {
+      return Deferred.fromResult(rule.start);
+    }
+    final GetRequest get = new GetRequest(table, startKey(metric));
+    get.family(TSDB.FAMILY).qualifier(START_QUALIFIER);
+
+    /** Caches the time read, it never changes once recorded. */
+    final class GetCB implements Callback<Long, ArrayList<KeyValue>> {
+      public Long call(final ArrayList<KeyValue> row) {
+        if (row == null || row.isEmpty()) {
+          return Long.MAX_VALUE;
+        }
+        rule.start = Bytes.getLong(row.get(0).value());
+        return rule.start;
+      }
+      public String toString() {
+        return "read the start of the pre-aggregates of " + rule.metric;
+      }
+    }
+
+    return tsdb.client.get(get).addCallback(new GetCB());
+  }
+
+  /**
+   * Returns the time before which the intervals have been written, leaving
+   * an interval for the flushes and puts in flight, and for the clocks of
+   * the TSDs to differ.
+   * @param now The current time, in seconds.
+   * @return A time in seconds, at the start of an interval.
+   */
+  long flushed(final long now) {
+    final long time = watermark(now) - interval;
+    return time - (time % interval);
+  }
+
+  /**
+   * Returns the time before which intervals are written and no longer take
+   * data points.
+   * @param now The current time, in seconds.
+   */
+  private long watermark(final long now) {
+    return now - flush_delay;
+  }
+
+  /**
+   * Writes the intervals that ended more than the flush delay before the
+   * given time.
+   * @param now The current time, in seconds.
+   * @return A deferred called back once all the puts are done.
+   */
+  Deferred<ArrayList<Object>> flush(final long now) {
+    return flushBefore(watermark(now), false);
+  }
+
+  /**
+   * Stops the periodic flushes, writes the intervals that ended and marks
+   * the others late, as this instance won't see them whole.  Points added
+   * afterwards are late.
+   * @return A deferred called back once all the puts are done.
+   */
+  Deferred<ArrayList<Object>> shutdown() {
+    stopped = true;
+    return flushBefore(System.currentTimeMillis() / 1000, true);
+  }
+
+  /** Periodic flush. */
+  public void run(final Timeout timeout) {
+    try {
+      flush(System.currentTimeMillis() / 1000);
+    } catch (Exception e) {
+      LOG.error("Failed to flush the pre-aggregates", e);
+    } finally {
+      if (!stopped) {
+        timer.newTimeout(this, TICK, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Writes the intervals that end before the given time.
+   * @param watermark A time in seconds.
+   * @param all Whether to close the other intervals too, marking them late.
+   * @return A deferred called back once all the puts are done.
+   */
+  private synchronized Deferred<ArrayList<Object>> flushBefore(
+      final long watermark, final boolean all) {
+    // Points for these intervals are late from now on, before we remove
+    // their buckets, see add().
+    final long until = all ? Long.MAX_VALUE : watermark;
+    if (until > flushed_until) {
+      flushed_until = until;
+    }
+    final ArrayList<Deferred<Object>> sent = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<RowKey.Key, Bucket> entry : buckets.entrySet()) {
+      final Bucket bucket = entry.getValue();
+      final boolean ended = bucket.start + interval <= watermark;
+      if ((!ended && !all) || !buckets.remove(entry.getKey(), bucket)) {
+        continue;
+      }
+      synchronized (bucket) {
+        bucket.closed = true;
+      }
+      if (bucket.series.isEmpty()) {
+        continue;
+      }
+      sent.add(ended ? write(bucket) : writeLateMark(entry.getKey()));
+    }
+    return Deferred.group(sent);
+  }
+
+  /**
+   * Writes the share of this instance of a closed interval.  Failures are
+   * logged and counted, the returned deferred never fails.
+   */
+  private Deferred<Object> write(final Bucket bucket) {
+    double total = 0;
+    for (final double[] series : bucket.series.values()) {
+      total += series[0] / series[1];
+    }
+    final byte[] key = bucket.key;
+    setBaseTime(key, bucket.start);
+    final PutRequest put = new PutRequest(table, key, TSDB.FAMILY,
+        shareQualifier(bucket.start, writer_id),
+        Bytes.fromLong(Double.doubleToRawLongBits(total)));
+    written.incrementAndGet();
+
+    /** Logs and counts the failed writes. */
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        errors.incrementAndGet();
+        LOG.error("Failed to write the pre-aggregate " + put, e);
+        return null;
+      }
+      public String toString() {
+        return "handle pre-aggregate write error";
+      }
+    }
+
+    return tsdb.client.put(put).addErrback(new ErrorCB());
+  }
+
+  /**
+   * Returns the qualifier of the share a TSD writes of an interval: the
+   * qualifier of a data point at the start of the interval followed by the
+   * ID of the TSD.
+   * @param start The start of the interval, in seconds.
+   * @param writer_id The 8 byte ID of the TSD.
+   */
+  static byte[] shareQualifier(final long start, final byte[] writer_id) {
+    final byte[] qualifier = new byte[SHARE_QUALIFIER_WIDTH];
+    System.arraycopy(Internal.buildQualifier(start, FLAGS), 0, qualifier, 0,
+                     2);
+    System.arraycopy(writer_id, 0, qualifier, 2, writer_id.length);
+    return qualifier;
+  }
+
+  /**
+   * Returns the qualifier of the mark of an interval that had late data
+   * points: the qualifier of a data point at the start of the interval
+   * followed by a zero byte.
+   * @param start The start of the interval, in seconds.
+   */
+  static byte[] lateQualifier(final long start) {
+    final byte[] qualifier = new byte[LATE_QUALIFIER_WIDTH];
+    System.arraycopy(Internal.buildQualifier(start, FLAGS), 0, qualifier, 0,
+                     2);
+    return qualifier;
+  }
+
+  /**
+   * Tells whether a row of the table has intervals with late data points,
+   * in which case its aggregates are incomplete.
+   * @param row The cells of the row.
+   */
+  static boolean hasLateData(final ArrayList<KeyValue> row) {
+    for (final KeyValue kv : row) {
+      if (kv.qualifier().length == LATE_QUALIFIER_WIDTH) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the aggregates of a row of the table to a span, summing the shares
+   * of each interval.
+   * @param row The cells of the row, sorted by qualifier.
+   * @param span The span of the aggregate series.
+   * @return Whether the row had any aggregate.
+   */
+  static boolean addTo(final ArrayList<KeyValue> row, final Span span) {
+    final byte[] key = row.get(0).key();
+    final long base_time = Bytes.getUnsignedInt(key, TSDB.metrics_width());
+    final long[] timestamps = new long[row.size()];
+    final double[] sums = new double[row.size()];
+    int n = 0;
+    for (final KeyValue kv : row) {
+      final byte[] qualifier = kv.qualifier();
+      if (qualifier.length != SHARE_QUALIFIER_WIDTH) {
+        continue;  // A late mark or the start of the aggregates.
+      }
+      final long timestamp =
+        Internal.getTimestampFromQualifier(qualifier, base_time);
+      // The shares of an interval are next to each other.
+      if (n == 0 || timestamps[n - 1] != timestamp) {
+        timestamps[n++] = timestamp;
+      }
+      sums[n - 1] += Double.longBitsToDouble(Bytes.getLong(kv.value()));
+    }
+    if (n == 0) {
+      return false;
+    }
+    final long[] values = new long[n];
+    final boolean[] floats = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = Double.doubleToRawLongBits(sums[i]);
+      floats[i] = true;
+    }
+    span.addPoints(key, n, timestamps, values, floats);
+    return true;
+  }
+
+  /**
+   * Computes the aggregates of raw data, for the intervals whose aggregates
+   * can't be read, and adds them to the spans of the aggregates.
+   * @param metric The UID of the metric.
+   * @param raw The spans of the raw data points, keyed on row key.  Series
+   * missing one of the kept tags are skipped.
+   * @param spans The spans of the aggregates, keyed on row key ignoring the
+   * base time.
+   */
+  void aggregate(final byte[] metric, final Map<byte[], Span> raw,
+                 final Map<byte[], Span> spans) {
+    final Rule rule = find(metric);
+    if (rule == null) {
+      return;
+    }
+    // The sum of the averages of each interval, per aggregate series.
+    final Bytes.ByteMap<TreeMap<Long, double[]>> aggregates =
+      new Bytes.ByteMap<TreeMap<Long, double[]>>();
+    for (final Map.Entry<byte[], Span> entry : raw.entrySet()) {
+      final byte[] key = aggregateKey(rule, entry.getKey(), 0);
+      if (key == null) {
+        continue;
+      }
+      TreeMap<Long, double[]> sums = aggregates.get(key);
+      if (sums == null) {
+        sums = new TreeMap<Long, double[]>();
+        aggregates.put(key, sums);
+      }
+      final Span span = entry.getValue();
+      int i = 0;
+      while (i < span.size()) {
+        final long start = intervalStart(span.timestamp(i));
+        double sum = 0;
+        int count = 0;
+        for (; i < span.size() && intervalStart(span.timestamp(i)) == start;
+             i++) {
+          sum += span.isInteger(i) ? span.longValue(i) : span.doubleValue(i);
+          count++;
+        }
+        double[] total = sums.get(start);
+        if (total == null) {
+          total = new double[1];
+          sums.put(start, total);
+        }
+        total[0] += sum / count;
+      }
+    }
+
+    for (final Map.Entry<byte[], TreeMap<Long, double[]>> entry
+         : aggregates.entrySet()) {
+      final TreeMap<Long, double[]> sums = entry.getValue();
+      final int n = sums.size();
+      if (n == 0) {
+        continue;
+      }
+      final long[] timestamps = new long[n];
+      final long[] values = new long[n];
+      final boolean[] floats = new boolean[n];
+      int i = 0;
+      for (final Map.Entry<Long, double[]> sum : sums.entrySet()) {
+        timestamps[i] = sum.getKey() * 1000;
+        values[i] = Double.doubleToRawLongBits(sum.getValue()[0]);
+        floats[i] = true;
+        i++;
+      }
+      final byte[] key = entry.getKey();
+      setBaseTime(key, sums.firstKey());
+      Span span = spans.get(key);
+      if (span == null) {
+        span = new Span(tsdb);
+        spans.put(key, span);
+      }
+      span.addPoints(key, n, timestamps, values, floats);
+    }
+  }
+
+  /**
+   * @param timestamp A timestamp in milliseconds.
+   * @return The start of its interval, in seconds.
+   */
+  private long intervalStart(final long timestamp) {
+    final long seconds = timestamp / 1000;
+    return seconds - (seconds % interval);
+  }
+
+  /**
+   * Tells whether a query can read the aggregates of its metric instead of
+   * its raw data.  That's the case when it sums the series, downsampled
+   * with an average over the aggregation interval, and filters or groups on
+   * all the kept tags and only on them, so that it only reads the series
+   * that are aggregated.
+   * @param metric The UID of the metric.
+   * @param tags The tag filters of the query, tag name and value UIDs.
+   * @param group_bys The UIDs of the tags the query groups by, may be
+   * {@code null}.
+   * @param aggregator The aggregator of the query.
+   * @param downsampler The downsampling function, may be {@code null}.
+   * @param interval_ms The downsampling interval in milliseconds.
+   * @param rate Whether the query is a rate.
+   * @return Whether to read the aggregates.
+   */
+  boolean route(final byte[] metric, final List<byte[]> tags,
+                final List<byte[]> group_bys, final Aggregator aggregator,
+                final Aggregator downsampler, final long interval_ms,
+                final boolean rate) {
+    if (rate || downsampler != Aggregators.AVG
+        || interval_ms != interval * 1000L
+        || (aggregator != Aggregators.SUM
+            && aggregator != Aggregators.ZIMSUM)) {
+      return false;
+    }
+    final Rule rule = find(metric);
+    if (rule == null) {
+      return false;
+    }
+    int used = 0;
+    if (tags != null) {
+      for (final byte[] tag : tags) {
+        if (!rule.keeps(tag)) {
+          return false;
+        }
+        used++;
+      }
+    }
+    if (group_bys != null) {
+      for (final byte[] tag : group_bys) {
+        if (!rule.keeps(tag)) {
+          return false;
+        }
+        used++;
+      }
+    }
+    // A tag can't be both filtered and grouped on, so all are used.
+    if (used != rule.tag_ids.length) {
+      return false;
+    }
+    routed_queries.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Returns the rule of a metric.  The rules whose UIDs were missing aren't
+   * resolved again for a while, as this blocks.
+   * @return The resolved rule of a metric UID, or {@code null}.
+   */
+  private Rule find(final byte[] metric) {
+    for (final Rule rule : rules.values()) {
+      if (rule.metric_id == null
+          && (System.currentTimeMillis() < rule.retry_at
+              || !rule.resolve(tsdb))) {
+        continue;
+      }
+      if (Arrays.equals(rule.metric_id, metric)) {
+        return rule;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("preaggregate.points", points.get());
+    collector.record("preaggregate.late_points", late_points.get());
+    collector.record("preaggregate.pending", buckets.size());
+    collector.record("preaggregate.written", written.get());
+    collector.record("preaggregate.errors", errors.get());
+    collector.record("preaggregate.queries", routed_queries.get());
+  }
+
+  /** A metric and the tags its aggregates keep. */
+  static final class Rule {
+    final String metric;
+    /** Names of the kept tags, sorted. */
+    final String[] tags;
+    /** UID of the metric, {@code null} until resolved. */
+    volatile byte[] metric_id;
+    /** UIDs of the kept tags, {@code null} until resolved. */
+    volatile byte[][] tag_ids;
+    /** Whether this instance recorded the start of the aggregates. */
+    final AtomicBoolean start_recorded = new AtomicBoolean();
+    /** Start of the aggregates, {@code Long.MAX_VALUE} until read. */
+    volatile long start = Long.MAX_VALUE;
+    /** When to resolve the UIDs again after a failure, in milliseconds. */
+    volatile long retry_at;
+
+    Rule(final String metric, final String[] tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    /**
+     * Resolves the UIDs of the metric and the kept tags.
+     * @return Whether they all have a UID.
+     */
+    boolean resolve(final TSDB tsdb) {
+      try {
+        final byte[][] ids = new byte[tags.length][];
+        for (int i = 0; i < tags.length; i++) {
+          ids[i] = tsdb.tag_names.getId(tags[i]);
+        }
+        tag_ids = ids;
+        metric_id = tsdb.metrics.getId(metric);
+        return true;
+      } catch (NoSuchUniqueName e) {
+        retry_at = System.currentTimeMillis() + RESOLVE_RETRY_INTERVAL;
+        return false;
+      }
+    }
+
+    /**
+     * @param tag A tag UID, optionally followed by the UID of a value.
+     * @return Whether the aggregates keep that tag.
+     */
+    boolean keeps(final byte[] tag) {
+      for (final byte[] id : tag_ids) {
+        if (tag.length >= id.length && startsWith(tag, 0, id)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** The data points of an interval.  Guarded by its own lock. */
+  private static final class Bucket {
+    /** The row key of the aggregate, its base time is set when written. */
+    final byte[] key;
+    /** Start of the interval, in seconds. */
+    final long start;
+    /** The sum and count of the values of each series, keyed on row key. */
+    final HashMap<RowKey.Key, double[]> series =
+      new HashMap<RowKey.Key, double[]>();
+    /** Once set, the interval is being written and can't take more points. */
+    boolean closed;
+
+    Bucket(final byte[] key, final long start) {
+      this.key = key;
+      this.start = start;
+    }
+
+    void add(final byte[] row, final double value) {
+      final RowKey.Key series_key = new RowKey.Key(row);
+      double[] sum_count = series.get(series_key);
+      if (sum_count == null) {
+        sum_count = new double[2];
+        series.put(series_key, sum_count);
+      }
+      sum_count[0] += value;
+      sum_count[1]++;
+    }
+  }
+}
@@ -97,6 +97,25 @@ public interface Query {
   void setTimeSeries(String metric, Map<String, String> tags,
                      Aggregator function, boolean rate) throws NoSuchUniqueName;
 
+  /**
+   * Sets the time series to the query without blocking on the UID lookups.
+   * The query must not be run before the deferred returned is resolved.
+   * @param metric The metric to retreive from the TSDB.
+   * @param tags The set of tags of interest.  The group by tags are removed
+   * from the map.
+   * @param function The aggregation function to use.
+   * @param rate If true, the rate of the series will be used instead of the
+   * actual values.
+   * @param rate_options Specifies additional options that are used when
+   * calculating rate values
+   * @return A deferred resolved once the names have been resolved, or with a
+   * {@link NoSuchUniqueName} if the metric, or a tag name/value, does not
+   * exist.
+   * @since 2.0
+   */
+  Deferred<Object> setTimeSeriesAsync(String metric, Map<String, String> tags,
+      Aggregator function, boolean rate, RateOptions rate_options);
+
   /**
    * Sets up a query for the given timeseries UIDs. For now, all TSUIDs in the
    * group must share a common metric. This is to avoid issues where the scanner
@@ -155,6 +174,36 @@ public interface Query {
    */
   void downsample(long interval, Aggregator downsampler);
 
+  /**
+   * Sets how many scanners to split the time range of this query between.
+   * The scanners run in parallel.  If not set, the value of
+   * {@code tsd.query.scan_parallelism} is used.
+   * @param parallelism The number of scanners, at least 1.  Fewer scanners
+   * will be used if the time range spans fewer rows.
+   * @throws IllegalArgumentException if the parallelism is less than 1
+   * @since 2.0
+   */
+  void setScanParallelism(int parallelism);
+
+  /**
+   * Sets whether this query may read the pre-aggregates of its metric
+   * instead of its raw data, when they can answer it.  Their data points are
+   * at the start of each interval and don't interpolate the series missing
+   * from an interval, so the results may differ from the raw data's.
+   * @param preaggregates Whether to read the pre-aggregates.
+   * @since 2.0
+   */
+  void setPreAggregates(boolean preaggregates);
+
+  /**
+   * Sets the limits this query must stay within.  The query fails with a
+   * {@link QueryLimitException} as soon as one is reached.
+   * @param limits The limits, possibly shared with other queries of the same
+   * request, or {@code null} for no limit.
+   * @since 2.0
+   */
+  void setLimits(QueryLimits limits);
+
   /**
    * Runs this query.
    * @return The data points matched by this query.
@@ -0,0 +1,486 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * In-memory cache of query results, split in fixed time buckets.
+ * <p>
+ * Dashboards keep asking for the same sub queries over a sliding time range,
+ * e.g. the last 24 hours refreshed every minute.  Instead of caching whole
+ * results, which would be stale on the next refresh, the time range of a sub
+ * query is split into buckets of {@code tsd.query.cache.bucket_size} seconds
+ * aligned on the epoch, and the aggregated result of each bucket is cached
+ * on its own.  A refresh then only runs the buckets it doesn't have, usually
+ * the one at the tail of the range, and stitches the rest from memory.
+ * <p>
+ * Buckets that end less than {@code tsd.query.cache.settle_time} seconds ago
+ * may still receive data, so they're only served for
+ * {@code tsd.query.cache.ttl} seconds.  Older buckets are kept until they're
+ * evicted, least recently used first, once the cache holds more than
+ * {@code tsd.query.cache.max_bytes} bytes.
+ * <p>
+ * Stitching buckets only gives the same result as the whole query when the
+ * result of a bucket doesn't depend on the data points of its neighbors.
+ * Rates need the previous data point, padded queries ask for data outside of
+ * the range and queries shorter than a bucket have nothing to reuse, so they
+ * all bypass the cache.  When the sub query is downsampled, the bucket size
+ * is rounded up to a multiple of the downsampling interval, the head of the
+ * range is run as is since the intervals start with the first data point of
+ * the query, and a bucket whose last interval would spill over into the next
+ * bucket isn't stitched.  Neither is a group of series that have to be
+ * linearly interpolated, because they don't have data points at the same
+ * timestamps or a series skips a bucket.  In those cases the whole query is
+ * run instead and bypasses the cache for a bucket's worth of time.
+ * <p>
+ * The aggregated size of a stitched series is the number of raw data points
+ * within the buckets, not counting the ones the scans picked up past their
+ * ends.
+ * @since 2.0
+ */
+final class QueryCache {
+
+  /** How many sub queries that can't be split in buckets we remember. */
+  private static final int MAX_UNSTITCHABLE = 4096;
+
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
+  /** Cached buckets, keyed on the normalized sub query and bucket start. */
+  private final Cache<String, Bucket> cache;
+
+  /** Size of a bucket in milliseconds. */
+  private final long bucket_size;
+
+  /** How long a bucket may still receive data, in milliseconds. */
+  private final long settle_time;
+
+  /** How long a bucket that may still change is served, in milliseconds. */
+  private final long ttl;
+
+  /**
+   * Sub queries whose buckets didn't add up to the result over their whole
+   * time range, keyed like the buckets without the base.  They bypass the
+   * cache until the entry expires.
+   */
+  private final Cache<String, Boolean> unstitchable;
+
+  /** Estimated bytes used by the cached buckets. */
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong bypassed = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to run the queries with.
+   * @param max_bytes The memory budget of the cache, in bytes.
+   * @param bucket_size The size of a bucket, in seconds.
+   * @param settle_time How long a bucket may receive data after its end, in
+   * seconds.
+   * @param ttl How long a bucket that may still change is served, in seconds.
+   * @throws IllegalArgumentException if the budget or bucket size is less
+   * than 1 or if a time is negative.
+   */
+  QueryCache(final TSDB tsdb, final long max_bytes, final int bucket_size,
+             final int settle_time, final int ttl) {
+    if (max_bytes < 1) {
+      throw new IllegalArgumentException("Invalid cache size: " + max_bytes);
+    }
+    if (bucket_size < 1) {
+      throw new IllegalArgumentException("Invalid bucket size: "
+          + bucket_size);
+    }
+    if (settle_time < 0 || ttl < 0) {
+      throw new IllegalArgumentException("Invalid settle time [" + settle_time
+          + "] or TTL [" + ttl + "]");
+    }
+    this.tsdb = tsdb;
+    this.bucket_size = bucket_size * 1000L;
+    this.settle_time = settle_time * 1000L;
+    this.ttl = ttl * 1000L;
+    cache = CacheBuilder.newBuilder()
+      .maximumWeight(max_bytes)
+      .weigher(new Weigher<String, Bucket>() {
+        public int weigh(final String key, final Bucket bucket) {
+          return bucket.bytes;
+        }
+      })
+      .removalListener(new RemovalListener<String, Bucket>() {
+        public void onRemoval(
+            final RemovalNotification<String, Bucket> notification) {
+          bytes.addAndGet(-notification.getValue().bytes);
+        }
+      })
+      .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+      .recordStats()
+      .build();
+    unstitchable = CacheBuilder.newBuilder()
+      .maximumSize(MAX_UNSTITCHABLE)
+      .expireAfterWrite(this.bucket_size, TimeUnit.MILLISECONDS)
+      .build();
+  }
+
+  /**
+   * Runs a sub query, from the cache when possible.
+   * @param ts_query The validated query.
+   * @param index The index of the sub query to run.
+   * @return The results of the sub query, one per group.
+   */
+  Deferred<DataPoints[]> run(final TSQuery ts_query, final int index) {
+    final TSSubQuery sub = ts_query.getQueries().get(index);
+    final long interval = bucketInterval(sub);
+    final long start = ts_query.startTime();
+    final long end = ts_query.endTime();
+    if (ts_query.getPadding() || sub.getRate() || end - start < interval) {
+      bypassed.incrementAndGet();
+      return runUncached(ts_query, index);
+    }
+
+    final String key = queryKey(ts_query, sub, interval);
+    if (unstitchable.getIfPresent(key) != null) {
+      bypassed.incrementAndGet();
+      return runUncached(ts_query, index);
+    }
+    final long now = System.currentTimeMillis();
+    final ArrayList<Deferred<Bucket>> buckets =
+      new ArrayList<Deferred<Bucket>>();
+    for (long base = start - start % interval; base <= end; base += interval) {
+      final long expires = base + interval > now - settle_time ? now + ttl : 0;
+      if (base < start && sub.downsampler() != null) {
+        // the downsampling intervals start with the first data point of the
+        // query, run the head of the range as is so they line up
+        misses.incrementAndGet();
+        buckets.add(fetch(ts_query, index, null, start, base + interval - 1,
+                          expires));
+        continue;
+      }
+      final String bucket_key = key + base;
+      final Bucket bucket = cache.getIfPresent(bucket_key);
+      if (bucket != null && (bucket.expires == 0 || bucket.expires > now)) {
+        hits.incrementAndGet();
+        buckets.add(Deferred.fromResult(bucket));
+        continue;
+      }
+      if (bucket != null) {
+        expired.incrementAndGet();
+      }
+      misses.incrementAndGet();
+      buckets.add(fetch(ts_query, index, bucket_key, base, base + interval - 1,
+                        expires));
+    }
+    final boolean lerp =
+      sub.aggregator().interpolationMethod() == Interpolation.LERP;
+
+    /** Stitches the buckets back together, one series per group. */
+    final class StitchCB
+      implements Callback<Deferred<DataPoints[]>, ArrayList<Bucket>> {
+      public Deferred<DataPoints[]> call(final ArrayList<Bucket> results) {
+        final List<String> group_bys = groupBys(sub);
+        final LinkedHashMap<String, List<CachedDataPoints>> groups =
+          new LinkedHashMap<String, List<CachedDataPoints>>();
+        boolean self_contained = true;
+        for (final Bucket bucket : results) {
+          self_contained &= bucket.self_contained;
+          for (final CachedDataPoints dps : bucket.series) {
+            final StringBuilder group = new StringBuilder();
+            for (final String tagk : group_bys) {
+              group.append(dps.getTags().get(tagk)).append('\0');
+            }
+            List<CachedDataPoints> series = groups.get(group.toString());
+            if (series == null) {
+              series = new ArrayList<CachedDataPoints>(results.size());
+              groups.put(group.toString(), series);
+            }
+            series.add(dps);
+          }
+        }
+        if (lerp) {
+          for (final List<CachedDataPoints> series : groups.values()) {
+            self_contained &= !hasGaps(series);
+          }
+        }
+        if (!self_contained) {
+          // the buckets would not add up to the result of the whole range,
+          // don't bother splitting this query for a while
+          unstitchable.put(key, Boolean.TRUE);
+          bypassed.incrementAndGet();
+          return runUncached(ts_query, index);
+        }
+        final ArrayList<DataPoints> stitched =
+          new ArrayList<DataPoints>(groups.size());
+        for (final List<CachedDataPoints> series : groups.values()) {
+          final CachedDataPoints dps =
+            CachedDataPoints.merge(series, start, end);
+          if (dps.size() > 0) {
+            stitched.add(dps);
+          }
+        }
+        return Deferred.fromResult(
+            stitched.toArray(new DataPoints[stitched.size()]));
+      }
+    }
+
+    return Deferred.groupInOrder(buckets).addErrback(new ErrorCB())
+      .addCallbackDeferring(new StitchCB());
+  }
+
+  /** @return The results of the sub query over its whole time range. */
+  private Deferred<DataPoints[]> runUncached(final TSQuery ts_query,
+                                             final int index) {
+    return runUncached(tsdb, ts_query, index, ts_query.startTime(),
+        ts_query.endTime());
+  }
+
+  /**
+   * Runs a sub query over a time range, once the UIDs of its metric and tags
+   * have been looked up.
+   * @param tsdb The TSDB to run the query with.
+   * @param ts_query The validated query.
+   * @param index The index of the sub query to run.
+   * @param start The start time in milliseconds.
+   * @param end The end time in milliseconds, inclusive.
+   * @return The results of the sub query, one per group.
+   */
+  static Deferred<DataPoints[]> runUncached(final TSDB tsdb,
+      final TSQuery ts_query, final int index, final long start,
+      final long end) {
+    return ts_query.buildQueryAsync(tsdb, index, start, end)
+      .addCallbackDeferring(RUN_CB);
+  }
+
+  /** Runs a query once it's been built. */
+  private static final Callback<Deferred<DataPoints[]>, Query> RUN_CB =
+    new Callback<Deferred<DataPoints[]>, Query>() {
+      public Deferred<DataPoints[]> call(final Query query) {
+        return query.runAsync();
+      }
+    };
+
+  /**
+   * Runs the sub query over a single bucket and caches the result if it
+   * doesn't depend on the data points of the adjacent buckets.
+   * @param key The key to cache the bucket under, {@code null} to not cache
+   * it.
+   * @param start The start time of the bucket in milliseconds.
+   * @param end The end time of the bucket in milliseconds, inclusive.
+   * @param expires When to stop serving the bucket, 0 if it can't change
+   * anymore.
+   */
+  private Deferred<Bucket> fetch(final TSQuery ts_query, final int index,
+                                 final String key, final long start,
+                                 final long end, final long expires) {
+
+    final class BucketCB
+      implements Callback<Bucket, ArrayList<CachedDataPoints>> {
+      private final boolean self_contained;
+
+      BucketCB(final boolean self_contained) {
+        this.self_contained = self_contained;
+      }
+
+      public Bucket call(final ArrayList<CachedDataPoints> series) {
+        final Bucket bucket = new Bucket(series, expires, self_contained);
+        if (key != null && self_contained && (expires == 0 || ttl > 0)) {
+          bytes.addAndGet(bucket.bytes);
+          cache.put(key, bucket);
+        }
+        return bucket;
+      }
+    }
+
+    final class MaterializeCB
+      implements Callback<Deferred<Bucket>, DataPoints[]> {
+      public Deferred<Bucket> call(final DataPoints[] results) {
+        final ArrayList<Deferred<CachedDataPoints>> series =
+          new ArrayList<Deferred<CachedDataPoints>>(results.length);
+        boolean self_contained = true;
+        for (final DataPoints dps : results) {
+          if (dps instanceof SpanGroup) {
+            self_contained &= ((SpanGroup) dps).isSelfContained(start, end);
+          }
+          series.add(CachedDataPoints.materialize(dps, start, end));
+        }
+        return Deferred.groupInOrder(series)
+          .addCallback(new BucketCB(self_contained));
+      }
+    }
+
+    return runUncached(tsdb, ts_query, index, start, end)
+      .addCallbackDeferring(new MaterializeCB());
+  }
+
+  /**
+   * Tells whether a time series of a group is missing from a bucket in
+   * between two buckets it has data points in.  The query over the whole
+   * range would interpolate that series over the bucket in the middle.
+   * @param series The series of the same group, sorted by bucket.
+   * @return {@code true} if a time series skips a bucket.
+   */
+  private static boolean hasGaps(final List<CachedDataPoints> series) {
+    final HashSet<String> gone = new HashSet<String>();
+    List<String> previous = Collections.emptyList();
+    for (final CachedDataPoints dps : series) {
+      final List<String> tsuids = dps.getTSUIDs();
+      for (final String tsuid : previous) {
+        if (!tsuids.contains(tsuid)) {
+          gone.add(tsuid);
+        }
+      }
+      for (final String tsuid : tsuids) {
+        if (gone.contains(tsuid)) {
+          return true;
+        }
+      }
+      previous = tsuids;
+    }
+    return false;
+  }
+
+  /** Unwraps the exception of the first bucket that failed.  */
+  private static final class ErrorCB implements Callback<Exception, Exception> {
+    public Exception call(final Exception e) {
+      if (e instanceof DeferredGroupException) {
+        for (final Object result : ((DeferredGroupException) e).results()) {
+          if (result instanceof Exception) {
+            return (Exception) result;
+          }
+        }
+      }
+      return e;
+    }
+  }
+
+  /**
+   * @return The size of the buckets of the sub query in milliseconds, a
+   * multiple of its downsampling interval.
+   */
+  private long bucketInterval(final TSSubQuery sub) {
+    final long downsample = sub.downsampler() != null
+      ? sub.downsampleInterval() : 0;
+    if (downsample <= 0 || bucket_size % downsample == 0) {
+      return bucket_size;
+    }
+    return (bucket_size / downsample + 1) * downsample;
+  }
+
+  /**
+   * @return A key identifying everything that affects the result of the sub
+   * query but its time range.
+   */
+  private static String queryKey(final TSQuery ts_query, final TSSubQuery sub,
+                         final long interval) {
+    final StringBuilder buf = new StringBuilder();
+    if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
+      final ArrayList<String> tsuids = new ArrayList<String>(sub.getTsuids());
+      Collections.sort(tsuids);
+      buf.append("tsuids=").append(tsuids);
+    } else {
+      buf.append("metric=").append(sub.getMetric())
+        .append(" tags=").append(new TreeMap<String, String>(sub.getTags()));
+    }
+    buf.append(" agg=").append(sub.getAggregator())
+      .append(" ds=").append(sub.getDownsample())
+      .append(" rate=").append(sub.getRate())
+      .append(' ').append(sub.getRateOptions())
+      .append(" ms=").append(ts_query.getMsResolution())
+      .append(" preagg=").append(ts_query.getPreAggregates())
+      .append(" interval=").append(interval)
+      .append(" base=");
+    return buf.toString();
+  }
+
+  /** @return The sorted tag names the sub query groups by. */
+  private static List<String> groupBys(final TSSubQuery sub) {
+    final ArrayList<String> group_bys = new ArrayList<String>();
+    for (final Map.Entry<String, String> tag : sub.getTags().entrySet()) {
+      final String value = tag.getValue();
+      if (value.equals("*") || value.indexOf('|', 1) >= 0) {
+        group_bys.add(tag.getKey());
+      }
+    }
+    Collections.sort(group_bys);
+    return group_bys;
+  }
+
+  /** Discards all of the cached buckets. */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The number of buckets currently cached. */
+  long size() {
+    return cache.size();
+  }
+
+  /**
+   * Collects the stats for this cache.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.cache.hit", hits.get());
+    collector.record("query.cache.miss", misses.get());
+    collector.record("query.cache.expired", expired.get());
+    collector.record("query.cache.bypass", bypassed.get());
+    collector.record("query.cache.evictions", cache.stats().evictionCount());
+    collector.record("query.cache.size", cache.size());
+    collector.record("query.cache.bytes", bytes.get());
+  }
+
+  /** The materialized result of a sub query over one bucket. */
+  private static final class Bucket {
+    /** One series per group. */
+    final List<CachedDataPoints> series;
+    /** When to stop serving the bucket, 0 if it can't change anymore. */
+    final long expires;
+    /** Whether the series only depend on the data points of the bucket. */
+    final boolean self_contained;
+    /** Estimated size of the bucket in memory. */
+    final int bytes;
+
+    Bucket(final List<CachedDataPoints> series, final long expires,
+           final boolean self_contained) {
+      this.series = series;
+      this.expires = expires;
+      this.self_contained = self_contained;
+      long size = 64;
+      for (final CachedDataPoints dps : series) {
+        size += dps.estimatedBytes();
+      }
+      bytes = (int) Math.min(size, Integer.MAX_VALUE);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * Thrown when a query was aborted because it went over one of its
+ * {@link QueryLimits}.
+ * @since 2.0
+ */
+public final class QueryLimitException extends RuntimeException {
+
+  /** Whether the query ran out of time rather than fetched too much. */
+  private final boolean timeout;
+
+  /**
+   * Constructor.
+   * @param msg Message describing the limit that was reached.
+   * @param timeout Whether the query ran out of time, as opposed to reading
+   * too much data.
+   */
+  QueryLimitException(final String msg, final boolean timeout) {
+    super(msg);
+    this.timeout = timeout;
+  }
+
+  /** @return Whether the query ran out of time. */
+  public boolean isTimeout() {
+    return timeout;
+  }
+
+  static final long serialVersionUID = 1412962581;
+}
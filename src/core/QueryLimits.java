@@ -0,0 +1,224 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Caps how much a query may scan, load and hold in memory, and for how long
+ * it may run, so that a single careless query can't take the TSD down.
+ * <p>
+ * An instance tracks what one request used so far, across all of its sub
+ * queries, and is shared by the {@link Query} objects built for it.  The
+ * scanners check it after each row and abort the query with a
+ * {@link QueryLimitException} as soon as a limit is reached.  On top of its
+ * own limits, each query counts the bytes it holds towards a limit shared by
+ * all the queries running in the TSD, which bounds the memory used by many
+ * moderately expensive queries at once.  Those bytes are only released once
+ * the reply was written, see {@link #release}.
+ * <p>
+ * The limits are read from {@code tsd.query.limits.*}, and can be overridden
+ * per endpoint with {@code tsd.query.limits.<endpoint>.*}.  A limit of 0
+ * means no limit.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.0
+ */
+public final class QueryLimits {
+
+  /** Estimated memory held per data point loaded, in bytes. */
+  static final int BYTES_PER_DATA_POINT = 17;
+  /** Estimated memory held per series loaded, on top of its row key. */
+  static final int BYTES_PER_SPAN = 128;
+
+  /** Bytes held by all the queries running, for the global limit. */
+  private static final AtomicLong held_bytes = new AtomicLong();
+
+  private static final AtomicLong rows_exceeded = new AtomicLong();
+  private static final AtomicLong data_points_exceeded = new AtomicLong();
+  private static final AtomicLong bytes_exceeded = new AtomicLong();
+  private static final AtomicLong global_bytes_exceeded = new AtomicLong();
+  private static final AtomicLong time_exceeded = new AtomicLong();
+
+  private final long max_rows;
+  private final long max_data_points;
+  private final long max_bytes;
+  /** In milliseconds. */
+  private final long max_time;
+  /** Limit on {@link #held_bytes}. */
+  private final long global_max_bytes;
+
+  /** When the query started, in milliseconds. */
+  private final long start_time = System.currentTimeMillis();
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong data_points = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  /** Bytes this query added to {@link #held_bytes} and hasn't released. */
+  private final AtomicLong held = new AtomicLong();
+
+  /** The first limit reached, after which every check fails. */
+  private volatile QueryLimitException exceeded;
+
+  /**
+   * Constructor.  Limits of 0 or less mean no limit.
+   * @param max_rows The maximum number of rows scanned.
+   * @param max_data_points The maximum number of data points loaded.
+   * @param max_bytes The maximum number of bytes held.
+   * @param max_time The maximum time to run, in milliseconds.
+   * @param global_max_bytes The maximum number of bytes held by all the
+   * queries running.
+   */
+  public QueryLimits(final long max_rows, final long max_data_points,
+                     final long max_bytes, final long max_time,
+                     final long global_max_bytes) {
+    this.max_rows = max_rows;
+    this.max_data_points = max_data_points;
+    this.max_bytes = max_bytes;
+    this.max_time = max_time;
+    this.global_max_bytes = global_max_bytes;
+  }
+
+  /**
+   * Creates the limits of a new query, from the configuration.
+   * @param config The configuration to read the limits from.
+   * @param endpoint The name of the endpoint the query came from, e.g.
+   * {@code query} or {@code graph}, whose own limits override the defaults.
+   * @return The limits of a query starting now.
+   */
+  public static QueryLimits fromConfig(final Config config,
+                                       final String endpoint) {
+    return new QueryLimits(
+        getLimit(config, endpoint, "max_rows"),
+        getLimit(config, endpoint, "max_data_points"),
+        getLimit(config, endpoint, "max_bytes"),
+        getLimit(config, endpoint, "max_time"),
+        config.getLong("tsd.query.limits.global.max_bytes"));
+  }
+
+  /** @return The limit for the endpoint if set, the default one otherwise. */
+  private static long getLimit(final Config config, final String endpoint,
+                               final String limit) {
+    final String property = "tsd.query.limits." + endpoint + '.' + limit;
+    return config.hasProperty(property) ? config.getLong(property)
+      : config.getLong("tsd.query.limits." + limit);
+  }
+
+  /**
+   * Accounts for a row scanned.
+   * @param new_data_points The number of data points it added.
+   * @param new_bytes The number of bytes it added to the memory held.
+   * @throws QueryLimitException if a limit is reached, or was before.
+   */
+  void addRow(final int new_data_points, final long new_bytes) {
+    check();
+    held.addAndGet(new_bytes);
+    held_bytes.addAndGet(new_bytes);
+    if (max_rows > 0 && rows.incrementAndGet() > max_rows) {
+      exceed(rows_exceeded, "Query scanned more than " + max_rows
+             + " rows", false);
+    }
+    if (max_data_points > 0
+        && data_points.addAndGet(new_data_points) > max_data_points) {
+      exceed(data_points_exceeded, "Query loaded more than " + max_data_points
+             + " data points", false);
+    }
+    if (max_bytes > 0 && bytes.addAndGet(new_bytes) > max_bytes) {
+      exceed(bytes_exceeded, "Query held more than " + max_bytes
+             + " bytes of data", false);
+    }
+    if (global_max_bytes > 0 && held_bytes.get() > global_max_bytes) {
+      exceed(global_bytes_exceeded, "Queries running in this TSD hold more"
+             + " than " + global_max_bytes + " bytes of data", false);
+    }
+  }
+
+  /**
+   * Checks that the query isn't over any limit, including its time.
+   * @throws QueryLimitException if a limit is reached, or was before.
+   */
+  void check() {
+    if (exceeded != null) {
+      throw new QueryLimitException(exceeded.getMessage(),
+                                    exceeded.isTimeout());
+    }
+    if (max_time > 0 && System.currentTimeMillis() - start_time > max_time) {
+      exceed(time_exceeded, "Query ran for more than " + max_time + "ms",
+             true);
+    }
+  }
+
+  /**
+   * Returns when the query runs out of time.
+   * @return A timestamp in milliseconds, or 0 if the query has no time limit.
+   */
+  long deadline() {
+    return max_time > 0 ? start_time + max_time : 0;
+  }
+
+  /**
+   * Records that the query ran out of time, without waiting for its next
+   * check.  Every check fails from then on.
+   * @return The exception to fail the query with.
+   */
+  QueryLimitException timeOut() {
+    return record(time_exceeded, "Query ran for more than " + max_time + "ms",
+                  true);
+  }
+
+  /**
+   * Releases the bytes held by the query from the global limit.  This must
+   * only be called once the reply was written, as the results are held in
+   * memory until then.  Calling it more than once is harmless.
+   */
+  public void release() {
+    held_bytes.addAndGet(-held.getAndSet(0));
+  }
+
+  /** Records the first limit reached and throws. */
+  private void exceed(final AtomicLong counter, final String msg,
+                      final boolean timeout) {
+    throw record(counter, msg, timeout);
+  }
+
+  /** Records the first limit reached. */
+  private QueryLimitException record(final AtomicLong counter,
+                                     final String msg,
+                                     final boolean timeout) {
+    final QueryLimitException e = new QueryLimitException(msg, timeout);
+    synchronized (this) {
+      if (exceeded == null) {
+        exceeded = e;
+        counter.incrementAndGet();
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Collects the stats on the limits reached.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("query.limits.exceeded", rows_exceeded, "limit=rows");
+    collector.record("query.limits.exceeded", data_points_exceeded,
+                     "limit=data_points");
+    collector.record("query.limits.exceeded", bytes_exceeded, "limit=bytes");
+    collector.record("query.limits.exceeded", global_bytes_exceeded,
+                     "limit=global_bytes");
+    collector.record("query.limits.exceeded", time_exceeded, "limit=time");
+    collector.record("query.limits.held_bytes", held_bytes.get());
+  }
+}
@@ -0,0 +1,616 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Maintains the sum, count, min and max of each series over fixed intervals
+ * in a separate table, and reads them back in place of the raw data points
+ * of queries that downsample with a compatible interval and function.
+ * <p>
+ * The rollups of a row are computed from its data points when the row is
+ * compacted, so they're only written when compactions are enabled and lag
+ * behind the raw data by the time it takes for a row to be compacted.  They
+ * are written again whenever a row is compacted again, e.g. because a data
+ * point arrived late, which is harmless as the cells are overwritten with
+ * the same or more complete values.
+ * <p>
+ * A rollup row holds a day of one series: its key is the key of the raw
+ * rows with the base time aligned on a day.  Its qualifiers are 6 bytes:
+ * <ul>
+ * <li>the interval in seconds, on 2 bytes,</li>
+ * <li>the aggregate, on 1 byte: {@link #SUM}, {@link #COUNT}, {@link #MIN}
+ * or {@link #MAX},</li>
+ * <li>the offset of the start of the interval from the base time, in
+ * seconds, on 3 bytes,</li>
+ * </ul>
+ * so the cells of an interval and aggregate sort together, in time order.
+ * Values are 9 bytes: a type byte, {@link #LONG} or {@link #DOUBLE}, then
+ * the long or the bits of the double.  Counts are always longs.
+ * <p>
+ * The rollups of each raw row are written along with a coverage cell, whose
+ * 1 byte qualifier is the hour of the raw row in the day.  Queries only use
+ * the rollups of the raw rows that have one, and read the others from the
+ * raw data, so the hours before rollups were enabled, the rows that were
+ * never compacted and the rollups written by older versions are still
+ * answered correctly.  A series without rollups in an hour can't be told
+ * apart from a series without data though, so queries scan the raw rows of
+ * every hour and skip the ones covered, unless the hour is marked complete:
+ * once the compact tool rolled up all the rows of a metric over a time range,
+ * it writes a coverage cell for each of its hours in a row whose key is the
+ * metric and the base time of the day, without tags.  The raw data of those
+ * hours isn't read at all.
+ * <p>
+ * Intervals must divide an hour so that each of them falls within a single
+ * raw row.  A query whose downsampling interval is a multiple of one of the
+ * intervals reads its rollups, up to {@code tsd.rollups.query_delay} seconds
+ * ago, and the raw data after that.  The values are the same as with the
+ * raw data, but each rollup is timestamped with the start of its interval
+ * and the downsampling windows are aligned on the interval rather than on
+ * the first data point of the query, as the raw data would be.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.0
+ */
+final class Rollups {
+  private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Time span of a rollup row, in seconds. */
+  static final int ROW_SPAN = 86400;
+  /** Width of the qualifiers of the rollup cells. */
+  static final int QUALIFIER_WIDTH = 6;
+  /** Width of the values of the rollup cells. */
+  static final int VALUE_WIDTH = 9;
+  /** Width of the qualifiers of the coverage cells. */
+  static final int COVERAGE_QUALIFIER_WIDTH = 1;
+  /** Value of the coverage cells. */
+  private static final byte[] COVERED = { 1 };
+
+  /** Aggregate IDs, as stored in the qualifiers. */
+  static final byte SUM = 0;
+  static final byte COUNT = 1;
+  static final byte MIN = 2;
+  static final byte MAX = 3;
+  /** Not stored, stands for the sum divided by the count. */
+  static final byte AVG = 4;
+
+  /** Value types, as stored in the first byte of the values. */
+  static final byte LONG = 0;
+  static final byte DOUBLE = 1;
+
+  private final TSDB tsdb;
+  /** Name of the table the rollups are stored in. */
+  private final byte[] table;
+  /** The intervals, in seconds, sorted. */
+  private final int[] intervals;
+  /** How long to read the raw data for before using rollups, in seconds. */
+  private final int query_delay;
+
+  private final AtomicLong written_rows = new AtomicLong();
+  private final AtomicLong written_cells = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong routed_queries = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to write with.
+   * @param config The configuration to read the table and intervals from.
+   * @throws IllegalArgumentException if an interval doesn't divide an hour
+   * in whole seconds.
+   */
+  Rollups(final TSDB tsdb, final Config config) {
+    this.tsdb = tsdb;
+    table = config.getString("tsd.storage.hbase.rollup_table")
+      .getBytes(CHARSET);
+    intervals = parseIntervals(config.getString("tsd.rollups.intervals"));
+    query_delay = config.getInt("tsd.rollups.query_delay");
+    if (query_delay < 0) {
+      throw new IllegalArgumentException(
+          "tsd.rollups.query_delay must be positive: " + query_delay);
+    }
+  }
+
+  /**
+   * Parses a comma separated list of intervals.
+   * @return The intervals in seconds, sorted and without duplicates.
+   * @throws IllegalArgumentException if an interval doesn't divide an hour
+   * in whole seconds.
+   */
+  static int[] parseIntervals(final String spec) {
+    final TreeSet<Integer> parsed = new TreeSet<Integer>();
+    for (final String interval : spec.split(",")) {
+      if (interval.trim().isEmpty()) {
+        continue;
+      }
+      final long ms = DateTime.parseDuration(interval.trim());
+      if (ms % 1000 != 0 || Const.MAX_TIMESPAN % (ms / 1000) != 0) {
+        throw new IllegalArgumentException("Invalid rollup interval: "
+            + interval + ", intervals must divide an hour in whole seconds");
+      }
+      parsed.add((int) (ms / 1000));
+    }
+    if (parsed.isEmpty()) {
+      throw new IllegalArgumentException("No rollup interval in: " + spec);
+    }
+    final int[] intervals = new int[parsed.size()];
+    int i = 0;
+    for (final Integer interval : parsed) {
+      intervals[i++] = interval;
+    }
+    return intervals;
+  }
+
+  /** @return The name of the table the rollups are stored in. */
+  byte[] table() {
+    return table;
+  }
+
+  /**
+   * Computes the rollups of a row and writes them.  Failures are logged and
+   * counted before being passed on to the deferred returned, which callers
+   * that don't wait for the rollups can ignore.
+   * @param row The cells of a raw row, which is left untouched.
+   * @return A deferred called back once the rollups are written.
+   */
+  Deferred<Object> write(final ArrayList<KeyValue> row) {
+    if (row.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    final ArrayList<Cell> cells;
+    try {
+      cells = Internal.extractDataPoints(row, row.size());
+    } catch (IllegalDataException e) {
+      errors.incrementAndGet();
+      LOG.error("Unable to compute the rollups of " + row, e);
+      return Deferred.fromError(e);
+    }
+    if (cells.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+
+    final short metric_width = tsdb.metrics.width();
+    final byte[] key = row.get(0).key().clone();
+    final long base_time = Bytes.getUnsignedInt(key, metric_width);
+    final long row_base_time = base_time - (base_time % ROW_SPAN);
+    Bytes.setInt(key, (int) row_base_time, metric_width);
+
+    final ArrayList<byte[]> qualifiers = new ArrayList<byte[]>();
+    final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    for (final int interval : intervals) {
+      final Slot slot = new Slot();
+      long last = -1;
+      for (final Cell cell : cells) {
+        final long timestamp = cell.timestamp(base_time);
+        if (timestamp == last) {
+          continue;  // Duplicate, the first one wins like in compactions.
+        }
+        last = timestamp;
+        final long start = (timestamp / 1000) - (timestamp / 1000) % interval;
+        if (slot.count > 0 && start != slot.start) {
+          slot.emit(interval, row_base_time, qualifiers, values);
+        }
+        slot.add(start, cell);
+      }
+      slot.emit(interval, row_base_time, qualifiers, values);
+    }
+    // Written with the rollups so that queries never use part of them.
+    qualifiers.add(coverageQualifier(base_time - row_base_time));
+    values.add(COVERED);
+
+    final PutRequest put = new PutRequest(table, key, TSDB.FAMILY,
+        qualifiers.toArray(new byte[qualifiers.size()][]),
+        values.toArray(new byte[values.size()][]));
+    written_rows.incrementAndGet();
+    written_cells.addAndGet(qualifiers.size());
+
+    /** Logs and counts the failed writes. */
+    final class ErrorCB implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) {
+        errors.incrementAndGet();
+        LOG.error("Failed to write the rollups " + put, e);
+        return e;
+      }
+      public String toString() {
+        return "handle rollup write error";
+      }
+    }
+
+    return tsdb.client.put(put).addErrback(new ErrorCB());
+  }
+
+  /**
+   * Marks hours complete for a metric, once all of its raw rows in them were
+   * rolled up, so that queries don't read their raw data at all.
+   * @param metric The UID of the metric.
+   * @param start_base The base time of the first raw row, in seconds.
+   * @param end_base The base time of the last raw row, in seconds.
+   * @return A deferred called back once the marks are written.
+   */
+  Deferred<ArrayList<Object>> markComplete(final byte[] metric,
+                                           final long start_base,
+                                           final long end_base) {
+    final ArrayList<Deferred<Object>> puts = new ArrayList<Deferred<Object>>();
+    final ArrayList<byte[]> qualifiers = new ArrayList<byte[]>();
+    long row_base_time = start_base - (start_base % ROW_SPAN);
+    for (long base_time = start_base; base_time <= end_base;
+         base_time += Const.MAX_TIMESPAN) {
+      if (base_time - row_base_time >= ROW_SPAN) {
+        puts.add(writeMarks(metric, row_base_time, qualifiers));
+        qualifiers.clear();
+        row_base_time = base_time - (base_time % ROW_SPAN);
+      }
+      qualifiers.add(coverageQualifier(base_time - row_base_time));
+    }
+    if (!qualifiers.isEmpty()) {
+      puts.add(writeMarks(metric, row_base_time, qualifiers));
+    }
+    return Deferred.group(puts);
+  }
+
+  /** Writes the coverage cells of a metric-wide row. */
+  private Deferred<Object> writeMarks(final byte[] metric,
+                                      final long row_base_time,
+                                      final ArrayList<byte[]> qualifiers) {
+    final byte[] key = new byte[metric.length + Const.TIMESTAMP_BYTES];
+    System.arraycopy(metric, 0, key, 0, metric.length);
+    Bytes.setInt(key, (int) row_base_time, metric.length);
+    final byte[][] values = new byte[qualifiers.size()][];
+    Arrays.fill(values, COVERED);
+    written_rows.incrementAndGet();
+    written_cells.addAndGet(qualifiers.size());
+    return tsdb.client.put(new PutRequest(table, key, TSDB.FAMILY,
+        qualifiers.toArray(new byte[qualifiers.size()][]), values));
+  }
+
+  /**
+   * Tells whether a row read from the rollup table is one of the rows that
+   * mark hours complete for a whole metric, rather than rollups.
+   * @param key The key of the row.
+   */
+  boolean isMarkRow(final byte[] key) {
+    return key.length == tsdb.metrics.width() + Const.TIMESTAMP_BYTES;
+  }
+
+  /**
+   * Sets the bits of the raw rows whose coverage cells are in a row, either
+   * the rollups of a series or the marks of a metric.
+   * @param row The cells of a rollup row.
+   * @param first_row The base time of the first raw row, in seconds.
+   * @param end Only the raw rows starting before this time, in seconds, are
+   * set.
+   * @param covered Where to set the bit of each raw row covered, numbered
+   * from {@code first_row}.
+   */
+  void addCoverage(final ArrayList<KeyValue> row, final long first_row,
+                   final long end, final BitSet covered) {
+    final long base_time =
+      Bytes.getUnsignedInt(row.get(0).key(), tsdb.metrics.width());
+    for (final KeyValue kv : row) {
+      final byte[] qualifier = kv.qualifier();
+      if (qualifier.length == COVERAGE_QUALIFIER_WIDTH) {
+        final long raw_base_time =
+          base_time + (qualifier[0] & 0xFF) * (long) Const.MAX_TIMESPAN;
+        if (raw_base_time >= first_row && raw_base_time < end) {
+          covered.set(rowIndex(raw_base_time, first_row));
+        }
+      }
+    }
+  }
+
+  /**
+   * Picks the rollups to read for a downsampled query.
+   * @param downsampler The downsampling function, may be {@code null}.
+   * @param interval_ms The downsampling interval in milliseconds.
+   * @param start The time the query starts scanning at, in seconds.
+   * @param cutoff The time before which rollups are read, as returned by
+   * {@link #cutoff}.
+   * @return The largest interval whose rollups give the same values as the
+   * raw data for this downsampling, or 0 if there is none or if the query
+   * only reads data after the cutoff.  The timestamps differ, see the class
+   * documentation.
+   */
+  int route(final Aggregator downsampler, final long interval_ms,
+            final long start, final long cutoff) {
+    final byte aggregate = aggregateOf(downsampler);
+    if (aggregate < 0 || interval_ms <= 0 || interval_ms % 1000 != 0
+        || start >= cutoff) {
+      return 0;
+    }
+    final long interval = interval_ms / 1000;
+    for (int i = intervals.length - 1; i >= 0; i--) {
+      // An average of averages isn't the average, so the intervals must
+      // match exactly.
+      if (aggregate == AVG ? interval == intervals[i]
+          : interval % intervals[i] == 0) {
+        routed_queries.incrementAndGet();
+        return intervals[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the time before which queries read rollups rather than raw data.
+   * @param now The current time, in seconds.
+   * @return A timestamp in seconds, aligned on a raw row.
+   */
+  long cutoff(final long now) {
+    final long cutoff = now - query_delay;
+    return cutoff - (cutoff % Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * Adds the rollups of a row to a span, for the raw rows they cover.
+   * @param row The cells of a rollup row.
+   * @param interval The interval of the rollups to read, in seconds.
+   * @param downsampler The downsampling function of the query.
+   * @param first_row The base time of the first raw row to read the rollups
+   * of, in seconds.
+   * @param end Only the rollups of intervals starting before this time, in
+   * seconds, are added.
+   * @param covered Where to set the bit of each raw row the rollup row
+   * covers, numbered from {@code first_row}.
+   * @param span The span to add the data points to.
+   * @return Whether any data point was added.
+   * @throws IllegalDataException if a value is malformed.
+   */
+  boolean addTo(final ArrayList<KeyValue> row, final int interval,
+                final Aggregator downsampler, final long first_row,
+                final long end, final BitSet covered, final Span span) {
+    final byte aggregate = aggregateOf(downsampler);
+    final byte wanted = aggregate == AVG ? SUM : aggregate;
+    final byte[] key = row.get(0).key();
+    final long base_time = Bytes.getUnsignedInt(key, tsdb.metrics.width());
+    addCoverage(row, first_row, end, covered);
+    final long[] timestamps = new long[row.size()];
+    final long[] values = new long[row.size()];
+    final boolean[] floats = new boolean[row.size()];
+    final long[] count_timestamps =
+      aggregate == AVG ? new long[row.size()] : null;
+    final long[] counts = aggregate == AVG ? new long[row.size()] : null;
+    int n = 0;
+    int ncounts = 0;
+    for (final KeyValue kv : row) {
+      final byte[] qualifier = kv.qualifier();
+      if (qualifier.length != QUALIFIER_WIDTH
+          || Bytes.getUnsignedShort(qualifier, 0) != interval) {
+        continue;
+      }
+      final long start = base_time + offsetOf(qualifier);
+      if (start < first_row || start >= end
+          || !covered.get(rowIndex(start, first_row))) {
+        continue;
+      }
+      final long timestamp = start * 1000;
+      final byte[] value = kv.value();
+      if (value.length != VALUE_WIDTH) {
+        throw new IllegalDataException("Invalid rollup value: " + kv);
+      }
+      if (qualifier[2] == wanted) {
+        timestamps[n] = timestamp;
+        values[n] = Bytes.getLong(value, 1);
+        floats[n] = value[0] == DOUBLE;
+        n++;
+      } else if (aggregate == AVG && qualifier[2] == COUNT) {
+        count_timestamps[ncounts] = timestamp;
+        counts[ncounts] = Bytes.getLong(value, 1);
+        ncounts++;
+      }
+    }
+
+    if (aggregate == AVG) {
+      // Divide the sums by the counts, both are in time order.
+      int avgs = 0;
+      int c = 0;
+      for (int i = 0; i < n; i++) {
+        while (c < ncounts && count_timestamps[c] < timestamps[i]) {
+          c++;
+        }
+        if (c == ncounts || count_timestamps[c] != timestamps[i]
+            || counts[c] <= 0) {
+          continue;  // Written partially, skip it.
+        }
+        timestamps[avgs] = timestamps[i];
+        floats[avgs] = floats[i];
+        if (floats[i]) {
+          values[avgs] = Double.doubleToRawLongBits(
+              Double.longBitsToDouble(values[i]) / counts[c]);
+        } else {
+          // Like the avg aggregator does on integers.
+          values[avgs] = values[i] / counts[c];
+        }
+        avgs++;
+      }
+      n = avgs;
+    }
+
+    if (n == 0) {
+      return false;
+    }
+    span.addPoints(key, n, timestamps, values, floats);
+    return true;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rollups.rows", written_rows.get());
+    collector.record("rollups.cells", written_cells.get());
+    collector.record("rollups.errors", errors.get());
+    collector.record("rollups.queries", routed_queries.get());
+  }
+
+  /**
+   * Returns the rollup aggregate to read for a downsampling function.
+   * @return {@link #SUM}, {@link #MIN}, {@link #MAX}, {@link #AVG}, or -1 if
+   * the function can't be computed from rollups.
+   */
+  static byte aggregateOf(final Aggregator downsampler) {
+    if (downsampler == Aggregators.SUM || downsampler == Aggregators.ZIMSUM) {
+      return SUM;
+    } else if (downsampler == Aggregators.MIN
+               || downsampler == Aggregators.MIMMIN) {
+      return MIN;
+    } else if (downsampler == Aggregators.MAX
+               || downsampler == Aggregators.MIMMAX) {
+      return MAX;
+    } else if (downsampler == Aggregators.AVG) {
+      return AVG;
+    }
+    return -1;
+  }
+
+  /**
+   * Builds the qualifier of a rollup cell.
+   * @param interval The interval in seconds.
+   * @param aggregate The aggregate ID.
+   * @param offset The offset of the start of the interval from the base time
+   * of the row, in seconds.
+   */
+  static byte[] qualifier(final int interval, final byte aggregate,
+                          final int offset) {
+    final byte[] qualifier = new byte[QUALIFIER_WIDTH];
+    Bytes.setShort(qualifier, (short) interval, 0);
+    qualifier[2] = aggregate;
+    qualifier[3] = (byte) (offset >>> 16);
+    qualifier[4] = (byte) (offset >>> 8);
+    qualifier[5] = (byte) offset;
+    return qualifier;
+  }
+
+  /**
+   * Builds the qualifier of a coverage cell.
+   * @param offset The offset of the base time of the raw row from the base
+   * time of the rollup row, in seconds.
+   */
+  static byte[] coverageQualifier(final long offset) {
+    return new byte[] { (byte) (offset / Const.MAX_TIMESPAN) };
+  }
+
+  /**
+   * Numbers a raw row from the first one read by a query.
+   * @param timestamp A time within the raw row, in seconds.
+   * @param first_row The base time of the first raw row, in seconds.
+   */
+  static int rowIndex(final long timestamp, final long first_row) {
+    return (int) ((timestamp - first_row) / Const.MAX_TIMESPAN);
+  }
+
+  /** @return The offset in seconds stored in a rollup qualifier. */
+  static int offsetOf(final byte[] qualifier) {
+    return (qualifier[3] & 0xFF) << 16 | (qualifier[4] & 0xFF) << 8
+      | (qualifier[5] & 0xFF);
+  }
+
+  /** Builds the value of a rollup cell. */
+  static byte[] value(final byte type, final long value) {
+    final byte[] result = new byte[VALUE_WIDTH];
+    result[0] = type;
+    Bytes.setLong(result, value, 1);
+    return result;
+  }
+
+  /** The aggregates of the data points of an interval. */
+  private static final class Slot {
+    long start;
+    int count;
+    /** Whether any of the values is floating point. */
+    boolean is_float;
+    long long_sum;
+    long long_min;
+    long long_max;
+    double double_sum;
+    double double_min;
+    double double_max;
+
+    /** Adds a data point to the aggregates. */
+    void add(final long start, final Cell cell) {
+      final boolean integer = cell.isInteger();
+      final Number value = cell.parseValue();
+      if (count == 0) {
+        this.start = start;
+        is_float = false;
+        long_sum = 0;
+        long_min = Long.MAX_VALUE;
+        long_max = Long.MIN_VALUE;
+        double_sum = 0;
+        double_min = Double.POSITIVE_INFINITY;
+        double_max = Double.NEGATIVE_INFINITY;
+      }
+      count++;
+      if (integer) {
+        final long l = value.longValue();
+        long_sum += l;
+        long_min = Math.min(long_min, l);
+        long_max = Math.max(long_max, l);
+      } else {
+        is_float = true;
+      }
+      final double d = value.doubleValue();
+      double_sum += d;
+      double_min = Math.min(double_min, d);
+      double_max = Math.max(double_max, d);
+    }
+
+    /** Adds the cells of the aggregates, if any, and resets them. */
+    void emit(final int interval, final long row_base_time,
+              final ArrayList<byte[]> qualifiers,
+              final ArrayList<byte[]> values) {
+      if (count == 0) {
+        return;
+      }
+      final int offset = (int) (start - row_base_time);
+      qualifiers.add(qualifier(interval, SUM, offset));
+      qualifiers.add(qualifier(interval, COUNT, offset));
+      qualifiers.add(qualifier(interval, MIN, offset));
+      qualifiers.add(qualifier(interval, MAX, offset));
+      if (is_float) {
+        values.add(value(DOUBLE, Double.doubleToRawLongBits(double_sum)));
+        values.add(value(LONG, count));
+        values.add(value(DOUBLE, Double.doubleToRawLongBits(double_min)));
+        values.add(value(DOUBLE, Double.doubleToRawLongBits(double_max)));
+      } else {
+        values.add(value(LONG, long_sum));
+        values.add(value(LONG, count));
+        values.add(value(LONG, long_min));
+        values.add(value(LONG, long_max));
+      }
+      count = 0;
+    }
+  }
+}
@@ -50,4 +50,28 @@ final class RowKey {
     final byte[] id = Arrays.copyOfRange(row, 0, tsdb.metrics.width());
     return tsdb.metrics.getNameAsync(id);
   }
+
+  /**
+   * Wraps a row key so it can be used as a hash key.
+   * @since 2.0
+   */
+  static final class Key {
+    final byte[] row;
+    private final int hash;
+
+    Key(final byte[] row) {
+      this.row = row;
+      hash = Arrays.hashCode(row);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      return other instanceof Key && Arrays.equals(row, ((Key) other).row);
+    }
+  }
 }
@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Bounded cache of resolved row key templates used on the write path.
+ * <p>
+ * Resolving a row key for a data point means looking up the UID of the metric
+ * and of every tag, sorting the tags and copying everything into a new array.
+ * Since the same series are written over and over again, this cache maps a
+ * metric name and set of tags directly to the resolved row key template (with
+ * the base time left empty) and to the TSUID of the series.
+ * <p>
+ * Entries are evicted once {@code tsd.core.row_key_cache_size} series are
+ * cached and all entries are discarded by {@link TSDB#dropCaches}.
+ * @since 2.0
+ */
+final class RowKeyCache {
+
+  /** Resolved series, keyed on metric name and tags. */
+  private final Cache<SeriesKey, Entry> cache;
+
+  /**
+   * Constructor.
+   * @param max_size The maximum number of series to keep in the cache.
+   * @throws IllegalArgumentException if the size is less than 1
+   */
+  RowKeyCache(final int max_size) {
+    if (max_size < 1) {
+      throw new IllegalArgumentException("Invalid cache size: " + max_size);
+    }
+    cache = CacheBuilder.newBuilder()
+      .maximumSize(max_size)
+      .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+      .recordStats()
+      .build();
+  }
+
+  /**
+   * Returns the resolved series for the given metric and tags if cached.
+   * @param metric The metric name, cannot be {@code null}.
+   * @param tags The tags of the series, cannot be {@code null}.
+   * @return The cached entry or {@code null} if the series isn't cached.
+   */
+  Entry getIfPresent(final String metric, final Map<String, String> tags) {
+    return cache.getIfPresent(new SeriesKey(metric, tags));
+  }
+
+  /**
+   * Caches a series resolved by the caller.
+   * The metric and tags must have been validated beforehand as an entry is
+   * returned by {@link #getIfPresent} without any further validation.
+   * @param metric The metric name.
+   * @param tags The tags of the series, the map is copied.
+   * @param row The row key template resolved for the series.  The array is
+   * cached and must not be modified afterwards.
+   * @return The new entry.  Callers must not modify the arrays of the entry,
+   * see {@link Entry#rowKey}.
+   */
+  Entry put(final String metric, final Map<String, String> tags,
+            final byte[] row) {
+    final Entry entry = new Entry(row, UniqueId.getTSUIDFromKey(row,
+        TSDB.metrics_width(), Const.TIMESTAMP_BYTES));
+    cache.put(new SeriesKey(metric, new HashMap<String, String>(tags)), entry);
+    return entry;
+  }
+
+  /** Discards all of the cached series. */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return The number of series currently cached. */
+  long size() {
+    return cache.size();
+  }
+
+  /**
+   * Collects the stats for this cache.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = cache.stats();
+    collector.record("rowkey.cache-hit", stats.hitCount());
+    collector.record("rowkey.cache-miss", stats.missCount());
+    collector.record("rowkey.cache-evictions", stats.evictionCount());
+    collector.record("rowkey.cache-size", cache.size());
+  }
+
+  /** A resolved series. */
+  static final class Entry {
+    /**
+     * The row key template with the base time left to 0.  This array is
+     * shared, callers must copy it before setting the base time.
+     */
+    final byte[] row;
+    /** The TSUID of the series, shared, must not be modified. */
+    final byte[] tsuid;
+
+    Entry(final byte[] row, final byte[] tsuid) {
+      this.row = row;
+      this.tsuid = tsuid;
+    }
+
+    /** @return A copy of the row key template suitable for a new write. */
+    byte[] rowKey() {
+      final byte[] copy = new byte[row.length];
+      System.arraycopy(row, 0, copy, 0, row.length);
+      return copy;
+    }
+  }
+
+  /** Cache key made of a metric name and its tags. */
+  private static final class SeriesKey {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final int hash;
+
+    SeriesKey(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      hash = metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey key = (SeriesKey) other;
+      return hash == key.hash && metric.equals(key.metric)
+        && tags.equals(key.tags);
+    }
+  }
+}
@@ -30,26 +30,38 @@ import com.stumbleupon.async.Deferred;
 /**
  * Represents a read-only sequence of continuous data points.
  * <p>
- * This class stores a continuous sequence of {@link RowSeq}s in memory.
+ * The cells of the compacted rows added to this class are decoded once, as
+ * they're added, into parallel arrays of timestamps and values sorted by
+ * time, with a bitmap of the values that are floating point.  Iterating or
+ * accessing any data point is then a matter of reading those arrays.
  */
 final class Span implements DataPoints {
 
+  /** Initial number of data points we make room for. */
+  private static final int INITIAL_CAPACITY = 16;
+
   /** The {@link TSDB} instance we belong to. */
   private final TSDB tsdb;
 
-  /** All the rows in this span. */
-  private ArrayList<RowSeq> rows = new ArrayList<RowSeq>();
+  /** Row key of the first row added, {@code null} until then. */
+  private byte[] key;
+
+  /** Number of data points in this span. */
+  private int size;
+
+  /** Timestamps in milliseconds, sorted. */
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+
+  /** Values, the raw bits of a double for floating point values. */
+  private long[] values = new long[INITIAL_CAPACITY];
+
+  /** Bit {@code i} is set when the value {@code i} is floating point. */
+  private long[] floats = new long[1];
 
   /** A list of annotations for this span. We can't lazily initialize since we
    * have to pass a collection to the compaction queue */
   private ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
   
-  /** 
-   * Whether or not the rows have been sorted. This should be toggled by the
-   * first call to an iterator method
-   */
-  private boolean sorted;
-  
   /**
    * Default constructor.
    * @param tsdb The TSDB to which we belong
@@ -60,7 +72,7 @@ final class Span implements DataPoints {
 
   /** @throws IllegalStateException if the span doesn't have any rows */
   private void checkNotEmpty() {
-    if (rows.size() == 0) {
+    if (key == null) {
       throw new IllegalStateException("empty Span");
     }
   }
@@ -82,7 +94,7 @@ final class Span implements DataPoints {
   
   public Deferred<String> metricNameAsync() {
     checkNotEmpty();
-    return rows.get(0).metricNameAsync();
+    return RowKey.metricNameAsync(tsdb, key);
   }
 
   /**
@@ -102,7 +114,7 @@ final class Span implements DataPoints {
 
   public Deferred<Map<String, String>> getTagsAsync() {
     checkNotEmpty();
-    return rows.get(0).getTagsAsync();
+    return Tags.getTagsAsync(tsdb, key);
   }
   
   /** @return an empty list since aggregated tags cannot exist on a single span */
@@ -115,14 +127,8 @@ final class Span implements DataPoints {
     return Deferred.fromResult(empty);
   }
 
-  /** @return the number of data points in this span, O(n)
-   * Unfortunately we must walk the entire array for every row as there may be a 
-   * mix of second and millisecond timestamps */
+  /** @return the number of data points in this span */
   public int size() {
-    int size = 0;
-    for (final RowSeq row : rows) {
-      size += row.size();
-    }
     return size;
   }
 
@@ -132,10 +138,10 @@ final class Span implements DataPoints {
   }
 
   public List<String> getTSUIDs() {
-    if (rows.size() < 1) {
+    if (key == null) {
       return null;
     }
-    final byte[] tsuid = UniqueId.getTSUIDFromKey(rows.get(0).key, 
+    final byte[] tsuid = UniqueId.getTSUIDFromKey(key, 
         TSDB.metrics_width(), Const.TIMESTAMP_BYTES);
     final List<String> tsuids = new ArrayList<String>(1);
     tsuids.add(UniqueId.uidToString(tsuid));
@@ -148,52 +154,225 @@ final class Span implements DataPoints {
   }
   
   /**
-   * Adds a compacted row to the span, merging with an existing RowSeq or 
-   * creating a new one if necessary. 
+   * Adds a compacted row to the span.  The data points of the row are
+   * appended if they're all more recent than the ones we have, otherwise
+   * they're merged in, in which case the data points with the same timestamp
+   * as one we already have are dropped.
    * @param row The compacted row to add to this span.
    * @throws IllegalArgumentException if the argument and this span are for
    * two different time series.
+   * @throws IllegalDataException if a value of the row is malformed.
    */
   void addRow(final KeyValue row) {
-    long last_ts = 0;
-    if (rows.size() != 0) {
+    final byte[] key = row.key();
+    final short metric_width = tsdb.metrics.width();
+    checkKey(key, metric_width);
+
+    // Decode the cells after the data points we have, then see whether they
+    // can stay there.
+    final long base_time = Bytes.getUnsignedInt(key, metric_width);
+    final byte[] qualifiers = row.qualifier();
+    final byte[] values = row.value();
+    ensureCapacity(size + qualifiers.length / 2);
+    int n = size;
+    int value_index = 0;
+    for (int qual_index = 0; qual_index < qualifiers.length; n++) {
+      final int qualifier;
+      if (Internal.inMilliseconds(qualifiers[qual_index])) {
+        qualifier = Bytes.getInt(qualifiers, qual_index);
+        qual_index += 4;
+        timestamps[n] = (base_time * 1000)
+          + ((qualifier & 0x0FFFFFC0) >>> Const.MS_FLAG_BITS);
+      } else {
+        qualifier = Bytes.getUnsignedShort(qualifiers, qual_index);
+        qual_index += 2;
+        timestamps[n] = (base_time + ((qualifier & 0xFFFF) >>> Const.FLAG_BITS))
+          * 1000;
+      }
+      final byte flags = (byte) qualifier;
+      if ((flags & Const.FLAG_FLOAT) == 0) {
+        this.values[n] = RowSeq.extractIntegerValue(values, value_index, flags);
+        floats[n >>> 6] &= ~(1L << n);
+      } else {
+        this.values[n] = Double.doubleToRawLongBits(
+            RowSeq.extractFloatingPointValue(values, value_index, flags));
+        floats[n >>> 6] |= 1L << n;
+      }
+      value_index += (flags & Const.LENGTH_MASK) + 1;
+    }
+    if (size == 0 || n == size || timestamps[size] > timestamps[size - 1]) {
+      size = n;
+    } else {
+      mergeTail(n);
+    }
+  }
+
+  /**
+   * Checks that a row key is for the time series of this span, or makes it
+   * the row key of this span if it's empty.
+   * @throws IllegalArgumentException if the row key is for another series.
+   */
+  private void checkKey(final byte[] key, final short metric_width) {
+    if (this.key != null) {
       // Verify that we have the same metric id and tags.
-      final byte[] key = row.key();
-      final RowSeq last = rows.get(rows.size() - 1);
-      final short metric_width = tsdb.metrics.width();
       final short tags_offset = (short) (metric_width + Const.TIMESTAMP_BYTES);
       final short tags_bytes = (short) (key.length - tags_offset);
       String error = null;
-      if (key.length != last.key.length) {
+      if (key.length != this.key.length) {
         error = "row key length mismatch";
-      } else if (Bytes.memcmp(key, last.key, 0, metric_width) != 0) {
+      } else if (Bytes.memcmp(key, this.key, 0, metric_width) != 0) {
         error = "metric ID mismatch";
-      } else if (Bytes.memcmp(key, last.key, tags_offset, tags_bytes) != 0) {
+      } else if (Bytes.memcmp(key, this.key, tags_offset, tags_bytes) != 0) {
         error = "tags mismatch";
       }
       if (error != null) {
         throw new IllegalArgumentException(error + ". "
-            + "This Span's last row key is " + Arrays.toString(last.key)
+            + "This Span's row key is " + Arrays.toString(this.key)
             + " whereas the row key being added is " + Arrays.toString(key)
             + " and metric_width=" + metric_width);
       }
-      last_ts = last.timestamp(last.size() - 1);  // O(n)
-    }
-
-    final RowSeq rowseq = new RowSeq(tsdb);
-    rowseq.setRow(row);
-    sorted = false;
-    if (last_ts >= rowseq.timestamp(0)) {
-      // scan to see if we need to merge into an existing row
-      for (final RowSeq rs : rows) {
-        if (Bytes.memcmp(rs.key, row.key()) == 0) {
-          rs.addRow(row);
-          return;
-        }
+    } else {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Appends the data points and annotations of another span of the same time
+   * series to this one.  The data points of the other span should all be more
+   * recent than the ones of this span, e.g. because they were scanned from a
+   * later time range, otherwise they're merged in like with {@link #addRow}.
+   * @param span The span to append.
+   * @throws IllegalArgumentException if the spans are for two different time
+   * series.
+   */
+  void addSpan(final Span span) {
+    if (span.key == null) {
+      annotations.addAll(span.annotations);
+      return;
+    }
+    if (key != null) {
+      final byte[] other = span.key;
+      final short metric_width = tsdb.metrics.width();
+      final short tags_offset = (short) (metric_width + Const.TIMESTAMP_BYTES);
+      if (key.length != other.length
+          || Bytes.memcmp(key, other, 0, metric_width) != 0
+          || Bytes.memcmp(key, other, tags_offset, key.length - tags_offset) 
+             != 0) {
+        throw new IllegalArgumentException("Can't append a span with row key "
+            + Arrays.toString(other) + " to a span with row key "
+            + Arrays.toString(key));
+      }
+    } else {
+      key = span.key;
+    }
+    ensureCapacity(size + span.size);
+    System.arraycopy(span.timestamps, 0, timestamps, size, span.size);
+    System.arraycopy(span.values, 0, values, size, span.size);
+    for (int i = 0; i < span.size; i++) {
+      final int n = size + i;
+      if (span.isFloat(i)) {
+        floats[n >>> 6] |= 1L << n;
+      } else {
+        floats[n >>> 6] &= ~(1L << n);
+      }
+    }
+    final int n = size + span.size;
+    if (size == 0 || n == size || timestamps[size] > timestamps[size - 1]) {
+      size = n;
+    } else {
+      mergeTail(n);
+    }
+    annotations.addAll(span.annotations);
+  }
+
+  /**
+   * Adds data points that were already decoded, e.g. from a rollup row.
+   * They're appended or merged in like the data points of {@link #addRow}.
+   * @param key The row key the data points were read from, which must have
+   * the same metric and tags as the rows of this span.
+   * @param n The number of data points to add.
+   * @param timestamps The timestamps in milliseconds, sorted.
+   * @param values The values, the raw bits of a double for floating point
+   * values.
+   * @param floats Whether each value is floating point.
+   * @throws IllegalArgumentException if the row key is for another series.
+   */
+  void addPoints(final byte[] key, final int n, final long[] timestamps,
+                 final long[] values, final boolean[] floats) {
+    checkKey(key, tsdb.metrics.width());
+    ensureCapacity(size + n);
+    System.arraycopy(timestamps, 0, this.timestamps, size, n);
+    System.arraycopy(values, 0, this.values, size, n);
+    for (int i = 0; i < n; i++) {
+      final int j = size + i;
+      if (floats[i]) {
+        this.floats[j >>> 6] |= 1L << j;
+      } else {
+        this.floats[j >>> 6] &= ~(1L << j);
+      }
+    }
+    final int end = size + n;
+    if (size == 0 || n == 0
+        || this.timestamps[size] > this.timestamps[size - 1]) {
+      size = end;
+    } else {
+      mergeTail(end);
+    }
+  }
+
+  /**
+   * Merges the data points decoded after the end of the arrays into the
+   * ones before, dropping those that have a timestamp we already have.
+   * @param end The index after the last data point decoded.
+   */
+  private void mergeTail(final int end) {
+    final long[] new_timestamps = new long[timestamps.length];
+    final long[] new_values = new long[values.length];
+    final long[] new_floats = new long[floats.length];
+    int local = 0;
+    int remote = size;
+    int n = 0;
+    while (local < size || remote < end) {
+      final int i;
+      if (remote >= end) {
+        i = local++;
+      } else if (local >= size) {
+        i = remote++;
+      } else if (timestamps[remote] == timestamps[local]) {
+        //LOG.debug("Discarding duplicate timestamp: " + timestamps[remote]);
+        remote++;
+        continue;
+      } else if (timestamps[remote] < timestamps[local]) {
+        i = remote++;
+      } else {
+        i = local++;
+      }
+      new_timestamps[n] = timestamps[i];
+      new_values[n] = values[i];
+      if (isFloat(i)) {
+        new_floats[n >>> 6] |= 1L << n;
       }
+      n++;
+    }
+    timestamps = new_timestamps;
+    values = new_values;
+    floats = new_floats;
+    size = n;
+  }
+
+  /** Grows the arrays to hold at least {@code capacity} data points. */
+  private void ensureCapacity(final int capacity) {
+    if (capacity > timestamps.length) {
+      final int length = Math.max(capacity, timestamps.length * 2);
+      timestamps = Arrays.copyOf(timestamps, length);
+      values = Arrays.copyOf(values, length);
+      floats = Arrays.copyOf(floats, (length + 63) >>> 6);
     }
-    
-    rows.add(rowseq);
+  }
+
+  /** @return Whether the value at index {@code i} is floating point. */
+  private boolean isFloat(final int i) {
+    return (floats[i >>> 6] & (1L << i)) != 0;
   }
 
   /**
@@ -218,46 +397,31 @@ final class Span implements DataPoints {
 
   /** @return an iterator to run over the list of data points */
   public SeekableView iterator() {
-    checkRowOrder();
     return spanIterator();
   }
 
-  /**
-   * Finds the index of the row of the ith data point and the offset in the row.
-   * @param i The index of the data point to find.
-   * @return two ints packed in a long.  The first int is the index of the row
-   * in {@code rows} and the second is offset in that {@link RowSeq} instance.
-   */
-  private long getIdxOffsetFor(final int i) {
-    checkRowOrder();
-    int idx = 0;
-    int offset = 0;
-    for (final RowSeq row : rows) {
-      final int sz = row.size();
-      if (offset + sz > i) {
-        break;
-      }
-      offset += sz;
-      idx++;
+  /** @throws IndexOutOfBoundsException if {@code i} is out of bounds. */
+  private void checkIndex(final int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " >= " + size
+          + " for this=" + this);
+    }
+    if (i < 0) {
+      throw new IndexOutOfBoundsException("negative index " + i
+          + " for this=" + this);
     }
-    return ((long) idx << 32) | (i - offset);
   }
 
   /**
    * Returns the timestamp for a data point at index {@code i} if it exists.
-   * <b>Note:</b> To get to a timestamp this method must walk the entire byte
-   * array, i.e. O(n) so call this sparingly. Use the iterator instead.
    * @param i A 0 based index incremented per the number of data points in the
    * span.
    * @return A Unix epoch timestamp in milliseconds
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public long timestamp(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).timestamp(offset);
+    checkIndex(i);
+    return timestamps[i];
   }
 
   /**
@@ -268,11 +432,8 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public boolean isInteger(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).isInteger(offset);
+    checkIndex(i);
+    return !isFloat(i);
   }
 
   /**
@@ -283,14 +444,12 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    * @throws ClassCastException if the value is a float instead. Call 
    * {@link #isInteger} first
-   * @throws IllegalDataException if the data is malformed
    */
   public long longValue(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).longValue(offset);
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
   }
 
   /**
@@ -301,14 +460,17 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    * @throws ClassCastException if the value is an integer instead. Call 
    * {@link #isInteger} first
-   * @throws IllegalDataException if the data is malformed
    */
   public double doubleValue(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).doubleValue(offset);
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in " + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /** @return The value at index {@code i} as a double, whatever its type. */
+  private double toDouble(final int i) {
+    return isFloat(i) ? Double.longBitsToDouble(values[i]) : values[i];
   }
 
   /** Returns a human readable string representation of the object. */
@@ -316,91 +478,68 @@ final class Span implements DataPoints {
   public String toString() {
     final StringBuilder buf = new StringBuilder();
     buf.append("Span(")
-       .append(rows.size())
-       .append(" rows, [");
-    for (int i = 0; i < rows.size(); i++) {
-      if (i != 0) {
-        buf.append(", ");
-      }
-      buf.append(rows.get(i).toString());
-    }
-    buf.append("])");
+       .append(key == null ? "<null>" : Arrays.toString(key))
+       .append(", ")
+       .append(size)
+       .append(" data points");
+    if (size > 0) {
+      buf.append(" from ")
+         .append(timestamps[0])
+         .append(" to ")
+         .append(timestamps[size - 1]);
+    }
+    buf.append(')');
     return buf.toString();
   }
 
   /**
-   * Finds the index of the row in which the given timestamp should be.
-   * @param timestamp A strictly positive 32-bit integer.
-   * @return A strictly positive index in the {@code rows} array.
+   * Finds the index of the first data point at or after the given timestamp.
+   * @param timestamp A timestamp in milliseconds.
+   * @return An index between 0 and {@link #size}, inclusive.
+   * @throws IllegalArgumentException if the timestamp is negative or not on
+   * 48 bits.
    */
-  private int seekRow(final long timestamp) {
-    checkRowOrder();
-    int row_index = 0;
-    RowSeq row = null;
-    final int nrows = rows.size();
-    for (int i = 0; i < nrows; i++) {
-      row = rows.get(i);
-      final int sz = row.size();
-      if (row.timestamp(sz - 1) < timestamp) {
-        row_index++;  // The last DP in this row is before 'timestamp'.
+  private int seekIndex(final long timestamp) {
+    if ((timestamp & Const.MILLISECOND_MASK) != 0) {
+      throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+    }
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (timestamps[mid] < timestamp) {
+        low = mid + 1;
       } else {
-        break;
+        high = mid;
       }
     }
-    if (row_index == nrows) {  // If this timestamp was too large for the
-      --row_index;             // last row, return the last row.
-    }
-    return row_index;
+    return low;
   }
 
-  /**
-   * Checks the sorted flag and sorts the rows if necessary. Should be called
-   * by any iteration method.
-   * Since 2.0
-   */
-  private void checkRowOrder() {
-    if (!sorted) {
-      Collections.sort(rows, new RowSeq.RowSeqComparator());
-      sorted = true;
-    }
-  }
-  
   /** Package private iterator method to access it as a Span.Iterator. */
   Span.Iterator spanIterator() {
-    if (!sorted) {
-      Collections.sort(rows, new RowSeq.RowSeqComparator());
-      sorted = true;
-    }
     return new Span.Iterator();
   }
 
   /** Iterator for {@link Span}s. */
-  final class Iterator implements SeekableView {
+  final class Iterator implements SeekableView, DataPoint {
 
-    /** Index of the {@link RowSeq} we're currently at, in {@code rows}. */
-    private int row_index;
-
-    /** Iterator on the current row. */
-    private RowSeq.Iterator current_row;
+    /** Index of the current data point, -1 before the first one. */
+    private int index = -1;
 
     Iterator() {
-      current_row = rows.get(0).internalIterator();
     }
 
     public boolean hasNext() {
-      return (current_row.hasNext()             // more points in this row
-              || row_index < rows.size() - 1);  // or more rows
+      return index < size - 1;
     }
 
     public DataPoint next() {
-      if (current_row.hasNext()) {
-        return current_row.next();
-      } else if (row_index < rows.size() - 1) {
-        row_index++;
-        current_row = rows.get(row_index).internalIterator();
-        return current_row.next();
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
       }
-      throw new NoSuchElementException("no more elements");
+      index++;
+      return this;
     }
 
     public void remove() {
@@ -408,17 +547,41 @@ final class Span implements DataPoints {
     }
 
     public void seek(final long timestamp) {
-      int row_index = seekRow(timestamp);
-      if (row_index != this.row_index) {
-        this.row_index = row_index;
-        current_row = rows.get(row_index).internalIterator();
+      index = seekIndex(timestamp) - 1;
+    }
+
+    public long timestamp() {
+      assert index >= 0: "not initialized: " + this;
+      return timestamps[index];
+    }
+
+    public boolean isInteger() {
+      assert index >= 0: "not initialized: " + this;
+      return !isFloat(index);
+    }
+
+    public long longValue() {
+      if (!isInteger()) {
+        throw new ClassCastException("value #"
+          + index + " is not a long in " + this);
+      }
+      return values[index];
+    }
+
+    public double doubleValue() {
+      if (isInteger()) {
+        throw new ClassCastException("value #"
+          + index + " is not a float in " + this);
       }
-      current_row.seek(timestamp);
+      return Double.longBitsToDouble(values[index]);
+    }
+
+    public double toDouble() {
+      return Span.this.toDouble(index);
     }
 
     public String toString() {
-      return "Span.Iterator(row_index=" + row_index
-        + ", current_row=" + current_row + ", span=" + Span.this + ')';
+      return "Span.Iterator(index=" + index + ", span=" + Span.this + ')';
     }
 
   }
@@ -431,10 +594,6 @@ final class Span implements DataPoints {
 
   /**
    * Iterator that downsamples the data using an {@link Aggregator}.
-   * <p>
-   * This implementation relies on the fact that the {@link RowSeq}s in this
-   * {@link Span} have {@code O(1)} access to individual data points, in order
-   * to be efficient.
    */
   final class DownsamplingIterator
     implements SeekableView, DataPoint,
@@ -452,11 +611,8 @@ final class Span implements DataPoints {
     /** Function to use to for downsampling. */
     private final Aggregator downsampler;
 
-    /** Index of the {@link RowSeq} we're currently at, in {@code rows}. */
-    private int row_index;
-
-    /** The row we're currently at. */
-    private RowSeq.Iterator current_row;
+    /** Index of the last data point consumed, -1 before the first one. */
+    private int index = -1;
 
     /**
      * Current timestamp (unsigned 32 bits).
@@ -471,13 +627,11 @@ final class Span implements DataPoints {
      * Ctor.
      * @param interval The interval in seconds wanted between each data point.
      * @param downsampler The downsampling function to use.
-     * @param iterator The iterator to access the underlying data.
      */
     DownsamplingIterator(final long interval,
                          final Aggregator downsampler) {
       this.interval = interval;
       this.downsampler = downsampler;
-      this.current_row = rows.get(0).internalIterator();
     }
 
     // ------------------ //
@@ -485,23 +639,7 @@ final class Span implements DataPoints {
     // ------------------ //
 
     public boolean hasNext() {
-      return (current_row.hasNext()             // more points in this row
-              || row_index < rows.size() - 1);  // or more rows
-    }
-
-    private boolean moveToNext() {
-      if (!current_row.hasNext()) {
-        // Yes, move on to the next one.
-        if (row_index < rows.size() - 1) {  // Do we have more rows?
-          current_row = rows.get(++row_index).internalIterator();
-          current_row.next();  // Position the iterator on the first element.
-          return true;
-        } else {  // No more rows, can't go further.
-          return false;
-        }
-      }
-      current_row.next();
-      return true;
+      return index < size - 1;
     }
 
     public DataPoint next() {
@@ -513,29 +651,21 @@ final class Span implements DataPoints {
       // interval turn out to be integers.  While we do this, compute the
       // average timestamp of all the datapoints in that interval.
       long newtime = 0;
-      final int saved_row_index = row_index;
-      final long saved_state = current_row.saveState();
       // Since we know hasNext() returned true, we have at least 1 point.
-      moveToNext();
-      time = current_row.timestamp() + interval;  // end of interval
+      int i = index + 1;
+      time = timestamps[i] + interval;  // end of interval
       //LOG.info("End of interval: " + time + " Interval: " + interval);
       boolean integer = true;
       int npoints = 0;
       do {
         npoints++;
-        newtime += current_row.timestamp();
-        //LOG.debug("Downsampling @ time " + current_row.timestamp());
-        integer &= current_row.isInteger();
-      } while (moveToNext() && current_row.timestamp() < time);
+        newtime += timestamps[i];
+        //LOG.debug("Downsampling @ time " + timestamps[i]);
+        integer &= !isFloat(i);
+        i++;
+      } while (i < size && timestamps[i] < time);
       newtime /= npoints;
 
-      // Now that we're done looking ahead, let's go back where we were.
-      if (row_index != saved_row_index) {
-        row_index = saved_row_index;
-        current_row = rows.get(row_index).internalIterator();
-      }
-      current_row.restoreState(saved_state);
-
       // Compute `value'.  This will rely on `time' containing the end time of
       // this interval...
       if (integer) {
@@ -561,13 +691,7 @@ final class Span implements DataPoints {
     // ---------------------- //
 
     public void seek(final long timestamp) {
-      int row_index = seekRow(timestamp);
-      if (row_index != this.row_index) {
-        //LOG.debug("seek from row #" + this.row_index + " to " + row_index);
-        this.row_index = row_index;
-        current_row = rows.get(row_index).internalIterator();
-      }
-      current_row.seek(timestamp);
+      index = seekIndex(timestamp) - 1;
     }
 
     // ------------------- //
@@ -605,23 +729,12 @@ final class Span implements DataPoints {
     // -------------------------- //
 
     public boolean hasNextValue() {
-      if (!current_row.hasNext()) {
-        if (row_index < rows.size() - 1) {
-          //LOG.info("hasNextValue: next row? " + (rows.get(row_index + 1).timestamp(0) < time));
-          return rows.get(row_index + 1).timestamp(0) < time;
-        } else {
-          //LOG.info("hasNextValue: false, this is the end");
-          return false;
-        }
-      }
-      //LOG.info("hasNextValue: next point? " + (current_row.peekNextTimestamp() < time));
-      return current_row.peekNextTimestamp() < time;
+      return index < size - 1 && timestamps[index + 1] < time;
     }
 
     public long nextLongValue() {
       if (hasNextValue()) {
-        moveToNext();
-        return current_row.longValue();
+        return Span.this.longValue(++index);
       }
       throw new NoSuchElementException("no more longs in interval of " + this);
     }
@@ -632,11 +745,10 @@ final class Span implements DataPoints {
 
     public double nextDoubleValue() {
       if (hasNextValue()) {
-        moveToNext();
         // Use `toDouble' instead of `doubleValue' because we can get here if
         // there's a mix of integer values and floating point values in the
         // current downsampled interval.
-        return current_row.toDouble();
+        return Span.this.toDouble(++index);
       }
       throw new NoSuchElementException("no more floats in interval of " + this);
     }
@@ -645,16 +757,15 @@ final class Span implements DataPoints {
       final StringBuilder buf = new StringBuilder();
       buf.append("Span.DownsamplingIterator(interval=").append(interval)
          .append(", downsampler=").append(downsampler)
-         .append(", row_index=").append(row_index)
-         .append(", current_row=").append(current_row.toStringSummary())
-         .append("), current time=").append(timestamp())
+         .append(", index=").append(index)
+         .append(", current time=").append(timestamp())
          .append(", current value=");
      if (isInteger()) {
        buf.append("long:").append(longValue());
      } else {
        buf.append("double:").append(doubleValue());
      }
-     buf.append(", rows=").append(rows).append(')');
+     buf.append(", span=").append(Span.this).append(')');
      return buf.toString();
     }
 
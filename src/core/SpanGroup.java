@@ -369,6 +369,102 @@ final class SpanGroup implements DataPoints {
     return size;
   }
 
+  /**
+   * Counts the raw data points of the spans that fall within a time range.
+   * Unlike {@link #aggregatedSize}, this doesn't count the data points the
+   * scan picked up past either end of the range queried, so that the counts
+   * of adjacent ranges can be added up.
+   * @param start The start of the range queried in milliseconds, inclusive.
+   * @param end The end of the range queried in milliseconds, inclusive.
+   * @return The number of raw data points within the time range.
+   * @since 2.0
+   */
+  int aggregatedSizeInRange(final long start, final long end) {
+    int size = 0;
+    for (final Span span : spans) {
+      for (int i = 0; i < span.size(); i++) {
+        final long timestamp = span.timestamp(i);
+        if (timestamp > end) {
+          break;
+        }
+        if (timestamp >= start) {
+          size++;
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Tells whether or not the result of this group only depends on the data
+   * points within the time range queried, i.e. whether the results of
+   * adjacent time ranges can be concatenated into the result over the whole
+   * range.  The range of the group itself is wider, it includes the rows the
+   * scan picked up on either side.
+   * <p>
+   * That's not the case for a rate, which needs the previous data point, nor
+   * when the last downsampling interval of a span extends past the end of the
+   * range, nor when the spans have to be interpolated because they don't all
+   * have data points at the same timestamps.
+   * @param start The start of the range queried in milliseconds, inclusive.
+   * @param end The end of the range queried in milliseconds, inclusive.
+   * @return {@code true} if the result doesn't depend on data points outside
+   * of the time range.
+   * @since 2.0
+   */
+  boolean isSelfContained(final long start, final long end) {
+    if (rate) {
+      return false;
+    }
+    final boolean lerp = spans.size() > 1
+      && aggregator.interpolationMethod() == Interpolation.LERP;
+    long[] reference = null;
+    for (final Span span : spans) {
+      // replay the downsampling of the span to find the timestamps it yields
+      final long[] timestamps = new long[span.size()];
+      int n = 0;
+      long interval_end = 0;
+      long sum = 0;
+      int npoints = 0;
+      for (int i = 0; i < span.size(); i++) {
+        final long timestamp = span.timestamp(i);
+        if (timestamp < start) {
+          continue;
+        } else if (timestamp > end) {
+          break;
+        } else if (downsampler == null) {
+          timestamps[n++] = timestamp;
+          continue;
+        }
+        if (npoints > 0 && timestamp >= interval_end) {
+          timestamps[n++] = sum / npoints;
+          sum = 0;
+          npoints = 0;
+        }
+        if (npoints == 0) {
+          interval_end = timestamp + sample_interval;
+        }
+        sum += timestamp;
+        npoints++;
+      }
+      if (npoints > 0) {
+        if (interval_end > end + 1) {
+          return false;
+        }
+        timestamps[n++] = sum / npoints;
+      }
+      if (!lerp) {
+        continue;
+      }
+      if (reference == null) {
+        reference = Arrays.copyOf(timestamps, n);
+      } else if (!Arrays.equals(reference, Arrays.copyOf(timestamps, n))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public SeekableView iterator() {
     return new SGIterator(aggregator.interpolationMethod());
   }
@@ -592,6 +688,28 @@ final class SpanGroup implements DataPoints {
     /** The index in {@link #values} of the current value being aggregated. */
     private int pos;
 
+    /**
+     * Min-heap of the indexes in {@link #iterators} of the Spans whose next
+     * data point is within our time range, ordered by the timestamp of that
+     * next data point, then by index.  The root is the Span to consume next.
+     */
+    private final int[] heap;
+
+    /** Number of Spans in {@link #heap}. */
+    private int heap_size;
+
+    /**
+     * Indexes of the Spans that reached their end since the last call to
+     * {@link #next}, their current timestamp must be zeroed on that call.
+     */
+    private final int[] ended;
+
+    /** Number of Spans in {@link #ended}. */
+    private int num_ended;
+
+    /** Number of timestamps with {@code FLAG_FLOAT} in {@link #timestamps}. */
+    private int num_floats;
+
     /** Creates a new iterator for this {@link SpanGroup}. */
     public SGIterator(final Interpolation method) {
       this.method = method;
@@ -599,6 +717,8 @@ final class SpanGroup implements DataPoints {
       iterators = new SeekableView[size];
       timestamps = new long[size * (rate ? 3 : 2)];
       values = new long[size * (rate ? 3 : 2)];
+      heap = new int[size];
+      ended = new int[size];
       // Initialize every Iterator, fetch their first values that fall
       // within our time range.
       for (int i = 0; i < size; i++) {
@@ -634,6 +754,11 @@ final class SpanGroup implements DataPoints {
           }
         }
       }
+      for (int i = 0; i < size; i++) {
+        if (nextTimestamp(i) <= end_time) {
+          push(i);
+        }
+      }
     }
 
     /**
@@ -642,8 +767,77 @@ final class SpanGroup implements DataPoints {
      */
     private void endReached(final int i) {
       //LOG.debug("No more DP for #" + i);
-      timestamps[iterators.length + i] = TIME_MASK;
+      setTimestamp(iterators.length + i, TIME_MASK);
       iterators[i] = null;  // We won't use it anymore, so free() it.
+      ended[num_ended++] = i;
+    }
+
+    /**
+     * Sets a timestamp and keeps {@link #num_floats} up to date.
+     * @param i The index in {@link #timestamps} to set.
+     * @param timestamp The timestamp, with {@code FLAG_FLOAT} if need be.
+     */
+    private void setTimestamp(final int i, final long timestamp) {
+      if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
+        num_floats--;
+      }
+      if ((timestamp & FLAG_FLOAT) == FLAG_FLOAT) {
+        num_floats++;
+      }
+      timestamps[i] = timestamp;
+    }
+
+    /**
+     * @return The timestamp of the next data point of the given Span.
+     * @param i The index in {@link #iterators} of the Span.
+     */
+    private long nextTimestamp(final int i) {
+      return timestamps[iterators.length + i] & TIME_MASK;
+    }
+
+    /** @return Whether Span {@code a} must be consumed before Span {@code b}. */
+    private boolean before(final int a, final int b) {
+      final long ts_a = nextTimestamp(a);
+      final long ts_b = nextTimestamp(b);
+      return ts_a < ts_b || (ts_a == ts_b && a < b);
+    }
+
+    /** Adds a Span to {@link #heap}. */
+    private void push(final int span) {
+      int i = heap_size++;
+      heap[i] = span;
+      while (i > 0) {
+        final int parent = (i - 1) >>> 1;
+        if (!before(heap[i], heap[parent])) {
+          break;
+        }
+        final int tmp = heap[i];
+        heap[i] = heap[parent];
+        heap[parent] = tmp;
+        i = parent;
+      }
+    }
+
+    /** Restores the order of {@link #heap} after its root changed. */
+    private void siftDown() {
+      int i = 0;
+      while (true) {
+        final int left = 2 * i + 1;
+        if (left >= heap_size) {
+          return;
+        }
+        int min = left;
+        if (left + 1 < heap_size && before(heap[left + 1], heap[left])) {
+          min = left + 1;
+        }
+        if (!before(heap[min], heap[i])) {
+          return;
+        }
+        final int tmp = heap[i];
+        heap[i] = heap[min];
+        heap[min] = tmp;
+        i = min;
+      }
     }
 
     /**
@@ -652,16 +846,16 @@ final class SpanGroup implements DataPoints {
      * @param dp The last data point returned by that iterator.
      */
     private void putDataPoint(final int i, final DataPoint dp) {
-      timestamps[i] = dp.timestamp();
       if (dp.isInteger()) {
         //LOG.debug("Putting #" + i + " (long) " + dp.longValue()
         //          + " @ time " + dp.timestamp());
         values[i] = dp.longValue();
+        setTimestamp(i, dp.timestamp());
       } else {
         //LOG.debug("Putting #" + i + " (double) " + dp.doubleValue()
         //          + " @ time " + dp.timestamp());
         values[i] = Double.doubleToRawLongBits(dp.doubleValue());
-        timestamps[i] |= FLAG_FLOAT;
+        setTimestamp(i, dp.timestamp() | FLAG_FLOAT);
       }
     }
 
@@ -670,70 +864,39 @@ final class SpanGroup implements DataPoints {
     // ------------------ //
 
     public boolean hasNext() {
-      final int size = iterators.length;
-      for (int i = 0; i < size; i++) {
-        // As long as any of the iterators has a data point with a timestamp
-        // that falls within our interval, we know we have at least one next.
-        if ((timestamps[size + i] & TIME_MASK) <= end_time) {
-          //LOG.debug("hasNext #" + (size + i));
-          return true;
-        }
-      }
-      //LOG.debug("No hasNext (return false)");
-      return false;
+      // As long as any of the iterators has a data point with a timestamp
+      // that falls within our interval, we know we have at least one next.
+      return heap_size > 0;
     }
 
     public DataPoint next() {
-      final int size = iterators.length;
-      long min_ts = Long.MAX_VALUE;
-
       // In case we reached the end of one or more Spans, we need to make sure
       // we mark them as such by zeroing their current timestamp.  There may
-      // be multiple Spans that reached their end at once, so check them all.
-      for (int i = current; i < size; i++) {
-        if (timestamps[i + size] == TIME_MASK) {
-          //LOG.debug("Expiring last DP for #" + current);
-          timestamps[i] = 0;
-        }
+      // be multiple Spans that reached their end at once.
+      for (int i = 0; i < num_ended; i++) {
+        //LOG.debug("Expiring last DP for #" + ended[i]);
+        setTimestamp(ended[i], 0);
       }
+      num_ended = 0;
 
-      // Now we need to find which Span we'll consume next.  We'll pick the
-      // one that has the data point with the smallest timestamp since we want to
-      // return them in chronological order.
-      current = -1;
-      // If there's more than one Span with the same smallest timestamp, we'll
-      // set this to true so we can fetch the next data point in all of them at
-      // the same time.
-      boolean multiple = false;
-      for (int i = 0; i < size; i++) {
-        final long timestamp = timestamps[size + i] & TIME_MASK;
-        if (timestamp <= end_time) {
-          if (timestamp < min_ts) {
-            min_ts = timestamp;
-            current = i;
-            // We just found a new minimum so right now we can't possibly have
-            // multiple Spans with the same minimum.
-            multiple = false;
-          } else if (timestamp == min_ts) {
-            multiple = true;
-          }
-        }
-      }
-      if (current < 0) {
+      if (heap_size == 0) {
         throw new NoSuchElementException("no more elements");
       }
-      moveToNext(current);
-      if (multiple) {
-        //LOG.debug("Moving multiple DPs at time " + min_ts);
-        // We know we saw at least one other data point with the same minimum
-        // timestamp after `current', so let's move those ones too.
-        for (int i = current + 1; i < size; i++) {
-          final long timestamp = timestamps[size + i] & TIME_MASK;
-          if (timestamp == min_ts) {
-            moveToNext(i);
-          }
+      // The root of the heap is the Span that has the data point with the
+      // smallest timestamp, since we want to return them in chronological
+      // order.  If there's more than one Span with the same smallest
+      // timestamp, they're next in the heap and we fetch the next data point
+      // in all of them at the same time.
+      current = heap[0];
+      final long min_ts = nextTimestamp(current);
+      do {
+        final int i = heap[0];
+        moveToNext(i);
+        if (nextTimestamp(i) > end_time) {
+          heap[0] = heap[--heap_size];
         }
-      }
+        siftDown();
+      } while (heap_size > 0 && nextTimestamp(heap[0]) == min_ts);
 
       return this;
     }
@@ -746,7 +909,7 @@ final class SpanGroup implements DataPoints {
       final int size = iterators.length;
       final int next = iterators.length + i;
       if (rate) {  // move "current" in "prev".
-        timestamps[next + size] = timestamps[i];
+        setTimestamp(next + size, timestamps[i]);
         values[next + size] = values[i];
         //LOG.debug("Saving #" + i + " -> #" + (next + size)
         //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -754,7 +917,7 @@ final class SpanGroup implements DataPoints {
         //             : " long " + values[i])
         //          + " @ time " + (timestamps[i] & TIME_MASK));
       }
-      timestamps[i] = timestamps[next];
+      setTimestamp(i, timestamps[next]);
       values[i] = values[next];
       //LOG.debug("Moving #" + next + " -> #" + i
       //          + ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT
@@ -798,12 +961,7 @@ final class SpanGroup implements DataPoints {
       }
       // If at least one of the values we're going to aggregate or interpolate
       // with is a float, we have to convert everything to a float.
-      for (int i = timestamps.length - 1; i >= 0; i--) {
-        if ((timestamps[i] & FLAG_FLOAT) == FLAG_FLOAT) {
-          return false;
-        }
-      }
-      return true;
+      return num_floats == 0;
     }
 
     public long longValue() {
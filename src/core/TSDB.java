@@ -12,9 +12,11 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -101,6 +103,42 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /**
+   * Resolved row key templates for the series we write to, or {@code null}
+   * if the cache was disabled by setting its size to 0.
+   */
+  private final RowKeyCache row_key_cache;
+
+  /**
+   * Results of recent queries split in time buckets, or {@code null} if the
+   * cache is disabled.
+   */
+  private final QueryCache query_cache;
+
+  /**
+   * Writes and reads the rollups of the series, or {@code null} if rollups
+   * are disabled.
+   */
+  final Rollups rollups;
+
+  /**
+   * Keeps the aggregates of the configured tag groups, or {@code null} if
+   * pre-aggregation is disabled.
+   */
+  final PreAggregator preaggregator;
+
+  /**
+   * Where the writes HBase pushed back on are kept until they can be
+   * replayed, or {@code null} if the spool is disabled.
+   */
+  private final WriteSpool spool;
+
+  /**
+   * Groups the data points written to the same row into a single put, or
+   * {@code null} if every data point is sent on its own.
+   */
+  private final WriteCoalescer coalescer;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
   
@@ -130,6 +168,41 @@ public final class TSDB {
     tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH);
     compactionq = new CompactionQueue(this);
+    final int row_key_cache_size = 
+      config.getInt("tsd.core.row_key_cache_size");
+    row_key_cache = row_key_cache_size > 0 
+      ? new RowKeyCache(row_key_cache_size) : null;
+    query_cache = config.getBoolean("tsd.query.cache.enable") 
+      ? new QueryCache(this, config.getLong("tsd.query.cache.max_bytes"),
+          config.getInt("tsd.query.cache.bucket_size"),
+          config.getInt("tsd.query.cache.settle_time"),
+          config.getInt("tsd.query.cache.ttl"))
+      : null;
+    rollups = config.getBoolean("tsd.rollups.enable")
+      ? new Rollups(this, config) : null;
+    if (rollups != null && !config.enable_compactions()) {
+      LOG.warn("Rollups are only written when rows are compacted, queries"
+               + " will read the raw data until compactions are enabled");
+    }
+    preaggregator = config.getBoolean("tsd.preaggregate.enable")
+      ? new PreAggregator(this, client.getTimer(), config) : null;
+    if (config.getBoolean("tsd.storage.spool.enable")) {
+      final String directory = config.getString("tsd.storage.spool.directory");
+      if (directory == null || directory.isEmpty()) {
+        throw new IllegalArgumentException(
+            "tsd.storage.spool.directory must be set to enable the spool");
+      }
+      spool = new WriteSpool(this, client, table, new File(directory),
+          config.getInt("tsd.storage.spool.segment_size"),
+          config.getLong("tsd.storage.spool.max_size"),
+          config.getInt("tsd.storage.spool.replay_rate"));
+      spool.start();
+    } else {
+      spool = null;
+    }
+    final int coalesce_window = config.getInt("tsd.storage.coalesce_window");
+    coalescer = coalesce_window > 0
+      ? new WriteCoalescer(this, client.getTimer(), coalesce_window) : null;
 
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -306,7 +379,8 @@ public final class TSDB {
   /**
    * Verifies that the data and UID tables exist in HBase and optionally the
    * tree and meta data tables if the user has enabled meta tracking or tree
-   * building
+   * building, the rollup table if rollups are enabled and the pre-aggregate
+   * table if pre-aggregation is enabled
    * @return An ArrayList of objects to wait for
    * @throws TableNotFoundException
    * @since 2.0
@@ -327,6 +401,14 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (config.getBoolean("tsd.rollups.enable")) {
+      checks.add(client.ensureTableExists(
+          config.getString("tsd.storage.hbase.rollup_table")));
+    }
+    if (config.getBoolean("tsd.preaggregate.enable")) {
+      checks.add(client.ensureTableExists(
+          config.getString("tsd.storage.hbase.preaggregate_table")));
+    }
     return Deferred.group(checks);
   }
   
@@ -406,6 +488,7 @@ public final class TSDB {
     } finally {
       collector.clearExtraTag("class");
     }
+    QueryLimits.collectStats(collector);
     final ClientStats stats = client.stats();
     collector.record("hbase.root_lookups", stats.rootLookups());
     collector.record("hbase.meta_lookups",
@@ -428,6 +511,24 @@ public final class TSDB {
                      stats.numRpcDelayedDueToNSRE());
 
     compactionq.collectStats(collector);
+    if (row_key_cache != null) {
+      row_key_cache.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (rollups != null) {
+      rollups.collectStats(collector);
+    }
+    if (preaggregator != null) {
+      preaggregator.collectStats(collector);
+    }
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
+    if (coalescer != null) {
+      coalescer.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (rt_publisher != null) {
       try {
@@ -501,6 +602,24 @@ public final class TSDB {
     return new TsdbQuery(this);
   }
 
+  /**
+   * Runs a sub query of a {@link TSQuery}, through the query cache if it's
+   * enabled.  The names of the metric and tags are resolved without blocking,
+   * the deferred fails with a {@link NoSuchUniqueName} if one doesn't exist.
+   * @param ts_query The validated query.
+   * @param index The index of the sub query to run.
+   * @return The results of the sub query, one per group.
+   * @since 2.0
+   */
+  public Deferred<DataPoints[]> runQuery(final TSQuery ts_query, 
+      final int index) {
+    if (query_cache == null) {
+      return QueryCache.runUncached(this, ts_query, index, 
+          ts_query.startTime(), ts_query.endTime());
+    }
+    return query_cache.run(ts_query, index);
+  }
+
   /**
    * Returns a new {@link WritableDataPoints} instance suitable for this TSDB.
    * <p>
@@ -513,6 +632,10 @@ public final class TSDB {
 
   /**
    * Adds a single integer value data point in the TSDB.
+   * <p>
+   * The UIDs of the metric and tags are resolved synchronously, which blocks
+   * the calling thread if they aren't cached yet.  Network I/O threads should
+   * use {@link #addPointAsync(String, long, long, Map)} instead.
    * @param metric A non-empty string.
    * @param timestamp The timestamp associated with the value.
    * @param value The value of the data point.
@@ -535,22 +658,17 @@ public final class TSDB {
                                    final long timestamp,
                                    final long value,
                                    final Map<String, String> tags) {
-    final byte[] v;
-    if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
-      v = new byte[] { (byte) value };
-    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
-      v = Bytes.fromShort((short) value);
-    } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
-      v = Bytes.fromInt((int) value);
-    } else {
-      v = Bytes.fromLong(value);
-    }
+    final byte[] v = encodeLong(value);
     final short flags = (short) (v.length - 1);  // Just the length.
-    return addPointInternal(metric, timestamp, v, tags, flags);
+    return addPointInternal(metric, timestamp, v, tags, flags, false);
   }
 
   /**
    * Adds a double precision floating-point value data point in the TSDB.
+   * <p>
+   * The UIDs of the metric and tags are resolved synchronously, which blocks
+   * the calling thread if they aren't cached yet.  Network I/O threads should
+   * use {@link #addPointAsync(String, long, double, Map)} instead.
    * @param metric A non-empty string.
    * @param timestamp The timestamp associated with the value.
    * @param value The value of the data point.
@@ -575,19 +693,19 @@ public final class TSDB {
                                    final long timestamp,
                                    final double value,
                                    final Map<String, String> tags) {
-    if (Double.isNaN(value) || Double.isInfinite(value)) {
-      throw new IllegalArgumentException("value is NaN or Infinite: " + value
-                                         + " for metric=" + metric
-                                         + " timestamp=" + timestamp);
-    }
+    checkFloatingPointValue(metric, timestamp, value);
     final short flags = Const.FLAG_FLOAT | 0x7;  // A float stored on 4 bytes.
     return addPointInternal(metric, timestamp,
                             Bytes.fromLong(Double.doubleToRawLongBits(value)),
-                            tags, flags);
+                            tags, flags, false);
   }
 
   /**
    * Adds a single floating-point value data point in the TSDB.
+   * <p>
+   * The UIDs of the metric and tags are resolved synchronously, which blocks
+   * the calling thread if they aren't cached yet.  Network I/O threads should
+   * use {@link #addPointAsync(String, long, float, Map)} instead.
    * @param metric A non-empty string.
    * @param timestamp The timestamp associated with the value.
    * @param value The value of the data point.
@@ -611,22 +729,184 @@ public final class TSDB {
                                    final long timestamp,
                                    final float value,
                                    final Map<String, String> tags) {
-    if (Float.isNaN(value) || Float.isInfinite(value)) {
+    checkFloatingPointValue(metric, timestamp, value);
+    final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
+    return addPointInternal(metric, timestamp,
+                            Bytes.fromInt(Float.floatToRawIntBits(value)),
+                            tags, flags, false);
+  }
+
+  /**
+   * Adds a single integer value data point in the TSDB without ever blocking
+   * the calling thread.
+   * <p>
+   * The metric, tags and timestamp are validated right away, but if the
+   * series isn't in the row key cache its UIDs are resolved (or assigned)
+   * asynchronously and the write is only sent to HBase once they have been.
+   * The map of tags is copied so the caller is free to reuse it as soon as
+   * this method returns.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * The {@link Object} has not special meaning and can be {@code null} (think
+   * of it as {@code Deferred<Void>}). But you probably want to attach at
+   * least an errback to this {@code Deferred} to handle failures.
+   * @throws IllegalArgumentException if the timestamp is invalid.
+   * @throws IllegalArgumentException if the metric name is empty or contains
+   * illegal characters.
+   * @throws IllegalArgumentException if the tags list is empty or one of the
+   * elements contains illegal characters.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically assigned a UID.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @since 2.0
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final long value,
+                                        final Map<String, String> tags) {
+    final byte[] v = encodeLong(value);
+    final short flags = (short) (v.length - 1);  // Just the length.
+    return addPointInternal(metric, timestamp, v, tags, flags, true);
+  }
+
+  /**
+   * Adds a double precision floating-point value data point in the TSDB
+   * without ever blocking the calling thread.
+   * See {@link #addPointAsync(String, long, long, Map)} for details.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the metric, tags, timestamp or value
+   * are invalid.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically assigned a UID.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @since 2.0
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final double value,
+                                        final Map<String, String> tags) {
+    checkFloatingPointValue(metric, timestamp, value);
+    final short flags = Const.FLAG_FLOAT | 0x7;  // A float stored on 4 bytes.
+    return addPointInternal(metric, timestamp,
+                            Bytes.fromLong(Double.doubleToRawLongBits(value)),
+                            tags, flags, true);
+  }
+
+  /**
+   * Adds a single floating-point value data point in the TSDB without ever
+   * blocking the calling thread.
+   * See {@link #addPointAsync(String, long, long, Map)} for details.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the metric, tags, timestamp or value
+   * are invalid.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically assigned a UID.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @since 2.0
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final float value,
+                                        final Map<String, String> tags) {
+    checkFloatingPointValue(metric, timestamp, value);
+    final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
+    return addPointInternal(metric, timestamp,
+                            Bytes.fromInt(Float.floatToRawIntBits(value)),
+                            tags, flags, true);
+  }
+
+  /**
+   * Resolves (or assigns) the UIDs of a series without blocking the calling
+   * thread, so callers can report unknown metrics or tags before writing
+   * data points to it.  The row key is added to the row key cache, if
+   * enabled, so points written to the series right after don't resolve it
+   * again.
+   * @param metric A non-empty string.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred called back with {@code null} once the series is
+   * resolved.
+   * @throws IllegalArgumentException if the metric name or tags are empty or
+   * contain illegal characters.
+   * @throws NoSuchUniqueName (deferred) if the metric or a tag doesn't exist
+   * and isn't automatically assigned a UID.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs.
+   * @since 2.0
+   */
+  public Deferred<Object> resolveSeriesAsync(final String metric,
+                                             final Map<String, String> tags) {
+    if (row_key_cache != null && metric != null && tags != null
+        && row_key_cache.getIfPresent(metric, tags) != null) {
+      return Deferred.fromResult(null);
+    }
+    IncomingDataPoints.checkMetricAndTags(metric, tags);
+    final HashMap<String, String> series_tags =
+      new HashMap<String, String>(tags);
+
+    final class CacheRowKeyCB implements Callback<Object, byte[]> {
+      public Object call(final byte[] row) {
+        if (row_key_cache != null) {
+          row_key_cache.put(metric, series_tags, row);
+        }
+        return null;
+      }
+      public String toString() {
+        return "cache row key for metric=" + metric + ", tags=" + series_tags;
+      }
+    }
+
+    return IncomingDataPoints.rowKeyTemplateAsync(this, metric, series_tags)
+      .addCallback(new CacheRowKeyCB());
+  }
+
+  /** @return The given integer value on the smallest number of bytes. */
+  private static byte[] encodeLong(final long value) {
+    if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+      return new byte[] { (byte) value };
+    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+      return Bytes.fromShort((short) value);
+    } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+      return Bytes.fromInt((int) value);
+    }
+    return Bytes.fromLong(value);
+  }
+
+  /** @throws IllegalArgumentException if the value is NaN or infinite. */
+  private static void checkFloatingPointValue(final String metric,
+                                              final long timestamp,
+                                              final double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
       throw new IllegalArgumentException("value is NaN or Infinite: " + value
                                          + " for metric=" + metric
                                          + " timestamp=" + timestamp);
     }
-    final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
-    return addPointInternal(metric, timestamp,
-                            Bytes.fromInt(Float.floatToRawIntBits(value)),
-                            tags, flags);
   }
 
+  /**
+   * Validates a data point and resolves its row key before storing it.
+   * @param async Whether or not to resolve UIDs asynchronously when the series
+   * isn't cached.  When {@code false}, the calling thread may block.
+   */
   private Deferred<Object> addPointInternal(final String metric,
                                             final long timestamp,
                                             final byte[] value,
                                             final Map<String, String> tags,
-                                            final short flags) {
+                                            final short flags,
+                                            final boolean async) {
     // we only accept positive unix epoch timestamps in seconds or milliseconds
     if (timestamp < 0 || ((timestamp & Const.SECOND_MASK) != 0 && 
         timestamp > 9999999999999L)) {
@@ -636,8 +916,64 @@ public final class TSDB {
           + " to metric=" + metric + ", tags=" + tags);
     }
 
+    if (row_key_cache != null && metric != null && tags != null) {
+      final RowKeyCache.Entry series = row_key_cache.getIfPresent(metric, tags);
+      if (series != null) {
+        return storePoint(metric, timestamp, value, tags, flags,
+                          series.rowKey(), series.tsuid);
+      }
+    }
+
     IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    if (!async) {
+      final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+      if (row_key_cache != null) {
+        final RowKeyCache.Entry series = row_key_cache.put(metric, tags, row);
+        return storePoint(metric, timestamp, value, tags, flags,
+                          series.rowKey(), series.tsuid);
+      }
+      return storePoint(metric, timestamp, value, tags, flags, row, null);
+    }
+
+    // the caller may reuse its map as soon as we return
+    final HashMap<String, String> series_tags =
+      new HashMap<String, String>(tags);
+
+    final class StorePointCB implements Callback<Deferred<Object>, byte[]> {
+      public Deferred<Object> call(final byte[] row) {
+        if (row_key_cache != null) {
+          final RowKeyCache.Entry series = 
+            row_key_cache.put(metric, series_tags, row);
+          return storePoint(metric, timestamp, value, series_tags, flags,
+                            series.rowKey(), series.tsuid);
+        }
+        return storePoint(metric, timestamp, value, series_tags, flags, row,
+                          null);
+      }
+      public String toString() {
+        return "store point for metric=" + metric + ", tags=" + series_tags;
+      }
+    }
+
+    return IncomingDataPoints.rowKeyTemplateAsync(this, metric, series_tags)
+      .addCallbackDeferring(new StorePointCB());
+  }
+
+  /**
+   * Writes a data point once its row key has been resolved.
+   * @param row The row key template of the series, owned by this call, the
+   * base time is set in place.
+   * @param cached_tsuid The TSUID of the series if it came from the row key
+   * cache, in which case it's shared.  If {@code null} it's extracted from
+   * the row key.
+   */
+  private Deferred<Object> storePoint(final String metric,
+                                      final long timestamp,
+                                      final byte[] value,
+                                      final Map<String, String> tags,
+                                      final short flags,
+                                      final byte[] row,
+                                      final byte[] cached_tsuid) {
     final long base_time;
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
     
@@ -650,19 +986,33 @@ public final class TSDB {
     }
     
     Bytes.setInt(row, (int) base_time, metrics.width());
-    scheduleForCompaction(row, (int) base_time);
-    final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
+    scheduleForCompaction(row, (int) base_time, qualifier, value);
     
     // TODO(tsuna): Add a callback to time the latency of HBase and store the
     // timing in a moving Histogram (once we have a class for this).
-    Deferred<Object> result = client.put(point);
+    final Deferred<Object> result = coalescer != null
+      ? coalescer.add(row, qualifier, value)
+      : put(new PutRequest(table, row, FAMILY, qualifier, value));
+    if (preaggregator != null && preaggregator.accepts(metric, tags)) {
+      /** Adds the point to the pre-aggregates once it's stored. */
+      final class PreAggregateCB implements Callback<Object, Object> {
+        public Object call(final Object arg) {
+          preaggregator.add(metric, row, timestamp, value, flags);
+          return arg;
+        }
+        public String toString() {
+          return "pre-aggregate " + metric;
+        }
+      }
+      result.addCallback(new PreAggregateCB());
+    }
     if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
         !config.enable_tsuid_tracking() && rt_publisher == null) {
       return result;
     }
     
-    final byte[] tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
-        Const.TIMESTAMP_BYTES);
+    final byte[] tsuid = cached_tsuid != null ? cached_tsuid 
+        : UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, Const.TIMESTAMP_BYTES);
     
     // for busy TSDs we may only enable TSUID tracking, storing a 1 in the
     // counter field for a TSUID with the proper timestamp. If the user would
@@ -676,11 +1026,36 @@ public final class TSDB {
     }
     
     if (rt_publisher != null) {
-      rt_publisher.sinkDataPoint(metric, timestamp, value, tags, tsuid, flags);
+      // the cached TSUID is shared so hand plugins their own copy
+      rt_publisher.sinkDataPoint(metric, timestamp, value, tags, 
+          cached_tsuid != null ? tsuid.clone() : tsuid, flags);
     }
     return result;
   }
 
+  /**
+   * Spools the writes HBase pushed back on, so they're replayed later instead
+   * of failing.  Other errors are passed through.
+   */
+  private final class SpoolErrback implements Callback<Object, Exception> {
+    private final PutRequest point;
+
+    SpoolErrback(final PutRequest point) {
+      this.point = point;
+    }
+
+    public Object call(final Exception e) {
+      if (WriteSpool.isSpoolable(e) && spool.append(point)) {
+        return null;
+      }
+      return e;
+    }
+
+    public String toString() {
+      return "spool a write rejected by HBase";
+    }
+  }
+
   /**
    * Forces a flush of any un-committed in memory data including left over 
    * compactions.
@@ -704,9 +1079,23 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
-      ? compactionq.flush().addCallback(new HClientFlush())
-      : client.flush();
+    final class CompactionFlush
+      implements Callback<Deferred<Object>, ArrayList<Object>> {
+      public Deferred<Object> call(final ArrayList<Object> args) {
+        return config.enable_compactions() && compactionq != null
+          ? compactionq.flush().addCallback(new HClientFlush())
+          : client.flush();
+      }
+      public String toString() {
+        return "flush compaction queue";
+      }
+    }
+
+    // coalesced writes go first as they schedule compactions
+    if (coalescer != null) {
+      return coalescer.flush().addCallbackDeferring(new CompactionFlush());
+    }
+    return new CompactionFlush().call(null);
   }
 
   /**
@@ -762,6 +1151,18 @@ public final class TSDB {
       }
     }
     
+    if (spool != null) {
+      LOG.info("Stopping the write spool");
+      spool.shutdown();
+    }
+    if (coalescer != null) {
+      LOG.info("Flushing coalesced writes");
+      deferreds.add(coalescer.shutdown().addCallback(new CompactCB()));
+    }
+    if (preaggregator != null) {
+      LOG.info("Flushing pre-aggregates");
+      deferreds.add(preaggregator.shutdown().addCallback(new CompactCB()));
+    }
     if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
@@ -857,6 +1258,12 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (row_key_cache != null) {
+      row_key_cache.invalidateAll();
+    }
+    if (query_cache != null) {
+      query_cache.invalidateAll();
+    }
   }
 
   /**
@@ -1044,6 +1451,11 @@ public final class TSDB {
     return compactionq.compact(row, annotations);
   }
 
+  /** @see CompactionQueue#compactRow */
+  final Deferred<Object> compactRow(final ArrayList<KeyValue> row) {
+    return compactionq.compactRow(row);
+  }
+
   /**
    * Schedules the given row key for later re-compaction.
    * Once this row key has become "old enough", we'll read back all the data
@@ -1058,6 +1470,23 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Schedules the given row key for later re-compaction, along with the data
+   * point just written to it, which lets the compaction skip reading the row
+   * back when write-back compactions are enabled.
+   * @param row The row key to re-compact later.  Will not be modified.
+   * @param base_time The 32-bit unsigned UNIX timestamp.
+   * @param qualifier The qualifier of the data point written.
+   * @param value The value of the data point written.
+   */
+  final void scheduleForCompaction(final byte[] row, final int base_time,
+                                   final byte[] qualifier,
+                                   final byte[] value) {
+    if (config.enable_compactions()) {
+      compactionq.add(row, base_time & 0xFFFFFFFFL, qualifier, value);
+    }
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
@@ -1074,6 +1503,16 @@ public final class TSDB {
     return client.put(new PutRequest(table, key, FAMILY, qualifier, value));
   }
 
+  /**
+   * Sends a put of data points to the data table, spooling it if HBase
+   * pushes back and the spool is enabled.
+   */
+  final Deferred<Object> put(final PutRequest point) {
+    final Deferred<Object> result = client.put(point);
+    return spool != null
+      ? result.addErrback(new SpoolErrback(point)) : result;
+  }
+
   /** Deletes the given cells from the data table. */
   final Deferred<Object> delete(final byte[] key, final byte[][] qualifiers) {
     return client.delete(new DeleteRequest(table, key, FAMILY, qualifiers));
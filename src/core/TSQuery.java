@@ -17,6 +17,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
 import net.opentsdb.utils.DateTime;
 
 /**
@@ -74,6 +78,15 @@ public final class TSQuery {
   
   /** Whether or not the user wasn't millisecond resolution */
   private boolean ms_resolution;
+
+  /** How many scanners to run in parallel per sub query, 0 for the default */
+  private int scan_parallelism;
+
+  /** Whether the sub queries may read pre-aggregates */
+  private boolean preaggregates;
+
+  /** Limits shared by all the sub queries, {@code null} if unlimited */
+  private QueryLimits limits;
   
   /**
    * Default constructor necessary for POJO de/serialization
@@ -113,6 +126,10 @@ public final class TSQuery {
     if (queries == null || queries.isEmpty()) {
       throw new IllegalArgumentException("Missing queries");
     }
+    if (scan_parallelism < 0) {
+      throw new IllegalArgumentException(
+          "Scan parallelism must be greater than 0: " + scan_parallelism);
+    }
     
     // validate queries
     for (TSSubQuery sub : queries) {
@@ -130,36 +147,103 @@ public final class TSQuery {
    */
   public Query[] buildQueries(final TSDB tsdb) {
     final Query[] queries = new Query[this.queries.size()];
-    int i = 0;
-    for (TSSubQuery sub : this.queries) {
-      final Query query = tsdb.newQuery();
-      query.setStartTime(start_time);
-      query.setEndTime(end_time);
-      if (sub.downsampler() != null) {
-        query.downsample(sub.downsampleInterval(), sub.downsampler());
-      } else if (!ms_resolution) {
-        // we *may* have multiple millisecond data points in the set so we have
-        // to downsample. use the sub query's aggregator
-        query.downsample(1000, sub.aggregator());
-      }
-      if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
-        if (sub.getRateOptions() != null) {
-          query.setTimeSeries(sub.getTsuids(), sub.aggregator(), sub.getRate(), 
-              sub.getRateOptions());
-        } else {
-          query.setTimeSeries(sub.getTsuids(), sub.aggregator(), sub.getRate());
-        }
-      } else if (sub.getRateOptions() != null) {
-        query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(), 
-            sub.getRate(), sub.getRateOptions());
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = buildQuery(tsdb, i, start_time, end_time);
+    }
+    return queries;
+  }
+
+  /**
+   * Compiles a single sub query over a custom time range, e.g. a bucket of
+   * the {@link QueryCache}.
+   * @param tsdb The tsdb to use for {@link TSDB#newQuery}
+   * @param index The index of the sub query to compile
+   * @param start The start time of the query in milliseconds
+   * @param end The end time of the query in milliseconds
+   * @return A query ready to run
+   * @since 2.0
+   */
+  Query buildQuery(final TSDB tsdb, final int index, final long start,
+                   final long end) {
+    final TSSubQuery sub = queries.get(index);
+    // setTimeSeries() removes the group by tags from the map it's given, work
+    // on a copy so the sub query can be compiled more than once
+    final HashMap<String, String> tags = 
+      new HashMap<String, String>(sub.getTags());
+    final Query query = newQuery(tsdb, sub, start, end);
+    if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
+      if (sub.getRateOptions() != null) {
+        query.setTimeSeries(sub.getTsuids(), sub.aggregator(), sub.getRate(), 
+            sub.getRateOptions());
       } else {
-        query.setTimeSeries(sub.getMetric(), sub.getTags(), sub.aggregator(), 
-            sub.getRate());
+        query.setTimeSeries(sub.getTsuids(), sub.aggregator(), sub.getRate());
       }
-      queries[i] = query;
-      i++;
+    } else if (sub.getRateOptions() != null) {
+      query.setTimeSeries(sub.getMetric(), tags, sub.aggregator(), 
+          sub.getRate(), sub.getRateOptions());
+    } else {
+      query.setTimeSeries(sub.getMetric(), tags, sub.aggregator(), 
+          sub.getRate());
     }
-    return queries;
+    return query;
+  }
+
+  /**
+   * Compiles a single sub query over a custom time range without blocking on
+   * the UID lookups of its metric and tags.
+   * @param tsdb The tsdb to use for {@link TSDB#newQuery}
+   * @param index The index of the sub query to compile
+   * @param start The start time of the query in milliseconds
+   * @param end The end time of the query in milliseconds
+   * @return A deferred query ready to run, or a deferred
+   * {@link net.opentsdb.uid.NoSuchUniqueName} if a name doesn't exist
+   * @since 2.0
+   */
+  Deferred<Query> buildQueryAsync(final TSDB tsdb, final int index,
+                                  final long start, final long end) {
+    final TSSubQuery sub = queries.get(index);
+    if (sub.getTsuids() != null && !sub.getTsuids().isEmpty()) {
+      // TSUIDs don't need any lookup
+      return Deferred.fromResult(buildQuery(tsdb, index, start, end));
+    }
+    final Query query = newQuery(tsdb, sub, start, end);
+
+    class ResolvedCB implements Callback<Query, Object> {
+      public Query call(final Object ignored) {
+        return query;
+      }
+    }
+
+    return query.setTimeSeriesAsync(sub.getMetric(), 
+        new HashMap<String, String>(sub.getTags()), sub.aggregator(), 
+        sub.getRate(), sub.getRateOptions() != null 
+          ? sub.getRateOptions() : new RateOptions())
+      .addCallback(new ResolvedCB());
+  }
+
+  /**
+   * Creates a query for a sub query and sets everything but its time series.
+   */
+  private Query newQuery(final TSDB tsdb, final TSSubQuery sub, 
+                         final long start, final long end) {
+    final Query query = tsdb.newQuery();
+    query.setStartTime(start);
+    query.setEndTime(end);
+    if (scan_parallelism > 0) {
+      query.setScanParallelism(scan_parallelism);
+    }
+    query.setPreAggregates(preaggregates);
+    if (limits != null) {
+      query.setLimits(limits);
+    }
+    if (sub.downsampler() != null) {
+      query.downsample(sub.downsampleInterval(), sub.downsampler());
+    } else if (!ms_resolution) {
+      // we *may* have multiple millisecond data points in the set so we have
+      // to downsample. use the sub query's aggregator
+      query.downsample(1000, sub.aggregator());
+    }
+    return query;
   }
   
   public String toString() {
@@ -189,6 +273,10 @@ public final class TSQuery {
       .append(show_tsuids)
       .append(", ms_resolution=")
       .append(ms_resolution)
+      .append(", scan_parallelism=")
+      .append(scan_parallelism)
+      .append(", preaggregates=")
+      .append(preaggregates)
       .append(", options=[");
     if (options != null && !options.isEmpty()) {
       int counter = 0;
@@ -270,6 +358,23 @@ public final class TSQuery {
   public boolean getMsResolution() {
     return ms_resolution;
   }
+
+  /** 
+   * @return how many scanners to run in parallel per sub query, 0 to use the
+   * TSD's default
+   * @since 2.0
+   */
+  public int getScanParallelism() {
+    return scan_parallelism;
+  }
+
+  /**
+   * @return whether the sub queries may read pre-aggregates
+   * @since 2.0
+   */
+  public boolean getPreAggregates() {
+    return preaggregates;
+  }
   
   /**
    * Sets the start time for further parsing. This can be an absolute or 
@@ -329,4 +434,31 @@ public final class TSQuery {
   public void setMsResolution(boolean ms_resolution) {
     this.ms_resolution = ms_resolution;
   }
+
+  /** 
+   * @param scan_parallelism how many scanners to run in parallel per sub 
+   * query, 0 to use the TSD's default
+   * @since 2.0
+   */
+  public void setScanParallelism(int scan_parallelism) {
+    this.scan_parallelism = scan_parallelism;
+  }
+
+  /**
+   * @param preaggregates whether the sub queries may read pre-aggregates
+   * @since 2.0
+   */
+  public void setPreAggregates(boolean preaggregates) {
+    this.preaggregates = preaggregates;
+  }
+
+  /**
+   * @param limits the limits shared by all the sub queries, set by the
+   * endpoint that received the query, {@code null} for no limit
+   * @since 2.0
+   */
+  @JsonIgnore
+  public void setLimits(QueryLimits limits) {
+    this.limits = limits;
+  }
 }
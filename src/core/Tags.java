@@ -360,6 +360,24 @@ public final class Tags {
     }
   }
 
+  /**
+   * Resolves all the tags (name=value) into the a sorted byte arrays without
+   * blocking.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tags The tags to resolve.
+   * @return an array of sorted tags (tag id, tag name), or a deferred
+   * {@link NoSuchUniqueName} if one of the elements in the map contained an
+   * unknown tag name or tag value.
+   * @since 2.0
+   */
+  static Deferred<ArrayList<byte[]>> resolveAllAsync(final TSDB tsdb,
+      final Map<String, String> tags) {
+    if (tags.isEmpty()) {
+      return Deferred.fromResult(new ArrayList<byte[]>(0));
+    }
+    return resolveAllInternalAsync(tsdb, tags, false);
+  }
+
   /**
   * Resolves (and creates, if necessary) all the tags (name=value) into the a
   * sorted byte arrays.
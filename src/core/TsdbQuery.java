@@ -15,12 +15,15 @@ package net.opentsdb.core;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,10 +31,13 @@ import org.hbase.async.Bytes;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import static org.hbase.async.Bytes.ByteMap;
 import net.opentsdb.stats.Histogram;
@@ -121,6 +127,19 @@ final class TsdbQuery implements Query {
 
   /** Optional list of TSUIDs to fetch and aggregate instead of a metric */
   private List<String> tsuids;
+
+  /** How many scanners to split the time range between. */
+  private int scan_parallelism = UNSET;
+
+  /** Whether this query may read the pre-aggregates of its metric. */
+  private boolean preaggregates;
+
+  /** What this query may scan and hold, {@code null} if unlimited. */
+  private QueryLimits limits;
+
+  /** The scanners still running, for the timer to abort them. */
+  private final List<ScannerCB> running =
+    Collections.synchronizedList(new ArrayList<ScannerCB>());
   
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
@@ -204,6 +223,38 @@ final class TsdbQuery implements Query {
     this.rate_options = rate_options;
   }
 
+  public Deferred<Object> setTimeSeriesAsync(final String metric,
+      final Map<String, String> tags,
+      final Aggregator function,
+      final boolean rate,
+      final RateOptions rate_options) {
+    aggregator = function;
+    this.rate = rate;
+    this.rate_options = rate_options;
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>(3);
+    // removes the group by tags from the map before we resolve the others
+    deferreds.add(findGroupBysAsync(tags));
+
+    class MetricCB implements Callback<Object, byte[]> {
+      public Object call(final byte[] id) {
+        TsdbQuery.this.metric = id;
+        return null;
+      }
+    }
+
+    class TagsCB implements Callback<Object, ArrayList<byte[]>> {
+      public Object call(final ArrayList<byte[]> tag_ids) {
+        TsdbQuery.this.tags = tag_ids;
+        return null;
+      }
+    }
+
+    deferreds.add(tsdb.metrics.getIdAsync(metric).addCallback(new MetricCB()));
+    deferreds.add(Tags.resolveAllAsync(tsdb, tags).addCallback(new TagsCB()));
+    return Deferred.group(deferreds).addCallbacks(NULL_CB, UNWRAP_CB);
+  }
+
   public void setTimeSeries(final List<String> tsuids,
       final Aggregator function, final boolean rate) {
     setTimeSeries(tsuids, function, rate, new RateOptions());
@@ -257,6 +308,25 @@ final class TsdbQuery implements Query {
     this.sample_interval_ms = interval;
   }
 
+  @Override
+  public void setScanParallelism(final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+          "parallelism not > 0: " + parallelism);
+    }
+    scan_parallelism = parallelism;
+  }
+
+  @Override
+  public void setPreAggregates(final boolean preaggregates) {
+    this.preaggregates = preaggregates;
+  }
+
+  @Override
+  public void setLimits(final QueryLimits limits) {
+    this.limits = limits;
+  }
+
   /**
    * Extracts all the tags we must use to group results.
    * <ul>
@@ -306,6 +376,97 @@ final class TsdbQuery implements Query {
     }
   }
 
+  /**
+   * Same as {@link #findGroupBys} but resolves the IDs asynchronously.
+   * The group by tags are still removed from the map right away.
+   * @param tags The tags from which to extract the 'GROUP BY's.
+   * @return A deferred resolved once all the IDs have been stored.
+   */
+  private Deferred<Object> findGroupBysAsync(final Map<String, String> tags) {
+    final ArrayList<Deferred<Object>> deferreds =
+      new ArrayList<Deferred<Object>>();
+    final Iterator<Map.Entry<String, String>> i = tags.entrySet().iterator();
+    while (i.hasNext()) {
+      final Map.Entry<String, String> tag = i.next();
+      final String tagvalue = tag.getValue();
+      if (!tagvalue.equals("*") && tagvalue.indexOf('|', 1) < 0) {
+        continue;
+      }
+      if (group_bys == null) {
+        group_bys = new ArrayList<byte[]>();
+      }
+      // reserve the slot so the order doesn't depend on the lookups
+      final int index = group_bys.size();
+      group_bys.add(null);
+      i.remove();
+      final String[] values = tagvalue.charAt(0) == '*'
+        ? null : Tags.splitString(tagvalue, '|');
+      final byte[][] value_ids = values == null
+        ? null : new byte[values.length][tsdb.tag_values.width()];
+
+      class TagNameCB implements Callback<Object, byte[]> {
+        public Object call(final byte[] id) {
+          group_bys.set(index, id);
+          if (value_ids != null) {
+            synchronized (TsdbQuery.this) {
+              if (group_by_values == null) {
+                group_by_values = new ByteMap<byte[][]>();
+              }
+              group_by_values.put(id, value_ids);
+            }
+          }
+          return null;
+        }
+      }
+
+      deferreds.add(tsdb.tag_names.getIdAsync(tag.getKey())
+          .addCallback(new TagNameCB()));
+      if (values == null) {
+        continue;  // For a 'GROUP BY' with any value, we're done.
+      }
+      for (int j = 0; j < values.length; j++) {
+        final byte[] value_id = value_ids[j];
+
+        class TagValueCB implements Callback<Object, byte[]> {
+          public Object call(final byte[] id) {
+            System.arraycopy(id, 0, value_id, 0, value_id.length);
+            return null;
+          }
+        }
+
+        deferreds.add(tsdb.tag_values.getIdAsync(values[j])
+            .addCallback(new TagValueCB()));
+      }
+    }
+    if (deferreds.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    return Deferred.group(deferreds).addCallbacks(NULL_CB, UNWRAP_CB);
+  }
+
+  /** Drops the results of a group of lookups once they're all done. */
+  private static final Callback<Object, ArrayList<Object>> NULL_CB =
+    new Callback<Object, ArrayList<Object>>() {
+      public Object call(final ArrayList<Object> ignored) {
+        return null;
+      }
+    };
+
+  /** Unwraps the exception of the first lookup or scanner that failed. */
+  private static final Callback<Exception, Exception> UNWRAP_CB =
+    new Callback<Exception, Exception>() {
+      public Exception call(final Exception e) {
+        if (e instanceof DeferredGroupException) {
+          for (final Object result : ((DeferredGroupException) e).results()) {
+            if (result instanceof Exception) {
+              return (Exception) result;
+            }
+          }
+        }
+        return e;
+      }
+    };
+
   /**
    * Executes the query
    * @return An array of data points with one time series per array value
@@ -321,7 +482,62 @@ final class TsdbQuery implements Query {
   }
   
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    if (limits == null) {
+      return findSpans().addCallback(new GroupByAndAggregateCB());
+    }
+    limits.check();
+    final Deferred<DataPoints[]> found =
+      findSpans().addCallback(new GroupByAndAggregateCB());
+    final long deadline = limits.deadline();
+    if (deadline == 0) {
+      return found;
+    }
+
+    // The scanners only check the time when rows come back, so a timer fails
+    // the query when it runs out of time even if HBase doesn't answer.
+    final Deferred<DataPoints[]> results = new Deferred<DataPoints[]>();
+    final AtomicBoolean done = new AtomicBoolean();
+
+    /** Aborts the scanners still running and fails the query. */
+    final class TimeOutTask implements TimerTask {
+      public void run(final Timeout timeout) {
+        if (!done.compareAndSet(false, true)) {
+          return;
+        }
+        final QueryLimitException e = limits.timeOut();
+        final ArrayList<ScannerCB> scanners;
+        synchronized (running) {
+          scanners = new ArrayList<ScannerCB>(running);
+        }
+        for (final ScannerCB scanner : scanners) {
+          scanner.abort(e);
+        }
+        LOG.warn(TsdbQuery.this + " timed out, aborted " + scanners.size()
+                 + " scanners");
+        results.callback(e);
+      }
+    }
+
+    final Timeout timeout = tsdb.client.getTimer().newTimeout(
+        new TimeOutTask(), Math.max(deadline - System.currentTimeMillis(), 0),
+        TimeUnit.MILLISECONDS);
+
+    /** Passes on the results unless the query timed out first. */
+    final class DoneCB<T> implements Callback<Object, T> {
+      public Object call(final T arg) {
+        timeout.cancel();
+        if (done.compareAndSet(false, true)) {
+          results.callback(arg);
+        }
+        return null;
+      }
+      public String toString() {
+        return "time out of " + TsdbQuery.this;
+      }
+    }
+
+    found.addCallbacks(new DoneCB<DataPoints[]>(), new DoneCB<Exception>());
+    return results;
   }
 
   /**
@@ -337,94 +553,572 @@ final class TsdbQuery implements Query {
    */
   private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
-    final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
-      new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-    final Scanner scanner = getScanner();
-    final Deferred<TreeMap<byte[], Span>> results =
-      new Deferred<TreeMap<byte[], Span>>();
-    
+    final long start = getScanStartTimeSeconds();
+    final long end = end_time == UNSET ? -1 : getScanEndTimeSeconds();
+    final ArrayList<Scanner> scanners = new ArrayList<Scanner>();
+    // Each scanner fills its own map, the maps are merged in time order
+    // once all the scanners are done.
+    final ArrayList<TreeMap<byte[], Span>> partitions =
+      new ArrayList<TreeMap<byte[], Span>>();
+    final ArrayList<Deferred<Integer>> deferreds =
+      new ArrayList<Deferred<Integer>>();
+    // Pre-aggregates replace the raw data if asked for.  Otherwise if
+    // rollups can answer this query, they're read up to the cutoff and the
+    // raw data after it.
+    long cutoff = 0;
+    int rollup_interval = 0;
+    if (preaggregates && tsdb.preaggregator != null && tsuids == null
+        && tsdb.preaggregator.route(metric, tags, group_bys, aggregator,
+                                    downsampler, sample_interval_ms, rate)) {
+      final TreeMap<byte[], Span> spans =
+        new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+      partitions.add(spans);
+      deferreds.add(findPreAggregates(start, end, spans));
+    } else {
+      if (tsdb.rollups != null) {
+        cutoff = tsdb.rollups.cutoff(System.currentTimeMillis() / 1000);
+        rollup_interval = tsdb.rollups.route(downsampler, sample_interval_ms,
+                                             start, cutoff);
+      }
+      if (rollup_interval > 0) {
+        final boolean raw = end == -1 || end > cutoff;
+        final TreeMap<byte[], Span> spans =
+          new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+        partitions.add(spans);
+        deferreds.add(findRollups(start, raw ? cutoff : end, rollup_interval,
+                                  spans));
+        if (raw) {
+          scanners.addAll(Arrays.asList(getScanners(cutoff, end)));
+        }
+      } else {
+        scanners.addAll(Arrays.asList(getScanners(start, end)));
+      }
+    }
+
+    if (deferreds.isEmpty() && scanners.size() == 1) {
+      final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
+        new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+      /** Returns the spans, or null if no data was found.  */
+      final class ResultCB implements Callback<TreeMap<byte[], Span>, 
+        Integer> {
+        public TreeMap<byte[], Span> call(final Integer nrows) {
+          return nrows < 1 ? null : spans;
+        }
+      }
+      return new ScannerCB(scanners.get(0), spans).scan()
+        .addCallback(new ResultCB());
+    }
+
+    for (final Scanner scanner : scanners) {
+      final TreeMap<byte[], Span> spans =
+        new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+      partitions.add(spans);
+      deferreds.add(new ScannerCB(scanner, spans).scan());
+    }
+
+    /** Merges the spans found by each scanner.  */
+    final class MergeCB implements Callback<TreeMap<byte[], Span>,
+      ArrayList<Integer>> {
+      public TreeMap<byte[], Span> call(final ArrayList<Integer> counts) {
+        int nrows = 0;
+        for (final Integer count : counts) {
+          nrows += count;
+        }
+        if (nrows < 1) {
+          return null;
+        }
+        final TreeMap<byte[], Span> spans = partitions.get(0);
+        mergeSpans(spans, partitions.subList(1, partitions.size()));
+        return spans;
+      }
+    }
+
+    return Deferred.group(deferreds).addCallbacks(new MergeCB(), UNWRAP_CB);
+  }
+
+  /**
+   * Reads the rollups of the series, then the raw data of the hours not
+   * marked complete by the compact tool, skipping the rows the rollups
+   * cover.  Those hours may have rows written before rollups were enabled or
+   * never compacted, and series without any rollups.
+   * @param start The time to start reading at, in seconds.
+   * @param end The time to stop reading at, in seconds.
+   * @param interval The interval of the rollups to read, in seconds.
+   * @param spans Where to add the data points.
+   * @return The number of rows read, once done.
+   */
+  private Deferred<Integer> findRollups(final long start, final long end,
+                                        final int interval,
+                                        final TreeMap<byte[], Span> spans) {
+    final short metric_width = tsdb.metrics.width();
+    final long first_row = start - (start % Const.MAX_TIMESPAN);
+    final int nrows = Rollups.rowIndex(end + Const.MAX_TIMESPAN - 1,
+                                       first_row);
+    // The raw rows covered by the rollups read, per series.
+    final TreeMap<byte[], BitSet> coverage =
+      new TreeMap<byte[], BitSet>(new SpanCmp(metric_width));
+    // The rows marking hours complete for the whole metric.
+    final ArrayList<ArrayList<KeyValue>> marks =
+      new ArrayList<ArrayList<KeyValue>>();
+
+    /** Reads the raw data of the hours not marked complete. */
+    final class FallbackCB implements Callback<Deferred<Integer>,
+      ArrayList<Integer>> {
+      public Deferred<Integer> call(final ArrayList<Integer> counts) {
+        // The marks aren't rows of data, don't count them.
+        final int rollup_rows = counts.get(0);
+        final BitSet missing = new BitSet(nrows);
+        for (final ArrayList<KeyValue> row : marks) {
+          tsdb.rollups.addCoverage(row, first_row, end, missing);
+        }
+        missing.flip(0, nrows);
+        final ArrayList<TreeMap<byte[], Span>> partitions =
+          new ArrayList<TreeMap<byte[], Span>>();
+        final ArrayList<Deferred<Integer>> deferreds =
+          new ArrayList<Deferred<Integer>>();
+        for (int i = missing.nextSetBit(0); i >= 0;
+             i = missing.nextSetBit(i)) {
+          final int next = missing.nextClearBit(i);
+          final TreeMap<byte[], Span> partition =
+            new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+          partitions.add(partition);
+          deferreds.add(new ScannerCB(getScanner(tsdb.table,
+              first_row + i * (long) Const.MAX_TIMESPAN,
+              Math.min(first_row + next * (long) Const.MAX_TIMESPAN, end)),
+              partition, 0, coverage, first_row, 0, null).scan());
+          i = next;
+        }
+        if (deferreds.isEmpty()) {
+          return Deferred.fromResult(rollup_rows);
+        }
+
+        /** Adds the raw data points to the rollups. */
+        final class MergeCB implements Callback<Integer, ArrayList<Integer>> {
+          public Integer call(final ArrayList<Integer> counts) {
+            int total = rollup_rows;
+            for (final Integer count : counts) {
+              total += count;
+            }
+            mergeSpans(spans, partitions);
+            return total;
+          }
+        }
+
+        return Deferred.group(deferreds).addCallbacks(new MergeCB(),
+                                                      UNWRAP_CB);
+      }
+    }
+
+    final long first_day = start - (start % Rollups.ROW_SPAN);
+    final Deferred<Integer> rollups =
+      new ScannerCB(getScanner(tsdb.rollups.table(), first_day, end),
+                    spans, interval, coverage, first_row, end, null).scan();
+    final Deferred<Integer> marked =
+      new ScannerCB(getMarkScanner(first_day, end), marks).scan();
+    return Deferred.group(rollups, marked).addErrback(UNWRAP_CB)
+      .addCallbackDeferring(new FallbackCB());
+  }
+
+  /**
+   * Reads the pre-aggregates of the metric, and computes them from the raw
+   * data where they can't be read: before the time they start at, in the
+   * hours with late data points and in the intervals that may not have been
+   * written yet.
+   * @param start The time to start reading at, in seconds.
+   * @param end The time to stop reading at, in seconds, or -1 to read until
+   * the last row of the metric.
+   * @param spans Where to add the aggregates.
+   * @return The number of rows read, once done.
+   */
+  private Deferred<Integer> findPreAggregates(final long start,
+      final long end, final TreeMap<byte[], Span> spans) {
+    final short metric_width = tsdb.metrics.width();
+    final PreAggregator preaggregator = tsdb.preaggregator;
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>();
+
     /**
-    * Scanner callback executed recursively each time we get a set of data
-    * from storage. This is responsible for determining what columns are
-    * returned and issuing requests to load leaf objects.
-    * When the scanner returns a null set of rows, the method initiates the
-    * final callback.
-    */
-    final class ScannerCB implements Callback<Object,
-      ArrayList<ArrayList<KeyValue>>> {
-      
-      int nrows = 0;
-      int hbase_time = 0; // milliseconds.
-      long starttime = System.nanoTime();
-      
-      /**
-      * Starts the scanner and is called recursively to fetch the next set of
-      * rows from the scanner.
-      * @return The map of spans if loaded successfully, null if no data was
-      * found
-      */
-       public Object scan() {
-         starttime = System.nanoTime();
-         return scanner.nextRows().addCallback(this);
-       }
-  
-      /**
-      * Loops through each row of the scanner results and parses out data
-      * points and optional meta data
-      * @return null if no rows were found, otherwise the TreeMap with spans
-      */
-       @Override
-       public Object call(final ArrayList<ArrayList<KeyValue>> rows)
-         throws Exception {
-         hbase_time += (System.nanoTime() - starttime) / 1000000;
-         try {
-           if (rows == null) {
-             hbase_time += (System.nanoTime() - starttime) / 1000000;
-             scanlatency.add(hbase_time);
-             LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
-                 spans.size() + " spans in " + hbase_time + "ms");
-             if (nrows < 1) {
-               results.callback(null);
-             } else {
-               results.callback(spans);
-             }
-             scanner.close();
-             return null;
-           }
-           
-           for (final ArrayList<KeyValue> row : rows) {
-             final byte[] key = row.get(0).key();
-             if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-               scanner.close();
-               throw new IllegalDataException(
-                   "HBase returned a row that doesn't match"
-                   + " our scanner (" + scanner + ")! " + row + " does not start"
-                   + " with " + Arrays.toString(metric));
-             }
-             Span datapoints = spans.get(key);
-             if (datapoints == null) {
-               datapoints = new Span(tsdb);
-               spans.put(key, datapoints);
-             }
-             final KeyValue compacted = 
-               tsdb.compact(row, datapoints.getAnnotations());
-             if (compacted != null) { // Can be null if we ignored all KVs.
-               datapoints.addRow(compacted);
-               nrows++;
-             }
-           }
-           
-           return scan();
-         } catch (Exception e) {
-           scanner.close();
-           results.callback(e);
-           return null;
-         }
-       }
-     }
+     * Reads the raw data outside of the hours whose pre-aggregates were
+     * read, computes their aggregates and adds the ones read.
+     */
+    final class RawCB implements Callback<Deferred<Integer>, Integer> {
+      /** The hours whose pre-aggregates were read, in seconds. */
+      private final long from;
+      private final long to;
+
+      RawCB(final long from, final long to) {
+        this.from = from;
+        this.to = to;
+      }
+
+      public Deferred<Integer> call(final Integer ignored) {
+        final BitSet late = new BitSet();
+        for (final ArrayList<KeyValue> row : rows) {
+          if (PreAggregator.hasLateData(row)) {
+            late.set(Rollups.rowIndex(
+                Bytes.getUnsignedInt(row.get(0).key(), metric_width), from));
+          }
+        }
+        final ArrayList<long[]> ranges = new ArrayList<long[]>();
+        if (from > start) {
+          ranges.add(new long[] { start, from });
+        }
+        for (int i = late.nextSetBit(0); i >= 0; i = late.nextSetBit(i)) {
+          final int next = late.nextClearBit(i);
+          ranges.add(new long[] { from + i * (long) Const.MAX_TIMESPAN,
+                                  from + next * (long) Const.MAX_TIMESPAN });
+          i = next;
+        }
+        if (end == -1 || end > to) {
+          ranges.add(new long[] { Math.max(start, to), end });
+        }
+
+        final ArrayList<TreeMap<byte[], Span>> partitions =
+          new ArrayList<TreeMap<byte[], Span>>();
+        final ArrayList<Deferred<Integer>> deferreds =
+          new ArrayList<Deferred<Integer>>();
+        for (final long[] range : ranges) {
+          final TreeMap<byte[], Span> partition =
+            new TreeMap<byte[], Span>(new SpanCmp(metric_width));
+          partitions.add(partition);
+          deferreds.add(new ScannerCB(getScanner(tsdb.table, range[0],
+                                                 range[1]),
+                                      partition).scan());
+        }
 
-     new ScannerCB().scan();
-     return results;
+        /**
+         * Adds the aggregates read, then the ones of the raw data.  The rows
+         * read are in time order so they're appended, and the aggregates of
+         * the raw data are merged in once per series.
+         */
+        final class AggregateCB implements Callback<Integer,
+          ArrayList<Integer>> {
+          public Integer call(final ArrayList<Integer> counts) {
+            int total = 0;
+            for (final Integer count : counts) {
+              total += count;
+            }
+            for (final ArrayList<KeyValue> row : rows) {
+              final byte[] key = row.get(0).key();
+              if (late.get(Rollups.rowIndex(
+                  Bytes.getUnsignedInt(key, metric_width), from))) {
+                continue;
+              }
+              final Span existing = spans.get(key);
+              final Span span = existing != null ? existing : new Span(tsdb);
+              if (PreAggregator.addTo(row, span)) {
+                if (existing == null) {
+                  spans.put(key, span);
+                }
+                total++;
+              }
+            }
+            if (!partitions.isEmpty()) {
+              final TreeMap<byte[], Span> raw = partitions.get(0);
+              mergeSpans(raw, partitions.subList(1, partitions.size()));
+              preaggregator.aggregate(metric, raw, spans);
+            }
+            return total;
+          }
+        }
+
+        return Deferred.group(deferreds).addCallbacks(new AggregateCB(),
+                                                      UNWRAP_CB);
+      }
+    }
+
+    /** Reads the pre-aggregates of the hours they cover. */
+    final class CoverageCB implements Callback<Deferred<Integer>, Long> {
+      public Deferred<Integer> call(final Long coverage_start) {
+        if (coverage_start == Long.MAX_VALUE) {
+          return new RawCB(start, start).call(0);
+        }
+        // Only read the rows of whole hours covered.
+        final long from = Math.max(start - (start % Const.MAX_TIMESPAN),
+                                   ceilRow(coverage_start));
+        long to = preaggregator.flushed(System.currentTimeMillis() / 1000);
+        to -= to % Const.MAX_TIMESPAN;
+        if (end != -1) {
+          to = Math.min(to, ceilRow(end));
+        }
+        if (from >= to) {
+          return new RawCB(start, start).call(0);
+        }
+        return new ScannerCB(getScanner(preaggregator.table(), from, to),
+                             rows).scan()
+          .addCallbackDeferring(new RawCB(from, to));
+      }
+    }
+
+    return preaggregator.coverageStart(metric)
+      .addCallbackDeferring(new CoverageCB());
+  }
+
+  /** @return The base time of the first row starting at or after a time. */
+  private static long ceilRow(final long time) {
+    final long next = time + Const.MAX_TIMESPAN - 1;
+    return next - (next % Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * Merges the spans found by scanners into others.
+   * @param spans The spans to merge into.
+   * @param partitions The spans to merge, in time order.
+   */
+  private static void mergeSpans(final TreeMap<byte[], Span> spans,
+      final List<TreeMap<byte[], Span>> partitions) {
+    for (final TreeMap<byte[], Span> partition : partitions) {
+      for (final Map.Entry<byte[], Span> entry : partition.entrySet()) {
+        final Span span = spans.get(entry.getKey());
+        if (span == null) {
+          spans.put(entry.getKey(), entry.getValue());
+        } else {
+          span.addSpan(entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Scanner callback executed recursively each time we get a set of data
+   * from storage. This is responsible for determining what columns are
+   * returned and issuing requests to load leaf objects.
+   * When the scanner returns a null set of rows, the method initiates the
+   * final callback.
+   */
+  private final class ScannerCB implements Callback<Object,
+    ArrayList<ArrayList<KeyValue>>> {
+
+    private final Scanner scanner;
+    private final TreeMap<byte[], Span> spans;
+    /** Where to keep the rows as they are, or {@code null}. */
+    private final ArrayList<ArrayList<KeyValue>> kept;
+    /** Interval of the rollups scanned, 0 if scanning raw data. */
+    private final int rollup_interval;
+    /**
+     * The raw rows covered by rollups, per series, or {@code null}.  Filled
+     * in when scanning rollups, the rows covered are skipped otherwise.
+     */
+    private final TreeMap<byte[], BitSet> coverage;
+    /** Base time of the first raw row {@link #coverage} numbers from. */
+    private final long first_row;
+    /** Time before which rollups are read, in seconds. */
+    private final long end;
+    private final Deferred<Integer> results = new Deferred<Integer>();
+    /** Set once the scanner is closed and {@link #results} called back. */
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final short metric_width = tsdb.metrics.width();
+    private int nrows = 0;
+    private int hbase_time = 0; // milliseconds.
+    private long starttime = System.nanoTime();
+
+    /**
+     * Constructor to read raw data.
+     * @param scanner The scanner to read the rows from.
+     * @param spans Where to add the rows read.
+     */
+    ScannerCB(final Scanner scanner, final TreeMap<byte[], Span> spans) {
+      this(scanner, spans, 0, null, 0, 0, null);
+    }
+
+    /**
+     * Constructor to keep the rows as they are, e.g. pre-aggregates.
+     * @param scanner The scanner to read the rows from.
+     * @param kept Where to add the rows read.
+     */
+    ScannerCB(final Scanner scanner,
+              final ArrayList<ArrayList<KeyValue>> kept) {
+      this(scanner, new TreeMap<byte[], Span>(), 0, null, 0, 0, kept);
+    }
+
+    /**
+     * Constructor.
+     * @param scanner The scanner to read the rows from.
+     * @param spans Where to add the rows read.
+     * @param rollup_interval The interval of the rollups the scanner reads,
+     * or 0 if it reads raw data.
+     * @param coverage The raw rows covered by rollups, per series, filled in
+     * if the scanner reads rollups and used to skip raw rows otherwise.  May
+     * be {@code null} when reading raw data.
+     * @param first_row The base time of the first raw row of the coverage,
+     * in seconds.
+     * @param end The time before which rollups are read, in seconds.
+     * @param kept Where to keep the rows as they are instead of adding them
+     * to {@code spans}, or {@code null}.
+     */
+    ScannerCB(final Scanner scanner, final TreeMap<byte[], Span> spans,
+              final int rollup_interval,
+              final TreeMap<byte[], BitSet> coverage, final long first_row,
+              final long end, final ArrayList<ArrayList<KeyValue>> kept) {
+      this.scanner = scanner;
+      this.spans = spans;
+      this.kept = kept;
+      this.rollup_interval = rollup_interval;
+      this.coverage = coverage;
+      this.first_row = first_row;
+      this.end = end;
+    }
+
+    /**
+     * Starts the scanner and is called recursively to fetch the next set of
+     * rows from the scanner.
+     * @return The number of rows read once the scanner is exhausted.
+     */
+    public Deferred<Integer> scan() {
+      running.add(this);
+      if (limits != null) {
+        try {
+          limits.check();  // The query may have timed out already.
+        } catch (QueryLimitException e) {
+          finish(e);
+          return results;
+        }
+      }
+      starttime = System.nanoTime();
+      scanner.nextRows().addCallback(this);
+      return results;
+    }
+
+    /**
+     * Closes the scanner and fails its results, e.g. when the query ran out
+     * of time.  Does nothing if the scanner is already done.
+     * @param e The exception to fail the results with.
+     */
+    void abort(final Exception e) {
+      finish(e);
+    }
+
+    /** Closes the scanner and calls back its results, only once. */
+    private void finish(final Object result) {
+      if (!finished.compareAndSet(false, true)) {
+        return;
+      }
+      running.remove(this);
+      scanner.close();
+      results.callback(result);
+    }
+
+    /**
+     * Loops through each row of the scanner results and parses out data
+     * points and optional meta data
+     * @return null
+     */
+    @Override
+    public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+      throws Exception {
+      if (finished.get()) {
+        return null;  // Aborted while waiting for the rows.
+      }
+      hbase_time += (System.nanoTime() - starttime) / 1000000;
+      try {
+        if (rows == null) {
+          synchronized (scanlatency) {
+            scanlatency.add(hbase_time);
+          }
+          LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
+              spans.size() + " spans in " + hbase_time + "ms");
+          finish(nrows);
+          return null;
+        }
+
+        for (final ArrayList<KeyValue> row : rows) {
+          final byte[] key = row.get(0).key();
+          if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
+            throw new IllegalDataException(
+                "HBase returned a row that doesn't match"
+                + " our scanner (" + scanner + ")! " + row + " does not start"
+                + " with " + Arrays.toString(metric));
+          }
+          if (kept != null) {
+            kept.add(row);
+            nrows++;
+            account(key, false, row.size());
+            continue;
+          } else if (rollup_interval > 0) {
+            // Without a key regexp, the scan returns the marks too.
+            if (!tsdb.rollups.isMarkRow(key)) {
+              addRollups(key, row);
+            }
+            continue;
+          } else if (isCovered(key)) {
+            continue;
+          }
+          Span datapoints = spans.get(key);
+          final boolean new_span = datapoints == null;
+          if (new_span) {
+            datapoints = new Span(tsdb);
+            spans.put(key, datapoints);
+          }
+          final int size = datapoints.size();
+          final KeyValue compacted = 
+            tsdb.compact(row, datapoints.getAnnotations());
+          if (compacted != null) { // Can be null if we ignored all KVs.
+            datapoints.addRow(compacted);
+            nrows++;
+          }
+          account(key, new_span, datapoints.size() - size);
+        }
+        if (limits != null) {
+          limits.check();  // Don't wait for the next row if out of time.
+        }
+
+        starttime = System.nanoTime();
+        return scanner.nextRows().addCallback(this);
+      } catch (Exception e) {
+        finish(e);
+        return null;
+      }
+    }
+
+    /** Adds the rollups of a row to its span, if it has any we need. */
+    private void addRollups(final byte[] key,
+                            final ArrayList<KeyValue> row) {
+      BitSet covered = coverage.get(key);
+      if (covered == null) {
+        covered = new BitSet();
+        coverage.put(key, covered);
+      }
+      final Span existing = spans.get(key);
+      final Span datapoints = existing != null ? existing : new Span(tsdb);
+      final int size = datapoints.size();
+      if (tsdb.rollups.addTo(row, rollup_interval, downsampler, first_row,
+                             end, covered, datapoints)) {
+        if (existing == null) {
+          spans.put(key, datapoints);
+        }
+        nrows++;
+      }
+      account(key, existing == null && datapoints.size() > 0,
+              datapoints.size() - size);
+    }
+
+    /** @return Whether the rollups read cover a raw row. */
+    private boolean isCovered(final byte[] key) {
+      if (coverage == null) {
+        return false;
+      }
+      final BitSet covered = coverage.get(key);
+      return covered != null && covered.get(Rollups.rowIndex(
+          Bytes.getUnsignedInt(key, metric_width), first_row));
+    }
+
+    /**
+     * Counts a row scanned towards the limits of the query, if it has any.
+     * @param key The row key.
+     * @param new_span Whether the row started a new span.
+     * @param new_data_points The number of data points the row added.
+     * @throws QueryLimitException if a limit is reached.
+     */
+    private void account(final byte[] key, final boolean new_span,
+                         final int new_data_points) {
+      if (limits == null) {
+        return;
+      }
+      final long bytes =
+        new_data_points * (long) QueryLimits.BYTES_PER_DATA_POINT
+        + (new_span ? QueryLimits.BYTES_PER_SPAN + key.length : 0);
+      limits.addRow(new_data_points, bytes);
+    }
   }
 
   /**
@@ -458,59 +1152,43 @@ final class TsdbQuery implements Query {
         return new SpanGroup[] { group };
       }
   
-      // Maps group value IDs to the SpanGroup for those values. Say we've
-      // been asked to group by two things: foo=* bar=* Then the keys in this
-      // map will contain all the value IDs combinations we've seen. If the
+      // Assigns group value IDs to the SpanGroup for those values. Say we've
+      // been asked to group by two things: foo=* bar=* Then the keys of the
+      // index will be all the value IDs combinations we've seen. If the
       // name IDs for `foo' and `bar' are respectively [0, 0, 7] and [0, 0, 2]
       // then we'll have group_bys=[[0, 0, 2], [0, 0, 7]] (notice it's sorted
       // by ID, so bar is first) and say we find foo=LOL bar=OMG as well as
       // foo=LOL bar=WTF and that the IDs of the tag values are:
       // LOL=[0, 0, 1] OMG=[0, 0, 4] WTF=[0, 0, 3]
-      // then the map will have two keys:
+      // then the index will have two keys:
       // - one for the LOL-OMG combination: [0, 0, 1, 0, 0, 4] and,
       // - one for the LOL-WTF combination: [0, 0, 1, 0, 0, 3].
-      final ByteMap<SpanGroup> groups = new ByteMap<SpanGroup>();
-      final short value_width = tsdb.tag_values.width();
-      final byte[] group = new byte[group_bys.size() * value_width];
+      final GroupByIndex index = new GroupByIndex(tsdb, group_bys);
+      final ArrayList<SpanGroup> groups = new ArrayList<SpanGroup>();
       for (final Map.Entry<byte[], Span> entry : spans.entrySet()) {
         final byte[] row = entry.getKey();
-        byte[] value_id = null;
-        int i = 0;
-        // TODO(tsuna): The following loop has a quadratic behavior. We can
-        // make it much better since both the row key and group_bys are sorted.
-        for (final byte[] tag_id : group_bys) {
-          value_id = Tags.getValueId(tsdb, row, tag_id);
-          if (value_id == null) {
-            break;
-          }
-          System.arraycopy(value_id, 0, group, i, value_width);
-          i += value_width;
-        }
-        if (value_id == null) {
+        final int group = index.add(row);
+        if (group < 0) {
           LOG.error("WTF? Dropping span for row " + Arrays.toString(row)
                    + " as it had no matching tag from the requested groups,"
                    + " which is unexpected. Query=" + this);
           continue;
         }
-        //LOG.info("Span belongs to group " + Arrays.toString(group) + ": " + Arrays.toString(row));
-        SpanGroup thegroup = groups.get(group);
-        if (thegroup == null) {
-          thegroup = new SpanGroup(tsdb, getScanStartTimeSeconds(),
+        if (group == groups.size()) {
+          groups.add(new SpanGroup(tsdb, getScanStartTimeSeconds(),
                                    getScanEndTimeSeconds(),
                                    null, rate, rate_options, aggregator,
-                                   sample_interval_ms, downsampler);
-          // Copy the array because we're going to keep `group' and overwrite
-          // its contents. So we want the collection to have an immutable copy.
-          final byte[] group_copy = new byte[group.length];
-          System.arraycopy(group, 0, group_copy, 0, group.length);
-          groups.put(group_copy, thegroup);
+                                   sample_interval_ms, downsampler));
         }
-        thegroup.add(entry.getValue());
+        groups.get(group).add(entry.getValue());
+      }
+      // Return the groups sorted by value IDs, like we always did.
+      final Integer[] order = index.sortedGroups();
+      final SpanGroup[] results = new SpanGroup[order.length];
+      for (int i = 0; i < order.length; i++) {
+        results[i] = groups.get(order[i]);
       }
-      //for (final Map.Entry<byte[], SpanGroup> entry : groups) {
-      // LOG.info("group for " + Arrays.toString(entry.getKey()) + ": " + entry.getValue());
-      //}
-      return groups.values().toArray(new SpanGroup[groups.size()]);
+      return results;
     }
   }
 
@@ -523,6 +1201,56 @@ final class TsdbQuery implements Query {
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner() throws HBaseException {
+    return getScanner(tsdb.table, getScanStartTimeSeconds(), end_time == UNSET
+                      ? -1  // Will scan until the end (0xFFF...).
+                      : getScanEndTimeSeconds());
+  }
+
+  /**
+   * Returns the scanners to use for fetching data points, each scanning a
+   * contiguous part of the time range of this query.  The time range is
+   * split on row boundaries, in as many parts as the scan parallelism of this
+   * query, or as {@code tsd.query.scan_parallelism} if it wasn't set.
+   * @param start The timestamp at which to start scanning, in seconds.
+   * @param end The timestamp at which to stop scanning, in seconds, or -1 to
+   * scan until the last row of the metric.
+   * @return At least one scanner, in time order.
+   */
+  private Scanner[] getScanners(final long start, final long end)
+    throws HBaseException {
+    int parallelism = scan_parallelism != UNSET ? scan_parallelism
+      : tsdb.config.getInt("tsd.query.scan_parallelism");
+    if (parallelism <= 1) {
+      return new Scanner[] { getScanner(tsdb.table, start, end) };
+    }
+    // Don't split the range in more parts than it has rows.
+    final long first_row = start - (start % Const.MAX_TIMESPAN);
+    final long last_row = end == -1
+      ? System.currentTimeMillis() / 1000 : end;
+    final long nrows = (last_row - first_row) / Const.MAX_TIMESPAN + 1;
+    parallelism = (int) Math.min(parallelism, nrows);
+    final Scanner[] scanners = new Scanner[parallelism];
+    long part_start = start;
+    for (int i = 0; i < parallelism; i++) {
+      final long part_end = i == parallelism - 1 ? end
+        : first_row + (nrows * (i + 1) / parallelism) * Const.MAX_TIMESPAN;
+      scanners[i] = getScanner(tsdb.table, part_start, part_end);
+      part_start = part_end;
+    }
+    return scanners;
+  }
+
+  /**
+   * Returns a scanner for part of the time range of this query.
+   * @param table The table to scan, the data table or the rollup table.
+   * @param start The timestamp at which to start scanning, in seconds.
+   * @param end The timestamp at which to stop scanning, in seconds, or -1 to
+   * scan until the last row of the metric.
+   * @return A scanner to use for fetching data points
+   * @see #getScanner()
+   */
+  private Scanner getScanner(final byte[] table, final long start,
+                             final long end) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
     final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
@@ -532,11 +1260,8 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    Bytes.setInt(start_row, (int) getScanStartTimeSeconds(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTimeSeconds()),
-                 metric_width);
+    Bytes.setInt(start_row, (int) start, metric_width);
+    Bytes.setInt(end_row, (int) end, metric_width);
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
     if (tsuids != null && !tsuids.isEmpty()) {
@@ -550,7 +1275,7 @@ final class TsdbQuery implements Query {
       System.arraycopy(metric, 0, end_row, 0, metric_width);
     }
 
-    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+    final Scanner scanner = tsdb.client.newScanner(table);
     scanner.setStartKey(start_row);
     scanner.setStopKey(end_row);
     if (tsuids != null && !tsuids.isEmpty()) {
@@ -562,6 +1287,30 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
+  /**
+   * Returns a scanner for the rows of the rollup table marking hours
+   * complete for the metric, which have no tags.
+   * @param start The timestamp at which to start scanning, in seconds.
+   * @param end The timestamp at which to stop scanning, in seconds.
+   * @return A scanner to use for fetching the marks.
+   */
+  private Scanner getMarkScanner(final long start, final long end)
+    throws HBaseException {
+    final short metric_width = tsdb.metrics.width();
+    final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    System.arraycopy(metric, 0, start_row, 0, metric_width);
+    System.arraycopy(metric, 0, end_row, 0, metric_width);
+    Bytes.setInt(start_row, (int) start, metric_width);
+    Bytes.setInt(end_row, (int) end, metric_width);
+    final Scanner scanner = tsdb.client.newScanner(tsdb.rollups.table());
+    scanner.setStartKey(start_row);
+    scanner.setStopKey(end_row);
+    scanner.setKeyRegexp("(?s)^.{" + start_row.length + "}$", CHARSET);
+    scanner.setFamily(TSDB.FAMILY);
+    return scanner;
+  }
+
   /** Returns the UNIX timestamp from which we must start scanning.  */
   private long getScanStartTimeSeconds() {
     // The reason we look before by `MAX_TIMESPAN * 2' seconds is because of
@@ -0,0 +1,257 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.List;
+
+/**
+ * A compact set of the row keys that share the same base time.
+ * <p>
+ * Only the TSUID of each row (the row key without its timestamp) is stored,
+ * packed as a 2-byte length followed by the TSUID in a single byte array.
+ * The set itself is an open-addressing hash table of offsets into that
+ * array.  This takes about 6 bytes of overhead per row, instead of the
+ * hundred or so bytes of a row key array wrapped in a hash map entry.
+ * <p>
+ * Rows are removed in batches by {@link #drain}.  The space of the drained
+ * rows is reclaimed when the table is rebuilt, or when the set is empty.
+ * <p>
+ * This class is not thread-safe.
+ * @since 2.0
+ */
+final class TsuidSet {
+
+  /** Initial number of slots, a power of 2. */
+  private static final int INITIAL_SLOTS = 16;
+
+  /** Slot of a drained row. */
+  private static final int DELETED = -1;
+
+  /** Where the timestamp starts in the row keys. */
+  private final int ts_offset;
+
+  /** The packed TSUIDs. */
+  private byte[] data;
+  /** How many bytes of {@code data} are used. */
+  private int used;
+  /** Offsets in {@code data} plus 1, 0 for empty slots. */
+  private int[] slots;
+  /** Number of rows in the set. */
+  private int size;
+  /** Number of slots of drained rows. */
+  private int deleted;
+  /** Where to resume draining from. */
+  private int cursor;
+
+  /**
+   * Constructor.
+   * @param ts_offset Where the timestamp starts in the row keys.
+   */
+  TsuidSet(final int ts_offset) {
+    this.ts_offset = ts_offset;
+    reset();
+  }
+
+  /** @return The number of rows in the set. */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** @return An estimate of the memory used by this set, in bytes. */
+  long bytes() {
+    return data.length + slots.length * 4L;
+  }
+
+  /**
+   * Adds a row to the set.
+   * @param row The row key, will not be modified.
+   * @return {@code true} if the row wasn't already in the set.
+   * @throws IllegalArgumentException if the TSUID is longer than 65535 bytes.
+   */
+  boolean add(final byte[] row) {
+    final int length = row.length - Const.TIMESTAMP_BYTES;
+    if (length > 0xFFFF) {
+      throw new IllegalArgumentException("Row key too long: " + row.length);
+    }
+    int i = hash(row) & (slots.length - 1);
+    int free = -1;
+    while (slots[i] != 0) {
+      if (slots[i] == DELETED) {
+        if (free < 0) {
+          free = i;
+        }
+      } else if (matches(slots[i] - 1, row)) {
+        return false;
+      }
+      i = (i + 1) & (slots.length - 1);
+    }
+    if (free >= 0) {
+      i = free;
+      deleted--;
+    }
+    if (used + 2 + length > data.length) {
+      final byte[] newdata = new byte[Math.max(used + 2 + length,
+                                               data.length * 2)];
+      System.arraycopy(data, 0, newdata, 0, used);
+      data = newdata;
+    }
+    slots[i] = used + 1;
+    data[used++] = (byte) (length >>> 8);
+    data[used++] = (byte) length;
+    System.arraycopy(row, 0, data, used, ts_offset);
+    System.arraycopy(row, ts_offset + Const.TIMESTAMP_BYTES,
+                     data, used + ts_offset, length - ts_offset);
+    used += length;
+    size++;
+    if ((size + deleted) * 4 > slots.length * 3) {
+      rebuild(size * 2 > slots.length ? slots.length * 2 : slots.length);
+    }
+    return true;
+  }
+
+  /**
+   * Tells whether or not a row is in the set.
+   * @param row The row key.
+   */
+  boolean contains(final byte[] row) {
+    int i = hash(row) & (slots.length - 1);
+    while (slots[i] != 0) {
+      if (slots[i] != DELETED && matches(slots[i] - 1, row)) {
+        return true;
+      }
+      i = (i + 1) & (slots.length - 1);
+    }
+    return false;
+  }
+
+  /**
+   * Removes rows from the set.
+   * @param max The maximum number of rows to remove.
+   * @param timestamp The timestamp to put back in the row keys.
+   * @param rows Where to add the row keys removed.
+   * @return The number of rows removed.
+   */
+  int drain(final int max, final byte[] timestamp, final List<byte[]> rows) {
+    int n = 0;
+    while (n < max && size > 0) {
+      final int offset = slots[cursor] - 1;
+      if (offset >= 0) {
+        final int length = ((data[offset] & 0xFF) << 8)
+          | (data[offset + 1] & 0xFF);
+        final byte[] row = new byte[length + Const.TIMESTAMP_BYTES];
+        System.arraycopy(data, offset + 2, row, 0, ts_offset);
+        System.arraycopy(timestamp, 0, row, ts_offset, Const.TIMESTAMP_BYTES);
+        System.arraycopy(data, offset + 2 + ts_offset,
+                         row, ts_offset + Const.TIMESTAMP_BYTES,
+                         length - ts_offset);
+        rows.add(row);
+        slots[cursor] = DELETED;
+        deleted++;
+        size--;
+        n++;
+      }
+      cursor = (cursor + 1) & (slots.length - 1);
+    }
+    if (size == 0) {
+      reset();
+    }
+    return n;
+  }
+
+  /** Removes all the rows, without returning them, and frees the memory. */
+  void clear() {
+    reset();
+  }
+
+  /** Empties the set and frees its memory. */
+  private void reset() {
+    data = new byte[INITIAL_SLOTS * 16];
+    used = 0;
+    slots = new int[INITIAL_SLOTS];
+    size = 0;
+    deleted = 0;
+    cursor = 0;
+  }
+
+  /** Rehashes the rows left, dropping the space of the drained ones. */
+  private void rebuild(final int nslots) {
+    final byte[] olddata = data;
+    final int[] oldslots = slots;
+    data = new byte[Math.max(INITIAL_SLOTS * 16, used)];
+    used = 0;
+    slots = new int[nslots];
+    deleted = 0;
+    cursor = 0;
+    for (final int slot : oldslots) {
+      if (slot <= 0) {
+        continue;
+      }
+      final int offset = slot - 1;
+      final int length = 2 + (((olddata[offset] & 0xFF) << 8)
+                              | (olddata[offset + 1] & 0xFF));
+      int i = hash(olddata, offset + 2, length - 2) & (nslots - 1);
+      while (slots[i] != 0) {
+        i = (i + 1) & (nslots - 1);
+      }
+      slots[i] = used + 1;
+      System.arraycopy(olddata, offset, data, used, length);
+      used += length;
+    }
+  }
+
+  /** @return Whether the TSUID at the given offset is the row's. */
+  private boolean matches(final int offset, final byte[] row) {
+    final int length = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    if (length != row.length - Const.TIMESTAMP_BYTES) {
+      return false;
+    }
+    final int start = offset + 2;
+    for (int i = 0; i < ts_offset; i++) {
+      if (data[start + i] != row[i]) {
+        return false;
+      }
+    }
+    for (int i = ts_offset; i < length; i++) {
+      if (data[start + i] != row[i + Const.TIMESTAMP_BYTES]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Hashes the TSUID of a row key. */
+  private int hash(final byte[] row) {
+    int h = 1;
+    for (int i = 0; i < ts_offset; i++) {
+      h = 31 * h + row[i];
+    }
+    for (int i = ts_offset + Const.TIMESTAMP_BYTES; i < row.length; i++) {
+      h = 31 * h + row[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /** Hashes a packed TSUID, consistently with {@link #hash(byte[])}. */
+  private static int hash(final byte[] data, final int offset,
+                          final int length) {
+    int h = 1;
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + data[i];
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,288 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Groups the data points written to the same row into multi-column puts.
+ * <p>
+ * Data points for the same series and hour share a row key, so instead of
+ * sending one {@link PutRequest} per data point, the points written within
+ * a short window ({@code tsd.storage.coalesce_window} milliseconds) are
+ * grouped by row key and sent as a single put per row.  This cuts the number
+ * of RPCs, the per-RPC overhead and the number of WAL entries on the region
+ * servers, at the cost of delaying writes by up to the window.
+ * <p>
+ * If the same cell is written more than once within a window, the last
+ * value wins, as it would with separate puts.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.0
+ */
+final class WriteCoalescer implements TimerTask {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(WriteCoalescer.class);
+
+  /** A row with this many cells pending is sent right away. */
+  static final int MAX_CELLS = 1024;
+
+  private final TSDB tsdb;
+  private final Timer timer;
+  /** How long to wait for more points for a row, in milliseconds. */
+  private final int window;
+
+  /** Rows with points waiting to be sent. */
+  private final ConcurrentHashMap<RowKey.Key, Batch> pending =
+    new ConcurrentHashMap<RowKey.Key, Batch>();
+
+  private volatile boolean stopped;
+
+  private final AtomicLong points = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  /** How long rows waited before being sent, only updated by the flushes. */
+  private final Histogram latency = new Histogram(16000, (short) 2, 100);
+
+  /**
+   * Constructor.  The flushes are scheduled right away.
+   * @param tsdb The TSDB to send puts with.
+   * @param timer The timer used to schedule the flushes.
+   * @param window How long to wait for more points for a row, in ms.
+   * @throws IllegalArgumentException if the window is less than 1.
+   */
+  WriteCoalescer(final TSDB tsdb, final Timer timer, final int window) {
+    if (window < 1) {
+      throw new IllegalArgumentException("Invalid coalescing window: "
+          + window);
+    }
+    this.tsdb = tsdb;
+    this.timer = timer;
+    this.window = window;
+    timer.newTimeout(this, window, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queues a data point to be written along with the other points of the
+   * same row.
+   * @param row The row key, will not be modified.
+   * @param qualifier The qualifier of the data point.
+   * @param value The value of the data point.
+   * @return A deferred called back once the put of the row is done.
+   */
+  Deferred<Object> add(final byte[] row, final byte[] qualifier,
+                       final byte[] value) {
+    if (stopped) {
+      return tsdb.put(new PutRequest(tsdb.table, row, TSDB.FAMILY, qualifier,
+                                     value));
+    }
+    points.incrementAndGet();
+    final Deferred<Object> result = new Deferred<Object>();
+    final RowKey.Key key = new RowKey.Key(row);
+    while (true) {
+      Batch batch = pending.get(key);
+      if (batch == null) {
+        batch = new Batch(row);
+        final Batch existing = pending.putIfAbsent(key, batch);
+        if (existing != null) {
+          batch = existing;
+        }
+      }
+      synchronized (batch) {
+        if (batch.closed) {
+          continue;  // Flushed under our feet, start a new batch.
+        }
+        batch.add(qualifier, value, result);
+        if (batch.results.size() < MAX_CELLS) {
+          return result;
+        }
+        batch.closed = true;
+      }
+      pending.remove(key, batch);
+      send(batch);
+      return result;
+    }
+  }
+
+  /**
+   * Sends all the pending rows.
+   * @return A deferred called back once all the puts are done.  Failed puts
+   * are logged and counted, the data points they carried get the error, so
+   * this deferred never fails.
+   */
+  Deferred<ArrayList<Object>> flush() {
+    final long now = System.currentTimeMillis();
+    final ArrayList<Deferred<Object>> sent = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<RowKey.Key, Batch> entry : pending.entrySet()) {
+      final Batch batch = entry.getValue();
+      if (!pending.remove(entry.getKey(), batch)) {
+        continue;
+      }
+      synchronized (batch) {
+        batch.closed = true;
+      }
+      synchronized (latency) {
+        latency.add((int) (now - batch.created));
+      }
+      sent.add(send(batch));
+    }
+    return Deferred.group(sent);
+  }
+
+  /**
+   * Stops the periodic flushes and sends all the pending rows.  Points added
+   * afterwards are written right away.
+   * @return A deferred called back once all the puts are done.
+   */
+  Deferred<ArrayList<Object>> shutdown() {
+    stopped = true;
+    return flush();
+  }
+
+  /** Periodic flush. */
+  public void run(final Timeout timeout) {
+    try {
+      flush();
+    } catch (Exception e) {
+      LOG.error("Failed to flush the coalesced writes", e);
+    } finally {
+      if (!stopped) {
+        timer.newTimeout(this, window, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Sends a closed batch as a single put.
+   * @return A deferred called back once the put is done, the deferreds of
+   * the data points of the batch are called back with the same result.
+   */
+  private Deferred<Object> send(final Batch batch) {
+    final int size = batch.cells.size();
+    final byte[][] qualifiers = new byte[size][];
+    final byte[][] values = new byte[size][];
+    int i = 0;
+    for (final Map.Entry<byte[], byte[]> cell : batch.cells.entrySet()) {
+      qualifiers[i] = cell.getKey();
+      values[i++] = cell.getValue();
+    }
+    puts.incrementAndGet();
+    return tsdb.put(new PutRequest(tsdb.table, batch.row, TSDB.FAMILY,
+                                   qualifiers, values))
+      .addBoth(new NotifyCB(batch.results))
+      .addErrback(new ErrorCB(batch.row, size));
+  }
+
+  /** Passes the result of a coalesced put on to each of its data points. */
+  private static final class NotifyCB implements Callback<Object, Object> {
+    private final ArrayList<Deferred<Object>> results;
+
+    NotifyCB(final ArrayList<Deferred<Object>> results) {
+      this.results = results;
+    }
+
+    public Object call(final Object arg) {
+      for (final Deferred<Object> result : results) {
+        result.callback(arg);
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "notify the " + results.size() + " data points of a put";
+    }
+  }
+
+  /** Logs and counts the failed puts, once the points were notified. */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final byte[] row;
+    private final int cells;
+
+    ErrorCB(final byte[] row, final int cells) {
+      this.row = row;
+      this.cells = cells;
+    }
+
+    public Object call(final Exception e) {
+      errors.incrementAndGet();
+      LOG.error("Failed to write " + cells + " coalesced cells to row "
+                + Arrays.toString(row), e);
+      return null;
+    }
+
+    public String toString() {
+      return "handle coalesced put error";
+    }
+  }
+
+  /**
+   * Collects the stats of the coalescer.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final long num_points = points.get();
+    final long num_puts = puts.get();
+    collector.record("coalesce.points", num_points);
+    collector.record("coalesce.puts", num_puts);
+    collector.record("coalesce.errors", errors.get());
+    collector.record("coalesce.points_per_put",
+                     num_puts == 0 ? 0 : num_points / num_puts);
+    synchronized (latency) {
+      collector.record("coalesce.latency", latency, null);
+    }
+  }
+
+  /** The data points pending for a row.  Guarded by its own lock. */
+  private static final class Batch {
+    final byte[] row;
+    final long created = System.currentTimeMillis();
+    /** Values keyed on qualifier, sorted so the cells go out in order. */
+    final TreeMap<byte[], byte[]> cells =
+      new TreeMap<byte[], byte[]>(Bytes.MEMCMP);
+    final ArrayList<Deferred<Object>> results =
+      new ArrayList<Deferred<Object>>();
+    /** Once set, the batch is being sent and can't take more points. */
+    boolean closed;
+
+    Batch(final byte[] row) {
+      this.row = row;
+    }
+
+    void add(final byte[] qualifier, final byte[] value,
+             final Deferred<Object> result) {
+      cells.put(qualifier, value);
+      results.add(result);
+    }
+  }
+}
@@ -0,0 +1,563 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.NonRecoverableException;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
+import org.hbase.async.RecoverableException;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Durable spool for the writes HBase couldn't take.
+ * <p>
+ * When HBase pushes back (see {@link #isSpoolable}) the rejected
+ * {@link PutRequest}s are appended to a log of memory-mapped segment files
+ * under a local directory instead of being dropped or buffered on the heap.
+ * A background thread replays the spooled writes at a controlled rate, and
+ * backs off whenever HBase keeps failing them.  Rows written by a replay are
+ * scheduled for compaction again, as their compaction may have run while the
+ * write was spooled.  A segment is unmapped and deleted once all of its
+ * writes have been replayed.  Writes left in the spool when the
+ * TSD stops are replayed on the next start, puts being idempotent a write
+ * replayed twice after a crash is harmless.
+ * <p>
+ * Each record of a segment is a {@code u32 length} of what follows, the
+ * {@code u16 length} and bytes of the row key and then a {@code u16} count
+ * of cells, each a {@code u16 length} and bytes of the qualifier and a
+ * {@code u32 length} and bytes of the value.  The length is written last,
+ * so a zero length marks the end of the segment.  All records are written
+ * to the data table and {@link TSDB#FAMILY}.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.0
+ */
+final class WriteSpool {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  /** Extension of the segment files. */
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  /** How long to wait before replaying again after a failure, in ms. */
+  static final int BACKOFF_MS = 1000;
+
+  /** How long the replay thread sleeps when there's nothing to do, in ms. */
+  private static final int IDLE_MS = 100;
+
+  private final TSDB tsdb;
+  private final HBaseClient client;
+  private final byte[] table;
+  private final File directory;
+  private final int segment_size;
+  /** Maximum number of segments on disk, including the current one. */
+  private final int max_segments;
+  private final RateLimiter replay_limiter;
+  /** Maximum number of replayed writes waiting on HBase. */
+  private final int max_replays_inflight;
+
+  /** Segments in the order they were written, the last one is current. */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  /** Sequence number of the next segment. */
+  private long next_segment;
+
+  /** Number of spooled writes that haven't been replayed yet. */
+  private final AtomicLong depth = new AtomicLong();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong too_large = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  /** Number of replays sent to HBase, the rate is what the limiter caps. */
+  private final AtomicLong replays = new AtomicLong();
+  private final AtomicLong replay_errors = new AtomicLong();
+  private final AtomicInteger replays_inflight = new AtomicInteger();
+  /** No replay before that time, in ms. */
+  private volatile long backoff_until;
+
+  private volatile Thrd thread;
+
+  /**
+   * Constructor, recovers the segments left in the directory.
+   * @param tsdb The TSDB to schedule the rows replayed for compaction with.
+   * @param client The HBase client to replay writes with.
+   * @param table The data table.
+   * @param directory Where to store the segments, created if needed.
+   * @param segment_size The size of a segment file in bytes.
+   * @param max_size The maximum size of the spool on disk in bytes.
+   * @param replay_rate The maximum number of writes to replay per second.
+   * @throws IllegalArgumentException if a parameter is invalid.
+   * @throws IllegalStateException if the directory couldn't be used.
+   */
+  WriteSpool(final TSDB tsdb, final HBaseClient client, final byte[] table,
+             final File directory, final int segment_size,
+             final long max_size, final int replay_rate) {
+    if (segment_size < 1024) {
+      throw new IllegalArgumentException("Invalid segment size: "
+          + segment_size);
+    }
+    if (max_size < segment_size) {
+      throw new IllegalArgumentException("Maximum size " + max_size
+          + " is smaller than the segment size " + segment_size);
+    }
+    if (replay_rate < 1) {
+      throw new IllegalArgumentException("Invalid replay rate: "
+          + replay_rate);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalStateException("Unable to create the spool directory "
+          + directory);
+    }
+    this.tsdb = tsdb;
+    this.client = client;
+    this.table = table;
+    this.directory = directory;
+    this.segment_size = segment_size;
+    this.max_segments = (int) Math.min(Integer.MAX_VALUE,
+        max_size / segment_size);
+    this.replay_limiter = RateLimiter.create(replay_rate);
+    this.max_replays_inflight = replay_rate;
+    try {
+      recover();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to recover the spool from "
+          + directory, e);
+    }
+  }
+
+  /** Starts the replay thread. */
+  void start() {
+    if (thread == null) {
+      thread = new Thrd();
+      thread.start();
+    }
+  }
+
+  /**
+   * Stops the replay thread and syncs the segments to disk.  Whatever
+   * wasn't replayed yet will be on the next start.
+   */
+  void shutdown() {
+    final Thrd t = thread;
+    thread = null;
+    if (t != null) {
+      t.interrupt();
+      try {
+        t.join(BACKOFF_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      for (final Segment segment : segments) {
+        segment.buf.force();
+      }
+    }
+    LOG.info("Write spool stopped with " + depth.get()
+        + " writes left to replay");
+  }
+
+  /**
+   * Tells whether a write that failed with the given exception should be
+   * spooled.  We spool when HBase asks us to throttle, when a region is
+   * unavailable and when the client gave up retrying (which it signals with
+   * a plain {@link NonRecoverableException}).  Other errors, such as a
+   * missing table, would just fail again on replay.
+   */
+  static boolean isSpoolable(final Exception e) {
+    return e instanceof PleaseThrottleException
+      || e instanceof RecoverableException
+      || (e != null && e.getClass() == NonRecoverableException.class);
+  }
+
+  /**
+   * Appends a write to the spool.
+   * @param put The write to spool, it must be to the data table.
+   * @return {@code true} if the write was spooled, {@code false} if the
+   * spool is full or the write doesn't fit in a segment.
+   */
+  boolean append(final PutRequest put) {
+    final byte[] key = put.key();
+    final byte[][] qualifiers = put.qualifiers();
+    final byte[][] values = put.values();
+    int length = 2 + key.length + 2;
+    for (int i = 0; i < qualifiers.length; i++) {
+      length += 2 + qualifiers[i].length + 4 + values[i].length;
+    }
+    if (4 + length > segment_size) {
+      LOG.error("Write of " + length + " bytes doesn't fit in a spool segment"
+                + " of " + segment_size + " bytes: " + put);
+      too_large.incrementAndGet();
+      return false;
+    }
+    synchronized (this) {
+      Segment segment = segments.peekLast();
+      if (segment == null || segment.write_pos + 4 + length > segment_size) {
+        if (segments.size() >= max_segments) {
+          rejected.incrementAndGet();
+          return false;
+        }
+        if (segment != null) {
+          segment.buf.force();
+        }
+        try {
+          segment = newSegment();
+        } catch (IOException e) {
+          LOG.error("Unable to create a new spool segment in " + directory, e);
+          rejected.incrementAndGet();
+          return false;
+        }
+      }
+      final MappedByteBuffer buf = segment.buf;
+      final int start = segment.write_pos;
+      buf.position(start + 4);
+      buf.putShort((short) key.length);
+      buf.put(key);
+      buf.putShort((short) qualifiers.length);
+      for (int i = 0; i < qualifiers.length; i++) {
+        buf.putShort((short) qualifiers[i].length);
+        buf.put(qualifiers[i]);
+        buf.putInt(values[i].length);
+        buf.put(values[i]);
+      }
+      buf.putInt(start, length);
+      segment.write_pos = start + 4 + length;
+      segment.pending++;
+    }
+    spooled.incrementAndGet();
+    depth.incrementAndGet();
+    return true;
+  }
+
+  /** @return The number of spooled writes left to replay. */
+  long depth() {
+    return depth.get();
+  }
+
+  /**
+   * Replays spooled writes, within the limits of the replay rate and of the
+   * number of replays waiting on HBase.
+   * @param max The maximum number of writes to replay.
+   * @return The number of writes sent to HBase.
+   */
+  int replay(final int max) {
+    int sent = 0;
+    while (sent < max) {
+      if (System.currentTimeMillis() < backoff_until
+          || replays_inflight.get() >= max_replays_inflight) {
+        break;
+      }
+      Segment segment = null;
+      final PutRequest put;
+      synchronized (this) {
+        for (final Segment s : segments) {
+          if (s.read_pos < s.write_pos) {
+            segment = s;
+            break;
+          }
+        }
+        if (segment == null) {
+          break;
+        }
+        put = read(segment);
+      }
+      replay_limiter.acquire();
+      replays_inflight.incrementAndGet();
+      replays.incrementAndGet();
+      client.put(put).addCallbacks(new ReplayCB(segment, put),
+                                   new ReplayErrback(segment, put));
+      sent++;
+    }
+    return sent;
+  }
+
+  /**
+   * Reads the next record of a segment.
+   * Must be called with the lock held.
+   */
+  private PutRequest read(final Segment segment) {
+    final MappedByteBuffer buf = segment.buf;
+    buf.position(segment.read_pos + 4);
+    final byte[] key = new byte[buf.getShort() & 0xFFFF];
+    buf.get(key);
+    final int cells = buf.getShort() & 0xFFFF;
+    final byte[][] qualifiers = new byte[cells][];
+    final byte[][] values = new byte[cells][];
+    for (int i = 0; i < cells; i++) {
+      qualifiers[i] = new byte[buf.getShort() & 0xFFFF];
+      buf.get(qualifiers[i]);
+      values[i] = new byte[buf.getInt()];
+      buf.get(values[i]);
+    }
+    segment.read_pos = buf.position();
+    return new PutRequest(table, key, TSDB.FAMILY, qualifiers, values);
+  }
+
+  /** Called once a replayed write is done, successfully or not. */
+  private void replayDone(final Segment segment) {
+    replays_inflight.decrementAndGet();
+    synchronized (this) {
+      segment.pending--;
+      // Only the oldest segments can be fully replayed, and never the one
+      // we're writing to.
+      Segment first;
+      while ((first = segments.peekFirst()) != null && first.pending == 0
+             && first.read_pos >= first.write_pos
+             && segments.size() > 1) {
+        segments.pollFirst();
+        unmap(first.buf);
+        if (!first.file.delete()) {
+          LOG.warn("Unable to delete the replayed spool segment "
+                   + first.file);
+        }
+      }
+    }
+  }
+
+  final class ReplayCB implements Callback<Object, Object> {
+    private final Segment segment;
+    private final PutRequest put;
+
+    ReplayCB(final Segment segment, final PutRequest put) {
+      this.segment = segment;
+      this.put = put;
+    }
+
+    public Object call(final Object arg) {
+      replayed.incrementAndGet();
+      depth.decrementAndGet();
+      // The row may have been compacted while the write was spooled, or
+      // compacted from memory without the write if it failed.
+      final byte[] key = put.key();
+      tsdb.scheduleForCompaction(key, Bytes.getInt(key, TSDB.metrics_width()));
+      replayDone(segment);
+      return arg;
+    }
+
+    public String toString() {
+      return "replayed a spooled write";
+    }
+  }
+
+  final class ReplayErrback implements Callback<Object, Exception> {
+    private final Segment segment;
+    private final PutRequest put;
+
+    ReplayErrback(final Segment segment, final PutRequest put) {
+      this.segment = segment;
+      this.put = put;
+    }
+
+    public Object call(final Exception e) {
+      replay_errors.incrementAndGet();
+      backoff_until = System.currentTimeMillis() + BACKOFF_MS;
+      // Spool it again before releasing its segment, so it's never lost.
+      if (!append(put)) {
+        LOG.error("Spool full, dropping a replayed write that failed: "
+                  + put, e);
+      } else {
+        LOG.debug("Failed to replay a spooled write, backing off", e);
+      }
+      depth.decrementAndGet();
+      replayDone(segment);
+      return null;
+    }
+
+    public String toString() {
+      return "handle the failure to replay a spooled write";
+    }
+  }
+
+  /**
+   * Collects the stats of the spool.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final int num_segments;
+    synchronized (this) {
+      num_segments = segments.size();
+    }
+    collector.record("spool.depth", depth.get());
+    collector.record("spool.segments", num_segments);
+    collector.record("spool.writes", spooled.get(), "type=spooled");
+    collector.record("spool.writes", rejected.get(), "type=rejected");
+    collector.record("spool.writes", too_large.get(), "type=too_large");
+    collector.record("spool.writes", replayed.get(), "type=replayed");
+    collector.record("spool.writes", replay_errors.get(),
+                     "type=replay_errors");
+    collector.record("spool.replays", replays.get());
+  }
+
+  /**
+   * Maps the segments left in the directory and finds where their records
+   * end.
+   */
+  private void recover() throws IOException {
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    // The file names are zero-padded so they sort in sequence order.
+    Arrays.sort(files);
+    long recovered = 0;
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        next_segment = Math.max(next_segment, 1 + Long.parseLong(
+            name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file in the spool directory: " + file);
+        continue;
+      }
+      final Segment segment = new Segment(file, map(file, file.length()));
+      final MappedByteBuffer buf = segment.buf;
+      int pos = 0;
+      while (pos + 4 <= buf.capacity()) {
+        final int length = buf.getInt(pos);
+        if (length <= 0 || pos + 4 + length > buf.capacity()) {
+          break;
+        }
+        pos += 4 + length;
+        segment.pending++;
+      }
+      segment.write_pos = pos;
+      if (segment.pending == 0) {
+        unmap(buf);
+        if (!file.delete()) {
+          LOG.warn("Unable to delete the empty spool segment " + file);
+        }
+        continue;
+      }
+      segments.add(segment);
+      recovered += segment.pending;
+    }
+    depth.set(recovered);
+    if (recovered > 0) {
+      LOG.info("Recovered " + recovered + " spooled writes in "
+               + segments.size() + " segments from " + directory);
+    }
+    // Never append to a recovered segment, we may not know where it ends
+    // for sure.
+    newSegment();
+  }
+
+  /**
+   * Creates and maps a new segment and makes it the current one.
+   * Must be called with the lock held.
+   */
+  private Segment newSegment() throws IOException {
+    final File file = new File(directory,
+        String.format("%016d", next_segment++) + SEGMENT_SUFFIX);
+    final Segment segment = new Segment(file, map(file, segment_size));
+    segments.add(segment);
+    return segment;
+  }
+
+  /** Maps a file in memory, creating or extending it if needed. */
+  private static MappedByteBuffer map(final File file, final long size)
+    throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      final FileChannel channel = raf.getChannel();
+      // The mapping remains valid once the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Releases the mapping of a segment that's about to be deleted, rather than
+   * waiting for the buffer to be garbage collected, which would keep the
+   * memory and the disk space of the deleted file in use until then.  This
+   * relies on the cleaner of the JDK's direct buffers, if it's not available
+   * the buffer is left to the garbage collector.  The buffer must never be
+   * used again.
+   */
+  private static void unmap(final MappedByteBuffer buf) {
+    try {
+      final Method cleaner_method = buf.getClass().getMethod("cleaner");
+      cleaner_method.setAccessible(true);
+      final Object cleaner = cleaner_method.invoke(buf);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      LOG.debug("Unable to unmap a spool segment", e);
+    }
+  }
+
+  /** A segment file of the spool.  Guarded by the lock of the spool. */
+  private static final class Segment {
+    final File file;
+    final MappedByteBuffer buf;
+    /** Offset of the end of the last record. */
+    int write_pos;
+    /** Offset of the next record to replay. */
+    int read_pos;
+    /** Number of records not replayed successfully yet. */
+    int pending;
+
+    Segment(final File file, final MappedByteBuffer buf) {
+      this.file = file;
+      this.buf = buf;
+    }
+  }
+
+  /** Background thread replaying the spooled writes. */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("WriteSpoolReplay");
+      setDaemon(true);
+    }
+
+    public void run() {
+      while (thread == this) {
+        try {
+          if (replay(max_replays_inflight) == 0) {
+            Thread.sleep(IDLE_MS);
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in the spool replay thread", e);
+          try {
+            Thread.sleep(BACKOFF_MS);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,387 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Tool to compact the rows that a TSD never got to compact, e.g. because it
+ * crashed, compactions were disabled during a backfill or the compaction
+ * queue was dropped.
+ * <p>
+ * The metric IDs are handed out to a pool of threads, each scanning the rows
+ * of one metric in the time range at a time and running them through the
+ * same compaction code as the TSDs.  The rate of compactions can be capped
+ * so that a live cluster isn't overwhelmed, and the progress can be saved to
+ * a checkpoint file so that an interrupted run can be resumed.
+ * @since 2.0
+ */
+final class CompactTool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompactTool.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** How often to save the checkpoint, in milliseconds. */
+  private static final long CHECKPOINT_INTERVAL = 10000;
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: compact [--threads=N] [--rate=OPS]"
+        + " [--checkpoint=FILE] START-DATE [END-DATE]\n"
+        + "Compacts all the rows of all the metrics in the given time range."
+        + "  Rows more recent than an hour are left for the TSDs to compact.\n"
+        + "If rollups are enabled, the rollups of the rows already compacted"
+        + " are written as well.\n"
+        + "If a checkpoint file is given, the metrics already compacted by a"
+        + " previous run with the same time range are skipped.");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addCommon(argp);
+    argp.addOption("--threads", "NUM",
+        "Number of scanners to run in parallel (default: twice the number of"
+        + " CPUs).");
+    argp.addOption("--rate", "OPS",
+        "Maximum number of rows to compact per second (default: no limit).");
+    argp.addOption("--checkpoint", "FILE",
+        "File to save the progress to, and to resume from if it exists.");
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length < 1 || args.length > 2) {
+      usage(argp, "Wrong number of arguments.", 2);
+    }
+
+    final long start_ts = DateTime.parseDateTimeString(args[0], null) / 1000;
+    final long end_ts = args.length > 1
+      ? DateTime.parseDateTimeString(args[1], null) / 1000
+      : System.currentTimeMillis() / 1000;
+    if (start_ts < 0 || end_ts < start_ts) {
+      usage(argp, "Invalid time range.", 2);
+    }
+    final int threads = Integer.parseInt(argp.get("--threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors() * 2)));
+    final double rate = Double.parseDouble(argp.get("--rate", "0"));
+    if (threads < 1 || rate < 0) {
+      usage(argp, "Invalid number of threads or rate.", 2);
+    }
+    final String checkpoint = argp.get("--checkpoint");
+
+    // get a config object
+    Config config = CliOptions.getConfig(argp);
+
+    final TSDB tsdb = new TSDB(config);
+    tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+    argp = null;
+    long errors = 42;
+    try {
+      errors = compact(tsdb, start_ts, end_ts, threads, rate,
+                       checkpoint == null ? null : new File(checkpoint));
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+
+  /**
+   * Compacts all the rows in the given time range.
+   * @param tsdb The TSDB to use for data access.
+   * @param start_ts Start of the time range, in seconds.
+   * @param end_ts End of the time range, in seconds, inclusive.  Rows that
+   * are too recent to be compacted by the TSDs are skipped.
+   * @param threads Number of scanners to run in parallel.
+   * @param rate Maximum number of rows to compact per second, 0 for no limit.
+   * @param checkpoint File to save the progress to, and to resume from if it
+   * exists.  May be {@code null}.
+   * @return The number of rows that failed to compact.
+   * @throws IllegalArgumentException if the checkpoint is for another time
+   * range.
+   */
+  static long compact(final TSDB tsdb, final long start_ts, long end_ts,
+                      final int threads, final double rate,
+                      final File checkpoint) throws Exception {
+    final long cut_off = System.currentTimeMillis() / 1000
+      - Const.MAX_TIMESPAN - 1;
+    if (end_ts > cut_off) {
+      LOG.info("Not compacting the rows more recent than " + cut_off);
+      end_ts = cut_off;
+    }
+    final long start_base = start_ts - (start_ts % Const.MAX_TIMESPAN);
+    final long end_base = end_ts - (end_ts % Const.MAX_TIMESPAN);
+    final Progress progress = new Progress(start_base, end_base,
+        UidManager.getMaxMetricID(tsdb), checkpoint);
+    final RateLimiter limiter = rate > 0 ? RateLimiter.create(rate) : null;
+
+    LOG.info("Compacting the rows from " + start_base + " to " + end_base
+             + " with " + threads + " threads, starting at metric "
+             + progress.next_id.get());
+    final long start_time = System.currentTimeMillis();
+    final Worker[] workers = new Worker[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(tsdb, progress, limiter, i);
+      workers[i].start();
+    }
+    for (final Worker worker : workers) {
+      worker.join();
+    }
+    progress.save();
+
+    final long failed = progress.errors.get();
+    LOG.info("Compacted " + progress.compacted.get() + " rows out of "
+             + progress.scanned.get() + " in "
+             + (System.currentTimeMillis() - start_time) + "ms, "
+             + failed + " metrics failed");
+    return failed;
+  }
+
+  /**
+   * Hands out the metric IDs to the workers and keeps track of which ones
+   * are done, so that we can checkpoint the lowest ID not done yet.
+   */
+  private static final class Progress {
+    private final long start_base;
+    private final long end_base;
+    private final long max_id;
+    private final File checkpoint;
+
+    /** The next metric ID to hand out. */
+    private final AtomicLong next_id = new AtomicLong();
+    /** All the metric IDs below this one have been compacted. */
+    private long done_id;
+    /** IDs compacted, but above a metric that's still being compacted. */
+    private final TreeSet<Long> done = new TreeSet<Long>();
+    private long last_save = System.currentTimeMillis();
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong compacted = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    Progress(final long start_base, final long end_base, final long max_id,
+             final File checkpoint) throws IOException {
+      this.start_base = start_base;
+      this.end_base = end_base;
+      this.max_id = max_id;
+      this.checkpoint = checkpoint;
+      done_id = checkpoint != null && checkpoint.exists() ? load() : 1;
+      next_id.set(done_id);
+    }
+
+    /** @return The next metric ID to compact, or 0 if we're done. */
+    long next() {
+      final long id = next_id.getAndIncrement();
+      return id <= max_id ? id : 0;
+    }
+
+    /** Marks a metric ID as compacted, saving the checkpoint if it's time. */
+    synchronized void done(final long id) throws IOException {
+      done.add(id);
+      while (!done.isEmpty() && done.first() == done_id) {
+        done.pollFirst();
+        done_id++;
+      }
+      if (System.currentTimeMillis() - last_save >= CHECKPOINT_INTERVAL) {
+        save();
+      }
+    }
+
+    /** Saves the checkpoint, if we have a file. */
+    synchronized void save() throws IOException {
+      last_save = System.currentTimeMillis();
+      if (checkpoint == null) {
+        return;
+      }
+      // Write to a temporary file first so a crash can't leave us with a
+      // truncated checkpoint.
+      final File tmp = new File(checkpoint.getPath() + ".tmp");
+      Files.write(start_base + " " + end_base + " " + done_id + "\n", tmp,
+                  CHARSET);
+      Files.move(tmp, checkpoint);
+    }
+
+    /**
+     * Loads the checkpoint.
+     * @return The metric ID to resume from.
+     * @throws IllegalArgumentException if the checkpoint is invalid or for
+     * another time range.
+     */
+    private long load() throws IOException {
+      final String[] fields =
+        Files.toString(checkpoint, CHARSET).trim().split(" ");
+      if (fields.length != 3) {
+        throw new IllegalArgumentException("Invalid checkpoint in "
+            + checkpoint + ": " + Arrays.toString(fields));
+      }
+      if (Long.parseLong(fields[0]) != start_base
+          || Long.parseLong(fields[1]) != end_base) {
+        throw new IllegalArgumentException("The checkpoint in " + checkpoint
+            + " is for the time range " + fields[0] + " to " + fields[1]
+            + ", not " + start_base + " to " + end_base);
+      }
+      return Long.parseLong(fields[2]);
+    }
+  }
+
+  /** Compacts the rows of the metrics handed out by {@link Progress}. */
+  private static final class Worker extends Thread {
+    private final TSDB tsdb;
+    private final Progress progress;
+    private final RateLimiter limiter;
+    private final short metric_width;
+    /** Whether to write the rollups of the rows already compacted. */
+    private final boolean rollups;
+    /** Base time of the last row that was over when we started, in seconds. */
+    private final long last_ended_base;
+
+    Worker(final TSDB tsdb, final Progress progress,
+           final RateLimiter limiter, final int thread_id) {
+      super("CompactTool #" + thread_id);
+      this.tsdb = tsdb;
+      this.progress = progress;
+      this.limiter = limiter;
+      metric_width = Internal.metricWidth(tsdb);
+      rollups = tsdb.getConfig().getBoolean("tsd.rollups.enable");
+      final long now = System.currentTimeMillis() / 1000;
+      last_ended_base = now - (now % Const.MAX_TIMESPAN) - Const.MAX_TIMESPAN;
+    }
+
+    @Override
+    public void run() {
+      long id;
+      while ((id = progress.next()) > 0) {
+        try {
+          compactMetric(id);
+          progress.done(id);
+        } catch (Exception e) {
+          // Don't mark the metric as done so a resumed run retries it.
+          LOG.error("Failed to compact the rows of metric " + id, e);
+          progress.errors.incrementAndGet();
+        }
+      }
+    }
+
+    /**
+     * Compacts the rows of a metric in the time range.  If rollups are
+     * enabled, the hours of the range that were over when we started are
+     * then marked as rolled up, so queries don't read their raw data.
+     * @throws IllegalStateException if any row failed to compact, so that
+     * the metric isn't checkpointed and a resumed run retries it.
+     */
+    private void compactMetric(final long id) throws Exception {
+      final byte[] metric = Arrays.copyOfRange(Bytes.fromLong(id),
+          8 - metric_width, 8);
+      final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+      final byte[] end_row = new byte[start_row.length];
+      System.arraycopy(metric, 0, start_row, 0, metric_width);
+      System.arraycopy(metric, 0, end_row, 0, metric_width);
+      Bytes.setInt(start_row, (int) progress.start_base, metric_width);
+      Bytes.setInt(end_row, (int) (progress.end_base + 1), metric_width);
+
+      final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+      scanner.setStartKey(start_row);
+      scanner.setStopKey(end_row);
+      scanner.setFamily("t".getBytes(CHARSET));
+      final CountErrorCB count_error = new CountErrorCB();
+      try {
+        scanRows(scanner, count_error);
+      } finally {
+        scanner.close();
+      }
+      final long failed = count_error.failed.get();
+      if (failed > 0) {
+        throw new IllegalStateException(failed + " rows failed to compact");
+      }
+      final long end_base = Math.min(progress.end_base, last_ended_base);
+      if (rollups && end_base >= progress.start_base) {
+        Internal.markRolledUp(tsdb, metric, progress.start_base, end_base)
+          .joinUninterruptibly();
+      }
+    }
+
+    /** Compacts the rows of a scanner, waiting for each batch. */
+    private void scanRows(final Scanner scanner,
+                          final CountErrorCB count_error) throws Exception {
+      ArrayList<ArrayList<KeyValue>> rows;
+      final ArrayList<Deferred<Object>> ds = new ArrayList<Deferred<Object>>();
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          progress.scanned.incrementAndGet();
+          if (row.size() < 2) {
+            // Already compacted, but maybe before rollups were enabled.
+            if (rollups) {
+              if (limiter != null) {
+                limiter.acquire();
+              }
+              ds.add(Internal.rollupRow(tsdb, row).addErrback(count_error));
+            }
+            continue;
+          }
+          if (limiter != null) {
+            limiter.acquire();
+          }
+          progress.compacted.incrementAndGet();
+          ds.add(Internal.compactRow(tsdb, row).addErrback(count_error));
+        }
+        // Wait for this batch of rows before scanning more, so we don't pile
+        // up more RPCs than HBase can take.
+        Deferred.group(ds).joinUninterruptibly();
+        ds.clear();
+      }
+    }
+
+    /** Counts and logs the rows of a metric we failed to compact. */
+    private static final class CountErrorCB
+      implements Callback<Object, Exception> {
+      private final AtomicLong failed = new AtomicLong();
+
+      public Object call(final Exception e) {
+        if (failed.incrementAndGet() % 100 == 1) {
+          LOG.error("Failed to compact or roll up a row", e);
+        }
+        return null;
+      }
+
+      public String toString() {
+        return "count compaction error";
+      }
+    }
+  }
+}
@@ -943,7 +943,7 @@ final class UidManager {
    * @param tsdb The TSDB to use for data access
    * @return The max metric ID as an integer value
    */
-  private static long getMaxMetricID(final TSDB tsdb) {
+  static long getMaxMetricID(final TSDB tsdb) {
     // first up, we need the max metric ID so we can split up the data table
     // amongst threads.
     final GetRequest get = new GetRequest(tsdb.uidTable(), new byte[] { 0 });
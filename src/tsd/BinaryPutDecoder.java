@@ -0,0 +1,334 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes the binary ingest protocol.
+ * <p>
+ * A binary connection starts with the {@link #MAGIC} byte, which is how the
+ * {@link PipelineFactory} tells it apart from telnet and HTTP connections.
+ * What follows is a sequence of frames made of a 4 byte length (that of the
+ * rest of the frame), a 1 byte frame type and the body of the frame.  All
+ * integers are big endian and unsigned, strings are UTF-8.
+ * <ul>
+ * <li>{@link #STRINGS}: {@code u16 count} followed by {@code count} strings,
+ * each a {@code u16 length} and the bytes of the string.  Strings are
+ * appended to the string table of the connection, the first string sent on
+ * a connection has the index 0.</li>
+ * <li>{@link #SERIES}: {@code u16 count} followed by {@code count} series,
+ * each a {@code u32 metric}, a {@code u8 num_tags} and {@code num_tags}
+ * pairs of {@code u32 tagk, u32 tagv}, all of them indexes in the string
+ * table.  Series are appended to the series table of the connection.</li>
+ * <li>{@link #POINTS}: {@code u32 id} chosen by the client, {@code u16
+ * num_series} and then for each series a {@code u32 series} index in the
+ * series table, {@code u16 num_points} and that many {@code i64 timestamp,
+ * u8 type, value} where the value is an {@code i64} if the type is
+ * {@link #TYPE_LONG}, an IEEE 754 {@code float} if it's {@link #TYPE_FLOAT}
+ * and a {@code double} if it's {@link #TYPE_DOUBLE}.</li>
+ * </ul>
+ * Once all the data points of a {@link #POINTS} frame have been written, the
+ * TSD replies with an {@link #ACK} frame: {@code u32 id, u32 written,
+ * u32 failed}.  Any malformed frame is answered with an {@link #ERROR} frame
+ * carrying a {@code u16 length} and a message, and the connection is closed.
+ * <p>
+ * The string and series tables let clients send the names of their series
+ * only once per connection, data points then only carry a series index and
+ * their packed timestamp and value.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ * @since 2.0
+ */
+final class BinaryPutDecoder extends FrameDecoder {
+  private static final Logger LOG =
+    LoggerFactory.getLogger(BinaryPutDecoder.class);
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** First byte of a binary connection. */
+  static final byte MAGIC = (byte) 0xB1;
+
+  /** Frame types sent by clients. */
+  static final byte STRINGS = 0x01;
+  static final byte SERIES = 0x02;
+  static final byte POINTS = 0x03;
+
+  /** Frame types sent by the TSD. */
+  static final byte ACK = (byte) 0x81;
+  static final byte ERROR = (byte) 0xFF;
+
+  /** Types of values in a {@link #POINTS} frame. */
+  static final byte TYPE_LONG = 0;
+  static final byte TYPE_FLOAT = 1;
+  static final byte TYPE_DOUBLE = 2;
+
+  /** Maximum length of a frame, excluding its length. */
+  static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+  /** Smallest encoding of a data point: a timestamp, a type and a float. */
+  private static final int MIN_POINT_LENGTH = 8 + 1 + 4;
+
+  /** Maximum number of strings or series defined on a connection. */
+  static final int MAX_TABLE_SIZE = 1024 * 1024;
+
+  /** Strings defined on this connection. */
+  private final ArrayList<String> strings = new ArrayList<String>();
+
+  /** Series defined on this connection. */
+  private final ArrayList<Series> series = new ArrayList<Series>();
+
+  /** Set once we've sent an error, everything else is discarded. */
+  private boolean failed;
+
+  /** Constructor. */
+  public BinaryPutDecoder() {
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final ChannelBuffer buffer) {
+    if (failed) {
+      buffer.skipBytes(buffer.readableBytes());
+      return null;
+    }
+    if (buffer.readableBytes() < 4) {
+      return null;
+    }
+    final int start = buffer.readerIndex();
+    final long length = buffer.getUnsignedInt(start);
+    if (length < 1 || length > MAX_FRAME_LENGTH) {
+      return fail(channel, buffer, "invalid frame length: " + length);
+    }
+    if (buffer.readableBytes() < 4 + length) {
+      return null;
+    }
+    buffer.skipBytes(4);
+    final ChannelBuffer frame = buffer.readSlice((int) length);
+    try {
+      final byte type = frame.readByte();
+      final Object decoded;
+      switch (type) {
+        case STRINGS:
+          readStrings(frame);
+          decoded = null;
+          break;
+        case SERIES:
+          readSeries(frame);
+          decoded = null;
+          break;
+        case POINTS:
+          decoded = readPoints(frame);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown frame type: " + type);
+      }
+      if (frame.readable()) {
+        throw new IllegalArgumentException(frame.readableBytes()
+            + " trailing bytes in frame of type " + type);
+      }
+      return decoded;
+    } catch (IndexOutOfBoundsException e) {
+      return fail(channel, buffer, "truncated frame");
+    } catch (IllegalArgumentException e) {
+      return fail(channel, buffer, e.getMessage());
+    }
+  }
+
+  /** Appends the strings of a {@link #STRINGS} frame to the string table. */
+  private void readStrings(final ChannelBuffer frame) {
+    final int count = frame.readUnsignedShort();
+    if (strings.size() + count > MAX_TABLE_SIZE) {
+      throw new IllegalArgumentException("too many strings");
+    }
+    for (int i = 0; i < count; i++) {
+      final int length = frame.readUnsignedShort();
+      if (length > frame.readableBytes()) {
+        throw new IndexOutOfBoundsException();
+      }
+      strings.add(frame.toString(frame.readerIndex(), length, CHARSET));
+      frame.skipBytes(length);
+    }
+  }
+
+  /** Appends the series of a {@link #SERIES} frame to the series table. */
+  private void readSeries(final ChannelBuffer frame) {
+    final int count = frame.readUnsignedShort();
+    if (series.size() + count > MAX_TABLE_SIZE) {
+      throw new IllegalArgumentException("too many series");
+    }
+    for (int i = 0; i < count; i++) {
+      final String metric = string(frame.readUnsignedInt());
+      final int num_tags = frame.readUnsignedByte();
+      final HashMap<String, String> tags =
+        new HashMap<String, String>(num_tags * 2);
+      for (int t = 0; t < num_tags; t++) {
+        final String tagk = string(frame.readUnsignedInt());
+        tags.put(tagk, string(frame.readUnsignedInt()));
+      }
+      series.add(new Series(metric, tags));
+    }
+  }
+
+  /** @return The data points of a {@link #POINTS} frame. */
+  private Points readPoints(final ChannelBuffer frame) {
+    final int id = frame.readInt();
+    final int num_series = frame.readUnsignedShort();
+    // bounds the number of points in the frame, used to size the arrays
+    final Points points = 
+      new Points(id, frame.readableBytes() / MIN_POINT_LENGTH);
+    for (int i = 0; i < num_series; i++) {
+      final long index = frame.readUnsignedInt();
+      if (index >= series.size()) {
+        throw new IllegalArgumentException("undefined series: " + index);
+      }
+      final Series s = series.get((int) index);
+      final int num_points = frame.readUnsignedShort();
+      for (int p = 0; p < num_points; p++) {
+        final long timestamp = frame.readLong();
+        final byte type = frame.readByte();
+        final long value;
+        switch (type) {
+          case TYPE_LONG:
+            value = frame.readLong();
+            break;
+          case TYPE_FLOAT:
+            value = frame.readInt();
+            break;
+          case TYPE_DOUBLE:
+            value = frame.readLong();
+            break;
+          default:
+            throw new IllegalArgumentException("unknown value type: " + type);
+        }
+        points.add(s, timestamp, type, value);
+      }
+    }
+    return points;
+  }
+
+  /** @return The string at the given index in the string table. */
+  private String string(final long index) {
+    if (index >= strings.size()) {
+      throw new IllegalArgumentException("undefined string: " + index);
+    }
+    return strings.get((int) index);
+  }
+
+  /**
+   * Reports a protocol error to the client and closes the connection.
+   * @return Always {@code null}.
+   */
+  private Object fail(final Channel channel, final ChannelBuffer buffer,
+                      final String message) {
+    LOG.warn("Binary protocol error on " + channel + ": " + message);
+    failed = true;
+    buffer.skipBytes(buffer.readableBytes());
+    if (channel.isConnected()) {
+      channel.write(error(message)).addListener(ChannelFutureListener.CLOSE);
+    }
+    return null;
+  }
+
+  /**
+   * Builds an {@link #ACK} frame.
+   * @param id The ID of the {@link #POINTS} frame acknowledged.
+   * @param written The number of data points written.
+   * @param failed The number of data points that could not be written.
+   */
+  static ChannelBuffer ack(final int id, final int written, final int failed) {
+    final ChannelBuffer buf = ChannelBuffers.buffer(4 + 1 + 4 * 3);
+    buf.writeInt(1 + 4 * 3);
+    buf.writeByte(ACK);
+    buf.writeInt(id);
+    buf.writeInt(written);
+    buf.writeInt(failed);
+    return buf;
+  }
+
+  /** Builds an {@link #ERROR} frame with the given message. */
+  static ChannelBuffer error(final String message) {
+    byte[] msg = message.getBytes(CHARSET);
+    if (msg.length > 0xFFFF) {
+      final byte[] truncated = new byte[0xFFFF];
+      System.arraycopy(msg, 0, truncated, 0, truncated.length);
+      msg = truncated;
+    }
+    final ChannelBuffer buf = ChannelBuffers.buffer(4 + 1 + 2 + msg.length);
+    buf.writeInt(1 + 2 + msg.length);
+    buf.writeByte(ERROR);
+    buf.writeShort(msg.length);
+    buf.writeBytes(msg);
+    return buf;
+  }
+
+  /** A series defined on a binary connection. */
+  static final class Series {
+    final String metric;
+    /** The tags of the series, must not be modified. */
+    final Map<String, String> tags;
+
+    Series(final String metric, final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.tags = Collections.unmodifiableMap(tags);
+    }
+  }
+
+  /** The data points of a {@link #POINTS} frame. */
+  static final class Points {
+    /** The ID given by the client, echoed in the acknowledgement. */
+    final int id;
+    /** Number of data points in the frame. */
+    int size;
+    Series[] series;
+    long[] timestamps;
+    /** One of the {@code TYPE_*} constants for each data point. */
+    byte[] types;
+    /**
+     * The values, either as a long or as the raw bits of the floating point
+     * value depending on the type.
+     */
+    long[] values;
+
+    Points(final int id, final int capacity) {
+      this.id = id;
+      series = new Series[capacity];
+      timestamps = new long[capacity];
+      types = new byte[capacity];
+      values = new long[capacity];
+    }
+
+    void add(final Series s, final long timestamp, final byte type,
+             final long value) {
+      series[size] = s;
+      timestamps[size] = timestamp;
+      types[size] = type;
+      values[size] = value;
+      size++;
+    }
+  }
+}
@@ -43,6 +43,8 @@ import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryLimitException;
+import net.opentsdb.core.QueryLimits;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -170,7 +172,11 @@ final class GraphHandler implements HttpRpc {
       throw new BadRequestException(options.size() + " `o' parameters, but "
         + tsdbqueries.length + " `m' parameters.");
     }
+    final QueryLimits limits =
+      QueryLimits.fromConfig(tsdb.getConfig(), "graph");
+    QueryRpc.releaseAfterReply(query, limits);
     for (final Query tsdbquery : tsdbqueries) {
+      tsdbquery.setLimits(limits);
       try {
         tsdbquery.setStartTime(start_time);
       } catch (IllegalArgumentException e) {
@@ -201,6 +207,8 @@ final class GraphHandler implements HttpRpc {
           aggregated_tags[i].addAll(datapoints.getAggregatedTags());
           npoints += datapoints.aggregatedSize();
         }
+      } catch (QueryLimitException e) {
+        throw QueryRpc.limitExceeded(e);
       } catch (RuntimeException e) {
         logInfo(query, "Query failed (stack trace coming): "
                 + tsdbqueries[i]);
@@ -14,22 +14,32 @@ package net.opentsdb.tsd;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.stream.ChunkedInput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Deferred;
 
@@ -60,6 +70,8 @@ class HttpJsonSerializer extends HttpSerializer {
   private static final Logger LOG = 
     LoggerFactory.getLogger(HttpJsonSerializer.class);
   
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
   /** Type reference for incoming data points */
   private static TypeReference<ArrayList<IncomingDataPoint>> TR_INCOMING =
     new TypeReference<ArrayList<IncomingDataPoint>>() {};
@@ -144,6 +156,36 @@ class HttpJsonSerializer extends HttpSerializer {
     }
   }
   
+  /**
+   * Parses one or more data points for storage, reading them one at a time
+   * straight from the request content.
+   * UTF-8 content is parsed from the bytes of the request without decoding
+   * the whole body to a string first.
+   * @return an iterator over the data points to process for storage
+   * @throws BadRequestException if the content was missing or parsing failed,
+   * possibly from the iterator once some data points were returned
+   */
+  @Override
+  public Iterator<IncomingDataPoint> parsePutStreamV1() {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+
+    final JsonParser parser;
+    try {
+      if (UTF8.equals(query.getCharset())) {
+        // duplicate the buffer so we don't move the reader index
+        parser = JSON.parseToStream(new ChannelBufferInputStream(
+            query.request().getContent().duplicate()));
+      } else {
+        parser = JSON.parseToStream(query.getContent());
+      }
+    } catch (IllegalArgumentException iae) {
+      throw new BadRequestException("Unable to parse the given JSON", iae);
+    }
+    return new IncomingDataPointIterator(parser);
+  }
+  
   /**
    * Parses a suggestion query
    * @return a hash map of key/value pairs
@@ -486,7 +528,7 @@ class HttpJsonSerializer extends HttpSerializer {
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
     final String jsonp = this.query.getQueryStringParam("jsonp");
     
-    // todo - this should be streamed at some point since it could be HUGE
+    // see sendQueryV1() for a streamed version
     final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
     final OutputStream output = new ChannelBufferOutputStream(response);
     try {
@@ -499,103 +541,7 @@ class HttpJsonSerializer extends HttpSerializer {
       
       for (DataPoints[] separate_dps : results) {
         for (DataPoints dps : separate_dps) {
-          json.writeStartObject();
-          
-          json.writeStringField("metric", dps.metricName());
-          
-          json.writeFieldName("tags");
-          json.writeStartObject();
-          if (dps.getTags() != null) {
-            for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
-              json.writeStringField(tag.getKey(), tag.getValue());
-            }
-          }
-          json.writeEndObject();
-          
-          json.writeFieldName("aggregateTags");
-          json.writeStartArray();
-          if (dps.getAggregatedTags() != null) {
-            for (String atag : dps.getAggregatedTags()) {
-              json.writeString(atag);
-            }
-          }
-          json.writeEndArray();
-          
-          if (data_query.getShowTSUIDs()) {
-            json.writeFieldName("tsuids");
-            json.writeStartArray();
-            final List<String> tsuids = dps.getTSUIDs();
-            Collections.sort(tsuids);
-            for (String tsuid : tsuids) {
-              json.writeString(tsuid);
-            }
-            json.writeEndArray();
-          }
-          
-          if (!data_query.getNoAnnotations()) {
-            final List<Annotation> annotations = dps.getAnnotations();
-            if (annotations != null) {
-              Collections.sort(annotations);
-              json.writeArrayFieldStart("annotations");
-              for (Annotation note : annotations) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-            
-            if (globals != null && !globals.isEmpty()) {
-              Collections.sort(globals);
-              json.writeArrayFieldStart("globalAnnotations");
-              for (Annotation note : globals) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-          }
-          
-          // now the fun stuff, dump the data
-          json.writeFieldName("dps");
-          
-          // default is to write a map, otherwise write arrays
-          if (as_arrays) {
-            json.writeStartArray();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < data_query.startTime() || 
-                  dp.timestamp() > data_query.endTime()) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              json.writeStartArray();
-              json.writeNumber(timestamp);
-              if (dp.isInteger()) {
-                json.writeNumber(dp.longValue());
-              } else { 
-                json.writeNumber(dp.doubleValue());
-              }
-              json.writeEndArray();
-            }
-            json.writeEndArray();
-          } else {
-            json.writeStartObject();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < (data_query.startTime()) || 
-                  dp.timestamp() > (data_query.endTime())) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              if (dp.isInteger()) {
-                json.writeNumberField(Long.toString(timestamp), dp.longValue());
-              } else {
-                json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
-              }
-            }
-            json.writeEndObject();
-          }
-
-          // close the results for this particular query
-          json.writeEndObject();
+          writeDataPoints(json, data_query, dps, globals, as_arrays);
         }
       }
     
@@ -613,6 +559,238 @@ class HttpJsonSerializer extends HttpSerializer {
     }
   }
   
+  /**
+   * Streams the results from a timeseries data query to the client with 
+   * chunked transfer encoding.  The output is the same as that of 
+   * {@link #formatQueryV1} but the results are serialized a few time series
+   * at a time, as the channel becomes writable, instead of all at once.
+   * Clients speaking HTTP/1.0 get the whole response at once.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   */
+  public void sendQueryV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    if (HttpVersion.HTTP_1_0.equals(query.request().getProtocolVersion())) {
+      super.sendQueryV1(data_query, results, globals);
+      return;
+    }
+    query.sendChunkedReply(new QueryChunks(data_query, results, globals));
+  }
+  
+  /**
+   * Writes a single time series of the results of a query.
+   * @param json The generator to write to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param dps The time series to write
+   * @param globals An optional list of global annotation objects
+   * @param as_arrays Whether to write the data points as arrays or as a map
+   * @throws IOException if the generator failed to write
+   */
+  private static void writeDataPoints(final JsonGenerator json, 
+      final TSQuery data_query, final DataPoints dps, 
+      final List<Annotation> globals, final boolean as_arrays) 
+    throws IOException {
+    json.writeStartObject();
+    
+    json.writeStringField("metric", dps.metricName());
+    
+    json.writeFieldName("tags");
+    json.writeStartObject();
+    if (dps.getTags() != null) {
+      for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        json.writeStringField(tag.getKey(), tag.getValue());
+      }
+    }
+    json.writeEndObject();
+    
+    json.writeFieldName("aggregateTags");
+    json.writeStartArray();
+    if (dps.getAggregatedTags() != null) {
+      for (String atag : dps.getAggregatedTags()) {
+        json.writeString(atag);
+      }
+    }
+    json.writeEndArray();
+    
+    if (data_query.getShowTSUIDs()) {
+      json.writeFieldName("tsuids");
+      json.writeStartArray();
+      final List<String> tsuids = dps.getTSUIDs();
+      Collections.sort(tsuids);
+      for (String tsuid : tsuids) {
+        json.writeString(tsuid);
+      }
+      json.writeEndArray();
+    }
+    
+    if (!data_query.getNoAnnotations()) {
+      final List<Annotation> annotations = dps.getAnnotations();
+      if (annotations != null) {
+        Collections.sort(annotations);
+        json.writeArrayFieldStart("annotations");
+        for (Annotation note : annotations) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+      
+      if (globals != null && !globals.isEmpty()) {
+        Collections.sort(globals);
+        json.writeArrayFieldStart("globalAnnotations");
+        for (Annotation note : globals) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+    }
+    
+    // now the fun stuff, dump the data
+    json.writeFieldName("dps");
+    
+    // default is to write a map, otherwise write arrays
+    if (as_arrays) {
+      json.writeStartArray();
+      for (final DataPoint dp : dps) {
+        if (dp.timestamp() < data_query.startTime() || 
+            dp.timestamp() > data_query.endTime()) {
+          continue;
+        }
+        final long timestamp = data_query.getMsResolution() ? 
+            dp.timestamp() : dp.timestamp() / 1000;
+        json.writeStartArray();
+        json.writeNumber(timestamp);
+        if (dp.isInteger()) {
+          json.writeNumber(dp.longValue());
+        } else { 
+          json.writeNumber(dp.doubleValue());
+        }
+        json.writeEndArray();
+      }
+      json.writeEndArray();
+    } else {
+      json.writeStartObject();
+      for (final DataPoint dp : dps) {
+        if (dp.timestamp() < (data_query.startTime()) || 
+            dp.timestamp() > (data_query.endTime())) {
+          continue;
+        }
+        final long timestamp = data_query.getMsResolution() ? 
+            dp.timestamp() : dp.timestamp() / 1000;
+        if (dp.isInteger()) {
+          json.writeNumberField(Long.toString(timestamp), dp.longValue());
+        } else {
+          json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
+        }
+      }
+      json.writeEndObject();
+    }
+
+    // close the results for this particular query
+    json.writeEndObject();
+  }
+  
+  /**
+   * Serializes the results of a query into HTTP chunks on demand.
+   * Each call to {@link #nextChunk} writes time series until the chunk holds
+   * at least {@link #CHUNK_SIZE} bytes, so only a few time series are
+   * serialized and held in memory at any given time.
+   */
+  final class QueryChunks implements ChunkedInput {
+    /** Minimum size of a chunk, except for the last one. */
+    static final int CHUNK_SIZE = 16384;
+    
+    private final TSQuery data_query;
+    private final List<DataPoints[]> results;
+    private final List<Annotation> globals;
+    private final boolean as_arrays;
+    private final String jsonp;
+    
+    /** Where the generator writes, a new buffer for every chunk. */
+    private ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    private final OutputStream output = new OutputStream() {
+      @Override
+      public void write(final int b) {
+        buffer.writeByte(b);
+      }
+      
+      @Override
+      public void write(final byte[] b, final int off, final int len) {
+        buffer.writeBytes(b, off, len);
+      }
+    };
+    private JsonGenerator json;
+    
+    /** Index of the next query and time series of that query to write. */
+    private int query_idx;
+    private int dps_idx;
+    /** Whether the whole JSON was written and the last chunk was sent. */
+    private boolean finished;
+    private boolean last_sent;
+    
+    QueryChunks(final TSQuery data_query, final List<DataPoints[]> results,
+        final List<Annotation> globals) {
+      this.data_query = data_query;
+      this.results = results;
+      this.globals = globals;
+      as_arrays = query.hasQueryStringParam("arrays");
+      jsonp = query.getQueryStringParam("jsonp");
+    }
+    
+    public boolean hasNextChunk() {
+      return !last_sent;
+    }
+    
+    public Object nextChunk() throws IOException {
+      if (last_sent) {
+        return null;
+      }
+      if (finished) {
+        last_sent = true;
+        return HttpChunk.LAST_CHUNK;
+      }
+      if (json == null) {
+        if (jsonp != null && !jsonp.isEmpty()) {
+          output.write((jsonp + "(").getBytes(query.getCharset()));
+        }
+        json = JSON.getFactory().createGenerator(output);
+        json.writeStartArray();
+      }
+      while (buffer.readableBytes() < CHUNK_SIZE 
+          && query_idx < results.size()) {
+        final DataPoints[] separate_dps = results.get(query_idx);
+        if (dps_idx < separate_dps.length) {
+          writeDataPoints(json, data_query, separate_dps[dps_idx], globals, 
+              as_arrays);
+          json.flush();
+          dps_idx++;
+        } else {
+          query_idx++;
+          dps_idx = 0;
+        }
+      }
+      if (query_idx >= results.size()) {
+        json.writeEndArray();
+        json.close();
+        if (jsonp != null && !jsonp.isEmpty()) {
+          output.write(")".getBytes());
+        }
+        finished = true;
+      }
+      final ChannelBuffer chunk = buffer;
+      buffer = ChannelBuffers.dynamicBuffer();
+      return new DefaultHttpChunk(chunk);
+    }
+    
+    public boolean isEndOfInput() {
+      return last_sent;
+    }
+    
+    public void close() {
+      // nothing to release, the results are garbage collected
+    }
+  }
+  
   /**
    * Format a single UIDMeta object
    * @param meta The UIDMeta object to serialize
@@ -764,4 +942,98 @@ class HttpJsonSerializer extends HttpSerializer {
     }
     return ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(obj));
   }
+
+  /**
+   * Iterates over the data points of a put request as they are parsed.
+   * The content may be a single data point object or an array of them.
+   */
+  private static final class IncomingDataPointIterator 
+    implements Iterator<IncomingDataPoint> {
+    private final JsonParser parser;
+    /** The next data point to return, if already parsed. */
+    private IncomingDataPoint next;
+    /** Whether or not we've reached the end of the content. */
+    private boolean done;
+
+    IncomingDataPointIterator(final JsonParser parser) {
+      this.parser = parser;
+      final JsonToken token = nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        next = readDataPoint();
+        done = true;
+        close();
+      } else if (token != JsonToken.START_ARRAY) {
+        close();
+        throw new BadRequestException("Unable to parse the given JSON", 
+            new IllegalArgumentException("Expected a data point or an array "
+                + "of data points but got " + token));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (done) {
+        return false;
+      }
+      final JsonToken token = nextToken();
+      if (token == JsonToken.END_ARRAY) {
+        done = true;
+        close();
+        return false;
+      }
+      if (token != JsonToken.START_OBJECT) {
+        done = true;
+        close();
+        throw new BadRequestException("Unable to parse the given JSON", 
+            new IllegalArgumentException("Expected a data point but got " 
+                + token));
+      }
+      next = readDataPoint();
+      return true;
+    }
+
+    @Override
+    public IncomingDataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more data points");
+      }
+      final IncomingDataPoint dp = next;
+      next = null;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove");
+    }
+
+    private JsonToken nextToken() {
+      try {
+        return parser.nextToken();
+      } catch (IOException e) {
+        close();
+        throw new BadRequestException("Unable to parse the given JSON", e);
+      }
+    }
+
+    private IncomingDataPoint readDataPoint() {
+      try {
+        return parser.readValueAs(IncomingDataPoint.class);
+      } catch (IOException e) {
+        close();
+        throw new BadRequestException("Unable to parse the given JSON", e);
+      }
+    }
+
+    private void close() {
+      try {
+        parser.close();
+      } catch (IOException e) {
+        LOG.debug("Failed to close the JSON parser", e);
+      }
+    }
+  }
 }
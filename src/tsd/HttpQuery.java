@@ -42,12 +42,14 @@ import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.stream.ChunkedInput;
 import org.jboss.netty.util.CharsetUtil;
 
 import net.opentsdb.core.Const;
@@ -813,6 +815,44 @@ final class HttpQuery {
     sendBuffer(status, buf);
   }
 
+  /**
+   * Sends a 200 OK reply with chunked transfer encoding.
+   * The chunks are pulled from the input by the {@code ChunkedWriteHandler}
+   * of the pipeline whenever the channel is writable, so a large reply never
+   * has to be held in memory as a whole.  If the input fails half way, the
+   * connection is closed so that the client sees a truncated reply.
+   * <b>Note:</b> Chunked replies require HTTP/1.1.
+   * @param chunks The chunks of the reply, the last one must be
+   * {@link HttpChunk#LAST_CHUNK}.
+   * @since 2.0
+   */
+  public void sendChunkedReply(final ChunkedInput chunks) {
+    if (!chan.isConnected()) {
+      done();
+      return;
+    }
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+        serializer.responseContentType());
+    response.setStatus(HttpResponseStatus.OK);
+    HttpHeaders.setTransferEncodingChunked(response);
+    chan.write(response);
+    final ChannelFuture future = chan.write(chunks);
+    future.addListener(new ChannelFutureListener() {
+      public void operationComplete(final ChannelFuture future) {
+        if (!future.isSuccess()) {
+          logError("Failed to stream the reply", 
+              future.getCause() instanceof Exception 
+              ? (Exception) future.getCause() : null);
+          chan.close();
+        }
+        done();
+      }
+    });
+    if (!HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
   /**
    * Send just the status code without a body, used for 204 or 304
    * @param status The response code to reply with
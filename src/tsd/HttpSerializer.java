@@ -13,6 +13,7 @@
 package net.opentsdb.tsd;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -171,6 +172,25 @@ public abstract class HttpSerializer {
         " has not implemented parsePutV1");
   }
   
+  /**
+   * Parses one or more data points for storage, one at a time.
+   * <p>
+   * Serializers that can parse data points incrementally should override this
+   * method so that data points are handed out as they are parsed instead of
+   * materializing the whole list first.  The default implementation simply
+   * iterates over the results of {@link #parsePutV1}.
+   * <p>
+   * <b>Note:</b> parsing errors may be thrown by the iterator after some data
+   * points have already been returned.
+   * @return An iterator over the data points to process for storage
+   * @throws BadRequestException if the plugin has not implemented parsing or
+   * if the content could not be parsed
+   * @since 2.0
+   */
+  public Iterator<IncomingDataPoint> parsePutStreamV1() {
+    return parsePutV1().iterator();
+  }
+  
   /**
    * Parses a suggestion query
    * @return a hash map of key/value pairs
@@ -420,6 +440,23 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Sends the results from a timeseries data query to the client.
+   * The default implementation formats the whole response with
+   * {@link #formatQueryV1} and sends it at once.  Serializers that are able
+   * to should override it to stream the results instead.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @throws BadRequestException if the plugin has not implemented 
+   * {@link #formatQueryV1}
+   * @since 2.0
+   */
+  public void sendQueryV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    query.sendReply(formatQueryV1(data_query, results, globals));
+  }
+  
   /**
    * Format a single UIDMeta object
    * @param meta The UIDMeta object to serialize
@@ -23,6 +23,7 @@ import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 
 import net.opentsdb.core.TSDB;
 
@@ -79,7 +80,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /**
    * Dynamically changes the {@link ChannelPipeline} based on the request.
    * If a request uses HTTP, then this changes the pipeline to process HTTP.
-   * Otherwise, the pipeline is changed to processes an RPC.
+   * If it starts with the magic byte of the binary protocol, the pipeline is
+   * changed to decode binary frames.  Otherwise, the pipeline is changed to
+   * processes an RPC.
    */
   final class DetectHttpOrRpc extends FrameDecoder {
 
@@ -96,16 +99,23 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       // None of the commands in the RPC protocol start with a capital ASCII
       // letter for the time being, and all HTTP commands do (GET, POST, etc.)
       // so use this as a cheap way to differentiate the two.
-      if ('A' <= firstbyte && firstbyte <= 'Z') {
+      if (firstbyte == (BinaryPutDecoder.MAGIC & 0xFF)) {
+        // the magic byte only tells us the protocol, don't forward it
+        buffer.skipBytes(1);
+        pipeline.addLast("decoder", new BinaryPutDecoder());
+      } else if ('A' <= firstbyte && firstbyte <= 'Z') {
         pipeline.addLast("decoder", new HttpRequestDecoder());
         if (tsdb.getConfig().enable_chunked_requests()) {
           pipeline.addLast("aggregator", new HttpChunkAggregator(
               tsdb.getConfig().max_chunked_requests()));
         }
         pipeline.addLast("encoder", new HttpResponseEncoder());
+        // streams the replies sent as a series of chunks
+        pipeline.addLast("chunker", new ChunkedWriteHandler());
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
+        pipeline.addLast("putdecoder", new PutDataPointDecoder());
         pipeline.addLast("decoder", DECODER);
       }
       pipeline.remove(this);
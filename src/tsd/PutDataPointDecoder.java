@@ -0,0 +1,335 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Decodes telnet-style "put" commands straight from the bytes of a frame.
+ * <p>
+ * Well formed "put" lines are turned into a {@link Put} without going through
+ * a String for the whole line or splitting it in words.  Strings for the
+ * metric and tags are interned in a small per-channel table so that series
+ * seen repeatedly on a connection don't allocate anything.  Any other
+ * command, as well as any "put" line that isn't in the most common form, is
+ * forwarded untouched to the next decoder so that it goes through the
+ * {@link WordSplitter} and gets the usual error handling.
+ * <p>
+ * The {@link Put} returned is reused for every line decoded on the channel,
+ * so it must be consumed before the next frame is decoded, which is the case
+ * since the handler executes the RPC in the I/O thread.  Its map of tags is
+ * handed over to the TSDB and plugins which may keep it, so it's never
+ * modified: it's reused as long as the lines have the same tags and a new
+ * map is made when they change.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ * @since 2.0
+ */
+final class PutDataPointDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of slots in the string table, must be a power of 2. */
+  private static final int STRING_TABLE_SIZE = 512;
+
+  /**
+   * Maximum number of digits for which we parse an integer value without
+   * checking for overflows.  Longer values are handled by the slow path.
+   */
+  private static final int MAX_FAST_DIGITS = 18;
+
+  /** Direct-mapped table of the strings recently decoded on this channel. */
+  private final String[] strings = new String[STRING_TABLE_SIZE];
+
+  /** The data point decoded, reused for every line. */
+  private final Put put = new Put();
+
+  /** Scratch space for the tags of the line being decoded. */
+  private String[] tagks = new String[8];
+  private String[] tagvs = new String[8];
+
+  /** Constructor. */
+  public PutDataPointDecoder() {
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) throws Exception {
+    if (!(msg instanceof ChannelBuffer)) {
+      return msg;
+    }
+    final ChannelBuffer buf = (ChannelBuffer) msg;
+    return decodePut(buf) ? put : buf;
+  }
+
+  /**
+   * Attempts to decode a "put" line into {@link #put}.
+   * @param buf The frame to decode, it isn't modified.
+   * @return {@code true} if the line was decoded, {@code false} if it must
+   * go through the slow path instead.
+   */
+  private boolean decodePut(final ChannelBuffer buf) {
+    final int end = buf.writerIndex();
+    int i = buf.readerIndex();
+    if (end - i < 4 || buf.getByte(i) != 'p' || buf.getByte(i + 1) != 'u'
+        || buf.getByte(i + 2) != 't' || buf.getByte(i + 3) != ' ') {
+      return false;
+    }
+    i += 4;
+
+    // metric
+    int sep = buf.indexOf(i, end, (byte) ' ');
+    if (sep <= i) {  // no more words or empty metric
+      return false;
+    }
+    final String metric = intern(buf, i, sep);
+    i = sep + 1;
+
+    // timestamp, dots are ignored to support "seconds.milliseconds"
+    sep = buf.indexOf(i, end, (byte) ' ');
+    if (sep <= i) {
+      return false;
+    }
+    long timestamp = 0;
+    int digits = 0;
+    for (int j = i; j < sep; j++) {
+      final byte b = buf.getByte(j);
+      if ('0' <= b && b <= '9') {
+        timestamp = timestamp * 10 + (b - '0');
+        digits++;
+      } else if (b != '.') {
+        return false;
+      }
+    }
+    if (digits < 1 || digits > MAX_FAST_DIGITS || timestamp <= 0) {
+      return false;
+    }
+    i = sep + 1;
+
+    // value
+    sep = buf.indexOf(i, end, (byte) ' ');
+    if (sep <= i) {
+      return false;
+    }
+    if (!decodeValue(buf, i, sep)) {
+      return false;
+    }
+    i = sep + 1;
+
+    // tags, empty words are skipped like in the slow path
+    int num_tags = 0;
+    while (i < end) {
+      sep = buf.indexOf(i, end, (byte) ' ');
+      if (sep < 0) {
+        sep = end;
+      }
+      if (sep > i) {
+        final int equal = buf.indexOf(i, sep, (byte) '=');
+        if (equal <= i || equal == sep - 1
+            || buf.indexOf(equal + 1, sep, (byte) '=') >= 0) {
+          return false;  // invalid tag, let the slow path report it
+        }
+        final String tagk = intern(buf, i, equal);
+        final String tagv = intern(buf, equal + 1, sep);
+        boolean duplicate = false;
+        for (int t = 0; t < num_tags; t++) {
+          if (tagks[t].equals(tagk)) {
+            if (!tagvs[t].equals(tagv)) {
+              return false;  // conflicting duplicate tag
+            }
+            duplicate = true;
+            break;
+          }
+        }
+        if (!duplicate) {
+          if (num_tags == tagks.length) {
+            growTags();
+          }
+          tagks[num_tags] = tagk;
+          tagvs[num_tags] = tagv;
+          num_tags++;
+        }
+      }
+      i = sep + 1;
+    }
+    if (num_tags < 1) {
+      return false;
+    }
+
+    put.metric = metric;
+    put.timestamp = timestamp;
+    setTags(num_tags);
+    return true;
+  }
+
+  /**
+   * Decodes the value of the data point into {@link #put}.
+   * Integers are parsed in place, floating point values go through
+   * {@link Float#parseFloat} like in the slow path.
+   * @return {@code false} if the value must be handled by the slow path.
+   */
+  private boolean decodeValue(final ChannelBuffer buf, final int start,
+                              final int end) {
+    boolean integer = true;
+    for (int j = start; j < end; j++) {
+      final byte b = buf.getByte(j);
+      if (b == '.' || b == 'e' || b == 'E') {
+        integer = false;
+        break;
+      }
+    }
+    if (!integer) {
+      try {
+        put.float_value = Float.parseFloat(buf.toString(start, end - start,
+                                                        CHARSET));
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      put.is_integer = false;
+      return true;
+    }
+
+    int j = start;
+    final byte first = buf.getByte(j);
+    final boolean negative = first == '-';
+    if (negative || first == '+') {
+      j++;
+    }
+    if (j == end || end - j > MAX_FAST_DIGITS) {
+      return false;
+    }
+    long value = 0;
+    for (; j < end; j++) {
+      final byte b = buf.getByte(j);
+      if (b < '0' || b > '9') {
+        return false;
+      }
+      value = value * 10 + (b - '0');
+    }
+    put.long_value = negative ? -value : value;
+    put.is_integer = true;
+    return true;
+  }
+
+  /**
+   * Sets the tags of {@link #put} to the tags decoded, keeping the map of
+   * the previous line if they're the same.
+   * @param num_tags The number of tags decoded.
+   */
+  private void setTags(final int num_tags) {
+    if (sameTags(num_tags)) {
+      return;
+    }
+    final HashMap<String, String> tags =
+      new HashMap<String, String>(num_tags * 2);
+    for (int t = 0; t < num_tags; t++) {
+      tags.put(tagks[t], tagvs[t]);
+    }
+    put.tags = tags;
+  }
+
+  /** @return Whether the tags decoded are those of {@link #put} already. */
+  private boolean sameTags(final int num_tags) {
+    final HashMap<String, String> tags = put.tags;
+    if (tags == null || tags.size() != num_tags) {
+      return false;
+    }
+    for (int t = 0; t < num_tags; t++) {
+      if (!tagvs[t].equals(tags.get(tagks[t]))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Doubles the size of the scratch arrays for tags. */
+  private void growTags() {
+    final String[] ks = new String[tagks.length * 2];
+    final String[] vs = new String[tagvs.length * 2];
+    System.arraycopy(tagks, 0, ks, 0, tagks.length);
+    System.arraycopy(tagvs, 0, vs, 0, tagvs.length);
+    tagks = ks;
+    tagvs = vs;
+  }
+
+  /**
+   * Returns the string for the given bytes, reusing a previously decoded
+   * string if possible.
+   * @param buf The buffer to read from.
+   * @param start The index of the first byte (inclusive).
+   * @param end The index of the last byte (exclusive).
+   */
+  private String intern(final ChannelBuffer buf, final int start,
+                        final int end) {
+    int hash = 0;
+    for (int j = start; j < end; j++) {
+      hash = 31 * hash + buf.getByte(j);
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (STRING_TABLE_SIZE - 1);
+    final String cached = strings[slot];
+    if (cached != null && matches(cached, buf, start, end)) {
+      return cached;
+    }
+    final String s = buf.toString(start, end - start, CHARSET);
+    strings[slot] = s;
+    return s;
+  }
+
+  /** @return Whether or not the string has the same ISO-8859-1 bytes. */
+  private static boolean matches(final String s, final ChannelBuffer buf,
+                                 final int start, final int end) {
+    final int n = end - start;
+    if (s.length() != n) {
+      return false;
+    }
+    for (int j = 0; j < n; j++) {
+      if (s.charAt(j) != (char) (buf.getByte(start + j) & 0xFF)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A "put" command decoded by {@link PutDataPointDecoder}.
+   * Instances are reused by the decoder, don't hold on to them.  Their map
+   * of tags can be kept as it's never modified, but it mustn't be modified
+   * either as lines with the same tags share it.
+   */
+  static final class Put {
+    /** Name of the metric. */
+    String metric;
+    /** Timestamp in seconds or milliseconds. */
+    long timestamp;
+    /** Whether the value is {@link #long_value} or {@link #float_value}. */
+    boolean is_integer;
+    long long_value;
+    float float_value;
+    /** The tags of the data point, shared by lines with the same tags. */
+    HashMap<String, String> tags;
+
+    public String toString() {
+      return "put " + metric + ' ' + timestamp + ' '
+        + (is_integer ? Long.toString(long_value) : Float.toString(float_value))
+        + ' ' + tags;
+    }
+  }
+
+}
@@ -14,14 +14,19 @@ package net.opentsdb.tsd;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
@@ -32,6 +37,7 @@ import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Config;
 
 /** Implements the "put" telnet-style command. */
 final class PutDataPointRpc implements TelnetRpc, HttpRpc {
@@ -41,16 +47,146 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
   private static final AtomicLong invalid_values = new AtomicLong();
   private static final AtomicLong illegal_arguments = new AtomicLong();
   private static final AtomicLong unknown_metrics = new AtomicLong();
+  private static final AtomicLong throttles = new AtomicLong();
+
+  /**
+   * Maximum number of data points written but not yet acknowledged by HBase
+   * per connection before we stop reading from it, 0 for no limit.
+   */
+  private final int max_inflight;
+
+  /** Number of data points in flight for each connection. */
+  private final ChannelLocal<AtomicInteger> inflight = 
+    new ChannelLocal<AtomicInteger>(true) {
+      @Override
+      protected AtomicInteger initialValue(final Channel channel) {
+        return new AtomicInteger();
+      }
+    };
+
+  /** Constructor that doesn't limit the number of points in flight. */
+  public PutDataPointRpc() {
+    max_inflight = 0;
+  }
+
+  /**
+   * Constructor.
+   * @param config The configuration to load the in-flight limit from.
+   * @since 2.0
+   */
+  public PutDataPointRpc(final Config config) {
+    max_inflight = config.getInt("tsd.core.max_inflight_points");
+  }
 
   public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
                                   final String[] cmd) {
+    return execute(tsdb, chan, cmd, null);
+  }
+
+  /**
+   * Executes a "put" command already decoded by the 
+   * {@link PutDataPointDecoder}.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the RPC was received.
+   * @param put The decoded data point, must not be used after this call.
+   * @return A deferred result.
+   * @since 2.0
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final PutDataPointDecoder.Put put) {
+    return execute(tsdb, chan, null, put);
+  }
+
+  /**
+   * Writes the data points of a frame received on a binary connection and
+   * acknowledges the frame once all of them have been written.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the frame was received.
+   * @param points The decoded data points.
+   * @return A deferred that is called back once the frame was acknowledged.
+   * @since 2.0
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final BinaryPutDecoder.Points points) {
+    requests.incrementAndGet();
+    final ArrayList<Deferred<Boolean>> writes = 
+      new ArrayList<Deferred<Boolean>>(points.size);
+    for (int i = 0; i < points.size; i++) {
+      final BinaryPutDecoder.Series series = points.series[i];
+      final long timestamp = points.timestamps[i];
+      try {
+        final Deferred<Object> write;
+        switch (points.types[i]) {
+          case BinaryPutDecoder.TYPE_LONG:
+            write = tsdb.addPointAsync(series.metric, timestamp, 
+                points.values[i], series.tags);
+            break;
+          case BinaryPutDecoder.TYPE_FLOAT:
+            write = tsdb.addPointAsync(series.metric, timestamp, 
+                Float.intBitsToFloat((int) points.values[i]), series.tags);
+            break;
+          default:
+            write = tsdb.addPointAsync(series.metric, timestamp, 
+                Double.longBitsToDouble(points.values[i]), series.tags);
+        }
+        trackInflight(chan, write);
+        writes.add(write.addCallbacks(new WriteCB(), new BinaryPutErrback()));
+      } catch (IllegalArgumentException iae) {
+        LOG.debug("Invalid data point for " + series.metric + " at " 
+            + timestamp + " on " + chan, iae);
+        illegal_arguments.incrementAndGet();
+      }
+    }
+
+    final class AckCB implements Callback<Object, ArrayList<Boolean>> {
+      public Object call(final ArrayList<Boolean> results) {
+        int written = 0;
+        for (final Boolean result : results) {
+          if (result) {
+            written++;
+          }
+        }
+        if (chan.isConnected()) {
+          // invalid points never made it to the list of writes
+          chan.write(BinaryPutDecoder.ack(points.id, written, 
+              points.size - written));
+        }
+        return null;
+      }
+      public String toString() {
+        return "acknowledge binary frame " + points.id;
+      }
+    }
+    return Deferred.group(writes).addCallback(new AckCB());
+  }
+
+  /**
+   * Imports the data point from either the split command or the decoded put
+   * and reports errors to the channel.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the RPC was received.
+   * @param cmd The command received, split, or null if {@code put} is set.
+   * @param put The decoded data point or null if {@code cmd} is set.
+   * @return A deferred result.
+   */
+  private Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                   final String[] cmd, 
+                                   final PutDataPointDecoder.Put put) {
     requests.incrementAndGet();
     String errmsg = null;
     try {
       final class PutErrback implements Callback<Exception, Exception> {
         public Exception call(final Exception arg) {
+          final Exception cause = unwrap(arg);
+          if (cause instanceof NoSuchUniqueName) {
+            if (chan.isConnected()) {
+              chan.write("put: unknown metric: " + cause.getMessage() + '\n');
+            }
+            unknown_metrics.incrementAndGet();
+            return arg;
+          }
           if (chan.isConnected()) {
-            chan.write("put: HBase error: " + arg.getMessage() + '\n');
+            chan.write("put: HBase error: " + cause.getMessage() + '\n');
           }
           hbase_errors.incrementAndGet();
           return arg;
@@ -59,16 +195,15 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           return "report error to channel";
         }
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
+      final Deferred<Object> result = cmd != null 
+        ? importDataPoint(tsdb, cmd) : importDataPoint(tsdb, put);
+      return trackInflight(chan, result).addErrback(new PutErrback());
     } catch (NumberFormatException x) {
       errmsg = "put: invalid value: " + x.getMessage() + '\n';
       invalid_values.incrementAndGet();
     } catch (IllegalArgumentException x) {
       errmsg = "put: illegal argument: " + x.getMessage() + '\n';
       illegal_arguments.incrementAndGet();
-    } catch (NoSuchUniqueName x) {
-      errmsg = "put: unknown metric: " + x.getMessage() + '\n';
-      unknown_metrics.incrementAndGet();
     }
     if (errmsg != null && chan.isConnected()) {
       chan.write(errmsg);
@@ -78,6 +213,12 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
 
   /**
    * Handles HTTP RPC put requests
+   * <p>
+   * Data points are written without blocking the I/O thread.  The reply is
+   * sent once the UIDs of every series have been resolved, so unknown
+   * metrics or tags are reported, and errors storing the points are only
+   * logged.  For a "sync" put the reply is sent once every write completed
+   * and also reports the points that failed to be stored.
    * @param tsdb The TSDB to which we belong
    * @param query The HTTP query from the user
    * @throws IOException if there is an error parsing the query or formatting 
@@ -96,19 +237,52 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           "] is not permitted for this endpoint");
     }
     
-    final List<IncomingDataPoint> dps = query.serializer().parsePutV1();
-    if (dps.size() < 1) {
+    // data points are written as they are parsed so that large requests
+    // don't have to be fully materialized in memory first
+    final Iterator<IncomingDataPoint> dps = 
+      query.serializer().parsePutStreamV1();
+    if (!dps.hasNext()) {
       throw new BadRequestException("No datapoints found in content");
     }
     
     final boolean show_details = query.hasQueryStringParam("details");
     final boolean show_summary = query.hasQueryStringParam("summary");
-    final ArrayList<HashMap<String, Object>> details = show_details
-      ? new ArrayList<HashMap<String, Object>>() : null;
-    long success = 0;
+    final boolean sync = query.hasQueryStringParam("sync");
+    // errors may be added from the callbacks of the writes
+    final List<HashMap<String, Object>> details = show_details
+      ? Collections.synchronizedList(new ArrayList<HashMap<String, Object>>())
+      : null;
+    // resolutions, or writes for sync puts, of the points we reply for.
+    // They're only kept when the reply waits for the writes or lists the
+    // errors, otherwise they're counted so that memory doesn't grow with the
+    // size of the request.
+    final ArrayList<Deferred<Boolean>> writes = sync || show_details
+      ? new ArrayList<Deferred<Boolean>>() : null;
+    // the extra pending resolution is the parsing, released once it's done
+    final AtomicLong pending = new AtomicLong(1);
+    final AtomicLong resolved = new AtomicLong();
+    final Deferred<Long> counted = new Deferred<Long>();
+
+    /** Counts a resolution and completes the count after the last one. */
+    final class CountCB implements Callback<Object, Boolean> {
+      public Object call(final Boolean ok) {
+        if (ok) {
+          resolved.incrementAndGet();
+        }
+        if (pending.decrementAndGet() == 0) {
+          counted.callback(resolved.get());
+        }
+        return null;
+      }
+      public String toString() {
+        return "count put resolution";
+      }
+    }
+    final CountCB count_cb = new CountCB();
     long total = 0;
     
-    for (IncomingDataPoint dp : dps) {
+    while (dps.hasNext()) {
+      final IncomingDataPoint dp = dps.next();
       total++;
       try {
         if (dp.getMetric() == null || dp.getMetric().isEmpty()) {
@@ -139,14 +313,24 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           LOG.warn("Missing tags: " + dp);
           continue;
         }
+        final HttpPutErrback errback = new HttpPutErrback(dp, details);
+        final Callback<Deferred<Boolean>, Object> write_cb;
         if (Tags.looksLikeInteger(dp.getValue())) {
-          tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Tags.parseLong(dp.getValue()), dp.getTags());
+          write_cb = new HttpWriteCB(tsdb, query.channel(), dp, sync, details,
+              Tags.parseLong(dp.getValue()));
+        } else {
+          write_cb = new HttpWriteCB(tsdb, query.channel(), dp, sync, details,
+              Float.parseFloat(dp.getValue()));
+        }
+        final Deferred<Boolean> write =
+          tsdb.resolveSeriesAsync(dp.getMetric(), dp.getTags())
+            .addCallbackDeferring(write_cb).addErrback(errback);
+        if (writes != null) {
+          writes.add(write);
         } else {
-          tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Float.parseFloat(dp.getValue()), dp.getTags());
+          pending.incrementAndGet();
+          write.addCallback(count_cb);
         }
-        success++;
       } catch (NumberFormatException x) {
         if (show_details) {
           details.add(this.getHttpDetails("Unable to parse value to a number", 
@@ -160,39 +344,78 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
         }
         LOG.warn(iae.getMessage() + ": " + dp);
         illegal_arguments.incrementAndGet();
-      } catch (NoSuchUniqueName nsu) {
+      }
+    }
+    
+    /** Counts the points written out of the results kept. */
+    final class CountWrittenCB implements Callback<Long, ArrayList<Boolean>> {
+      public Long call(final ArrayList<Boolean> results) {
+        long written = 0;
+        for (final Boolean result : results) {
+          if (result) {
+            written++;
+          }
+        }
+        return written;
+      }
+      public String toString() {
+        return "count put writes";
+      }
+    }
+
+    final long num_points = total;
+    final class ReplyCB implements Callback<Object, Long> {
+      public Object call(final Long written) {
+        if (!show_summary && !show_details) {
+          if (num_points - written > 0) {
+            query.badRequest(new BadRequestException(
+                HttpResponseStatus.BAD_REQUEST,
+                "One or more data points had errors", 
+                "Please see the TSD logs or append \"details\" to the put "
+                + "request"));
+          } else {
+            query.sendReply(HttpResponseStatus.NO_CONTENT, "".getBytes());
+          }
+          return null;
+        }
+        final HashMap<String, Object> summary = new HashMap<String, Object>();
+        summary.put("success", written);
+        summary.put("failed", num_points - written);
         if (show_details) {
-          details.add(this.getHttpDetails("Unknown metric", dp));
+          summary.put("errors", details);
         }
-        LOG.warn("Unknown metric: " + dp);
-        unknown_metrics.incrementAndGet();
+        
+        if (num_points - written > 0) {
+          query.sendReply(HttpResponseStatus.BAD_REQUEST, 
+              query.serializer().formatPutV1(summary));
+        } else {
+          query.sendReply(query.serializer().formatPutV1(summary));
+        }
+        return null;
+      }
+      public String toString() {
+        return "reply to put request";
       }
     }
     
-    final long failures = total - success;
-    if (!show_summary && !show_details) {
-      if (failures > 0) {
-        throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
-            "One or more data points had errors", 
-            "Please see the TSD logs or append \"details\" to the put request");
-      } else {
-        query.sendReply(HttpResponseStatus.NO_CONTENT, "".getBytes());
-      }
-    } else {
-      final HashMap<String, Object> summary = new HashMap<String, Object>();
-      summary.put("success", success);
-      summary.put("failed", failures);
-      if (show_details) {
-        summary.put("errors", details);
+    final class ReplyErrback implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        query.internalError(e);
+        return null;
       }
-      
-      if (failures > 0) {
-        query.sendReply(HttpResponseStatus.BAD_REQUEST, 
-            query.serializer().formatPutV1(summary));
-      } else {
-        query.sendReply(query.serializer().formatPutV1(summary));
+      public String toString() {
+        return "report put reply error";
       }
     }
+    
+    final Deferred<Long> written;
+    if (writes != null) {
+      written = Deferred.group(writes).addCallback(new CountWrittenCB());
+    } else {
+      count_cb.call(false);  // done parsing, which isn't a point written
+      written = counted;
+    }
+    written.addCallback(new ReplyCB()).addErrback(new ReplyErrback());
   }
   
   /**
@@ -205,6 +428,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     collector.record("rpc.errors", invalid_values, "type=invalid_values");
     collector.record("rpc.errors", illegal_arguments, "type=illegal_arguments");
     collector.record("rpc.errors", unknown_metrics, "type=unknown_metrics");
+    collector.record("rpc.throttled", throttles, "type=put");
   }
 
   /**
@@ -215,7 +439,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
    * @return A deferred object that indicates the completion of the request.
    * @throws NumberFormatException if the timestamp or value is invalid.
    * @throws IllegalArgumentException if any other argument is invalid.
-   * @throws NoSuchUniqueName if the metric isn't registered.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered.
    */
   private Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
     words[0] = null; // Ditch the "put".
@@ -248,9 +472,227 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
       }
     }
     if (Tags.looksLikeInteger(value)) {
-      return tsdb.addPoint(metric, timestamp, Tags.parseLong(value), tags);
+      return tsdb.addPointAsync(metric, timestamp, Tags.parseLong(value), 
+          tags);
     } else {  // floating point value
-      return tsdb.addPoint(metric, timestamp, Float.parseFloat(value), tags);
+      return tsdb.addPointAsync(metric, timestamp, Float.parseFloat(value), 
+          tags);
+    }
+  }
+
+  /**
+   * Imports a single data point decoded by the {@link PutDataPointDecoder}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param put The decoded data point.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered.
+   */
+  private Deferred<Object> importDataPoint(final TSDB tsdb, 
+      final PutDataPointDecoder.Put put) {
+    if (put.is_integer) {
+      return tsdb.addPointAsync(put.metric, put.timestamp, put.long_value, 
+          put.tags);
+    } else {
+      return tsdb.addPointAsync(put.metric, put.timestamp, put.float_value, 
+          put.tags);
+    }
+  }
+
+  /**
+   * Counts a write as in flight on the connection it came from until HBase
+   * acknowledges it.  Once {@link #max_inflight} points are pending we stop
+   * reading from the connection, pushing back on the client, and resume when
+   * half of them have completed.
+   * @param chan The connection the data point was received on.
+   * @param write The pending write.
+   * @return The same deferred, for chaining.
+   */
+  private Deferred<Object> trackInflight(final Channel chan, 
+                                         final Deferred<Object> write) {
+    if (max_inflight < 1) {
+      return write;
+    }
+    final AtomicInteger pending = inflight.get(chan);
+    final int resume_at = max_inflight / 2;
+    if (pending.incrementAndGet() >= max_inflight && chan.isReadable()) {
+      chan.setReadable(false);
+      throttles.incrementAndGet();
+      LOG.debug("Throttling " + chan + " with " + max_inflight 
+          + " data points in flight");
+      // the writes may all have completed before we stopped reading
+      if (pending.get() <= resume_at) {
+        chan.setReadable(true);
+      }
+    }
+
+    final class InflightCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        if (pending.decrementAndGet() <= resume_at && !chan.isReadable()
+            && chan.isOpen()) {
+          chan.setReadable(true);
+        }
+        return arg;
+      }
+      public String toString() {
+        return "decrement in flight points for " + chan;
+      }
+    }
+    return write.addBoth(new InflightCB());
+  }
+
+  /**
+   * Unwraps the exception that caused a write to fail, UID lookups for the
+   * tags are grouped so their errors come wrapped.
+   * @param e The exception the write failed with.
+   * @return The original cause of the failure.
+   */
+  private static Exception unwrap(Exception e) {
+    while (e instanceof DeferredGroupException 
+        && e.getCause() instanceof Exception) {
+      e = (Exception) e.getCause();
+    }
+    return e;
+  }
+
+  /** Flags a data point as successfully stored. */
+  private static final class WriteCB implements Callback<Boolean, Object> {
+    public Boolean call(final Object arg) {
+      return true;
+    }
+    public String toString() {
+      return "write success";
+    }
+  }
+
+  /**
+   * Counts a data point from a binary connection that could not be written.
+   * Those are only logged at debug level as the client finds out about them
+   * through the acknowledgement of the frame.
+   */
+  private static final class BinaryPutErrback 
+    implements Callback<Boolean, Exception> {
+    public Boolean call(final Exception arg) {
+      final Exception cause = unwrap(arg);
+      if (cause instanceof NoSuchUniqueName) {
+        unknown_metrics.incrementAndGet();
+      } else {
+        hbase_errors.incrementAndGet();
+      }
+      LOG.debug("Failed to write a data point from a binary frame", cause);
+      return false;
+    }
+    public String toString() {
+      return "binary put error";
+    }
+  }
+
+  /**
+   * Writes a data point from HTTP once its series has been resolved.  For
+   * sync puts the deferred returned waits for the write, otherwise the point
+   * counts as successful right away and storage errors are only logged.
+   */
+  private final class HttpWriteCB 
+    implements Callback<Deferred<Boolean>, Object> {
+    private final TSDB tsdb;
+    private final Channel chan;
+    private final IncomingDataPoint dp;
+    private final boolean sync;
+    private final List<HashMap<String, Object>> details;
+    private final boolean is_integer;
+    private final long long_value;
+    private final float float_value;
+
+    HttpWriteCB(final TSDB tsdb, final Channel chan, 
+                final IncomingDataPoint dp, final boolean sync,
+                final List<HashMap<String, Object>> details, 
+                final long value) {
+      this.tsdb = tsdb;
+      this.chan = chan;
+      this.dp = dp;
+      this.sync = sync;
+      this.details = details;
+      is_integer = true;
+      long_value = value;
+      float_value = 0;
+    }
+
+    HttpWriteCB(final TSDB tsdb, final Channel chan, 
+                final IncomingDataPoint dp, final boolean sync,
+                final List<HashMap<String, Object>> details, 
+                final float value) {
+      this.tsdb = tsdb;
+      this.chan = chan;
+      this.dp = dp;
+      this.sync = sync;
+      this.details = details;
+      is_integer = false;
+      long_value = 0;
+      float_value = value;
+    }
+
+    public Deferred<Boolean> call(final Object resolved) {
+      final Deferred<Object> write;
+      try {
+        write = is_integer
+          ? tsdb.addPointAsync(dp.getMetric(), dp.getTimestamp(), long_value, 
+              dp.getTags())
+          : tsdb.addPointAsync(dp.getMetric(), dp.getTimestamp(), float_value,
+              dp.getTags());
+      } catch (IllegalArgumentException iae) {
+        if (details != null) {
+          details.add(getHttpDetails(iae.getMessage(), dp));
+        }
+        LOG.warn(iae.getMessage() + ": " + dp);
+        illegal_arguments.incrementAndGet();
+        return Deferred.fromResult(false);
+      }
+      trackInflight(chan, write);
+      if (sync) {
+        return write.addCallbacks(new WriteCB(), 
+                                  new HttpPutErrback(dp, details));
+      }
+      write.addErrback(new HttpPutErrback(dp, null));
+      return Deferred.fromResult(true);
+    }
+    public String toString() {
+      return "http put write for " + dp;
+    }
+  }
+
+  /**
+   * Logs and counts a data point from HTTP that could not be written, adding
+   * it to the details of the reply if they were requested.
+   */
+  private final class HttpPutErrback implements Callback<Boolean, Exception> {
+    private final IncomingDataPoint dp;
+    private final List<HashMap<String, Object>> details;
+
+    HttpPutErrback(final IncomingDataPoint dp,
+                   final List<HashMap<String, Object>> details) {
+      this.dp = dp;
+      this.details = details;
+    }
+
+    public Boolean call(final Exception arg) {
+      final Exception cause = unwrap(arg);
+      final String message;
+      if (cause instanceof NoSuchUniqueName) {
+        message = "Unknown metric";
+        unknown_metrics.incrementAndGet();
+        LOG.warn(message + ": " + dp);
+      } else {
+        message = "Storage error";
+        hbase_errors.incrementAndGet();
+        LOG.warn(message + ": " + dp, cause);
+      }
+      if (details != null) {
+        details.add(getHttpDetails(message, dp));
+      }
+      return false;
+    }
+    public String toString() {
+      return "http put error for " + dp;
     }
   }
 
@@ -25,9 +25,11 @@ import org.slf4j.LoggerFactory;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.core.DataPoints;
-import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryLimitException;
+import net.opentsdb.core.QueryLimits;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -90,62 +92,121 @@ final class QueryRpc implements HttpRpc {
           e.getMessage(), data_query.toString(), e);
     }
     
-    Query[] tsdbqueries = data_query.buildQueries(tsdb);
-    final int nqueries = tsdbqueries.length;
-    final ArrayList<DataPoints[]> results = 
-      new ArrayList<DataPoints[]>(nqueries);
+    switch (query.apiVersion()) {
+    case 0:
+    case 1:
+      break;
+    default: 
+      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+          "Requested API version not implemented", "Version " + 
+          query.apiVersion() + " is not implemented");
+    }
+    
+    final QueryLimits limits =
+      QueryLimits.fromConfig(tsdb.getConfig(), "query");
+    data_query.setLimits(limits);
+    releaseAfterReply(query, limits);
+    final int nqueries = data_query.getQueries().size();
     final ArrayList<Deferred<DataPoints[]>> deferreds =
       new ArrayList<Deferred<DataPoints[]>>(nqueries);
     
     for (int i = 0; i < nqueries; i++) {
-      deferreds.add(tsdbqueries[i].runAsync());
+      deferreds.add(tsdb.runQuery(data_query, i));
     }
 
+    // if the user wants global annotations, we fetch them while the data is
+    // being scanned
+    final Deferred<List<Annotation>> globals;
+    if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
+      globals = Annotation.getGlobalAnnotations(tsdb, 
+          data_query.startTime() / 1000, data_query.endTime() / 1000);
+    } else {
+      globals = Deferred.fromResult(null);
+    }
+    
     /**
-    * After all of the queries have run, we get the results in the order given
-    * and add dump the results in an array
-    */
-    class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
-      public Object call(final ArrayList<DataPoints[]> query_results) 
-        throws Exception {
-        results.addAll(query_results);
+     * Sends the reply once we have both the data and the global annotations
+     */
+    class GlobalsCB implements Callback<Object, List<Annotation>> {
+      final ArrayList<DataPoints[]> results;
+      
+      GlobalsCB(final ArrayList<DataPoints[]> results) {
+        this.results = results;
+      }
+      
+      public Object call(final List<Annotation> globals) {
+        query.serializer().sendQueryV1(data_query, results, globals);
         return null;
       }
     }
     
-    // if the user wants global annotations, we need to scan and fetch
-    // TODO(cl) need to async this at some point. It's not super straight
-    // forward as we can't just add it to the "deferreds" queue since the types
-    // are different.
-    List<Annotation> globals = null;
-    if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
-      try {
-        globals = Annotation.getGlobalAnnotations(tsdb, 
-            data_query.startTime() / 1000, data_query.endTime() / 1000)
-            .joinUninterruptibly();
-      } catch (Exception e) {
-        throw new RuntimeException("Shouldn't be here", e);
+    /**
+    * After all of the queries have run, we get the results in the order given
+    * and wait for the global annotations
+    */
+    class QueriesCB 
+      implements Callback<Deferred<Object>, ArrayList<DataPoints[]>> {
+      public Deferred<Object> call(final ArrayList<DataPoints[]> results) {
+        return globals.addCallback(new GlobalsCB(results));
       }
     }
     
-    try {
-      Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
-        .joinUninterruptibly();
-    } catch (Exception e) {
-      throw new RuntimeException("Shouldn't be here", e);
+    /** Replies with the first error we ran into */
+    class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        Throwable ex = e;
+        while (ex instanceof DeferredGroupException) {
+          ex = ex.getCause();
+        }
+        if (ex instanceof BadRequestException) {
+          query.badRequest((BadRequestException) ex);
+        } else if (ex instanceof QueryLimitException) {
+          query.badRequest(limitExceeded((QueryLimitException) ex));
+        } else {
+          query.internalError(ex instanceof Exception ? (Exception) ex : e);
+        }
+        return null;
+      }
     }
     
-    switch (query.apiVersion()) {
-    case 0:
-    case 1:
-      query.sendReply(query.serializer().formatQueryV1(data_query, results, 
-          globals));
-      break;
-    default: 
-      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
-          "Requested API version not implemented", "Version " + 
-          query.apiVersion() + " is not implemented");
+    // nothing blocks here, the reply is sent from the callbacks so that we
+    // don't hold up the I/O thread while HBase works
+    Deferred.groupInOrder(deferreds).addCallbackDeferring(new QueriesCB())
+      .addErrback(new ErrorCB());
+  }
+
+  /**
+   * Turns a query aborted for going over its limits into an error for the
+   * client: 413 if it asked for too much data, 400 if it ran out of time.
+   * @param e The exception the query failed with.
+   * @return The error to reply with.
+   */
+  static BadRequestException limitExceeded(final QueryLimitException e) {
+    return new BadRequestException(e.isTimeout()
+        ? HttpResponseStatus.BAD_REQUEST
+        : HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getMessage(),
+        "Narrow the time range, filter on more tags or downsample the query",
+        e);
+  }
+
+  /**
+   * Releases the memory held by the results of a query once its reply was
+   * written, as serializing and streaming the reply still hold them.
+   * @param query The HTTP query being answered.
+   * @param limits The limits the data was accounted for in.
+   */
+  static void releaseAfterReply(final HttpQuery query,
+                                final QueryLimits limits) {
+    class ReleaseCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        limits.release();
+        return arg;
+      }
+      public String toString() {
+        return "release the bytes held by " + query;
+      }
     }
+    query.getDeferred().addBoth(new ReleaseCB());
   }
 
   /**
@@ -181,6 +242,21 @@ final class QueryRpc implements HttpRpc {
       data_query.setMsResolution(true);
     }
     
+    if (query.hasQueryStringParam("scan_parallelism")) {
+      final String parallelism = query.getQueryStringParam("scan_parallelism");
+      try {
+        data_query.setScanParallelism(Integer.parseInt(parallelism));
+      } catch (NumberFormatException e) {
+        throw new BadRequestException(
+            "Scan parallelism was not a number, received '" + parallelism 
+            + "'");
+      }
+    }
+    
+    if (query.hasQueryStringParam("preaggregates")) {
+      data_query.setPreAggregates(true);
+    }
+    
     // handle tsuid queries first
     if (query.hasQueryStringParam("tsuid")) {
       final List<String> tsuids = query.getQueryStringParams("tsuid");     
@@ -48,12 +48,18 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
   private static final AtomicLong telnet_rpcs_received = new AtomicLong();
   private static final AtomicLong http_rpcs_received = new AtomicLong();
+  private static final AtomicLong binary_rpcs_received = new AtomicLong();
   private static final AtomicLong exceptions_caught = new AtomicLong();
 
   /** Commands we can serve on the simple, telnet-style RPC interface. */
   private final HashMap<String, TelnetRpc> telnet_commands;
   /** RPC executed when there's an unknown telnet-style command. */
   private final TelnetRpc unknown_cmd = new Unknown();
+  /**
+   * RPC executed for "put" commands decoded by the PutDataPointDecoder and
+   * for data points received on binary connections.
+   */
+  private final PutDataPointRpc put_cmd;
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
   /** List of domains to allow access to HTTP. By default this will be empty and
@@ -72,6 +78,7 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
    */
   public RpcHandler(final TSDB tsdb) {
     this.tsdb = tsdb;
+    put_cmd = new PutDataPointRpc(tsdb.getConfig());
 
     final String cors = tsdb.getConfig().getString("tsd.http.request.cors_domains");
     if (cors == null || cors.isEmpty()) {
@@ -124,11 +131,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    {
-      final PutDataPointRpc put = new PutDataPointRpc();
-      telnet_commands.put("put", put);
-      http_commands.put("api/put", put);
-    }
+    telnet_commands.put("put", put_cmd);
+    http_commands.put("api/put", put_cmd);
 
     http_commands.put("", new HomePage());
     {
@@ -157,7 +161,15 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
                               final MessageEvent msgevent) {
     try {
       final Object message = msgevent.getMessage();
-      if (message instanceof String[]) {
+      if (message instanceof PutDataPointDecoder.Put) {
+        telnet_rpcs_received.incrementAndGet();
+        put_cmd.execute(tsdb, msgevent.getChannel(), 
+            (PutDataPointDecoder.Put) message);
+      } else if (message instanceof BinaryPutDecoder.Points) {
+        binary_rpcs_received.incrementAndGet();
+        put_cmd.execute(tsdb, msgevent.getChannel(), 
+            (BinaryPutDecoder.Points) message);
+      } else if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
@@ -272,6 +284,7 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   public static void collectStats(final StatsCollector collector) {
     collector.record("rpc.received", telnet_rpcs_received, "type=telnet");
     collector.record("rpc.received", http_rpcs_received, "type=http");
+    collector.record("rpc.received", binary_rpcs_received, "type=binary");
     collector.record("rpc.exceptions", exceptions_caught);
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
@@ -384,25 +384,63 @@ public class Config {
     default_map.put("tsd.network.keep_alive", "true");
     default_map.put("tsd.network.reuse_address", "true");
     default_map.put("tsd.core.auto_create_metrics", "false");
+    default_map.put("tsd.core.max_inflight_points", "0");
     default_map.put("tsd.core.meta.enable_realtime_ts", "false");
     default_map.put("tsd.core.meta.enable_realtime_uid", "false");
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
     default_map.put("tsd.core.meta.enable_tsuid_tracking", "false");
     default_map.put("tsd.core.plugin_path", "");
+    default_map.put("tsd.core.row_key_cache_size", "100000");
     default_map.put("tsd.core.tree.enable_processing", "false");
+    default_map.put("tsd.preaggregate.enable", "false");
+    default_map.put("tsd.preaggregate.flush_delay", "60");
+    default_map.put("tsd.preaggregate.interval", "1m");
+    default_map.put("tsd.preaggregate.rules", "");
+    default_map.put("tsd.query.cache.bucket_size", "3600");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.max_bytes", "67108864");
+    default_map.put("tsd.query.cache.settle_time", "3600");
+    default_map.put("tsd.query.cache.ttl", "10");
+    default_map.put("tsd.query.limits.global.max_bytes", "0");
+    default_map.put("tsd.query.limits.max_bytes", "0");
+    default_map.put("tsd.query.limits.max_data_points", "0");
+    default_map.put("tsd.query.limits.max_rows", "0");
+    default_map.put("tsd.query.limits.max_time", "0");
+    default_map.put("tsd.query.scan_parallelism", "1");
+    default_map.put("tsd.rollups.enable", "false");
+    default_map.put("tsd.rollups.intervals", "1m,1h");
+    default_map.put("tsd.rollups.query_delay", "7200");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
     default_map.put("tsd.search.plugin", "");
     default_map.put("tsd.stats.canonical", "false");
+    default_map.put("tsd.storage.coalesce_window", "0");
     default_map.put("tsd.storage.flush_interval", "1000");
     default_map.put("tsd.storage.hbase.data_table", "tsdb");
     default_map.put("tsd.storage.hbase.uid_table", "tsdb-uid");
     default_map.put("tsd.storage.hbase.tree_table", "tsdb-tree");
     default_map.put("tsd.storage.hbase.meta_table", "tsdb-meta");
+    default_map.put("tsd.storage.hbase.rollup_table", "tsdb-rollup");
+    default_map.put("tsd.storage.hbase.preaggregate_table", "tsdb-preagg");
     default_map.put("tsd.storage.hbase.zk_quorum", "localhost");
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.enable_compaction", "true");
+    default_map.put("tsd.storage.compaction.flush_interval", "10");
+    default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
+    default_map.put("tsd.storage.compaction.max_queue_bytes", "268435456");
+    default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
+    default_map.put("tsd.storage.compaction.target_latency", "1000");
+    default_map.put("tsd.storage.compaction.write_back", "false");
+    default_map.put("tsd.storage.compaction.write_back_grace", "60");
+    default_map.put("tsd.storage.compaction.write_back_max_bytes",
+        "268435456");
+    default_map.put("tsd.storage.spool.enable", "false");
+    default_map.put("tsd.storage.spool.directory", "");
+    default_map.put("tsd.storage.spool.segment_size", "67108864");
+    default_map.put("tsd.storage.spool.max_size", "1073741824");
+    default_map.put("tsd.storage.spool.replay_rate", "5000");
     default_map.put("tsd.http.show_stack_trace", "true");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
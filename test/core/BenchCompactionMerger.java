@@ -0,0 +1,100 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Compares the k-way merge of {@link CompactionMerger} with the sort of
+ * {@link CompactionQueue#sortCompact} on partially compacted rows.
+ * <p>
+ * Usage: {@code BenchCompactionMerger [points per row] [columns] [rounds]}.
+ * The rows are in milliseconds, with the data points interleaved across the
+ * columns, which is the worst case for both implementations.
+ */
+public final class BenchCompactionMerger {
+  private static final byte[] KEY = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  public static void main(final String[] args) {
+    final int npoints = args.length > 0 ? Integer.parseInt(args[0]) : 360000;
+    final int ncols = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+    final ArrayList<KeyValue> row = makeRow(npoints, ncols);
+    System.out.println("Row of " + npoints + " data points in " + ncols
+                       + " columns, " + rounds + " rounds");
+    // Warm up, then measure.
+    for (int i = 0; i < 2; i++) {
+      run("sort", row, rounds, false);
+      run("merge", row, rounds, true);
+    }
+  }
+
+  private static void run(final String name, final ArrayList<KeyValue> row,
+                          final int rounds, final boolean merge) {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final long allocated_before = allocatedBytes(threads);
+    final long start = System.nanoTime();
+    long checksum = 0;
+    for (int i = 0; i < rounds; i++) {
+      final ArrayList<KeyValue> copy = new ArrayList<KeyValue>(row);
+      final KeyValue kv = merge ? CompactionMerger.merge(copy, false)
+        : CompactionQueue.sortCompact(copy, copy.size(), false);
+      checksum += kv.value().length;
+    }
+    final long elapsed = System.nanoTime() - start;
+    final long allocated = allocatedBytes(threads) - allocated_before;
+    System.out.println(String.format("%-6s %8.2f ms/row %10d KB/row "
+        + "(checksum %d)", name, elapsed / 1e6 / rounds,
+        allocated < 0 ? -1 : allocated / 1024 / rounds, checksum));
+  }
+
+  /** @return The bytes allocated by this thread, or -1 if unsupported. */
+  private static long allocatedBytes(final ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /** @return A row with the data points spread round-robin over columns. */
+  private static ArrayList<KeyValue> makeRow(final int npoints,
+                                             final int ncols) {
+    final int per_col = (npoints + ncols - 1) / ncols;
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(ncols);
+    for (int c = 0; c < ncols; c++) {
+      final byte[] qualifier = new byte[per_col * 4];
+      final byte[] value = new byte[per_col * 8 + 1];
+      int n = 0;
+      for (int i = c; i < npoints && n < per_col; i += ncols, n++) {
+        final int delta = (int) ((long) i * 3600000 / npoints);
+        Bytes.setInt(qualifier,
+            0xF0000000 | delta << Const.MS_FLAG_BITS | 0x7, n * 4);
+        Bytes.setLong(value, i, n * 8);
+      }
+      final byte[] q = new byte[n * 4];
+      System.arraycopy(qualifier, 0, q, 0, q.length);
+      final byte[] v = new byte[n * 8 + 1];
+      System.arraycopy(value, 0, v, 0, n * 8);
+      row.add(new KeyValue(KEY, FAMILY, q, v));
+    }
+    return row;
+  }
+}
@@ -0,0 +1,106 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Measures the iteration of a {@link SpanGroup} aggregating many spans.
+ * <p>
+ * Usage: {@code BenchSpanGroup [points per span] [rounds]}.
+ * Each span has one data point per minute over an hour, shifted by a few
+ * seconds from one span to the next so that the spans interleave and most
+ * data points of the group come from a different span, as with a group by
+ * over many hosts.  The group is iterated with and without a rate for 10, 1k
+ * and 10k spans.
+ */
+public final class BenchSpanGroup {
+  private static final byte[] FAMILY = { 't' };
+  private static final long BASE_TIME = 1356998400L;
+
+  public static void main(final String[] args) throws Exception {
+    final int npoints = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.core.auto_create_metrics", "true");
+    final TSDB tsdb = new TSDB(config);
+    try {
+      for (final int nspans : new int[] { 10, 1000, 10000 }) {
+        final ArrayList<Span> spans = makeSpans(tsdb, nspans, npoints);
+        System.out.println(nspans + " spans of " + npoints + " data points, "
+                           + rounds + " rounds");
+        // Warm up, then measure.
+        for (int i = 0; i < 2; i++) {
+          run(tsdb, spans, rounds, false, i > 0);
+          run(tsdb, spans, rounds, true, i > 0);
+        }
+      }
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+  }
+
+  private static void run(final TSDB tsdb, final ArrayList<Span> spans,
+                          final int rounds, final boolean rate,
+                          final boolean print) {
+    final SpanGroup group = new SpanGroup(tsdb, BASE_TIME,
+        BASE_TIME + 3600, spans, rate, Aggregators.SUM, 0, null);
+    final long start = System.nanoTime();
+    long count = 0;
+    double checksum = 0;
+    for (int i = 0; i < rounds; i++) {
+      final SeekableView it = group.iterator();
+      while (it.hasNext()) {
+        checksum += it.next().toDouble();
+        count++;
+      }
+    }
+    final long elapsed = System.nanoTime() - start;
+    if (print) {
+      System.out.println(String.format("%-7s %10.2f ms/round %10.0f points/s"
+          + " (checksum %.0f)", rate ? "rate" : "sum", elapsed / 1e6 / rounds,
+          count * 1e9 / elapsed, checksum));
+    }
+  }
+
+  /** @return Spans of one compacted row each, with integer values. */
+  private static ArrayList<Span> makeSpans(final TSDB tsdb, final int nspans,
+                                           final int npoints) {
+    final short metric_width = tsdb.metrics.width();
+    final ArrayList<Span> spans = new ArrayList<Span>(nspans);
+    for (int s = 0; s < nspans; s++) {
+      final byte[] key = new byte[metric_width + Const.TIMESTAMP_BYTES + 6];
+      key[metric_width - 1] = 1;
+      Bytes.setInt(key, (int) BASE_TIME, metric_width);
+      key[metric_width + Const.TIMESTAMP_BYTES + 2] = 1;
+      Bytes.setShort(key, (short) s, metric_width + Const.TIMESTAMP_BYTES + 4);
+      final byte[] qualifier = new byte[npoints * 2];
+      final byte[] value = new byte[npoints * 8 + 1];
+      for (int i = 0; i < npoints; i++) {
+        final int delta = (i * 60 + s % 60) % 3600;
+        Bytes.setShort(qualifier,
+            (short) (delta << Const.FLAG_BITS | 0x7), i * 2);
+        Bytes.setLong(value, s + i, i * 8);
+      }
+      final Span span = new Span(tsdb);
+      span.addRow(new KeyValue(key, FAMILY, qualifier, value));
+      spans.add(span);
+    }
+    return spans;
+  }
+}
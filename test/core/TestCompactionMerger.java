@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestCompactionMerger {
+  private static final byte[] KEY = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void mergeCompactedAndSingle() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(sec(0, 4), sec(20, 4)));
+    row.add(sec(10, 4));
+    row.add(compacted(sec(5, 4), sec(30, 4)));
+    final KeyValue kv = CompactionMerger.merge(row, false);
+    assertArrayEquals(concat(sec(0, 4).qualifier(), sec(5, 4).qualifier(),
+        sec(10, 4).qualifier(), sec(20, 4).qualifier(),
+        sec(30, 4).qualifier()), kv.qualifier());
+    assertArrayEquals(concat(sec(0, 4).value(), sec(5, 4).value(),
+        sec(10, 4).value(), sec(20, 4).value(), sec(30, 4).value(),
+        new byte[] { 0 }), kv.value());
+  }
+
+  @Test
+  public void mergeDuplicates() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(sec(0, 4), sec(10, 4)));
+    row.add(sec(10, 4));
+    final KeyValue kv = CompactionMerger.merge(row, false);
+    assertArrayEquals(concat(sec(0, 4).qualifier(), sec(10, 4).qualifier()),
+        kv.qualifier());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void mergeConflictingDuplicates() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(sec(0, 4), sec(10, 4)));
+    row.add(new KeyValue(KEY, FAMILY, sec(10, 4).qualifier(),
+                         new byte[] { 0, 0, 0, 42 }));
+    CompactionMerger.merge(row, false);
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void mergeCorruptedValue() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    final KeyValue compacted = compacted(sec(0, 4), sec(10, 4));
+    row.add(new KeyValue(KEY, FAMILY, compacted.qualifier(),
+                         new byte[] { 1, 2, 3 }));
+    row.add(sec(20, 4));
+    CompactionMerger.merge(row, false);
+  }
+
+  @Test
+  public void mergeUnsortedColumn() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(sec(10, 4), sec(0, 4)));
+    row.add(sec(20, 4));
+    assertNull(CompactionMerger.merge(row, false));
+    // the sort still compacts it
+    final KeyValue kv = CompactionQueue.complexCompact(row, 3, false);
+    assertArrayEquals(concat(sec(0, 4).qualifier(), sec(10, 4).qualifier(),
+        sec(20, 4).qualifier()), kv.qualifier());
+  }
+
+  @Test
+  public void mergeFixesFloats() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(compacted(sec(0, 4), sec(20, 4)));
+    // a float flagged as 4 bytes but stored on 8
+    row.add(new KeyValue(KEY, FAMILY, new byte[] { 0, (byte) 0xAB },
+        new byte[] { 0, 0, 0, 0, 0x3F, (byte) 0x80, 0, 0 }));
+    final KeyValue kv = CompactionMerger.merge(row, false);
+    assertArrayEquals(concat(sec(0, 4).value(),
+        new byte[] { 0x3F, (byte) 0x80, 0, 0 }, sec(20, 4).value(),
+        new byte[] { 0 }), kv.value());
+  }
+
+  @Test
+  public void sameAsSort() throws Exception {
+    final Random random = new Random(42);
+    for (int n = 0; n < 500; n++) {
+      final boolean ms = random.nextBoolean();
+      final boolean s = !ms || random.nextBoolean();
+      final ArrayList<KeyValue> row = randomRow(random, s, ms);
+      final ArrayList<KeyValue> copy = new ArrayList<KeyValue>(row);
+      final KeyValue expected =
+        CompactionQueue.sortCompact(copy, 16, s && ms);
+      final KeyValue actual = CompactionMerger.merge(row, s && ms);
+      assertArrayEquals(expected.qualifier(), actual.qualifier());
+      assertArrayEquals(expected.value(), actual.value());
+      for (int i = 0; i < row.size(); i++) {
+        assertArrayEquals(copy.get(i).qualifier(), row.get(i).qualifier());
+      }
+    }
+  }
+
+  /**
+   * Spreads random data points, some of them duplicated, over up to 6
+   * sorted columns.
+   */
+  private static ArrayList<KeyValue> randomRow(final Random random,
+                                               final boolean s,
+                                               final boolean ms) {
+    final int ncols = 2 + random.nextInt(5);
+    final ArrayList<ArrayList<KeyValue>> cols =
+      new ArrayList<ArrayList<KeyValue>>();
+    for (int i = 0; i < ncols; i++) {
+      cols.add(new ArrayList<KeyValue>());
+    }
+    int time = 0;  // ms
+    final int npoints = ncols + random.nextInt(100);
+    for (int i = 0; i < npoints; i++) {
+      time += 1000 * (1 + random.nextInt(3));
+      final int length = 1 << random.nextInt(4);
+      final KeyValue point = s && (!ms || random.nextBoolean())
+        ? sec(time / 1000, length) : ms(time + random.nextInt(999), length);
+      cols.get(i < ncols ? i : random.nextInt(ncols)).add(point);
+      if (random.nextInt(10) == 0) {
+        cols.get(random.nextInt(ncols)).add(point);
+      }
+    }
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    for (final ArrayList<KeyValue> col : cols) {
+      Collections.sort(col, new Internal.KeyValueComparator());
+      row.add(col.size() == 1 ? col.get(0)
+              : compacted(col.toArray(new KeyValue[col.size()])));
+    }
+    return row;
+  }
+
+  /** @return A data point in seconds with an integer value. */
+  private static KeyValue sec(final int delta, final int length) {
+    final byte[] value = new byte[length];
+    value[length - 1] = (byte) delta;
+    return new KeyValue(KEY, FAMILY,
+        Bytes.fromShort((short) (delta << Const.FLAG_BITS | (length - 1))),
+        value);
+  }
+
+  /** @return A data point in milliseconds with an integer value. */
+  private static KeyValue ms(final int delta, final int length) {
+    final byte[] value = new byte[length];
+    value[length - 1] = (byte) delta;
+    return new KeyValue(KEY, FAMILY,
+        Bytes.fromInt(0xF0000000 | delta << Const.MS_FLAG_BITS | (length - 1)),
+        value);
+  }
+
+  /** @return A compacted column of the given data points. */
+  private static KeyValue compacted(final KeyValue... points) {
+    final byte[][] quals = new byte[points.length][];
+    final byte[][] values = new byte[points.length + 1][];
+    for (int i = 0; i < points.length; i++) {
+      quals[i] = points[i].qualifier();
+      values[i] = points[i].value();
+    }
+    values[points.length] = new byte[] { 0 };
+    return new KeyValue(KEY, FAMILY, concat(quals), concat(values));
+  }
+
+  private static byte[] concat(final byte[]... arrays) {
+    int length = 0;
+    for (final byte[] array : arrays) {
+      length += array.length;
+    }
+    final byte[] result = new byte[length];
+    int i = 0;
+    for (final byte[] array : arrays) {
+      System.arraycopy(array, 0, result, i, array.length);
+      i += array.length;
+    }
+    return result;
+  }
+}
@@ -13,8 +13,12 @@
 package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Deferred;
 
@@ -22,6 +26,7 @@ import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
@@ -30,9 +35,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -53,7 +60,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
                   "com.sum.*", "org.xml.*"})
 @PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
                   TSDB.class, UniqueId.class, Config.class })
-final class TestCompactionQueue {
+public final class TestCompactionQueue {
 
   private TSDB tsdb = mock(TSDB.class);
   private Config config = mock(Config.class);
@@ -74,6 +81,18 @@ final class TestCompactionQueue {
     PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
       .thenReturn(mock(CompactionQueue.Thrd.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
+    when(config.getInt("tsd.storage.compaction.flush_interval"))
+      .thenReturn(10);
+    when(config.getInt("tsd.storage.compaction.min_flush_threshold"))
+      .thenReturn(100);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10000);
+    when(config.getInt("tsd.storage.compaction.flush_speed")).thenReturn(2);
+    when(config.getInt("tsd.storage.compaction.target_latency"))
+      .thenReturn(1000);
+    when(config.getLong("tsd.storage.compaction.max_queue_bytes"))
+      .thenReturn(Long.MAX_VALUE);
+    when(tsdb.metrics.width()).thenReturn((short) 3);
     compactionq = new CompactionQueue(tsdb);
 
     when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
@@ -771,10 +790,270 @@ final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(KEY, new byte[][] { qual12, qual34, qual56 });
   }
   
+  @Test
+  public void writeBack() throws Exception {
+    final byte[] key = setupWriteBack(Long.MAX_VALUE);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    compactionq.add(key, Bytes.getUnsignedInt(key, 3), qual2, val2);
+    compactionq.add(key, Bytes.getUnsignedInt(key, 3), qual1, val1);
+    // overwritten, the last value wins
+    compactionq.add(key, Bytes.getUnsignedInt(key, 3), qual1, val1);
+    assertEquals(1, compactionq.size());
+
+    flushAll();
+    // The row was never read back.
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(key, MockBase.concatByteArrays(qual1, qual2),
+        MockBase.concatByteArrays(val1, val2, ZERO));
+    final ArgumentCaptor<byte[][]> deleted = 
+      ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb, times(1)).delete(eq(key), deleted.capture());
+    assertArrayEquals(new byte[][] { qual1, qual2 }, deleted.getValue());
+    assertEquals(0, compactionq.size());
+    assertEquals(0L, ((AtomicLong) Whitebox.getInternalState(compactionq, 
+        "write_back_bytes")).get());
+  }
+
+  @Test
+  public void writeBackLateData() throws Exception {
+    setupWriteBack(Long.MAX_VALUE);
+    // this row is due for compaction already so it may have been compacted
+    compactionq.add(KEY, Bytes.getUnsignedInt(KEY, 3), new byte[] { 0, 7 }, 
+        Bytes.fromLong(4L));
+    flushAll();
+    verify(tsdb, times(1)).get(KEY);
+  }
+
+  @Test
+  public void writeBackUnknownWrites() throws Exception {
+    final byte[] key = setupWriteBack(Long.MAX_VALUE);
+    compactionq.add(key, Bytes.getUnsignedInt(key, 3), new byte[] { 0, 7 }, 
+        Bytes.fromLong(4L));
+    // we don't know what was written to the row
+    compactionq.add(key);
+    flushAll();
+    verify(tsdb, times(1)).get(key);
+    assertEquals(0L, ((AtomicLong) Whitebox.getInternalState(compactionq, 
+        "write_back_bytes")).get());
+  }
+
+  @Test
+  public void writeBackOutOfMemory() throws Exception {
+    final byte[] key = setupWriteBack(64);
+    final byte[] key2 = key.clone();
+    key2[key2.length - 1] = 3;
+    final long base_time = Bytes.getUnsignedInt(key, 3);
+    compactionq.add(key, base_time, new byte[] { 0, 7 }, Bytes.fromLong(4L));
+    compactionq.add(key2, base_time, new byte[] { 0, 7 }, Bytes.fromLong(4L));
+    // the first row can't grow anymore
+    for (int i = 2; i < 10; i++) {
+      compactionq.add(key, base_time, new byte[] { 0, (byte) (i << 4 | 7) }, 
+          Bytes.fromLong(i));
+    }
+    flushAll();
+    verify(tsdb, times(1)).get(key);
+    verify(tsdb, times(1)).get(key2);
+  }
+
+  @Test
+  public void discardAll() throws Exception {
+    final byte[] key = setupWriteBack(Long.MAX_VALUE);
+    final long base_time = Bytes.getUnsignedInt(key, 3);
+    compactionq.add(key, base_time, new byte[] { 0, 7 }, Bytes.fromLong(4L));
+    compactionq.add(KEY);
+    final Object bucket = Whitebox.getInternalState(compactionq,
+                                                    "last_bucket");
+    assertEquals(2, ((Integer) Whitebox.invokeMethod(compactionq,
+                                                     "discardAll")).intValue());
+    assertEquals(0, compactionq.size());
+    assertEquals(0L, ((AtomicLong) Whitebox.getInternalState(compactionq,
+        "write_back_bytes")).get());
+    // writers holding on to a discarded bucket move on to a new one
+    assertTrue((Boolean) Whitebox.getInternalState(bucket, "removed"));
+    Whitebox.setInternalState(compactionq, "last_bucket", bucket);
+    compactionq.add(KEY);
+    assertEquals(1, compactionq.size());
+    flushAll();
+    verify(tsdb, times(1)).get(KEY);
+    verify(tsdb, never()).get(key);
+  }
+
+  @Test
+  public void writeBackBeforeStart() throws Exception {
+    final byte[] key = setupWriteBack(Long.MAX_VALUE);
+    Whitebox.setInternalState(compactionq, "write_back_start", Long.MAX_VALUE);
+    compactionq.add(key, Bytes.getUnsignedInt(key, 3), new byte[] { 0, 7 }, 
+        Bytes.fromLong(4L));
+    flushAll();
+    verify(tsdb, times(1)).get(key);
+  }
+
+  @Test
+  public void flushOldBucketsOnly() throws Exception {
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) {
+            return Deferred.fromResult(new ArrayList<KeyValue>());
+          }
+        });
+    final byte[] old_key = KEY.clone();
+    Bytes.setInt(old_key, 1356998400, 3);
+    final byte[] new_key = KEY.clone();
+    Bytes.setInt(new_key, 1356998400 + 3600, 3);
+    compactionq.add(old_key);
+    compactionq.add(new_key);
+    compactionq.add(old_key.clone());
+    assertEquals(2, compactionq.size());
+
+    ((Deferred<?>) Whitebox.invokeMethod(compactionq, "flush", 
+        1356998400L, Integer.MAX_VALUE)).joinUninterruptibly();
+    verify(tsdb, times(1)).get(old_key);
+    verify(tsdb, never()).get(new_key);
+    assertEquals(1, compactionq.size());
+    // the drained bucket was retired, rows for that hour go to a new one
+    final Map<?, ?> buckets = Whitebox.getInternalState(compactionq, "buckets");
+    assertEquals(1, buckets.size());
+    compactionq.add(old_key);
+    assertEquals(2, buckets.size());
+    assertEquals(2, compactionq.size());
+  }
+
+  @Test
+  public void queueFull() throws Exception {
+    final byte[] key2 = KEY.clone();
+    key2[key2.length - 1] = 3;
+    compactionq.add(KEY);
+    final AtomicLong queue_bytes = 
+      Whitebox.getInternalState(compactionq, "queue_bytes");
+    Whitebox.setInternalState(compactionq, "max_queue_bytes", 
+        queue_bytes.get());
+    compactionq.add(key2);
+    // rows already queued don't count as dropped
+    compactionq.add(KEY.clone());
+    assertEquals(1, compactionq.size());
+    assertEquals(1, ((AtomicLong) Whitebox.getInternalState(compactionq,
+        "dropped_rows")).get());
+    assertTrue(queue_bytes.get() > 0);
+
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) {
+            return Deferred.fromResult(new ArrayList<KeyValue>());
+          }
+        });
+    flushAll();
+    verify(tsdb).get(KEY);
+    assertEquals(0, queue_bytes.get());
+  }
+
+  @Test
+  public void collectStats() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+    kvs.add(makekv(new byte[] { 0x00, 0x17 }, Bytes.fromLong(5L)));
+    compactionq.compact(kvs, new ArrayList<Annotation>(0));
+    compactionq.add(KEY);
+
+    final ArrayList<String> lines = new ArrayList<String>();
+    final StatsCollector collector = new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        lines.add(line);
+      }
+    };
+    compactionq.collectStats(collector);
+    assertEquals(20, stat(lines, "compaction.bytes", "type=before"));
+    assertEquals(21, stat(lines, "compaction.bytes", "type=after"));
+    final long age = System.currentTimeMillis() / 1000
+      - Bytes.getUnsignedInt(KEY, 3);
+    final long oldest_age = stat(lines, "compaction.queue.oldest_age", null);
+    assertTrue(oldest_age >= age && oldest_age <= age + 1);
+    assertEquals(0, stat(lines, "compaction.throttles", "rpc=read"));
+  }
+
+  @Test
+  public void collectStatsThrottles() throws Exception {
+    Whitebox.setInternalState(
+        Whitebox.getInternalState(compactionq, "handle_read_error"),
+        "throttles", 3);
+    Whitebox.setInternalState(
+        Whitebox.getInternalState(compactionq, "handle_delete_error"),
+        "throttles", 1);
+
+    // the collector only accepts a single extra tag per data point
+    final ArrayList<String> lines = new ArrayList<String>();
+    final StatsCollector collector = new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        lines.add(line);
+      }
+    };
+    compactionq.collectStats(collector);
+    int throttles = 0;
+    for (final String line : lines) {
+      final String[] fields = line.trim().split(" ");
+      assertTrue(line, fields.length <= 4);
+      if (fields[0].equals("tsd.compaction.throttles")) {
+        throttles += Integer.parseInt(fields[2]);
+      }
+    }
+    assertEquals(4, throttles);
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
 
+  /**
+   * Enables write-back compactions.
+   * @return A row key for the current hour.
+   */
+  private byte[] setupWriteBack(final long max_bytes) throws Exception {
+    Whitebox.setInternalState(compactionq, "write_back", true);
+    Whitebox.setInternalState(compactionq, "write_back_grace", 60);
+    Whitebox.setInternalState(compactionq, "write_back_max_bytes", max_bytes);
+    Whitebox.setInternalState(compactionq, "write_back_start", 0L);
+    when(tsdb.get(anyBytes())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) {
+            return Deferred.fromResult(new ArrayList<KeyValue>());
+          }
+        });
+    final long now = System.currentTimeMillis() / 1000;
+    final byte[] key = KEY.clone();
+    Bytes.setInt(key, (int) (now - now % Const.MAX_TIMESPAN), 3);
+    return key;
+  }
+
+  /** @return The value of a data point emitted by a collector. */
+  private static long stat(final ArrayList<String> lines, final String name,
+                           final String xtratag) {
+    for (final String line : lines) {
+      final String[] fields = line.trim().split(" ");
+      if (fields[0].equals("tsd." + name) && (xtratag == null
+          ? fields.length == 3 : xtratag.equals(fields[fields.length - 1]))) {
+        return Long.parseLong(fields[2]);
+      }
+    }
+    throw new AssertionError("No data point for " + name + " in " + lines);
+  }
+
+  /** Flushes all the rows of the queue, no matter their age. */
+  private void flushAll() throws Exception {
+    // flushes are capped at MAX_CONCURRENT_FLUSHES rows, so we may need a few
+    for (int i = 0; i < 100 && compactionq.size() > 0; i++) {
+      ((Deferred<?>) Whitebox.invokeMethod(compactionq, "flush", 
+          Long.MAX_VALUE, Integer.MAX_VALUE)).joinUninterruptibly();
+    }
+    assertEquals(0, compactionq.size());
+  }
+
   /** Shorthand to create a {@link KeyValue}.  */
   private static KeyValue makekv(final byte[] qualifier, final byte[] value) {
     return new KeyValue(KEY, FAMILY, qualifier, value);
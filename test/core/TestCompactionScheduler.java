@@ -0,0 +1,118 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestCompactionScheduler {
+  private Config config;
+  private CompactionScheduler scheduler;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.storage.compaction.max_concurrent_flushes",
+                          "1000");
+    config.overrideConfig("tsd.storage.compaction.target_latency", "100");
+    scheduler = new CompactionScheduler(config);
+  }
+
+  @Test
+  public void defaults() throws Exception {
+    scheduler = new CompactionScheduler(new Config(false));
+    assertEquals(10, scheduler.interval());
+    assertEquals(100, scheduler.minFlushes());
+    assertEquals(10000, scheduler.concurrency());
+  }
+
+  @Test
+  public void maxFlushes() throws Exception {
+    // 10s interval at twice the needed speed
+    assertEquals(72000 * 10 * 2 / 3600, scheduler.maxFlushes(72000, 0));
+    assertEquals(100, scheduler.maxFlushes(200, 0));
+  }
+
+  @Test
+  public void maxFlushesCatchUp() throws Exception {
+    assertEquals(400, scheduler.maxFlushes(72000, 3600));
+    assertEquals(800, scheduler.maxFlushes(72000, 3601));
+    // capped
+    assertEquals(1600, scheduler.maxFlushes(72000, 36000));
+  }
+
+  @Test
+  public void backOffOnLatency() throws Exception {
+    scheduler.record(150);
+    scheduler.record(250);
+    scheduler.adjust(0);
+    assertEquals(500, scheduler.concurrency());
+    // no more than we can run concurrently
+    assertEquals(500, scheduler.maxFlushes(7200000, 0));
+    scheduler.record(250);
+    scheduler.adjust(0);
+    assertEquals(250, scheduler.concurrency());
+  }
+
+  @Test
+  public void backOffOnErrors() throws Exception {
+    scheduler.adjust(3);
+    assertEquals(500, scheduler.concurrency());
+    // errors are cumulative, no new ones so we recover
+    scheduler.record(10);
+    scheduler.adjust(3);
+    assertEquals(600, scheduler.concurrency());
+  }
+
+  @Test
+  public void neverBelowOne() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      scheduler.adjust(i + 1);
+    }
+    assertEquals(1, scheduler.concurrency());
+  }
+
+  @Test
+  public void recoverUpToMax() throws Exception {
+    scheduler.adjust(1);
+    for (int i = 0; i < 20; i++) {
+      scheduler.adjust(1);
+    }
+    assertEquals(1000, scheduler.concurrency());
+  }
+
+  @Test
+  public void steadyBetweenHalfAndTarget() throws Exception {
+    scheduler.adjust(1);
+    scheduler.record(75);
+    scheduler.adjust(1);
+    assertEquals(500, scheduler.concurrency());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void invalidInterval() throws Exception {
+    config.overrideConfig("tsd.storage.compaction.flush_interval", "0");
+    new CompactionScheduler(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void invalidMaxConcurrentFlushes() throws Exception {
+    config.overrideConfig("tsd.storage.compaction.max_concurrent_flushes",
+                          "0");
+    new CompactionScheduler(config);
+  }
+}
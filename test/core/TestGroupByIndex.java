@@ -0,0 +1,126 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import net.opentsdb.storage.MockBase;
+
+import org.junit.Test;
+
+public final class TestGroupByIndex {
+  private static final short WIDTH = 3;
+  private static final byte[] HOST = { 0, 0, 1 };
+  private static final byte[] DC = { 0, 0, 2 };
+  private static final byte[] OWNER = { 0, 0, 3 };
+
+  @Test
+  public void singleTag() throws Exception {
+    final GroupByIndex index = index(HOST);
+    assertEquals(0, index.add(row("000001", "000001", "000002")));
+    assertEquals(1, index.add(row("000001", "000003")));
+    assertEquals(0, index.add(row("000001", "000001")));
+    assertEquals(2, index.size());
+    assertArrayEquals(new byte[] { 0, 0, 1 }, index.key(0));
+    assertArrayEquals(new byte[] { 0, 0, 3 }, index.key(1));
+  }
+
+  @Test
+  public void multipleTags() throws Exception {
+    final GroupByIndex index = index(HOST, DC, OWNER);
+    // host=1 dc=4 owner=5, with an extra tag in between
+    assertEquals(0, index.add(row("000001", "000001", "000002", "000004",
+                                  "000003", "000005")));
+    assertEquals(0, index.add(row("000001", "000001", "000002", "000004",
+                                  "000003", "000005", "000004", "000009")));
+    assertEquals(1, index.add(row("000001", "000002", "000002", "000004",
+                                  "000003", "000005")));
+    assertArrayEquals(MockBase.stringToBytes("000001000004000005"),
+                      index.key(0));
+    assertArrayEquals(MockBase.stringToBytes("000002000004000005"),
+                      index.key(1));
+  }
+
+  @Test
+  public void missingTag() throws Exception {
+    final GroupByIndex index = index(HOST, DC);
+    assertEquals(-1, index.add(row("000001", "000001")));
+    assertEquals(-1, index.add(row("000002", "000004")));
+    assertEquals(-1, index.add(row("000003", "000004")));
+    assertEquals(0, index.add(row("000001", "000001", "000002", "000004")));
+    // same length as the previous row, different tags
+    assertEquals(-1, index.add(row("000001", "000001", "000003", "000004")));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void unsortedTags() throws Exception {
+    final GroupByIndex index = index(HOST, DC);
+    assertEquals(0, index.add(row("000002", "000004", "000001", "000001")));
+    assertEquals(0, index.add(row("000001", "000001", "000002", "000004")));
+    assertArrayEquals(MockBase.stringToBytes("000001000004"), index.key(0));
+  }
+
+  @Test
+  public void unsignedTagNames() throws Exception {
+    final byte[] high = { 0, 0, (byte) 0x80 };
+    final GroupByIndex index = index(HOST, high);
+    assertEquals(0, index.add(row("000001", "000001", "000080", "000002")));
+    assertArrayEquals(MockBase.stringToBytes("000001000002"), index.key(0));
+  }
+
+  @Test
+  public void manyGroups() throws Exception {
+    final GroupByIndex index = index(HOST, DC);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, index.add(row(i % 1000, i / 1000)));
+    }
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(i % 1000, index.add(row(i % 1000, 0)));
+    }
+    assertEquals(1000, index.size());
+  }
+
+  @Test
+  public void sortedGroups() throws Exception {
+    final GroupByIndex index = index(HOST, DC);
+    index.add(row(0x80, 1));
+    index.add(row(2, 1));
+    index.add(row(1, 2));
+    index.add(row(1, 1));
+    assertEquals(Arrays.asList(3, 2, 1, 0),
+                 Arrays.asList(index.sortedGroups()));
+  }
+
+  private static GroupByIndex index(final byte[]... group_bys) {
+    return new GroupByIndex(WIDTH, WIDTH, WIDTH, Arrays.asList(group_bys));
+  }
+
+  /** @return A row key of metric 1 with the given tag UIDs, in hex. */
+  private static byte[] row(final String... tags) {
+    final StringBuilder buf = new StringBuilder("00000150E22700");
+    for (final String uid : tags) {
+      buf.append(uid);
+    }
+    return MockBase.stringToBytes(buf.toString());
+  }
+
+  /** @return A row key with host and dc tags of the given value UIDs. */
+  private static byte[] row(final int host, final int dc) {
+    return row("000001", String.format("%06X", host),
+               "000002", String.format("%06X", dc));
+  }
+}
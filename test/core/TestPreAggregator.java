@@ -0,0 +1,625 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timer;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, GetRequest.class, PutRequest.class, KeyValue.class,
+  Scanner.class, TsdbQuery.class, DeleteRequest.class, Annotation.class,
+  RowKey.class, Span.class, SpanGroup.class, IncomingDataPoints.class })
+public final class TestPreAggregator {
+  private static final byte[] FAMILY = { 't' };
+  private static final long HOUR = 1356998400L;
+  /** Row keys of the series, tagged dc=lga and host=web01 or web02. */
+  private static final byte[] WEB01 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 0, 0, 2, 0, 0, 2 };
+  private static final byte[] WEB02 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1, 0, 0, 2, 0, 0, 3 };
+  /** Row key of the aggregate of dc=lga. */
+  private static final byte[] LGA = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TABLE = "tsdb-preagg".getBytes();
+
+  private Config config;
+  private TSDB tsdb = null;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private Timer timer = mock(Timer.class);
+  private MockBase storage = null;
+  private PreAggregator preaggregator;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+    .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    config.overrideConfig("tsd.preaggregate.rules", "sys.cpu.user:dc");
+    // Data points from 2013 aren't late.
+    config.overrideConfig("tsd.preaggregate.flush_delay", "1000000000");
+    tsdb = new TSDB(config);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("sys.cpu.user"));
+    when(tag_names.getId("dc")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("dc"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 2 }))
+      .thenAnswer(name("host"));
+    when(tag_values.getId("lga")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("lga"));
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 2 }))
+      .thenAnswer(name("web01"));
+    when(tag_values.getId("web02")).thenReturn(new byte[] { 0, 0, 3 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 3 }))
+      .thenAnswer(name("web02"));
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+
+    setupStorage();
+    preaggregator = new PreAggregator(tsdb, timer, config);
+    Whitebox.setInternalState(tsdb, "preaggregator", preaggregator);
+  }
+
+  @Test
+  public void schedulesFlushes() throws Exception {
+    verify(timer).newTimeout(preaggregator, 1000, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void parseRules() throws Exception {
+    final Map<String, PreAggregator.Rule> rules =
+      PreAggregator.parseRules("sys.cpu.user:dc; sys.mem.free:rack,dc,;");
+    assertEquals(2, rules.size());
+    assertArrayEquals(new String[] { "dc" }, rules.get("sys.cpu.user").tags);
+    assertArrayEquals(new String[] { "dc", "rack" },
+                      rules.get("sys.mem.free").tags);
+  }
+
+  @Test
+  public void parseRulesNoTags() throws Exception {
+    assertEquals(0, PreAggregator.parseRules("sys.cpu.user:")
+                 .get("sys.cpu.user").tags.length);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseRulesMissingColon() throws Exception {
+    PreAggregator.parseRules("sys.cpu.user");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseRulesDuplicateMetric() throws Exception {
+    PreAggregator.parseRules("sys.cpu.user:dc;sys.cpu.user:host");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseRulesBadTag() throws Exception {
+    PreAggregator.parseRules("sys.cpu.user:d c");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseRulesEmpty() throws Exception {
+    PreAggregator.parseRules("");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badInterval() throws Exception {
+    config.overrideConfig("tsd.preaggregate.interval", "7m");
+    new PreAggregator(tsdb, timer, config);
+  }
+
+  @Test
+  public void write() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    preaggregator.shutdown().joinUninterruptibly();
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    // web01 has 0 and 0.25, web02 has 0 and 0.5 in the first minute.
+    assertCell(preaggregator, key, 0, 0.125 + 0.25);
+    // and 0.5, 0.75 and 1, 1.5 in the second.
+    assertCell(preaggregator, key, 60, 0.625 + 1.25);
+    Bytes.setInt(key, (int) HOUR + 3600, 3);
+    assertNull(storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(HOUR + 3600, writerId(preaggregator))));
+    assertEquals(240, ((AtomicLong) Whitebox.getInternalState(preaggregator,
+        "points")).get());
+  }
+
+  @Test
+  public void writeStart() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    final byte[] start = storage.getTableColumn(TABLE,
+        new byte[] { 0, 0, 1, 0, 0, 0, 0 }, "start".getBytes());
+    assertNotNull(start);
+    assertEquals(HOUR, Bytes.getLong(start));
+    assertEquals(HOUR, (long) preaggregator.coverageStart(
+        new byte[] { 0, 0, 1 }).joinUninterruptibly());
+
+    // Another TSD doesn't move it.
+    final PreAggregator other = new PreAggregator(tsdb, timer, config);
+    Whitebox.setInternalState(tsdb, "preaggregator", other);
+    storeTimeSeries();
+    assertEquals(HOUR, Bytes.getLong(storage.getTableColumn(TABLE,
+        new byte[] { 0, 0, 1, 0, 0, 0, 0 }, "start".getBytes())));
+  }
+
+  @Test
+  public void coverageStartUnknown() throws Exception {
+    assertEquals(Long.MAX_VALUE, (long) preaggregator.coverageStart(
+        new byte[] { 0, 0, 1 }).joinUninterruptibly());
+  }
+
+  @Test
+  public void sharesOfEachTsdAreSummed() throws Exception {
+    final PreAggregator other = new PreAggregator(tsdb, timer, config);
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    Whitebox.setInternalState(other, "first_interval", HOUR);
+    storeTimeSeries("web01");
+    Whitebox.setInternalState(tsdb, "preaggregator", other);
+    storeTimeSeries("web02");
+    Whitebox.setInternalState(tsdb, "preaggregator", preaggregator);
+    flushAll(preaggregator);
+    flushAll(other);
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    assertCell(preaggregator, key, 0, 0.125);
+    assertCell(other, key, 0, 0.25);
+
+    final DataPoints[] dps = query(true);
+    assertEquals(1, dps.length);
+    assertEquals(60, dps[0].size());
+    for (int i = 0; i < dps[0].size(); i++) {
+      assertEquals(HOUR * 1000 + i * 60000, dps[0].timestamp(i));
+      assertEquals(1.5 * i + 0.375, dps[0].doubleValue(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void flushWaitsForTheDelay() throws Exception {
+    config.overrideConfig("tsd.preaggregate.flush_delay", "60");
+    preaggregator = new PreAggregator(tsdb, timer, config);
+    Whitebox.setInternalState(tsdb, "preaggregator", preaggregator);
+    final long now = System.currentTimeMillis() / 1000;
+    final long minute = now - (now % 60);
+    Whitebox.setInternalState(preaggregator, "first_interval", minute);
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("dc", "lga");
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", minute, 42, tags).joinUninterruptibly();
+
+    preaggregator.flush(minute + 60).joinUninterruptibly();
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) (minute - (minute % 3600)), 3);
+    final byte[] qualifier =
+      PreAggregator.shareQualifier(minute, writerId(preaggregator));
+    assertNull(storage.getTableColumn(TABLE, key, qualifier));
+
+    preaggregator.flush(minute + 120).joinUninterruptibly();
+    assertNotNull(storage.getTableColumn(TABLE, key, qualifier));
+    assertEquals(42, Double.longBitsToDouble(
+        Bytes.getLong(storage.getTableColumn(TABLE, key, qualifier))), 0.0001);
+  }
+
+  @Test
+  public void latePointsAreMarked() throws Exception {
+    config.overrideConfig("tsd.preaggregate.flush_delay", "60");
+    preaggregator = new PreAggregator(tsdb, timer, config);
+    Whitebox.setInternalState(tsdb, "preaggregator", preaggregator);
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    preaggregator.shutdown().joinUninterruptibly();
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    assertNull(storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(HOUR, writerId(preaggregator))));
+    assertArrayEquals(new byte[] { 1 }, storage.getTableColumn(TABLE, key,
+        PreAggregator.lateQualifier(HOUR)));
+    assertArrayEquals(new byte[] { 1 }, storage.getTableColumn(TABLE, key,
+        PreAggregator.lateQualifier(HOUR + 3540)));
+    assertEquals(240, ((AtomicLong) Whitebox.getInternalState(preaggregator,
+        "late_points")).get());
+    assertEquals(0, ((AtomicLong) Whitebox.getInternalState(preaggregator,
+        "points")).get());
+  }
+
+  @Test
+  public void pointsBeforeTheFirstIntervalAreLate() throws Exception {
+    // The TSD started after these intervals, it didn't see them whole.
+    storeTimeSeries();
+    flushAll(preaggregator);
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    assertNull(storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(HOUR, writerId(preaggregator))));
+    assertArrayEquals(new byte[] { 1 }, storage.getTableColumn(TABLE, key,
+        PreAggregator.lateQualifier(HOUR)));
+    assertEquals(240, ((AtomicLong) Whitebox.getInternalState(preaggregator,
+        "late_points")).get());
+  }
+
+  @Test
+  public void shutdownMarksUnendedIntervals() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    final long minute = now - (now % 60) + 120;
+    Whitebox.setInternalState(preaggregator, "first_interval", minute);
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("dc", "lga");
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", minute, 42, tags).joinUninterruptibly();
+    preaggregator.shutdown().joinUninterruptibly();
+    // A partial share would be added to the one of a restarted TSD.
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) (minute - (minute % 3600)), 3);
+    assertNull(storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(minute, writerId(preaggregator))));
+    assertArrayEquals(new byte[] { 1 }, storage.getTableColumn(TABLE, key,
+        PreAggregator.lateQualifier(minute)));
+  }
+
+  @Test
+  public void pointsAfterTheFlushAreLate() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    flushAll(preaggregator);
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("dc", "lga");
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", HOUR + 15, 100, tags).joinUninterruptibly();
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    assertArrayEquals(new byte[] { 1 }, storage.getTableColumn(TABLE, key,
+        PreAggregator.lateQualifier(HOUR)));
+    // The share already written is left alone.
+    assertCell(preaggregator, key, 0, 0.125 + 0.25);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void seriesWithoutTheTagsAreSkipped() throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    PowerMockito.doReturn(new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 2, 0, 0, 2 })
+      .when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(),
+            anyString(), (Map<String, String>)any());
+    tsdb.addPoint("sys.cpu.user", HOUR, 42, tags).joinUninterruptibly();
+    preaggregator.shutdown().joinUninterruptibly();
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    assertNull(storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(HOUR, writerId(preaggregator))));
+  }
+
+  @Test
+  public void route() throws Exception {
+    final byte[] metric = { 0, 0, 1 };
+    final ArrayList<byte[]> dc = new ArrayList<byte[]>();
+    dc.add(new byte[] { 0, 0, 1 });
+    final ArrayList<byte[]> lga = new ArrayList<byte[]>();
+    lga.add(new byte[] { 0, 0, 1, 0, 0, 1 });
+    final ArrayList<byte[]> web01 = new ArrayList<byte[]>();
+    web01.add(new byte[] { 0, 0, 2, 0, 0, 2 });
+    final ArrayList<byte[]> none = new ArrayList<byte[]>();
+
+    assertTrue(preaggregator.route(metric, none, dc, Aggregators.SUM,
+                                   Aggregators.AVG, 60000, false));
+    assertTrue(preaggregator.route(metric, lga, null, Aggregators.ZIMSUM,
+                                   Aggregators.AVG, 60000, false));
+    // Would read the series without a dc tag, which aren't aggregated.
+    assertFalse(preaggregator.route(metric, none, null, Aggregators.SUM,
+                                    Aggregators.AVG, 60000, false));
+    // Filters or groups on a tag that isn't kept.
+    assertFalse(preaggregator.route(metric, web01, dc, Aggregators.SUM,
+                                    Aggregators.AVG, 60000, false));
+    assertFalse(preaggregator.route(metric, none, Arrays.asList(
+        new byte[] { 0, 0, 2 }), Aggregators.SUM, Aggregators.AVG, 60000,
+        false));
+    // Other aggregations.
+    assertFalse(preaggregator.route(metric, none, dc, Aggregators.MAX,
+                                    Aggregators.AVG, 60000, false));
+    assertFalse(preaggregator.route(metric, none, dc, Aggregators.SUM,
+                                    Aggregators.SUM, 60000, false));
+    assertFalse(preaggregator.route(metric, none, dc, Aggregators.SUM,
+                                    Aggregators.AVG, 300000, false));
+    assertFalse(preaggregator.route(metric, none, dc, Aggregators.SUM,
+                                    null, 0, false));
+    assertFalse(preaggregator.route(metric, none, dc, Aggregators.SUM,
+                                    Aggregators.AVG, 60000, true));
+    // Another metric.
+    assertFalse(preaggregator.route(new byte[] { 0, 0, 2 }, none, dc,
+        Aggregators.SUM, Aggregators.AVG, 60000, false));
+  }
+
+  @Test
+  public void routeUnknownMetric() throws Exception {
+    when(metrics.getId("sys.cpu.user"))
+      .thenThrow(new NoSuchUniqueName("metric", "sys.cpu.user"));
+    preaggregator = new PreAggregator(tsdb, timer, config);
+    assertFalse(preaggregator.route(new byte[] { 0, 0, 1 },
+        new ArrayList<byte[]>(), null, Aggregators.SUM, Aggregators.AVG,
+        60000, false));
+  }
+
+  @Test
+  public void routeUnknownMetricIsNotResolvedAgain() throws Exception {
+    when(metrics.getId("sys.cpu.user"))
+      .thenThrow(new NoSuchUniqueName("metric", "sys.cpu.user"));
+    preaggregator = new PreAggregator(tsdb, timer, config);
+    for (int i = 0; i < 2; i++) {
+      assertFalse(preaggregator.route(new byte[] { 0, 0, 1 },
+          new ArrayList<byte[]>(), null, Aggregators.SUM, Aggregators.AVG,
+          60000, false));
+    }
+    verify(metrics, times(1)).getId("sys.cpu.user");
+  }
+
+  @Test
+  public void query() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    final DataPoints[] expected = query(false);
+    flushAll(preaggregator);
+    // The aggregates are read instead of the raw data.
+    for (final byte[] template : new byte[][] { WEB01, WEB02 }) {
+      final byte[] key = template.clone();
+      Bytes.setInt(key, (int) HOUR, 3);
+      storage.flushRow(key);
+    }
+    final DataPoints[] dps = query(true);
+    assertEquals(1, dps.length);
+    assertEquals(expected[0].size(), dps[0].size());
+    for (int i = 0; i < dps[0].size(); i++) {
+      // The aggregates are at the start of their interval.
+      assertEquals(HOUR * 1000 + i * 60000, dps[0].timestamp(i));
+      assertEquals(expected[0].timestamp(i) / 60000,
+                   dps[0].timestamp(i) / 60000);
+      assertEquals(expected[0].doubleValue(i), dps[0].doubleValue(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void queryNotAskedFor() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    flushAll(preaggregator);
+    final DataPoints[] dps = query(false);
+    assertEquals(1, dps.length);
+    // The raw data is downsampled at the average timestamp of the points.
+    assertEquals(HOUR * 1000 + 15000, dps[0].timestamp(0));
+  }
+
+  @Test
+  public void queryBeforeTheStart() throws Exception {
+    // Only the second hour is covered by the aggregates.
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR + 3600);
+    storeTimeSeries(240, "web01", "web02");
+    flushAll(preaggregator);
+    final byte[] key = LGA.clone();
+    Bytes.setInt(key, (int) HOUR, 3);
+    storage.flushRow(TABLE, key);
+    final DataPoints[] dps = query(true, HOUR + 7199);
+    assertEquals(1, dps.length);
+    assertEquals(120, dps[0].size());
+    for (int i = 0; i < dps[0].size(); i++) {
+      assertEquals(HOUR * 1000 + i * 60000, dps[0].timestamp(i));
+      assertEquals(1.5 * i + 0.375, dps[0].doubleValue(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void queryUnflushedTail() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    // Nothing was written yet, it's all computed from the raw data.
+    final DataPoints[] dps = query(true);
+    assertEquals(1, dps.length);
+    assertEquals(60, dps[0].size());
+    for (int i = 0; i < dps[0].size(); i++) {
+      assertEquals(HOUR * 1000 + i * 60000, dps[0].timestamp(i));
+      assertEquals(1.5 * i + 0.375, dps[0].doubleValue(i), 0.0001);
+    }
+  }
+
+  @Test
+  public void queryLateData() throws Exception {
+    Whitebox.setInternalState(preaggregator, "first_interval", HOUR);
+    storeTimeSeries();
+    flushAll(preaggregator);
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("dc", "lga");
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", HOUR + 15, 100, tags).joinUninterruptibly();
+    final DataPoints[] dps = query(true);
+    assertEquals(1, dps.length);
+    assertEquals(60, dps[0].size());
+    // The hour is computed from the raw data, late point included.
+    assertEquals(HOUR * 1000, dps[0].timestamp(0));
+    assertEquals(100.25 / 3 + 0.25, dps[0].doubleValue(0), 0.0001);
+    for (int i = 1; i < dps[0].size(); i++) {
+      assertEquals(1.5 * i + 0.375, dps[0].doubleValue(i), 0.0001);
+    }
+  }
+
+  /** Runs sum:1m-avg:sys.cpu.user{dc=*} over the first hour. */
+  private DataPoints[] query(final boolean preaggregates) throws Exception {
+    return query(preaggregates, HOUR + 3599);
+  }
+
+  /** Runs sum:1m-avg:sys.cpu.user{dc=*} from the first hour. */
+  private DataPoints[] query(final boolean preaggregates, final long end)
+    throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("dc", "*");
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(HOUR);
+    query.setEndTime(end);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(60000, Aggregators.AVG);
+    query.setPreAggregates(preaggregates);
+    return query.run();
+  }
+
+  /** Writes all the intervals, from then on the points are late. */
+  private static void flushAll(final PreAggregator preaggregator)
+    throws Exception {
+    Whitebox.setInternalState(preaggregator, "flush_delay", 0);
+    preaggregator.flush(System.currentTimeMillis() / 1000)
+      .joinUninterruptibly();
+  }
+
+  private static byte[] writerId(final PreAggregator preaggregator) {
+    return (byte[]) Whitebox.getInternalState(preaggregator, "writer_id");
+  }
+
+  private void assertCell(final PreAggregator preaggregator,
+                          final byte[] key, final long offset,
+                          final double value) {
+    final byte[] cell = storage.getTableColumn(TABLE, key,
+        PreAggregator.shareQualifier(HOUR + offset, writerId(preaggregator)));
+    assertNotNull(cell);
+    assertEquals(value, Double.longBitsToDouble(Bytes.getLong(cell)), 0.0001);
+  }
+
+  /**
+   * Mocks out the UniqueId calls to fetch names for the data points,
+   * returning a new deferred on each call.
+   */
+  private static Answer<Deferred<String>> name(final String name) {
+    return new Answer<Deferred<String>>() {
+      public Deferred<String> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(name);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private void setupStorage() throws Exception {
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.setFamily(FAMILY);
+    storage.addTable(TABLE);
+
+    PowerMockito.mockStatic(IncomingDataPoints.class);
+    PowerMockito.doAnswer(
+        new Answer<byte[]>() {
+          public byte[] answer(final InvocationOnMock args)
+            throws Exception {
+            final Map<String, String> tags =
+              (Map<String, String>)args.getArguments()[2];
+            return tags.get("host").equals("web01")
+              ? WEB01.clone() : WEB02.clone();
+          }
+        }
+    ).when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(), anyString(),
+        (Map<String, String>)any());
+  }
+
+  /**
+   * Stores a point every 30 seconds over an hour, from 0 by 0.25 for web01
+   * and from 0 by 0.5 for web02.
+   */
+  private void storeTimeSeries() throws Exception {
+    storeTimeSeries(120, "web01", "web02");
+  }
+
+  /** Stores the points of an hour of some of the series. */
+  private void storeTimeSeries(final String... hosts) throws Exception {
+    storeTimeSeries(120, hosts);
+  }
+
+  /**
+   * Stores a point every 30 seconds, from 0 by 0.25 for web01 and from 0 by
+   * 0.5 for web02.
+   * @param count The number of points of each series.
+   * @param hosts The series to store.
+   */
+  private void storeTimeSeries(final int count, final String... hosts)
+    throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("dc", "lga");
+    for (int i = 0; i < count; i++) {
+      for (final String host : hosts) {
+        tags.put("host", host);
+        tsdb.addPoint("sys.cpu.user", HOUR + i * 30,
+            host.equals("web01") ? i * 0.25f : i * 0.5f, tags)
+          .joinUninterruptibly();
+      }
+    }
+  }
+}
@@ -0,0 +1,417 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, GetRequest.class, PutRequest.class, KeyValue.class,
+  Scanner.class, TsdbQuery.class, DeleteRequest.class, Annotation.class,
+  RowKey.class, Span.class, SpanGroup.class, IncomingDataPoints.class })
+public final class TestQueryCache {
+  private Config config;
+  private TSDB tsdb = null;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage = null;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+    .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    tsdb = new TSDB(config);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("sys.cpu.user"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("host"));
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("web01"));
+    when(tag_values.getId("web02")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 2 }))
+      .thenAnswer(name("web02"));
+    when(metrics.getIdAsync("sys.cpu.user"))
+      .thenAnswer(id(new byte[] { 0, 0, 1 }));
+    when(tag_names.getIdAsync("host")).thenAnswer(id(new byte[] { 0, 0, 1 }));
+    when(tag_values.getIdAsync("web01"))
+      .thenAnswer(id(new byte[] { 0, 0, 1 }));
+    when(tag_values.getIdAsync("web02"))
+      .thenAnswer(id(new byte[] { 0, 0, 2 }));
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+
+    storeLongTimeSeriesSeconds();
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBytes() throws Exception {
+    new QueryCache(tsdb, 0, 3600, 0, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroBucketSize() throws Exception {
+    new QueryCache(tsdb, 1024, 0, 0, 0);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeTTL() throws Exception {
+    new QueryCache(tsdb, 1024, 3600, 0, -1);
+  }
+
+  @Test
+  public void runSameAsUncached() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "web01");
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertEquals(1, dps.length);
+    assertSameData(expected[0], dps[0]);
+    assertEquals("sys.cpu.user", dps[0].metricName());
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals(0, dps[0].getAggregatedTags().size());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void runGroupBy() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "*");
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertEquals(2, dps.length);
+    assertSameData(expected[0], dps[0]);
+    assertSameData(expected[1], dps[1]);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+  }
+
+  @Test
+  public void runAggregated() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", null);
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertEquals(1, dps.length);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(0, dps[0].getTags().size());
+    assertEquals("host", dps[0].getAggregatedTags().get(0));
+  }
+
+  @Test
+  public void runFromCache() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final DataPoints[] expected =
+      run(cache, getTSQuery("1356998400", "web01"));
+    storage.flushStorage();
+    final DataPoints[] dps = run(cache, getTSQuery("1356998400", "web01"));
+    assertEquals(1, dps.length);
+    assertSameData(expected[0], dps[0]);
+  }
+
+  @Test
+  public void runReusesBuckets() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    run(cache, getTSQuery("1356998400", "web01"));
+    storage.flushStorage();
+    // later start, the first bucket was only partially used
+    final DataPoints[] dps = run(cache, getTSQuery("1357000000", "web01"));
+    assertEquals(1, dps.length);
+    assertEquals(1357000020000L, dps[0].timestamp(0));
+    assertEquals(1357007400000L, dps[0].timestamp(dps[0].size() - 1));
+  }
+
+  @Test
+  public void runMutableBucketsNotCached() throws Exception {
+    // every bucket may still change and the TTL is 0
+    final QueryCache cache =
+      new QueryCache(tsdb, 1 << 20, 3600, Integer.MAX_VALUE, 0);
+    run(cache, getTSQuery("1356998400", "web01"));
+    assertEquals(0, cache.size());
+    storage.flushStorage();
+    assertEquals(0, run(cache, getTSQuery("1356998400", "web01")).length);
+  }
+
+  @Test
+  public void runPaddingBypassesCache() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "web01");
+    ts_query.setPadding(true);
+    run(cache, ts_query);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void runShortQueryBypassesCache() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    run(cache, getTSQuery("1357005600", "web01"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void runRateBypassesCache() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "web01");
+    ts_query.getQueries().get(0).setRate(true);
+    ts_query.validateAndSetQuery();
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void runUnalignedSeriesNotStitched() throws Exception {
+    storage.flushStorage();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    long timestamp = 1356998400;
+    for (int i = 1; i <= 300; i++) {
+      tsdb.addPoint("sys.cpu.user", timestamp += 30, i, tags)
+        .joinUninterruptibly();
+    }
+    // the sum has to interpolate web02 across the buckets
+    tags.put("host", "web02");
+    timestamp = 1356998415;
+    for (int i = 300; i > 0; i--) {
+      tsdb.addPoint("sys.cpu.user", timestamp += 30, i, tags)
+        .joinUninterruptibly();
+    }
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", null);
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    DataPoints[] dps = run(cache, ts_query);
+    assertEquals(1, dps.length);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(0, cache.size());
+    assertEquals(1, ((AtomicLong) Whitebox.getInternalState(cache, "bypassed"))
+        .get());
+    // the next run doesn't even try the buckets
+    dps = run(cache, ts_query);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(2, ((AtomicLong) Whitebox.getInternalState(cache, "bypassed"))
+        .get());
+    assertEquals(3, ((AtomicLong) Whitebox.getInternalState(cache, "misses"))
+        .get());
+  }
+
+  @Test
+  public void runDownsampleSpillsOverBuckets() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "web01");
+    // the 1 minute intervals of the first hour start 30 seconds past it, so
+    // the last one spills over into the next hour
+    ts_query.getQueries().get(0).setDownsample("1m-avg");
+    ts_query.validateAndSetQuery();
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(1, ((AtomicLong) Whitebox.getInternalState(cache, "bypassed"))
+        .get());
+    // the next hours start with a data point, they can still be reused
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void runAggregatedSizeCountsBucketsOnce() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final DataPoints[] dps = run(cache, getTSQuery("1356998400", null));
+    assertEquals(600, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void runEvicts() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1024, 3600, 0, 0);
+    final TSQuery ts_query = getTSQuery("1356998400", "web01");
+    final DataPoints[] expected = ts_query.buildQueries(tsdb)[0].run();
+    final DataPoints[] dps = run(cache, ts_query);
+    assertSameData(expected[0], dps[0]);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    run(cache, getTSQuery("1356998400", "web01"));
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+    storage.flushStorage();
+    assertEquals(0, run(cache, getTSQuery("1356998400", "web01")).length);
+  }
+
+  @Test
+  public void iteratorSeek() throws Exception {
+    final QueryCache cache = new QueryCache(tsdb, 1 << 20, 3600, 0, 0);
+    final DataPoints[] dps = run(cache, getTSQuery("1356998400", "web01"));
+    final SeekableView it = dps[0].iterator();
+    it.seek(1357000005000L);
+    assertEquals(1357000020000L, it.next().timestamp());
+    it.seek(1357000020000L);
+    assertEquals(1357000020000L, it.next().timestamp());
+    assertEquals(1357000050000L, it.next().timestamp());
+  }
+
+  /**
+   * @return An answer with a new deferred on each call as callbacks are
+   * added to the deferred names.
+   */
+  private static Answer<Deferred<String>> name(final String name) {
+    return new Answer<Deferred<String>>() {
+      public Deferred<String> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(name);
+      }
+    };
+  }
+
+  /** @return An answer with a new deferred UID on each call. */
+  private static Answer<Deferred<byte[]>> id(final byte[] id) {
+    return new Answer<Deferred<byte[]>>() {
+      public Deferred<byte[]> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(id);
+      }
+    };
+  }
+
+  private DataPoints[] run(final QueryCache cache, final TSQuery ts_query)
+    throws Exception {
+    return cache.run(ts_query, 0).joinUninterruptibly();
+  }
+
+  /** @return A sum of sys.cpu.user until the end of the stored data. */
+  private static TSQuery getTSQuery(final String start, final String host) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric("sys.cpu.user");
+    sub.setAggregator("sum");
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    if (host != null) {
+      tags.put("host", host);
+    }
+    sub.setTags(tags);
+    final ArrayList<TSSubQuery> queries = new ArrayList<TSSubQuery>(1);
+    queries.add(sub);
+    final TSQuery ts_query = new TSQuery();
+    ts_query.setStart(start);
+    ts_query.setEnd("1357007400");
+    ts_query.setQueries(queries);
+    ts_query.validateAndSetQuery();
+    return ts_query;
+  }
+
+  private static void assertSameData(final DataPoints expected,
+                                     final DataPoints actual) {
+    final SeekableView expected_it = expected.iterator();
+    final SeekableView actual_it = actual.iterator();
+    int n = 0;
+    while (expected_it.hasNext()) {
+      final DataPoint expected_dp = expected_it.next();
+      final DataPoint dp = actual_it.next();
+      assertEquals(expected_dp.timestamp(), dp.timestamp());
+      assertEquals(expected_dp.isInteger(), dp.isInteger());
+      assertEquals(expected_dp.toDouble(), dp.toDouble(), 0.0001);
+      n++;
+    }
+    assertEquals(n, actual.size());
+  }
+
+  @SuppressWarnings("unchecked")
+  private void storeLongTimeSeriesSeconds() throws Exception {
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.setFamily("t".getBytes(MockBase.ASCII()));
+
+    PowerMockito.mockStatic(IncomingDataPoints.class);
+    PowerMockito.doAnswer(
+        new Answer<byte[]>() {
+          public byte[] answer(final InvocationOnMock args)
+            throws Exception {
+            final Map<String, String> tags =
+              (Map<String, String>)args.getArguments()[2];
+            if (tags.get("host").equals("web01")) {
+              return new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1};
+            } else {
+              return new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2};
+            }
+          }
+        }
+    ).when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(), anyString(),
+        (Map<String, String>)any());
+
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    long timestamp = 1356998400;
+    for (int i = 1; i <= 300; i++) {
+      tsdb.addPoint("sys.cpu.user", timestamp += 30, i, tags)
+        .joinUninterruptibly();
+    }
+    tags.clear();
+    tags.put("host", "web02");
+    timestamp = 1356998400;
+    for (int i = 300; i > 0; i--) {
+      tsdb.addPoint("sys.cpu.user", timestamp += 30, i, tags)
+        .joinUninterruptibly();
+    }
+  }
+}
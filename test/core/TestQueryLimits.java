@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+public final class TestQueryLimits {
+
+  @Test
+  public void unlimited() throws Exception {
+    final QueryLimits limits = new QueryLimits(0, 0, 0, 0, 0);
+    for (int i = 0; i < 1000; i++) {
+      limits.addRow(1000, 100000);
+    }
+    limits.check();
+    limits.release();
+  }
+
+  @Test
+  public void maxRows() throws Exception {
+    final QueryLimits limits = new QueryLimits(2, 0, 0, 0, 0);
+    limits.addRow(10, 100);
+    limits.addRow(10, 100);
+    try {
+      limits.addRow(10, 100);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertFalse(e.isTimeout());
+      assertTrue(e.getMessage().contains("2 rows"));
+    } finally {
+      limits.release();
+    }
+  }
+
+  @Test
+  public void maxDataPoints() throws Exception {
+    final QueryLimits limits = new QueryLimits(0, 15, 0, 0, 0);
+    limits.addRow(10, 100);
+    try {
+      limits.addRow(10, 100);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.getMessage().contains("15 data points"));
+    } finally {
+      limits.release();
+    }
+  }
+
+  @Test
+  public void maxBytes() throws Exception {
+    final QueryLimits limits = new QueryLimits(0, 0, 150, 0, 0);
+    limits.addRow(10, 100);
+    try {
+      limits.addRow(10, 100);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.getMessage().contains("150 bytes"));
+    } finally {
+      limits.release();
+    }
+  }
+
+  @Test
+  public void globalMaxBytes() throws Exception {
+    final QueryLimits first = new QueryLimits(0, 0, 0, 0, 150);
+    final QueryLimits second = new QueryLimits(0, 0, 0, 0, 150);
+    first.addRow(10, 100);
+    try {
+      second.addRow(10, 100);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.getMessage().contains("150 bytes"));
+    } finally {
+      second.release();
+    }
+    // once the first query is done, the bytes are available again
+    first.release();
+    final QueryLimits third = new QueryLimits(0, 0, 0, 0, 150);
+    third.addRow(10, 100);
+    third.release();
+  }
+
+  @Test
+  public void maxTime() throws Exception {
+    final QueryLimits limits = new QueryLimits(0, 0, 0, 1000, 0);
+    limits.check();
+    Whitebox.setInternalState(limits, "start_time",
+                              System.currentTimeMillis() - 1001);
+    try {
+      limits.check();
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.isTimeout());
+    }
+  }
+
+  @Test
+  public void releaseOnlyOnce() throws Exception {
+    final QueryLimits first = new QueryLimits(0, 0, 0, 0, 150);
+    final QueryLimits second = new QueryLimits(0, 0, 0, 0, 150);
+    first.addRow(10, 100);
+    first.release();
+    first.release();
+    // releasing twice doesn't free the bytes held by another query
+    second.addRow(10, 100);
+    final QueryLimits third = new QueryLimits(0, 0, 0, 0, 150);
+    try {
+      third.addRow(10, 100);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.getMessage().contains("150 bytes"));
+    } finally {
+      second.release();
+      third.release();
+    }
+  }
+
+  @Test
+  public void deadline() throws Exception {
+    assertEquals(0, new QueryLimits(0, 0, 0, 0, 0).deadline());
+    final QueryLimits limits = new QueryLimits(0, 0, 0, 1000, 0);
+    final long start_time =
+      (Long) Whitebox.getInternalState(limits, "start_time");
+    assertEquals(start_time + 1000, limits.deadline());
+  }
+
+  @Test
+  public void timeOut() throws Exception {
+    final QueryLimits limits = new QueryLimits(0, 0, 0, 1000, 0);
+    assertTrue(limits.timeOut().isTimeout());
+    // the scanners still running stop as well
+    try {
+      limits.check();
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.isTimeout());
+      assertTrue(e.getMessage().contains("1000ms"));
+    }
+  }
+
+  @Test
+  public void failsOnceExceeded() throws Exception {
+    final QueryLimits limits = new QueryLimits(1, 0, 0, 0, 0);
+    limits.addRow(1, 10);
+    try {
+      limits.addRow(1, 10);
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      // expected
+    }
+    // the other scanners of the query stop as well
+    try {
+      limits.check();
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.getMessage().contains("1 rows"));
+    } finally {
+      limits.release();
+    }
+  }
+
+  @Test
+  public void fromConfig() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.query.limits.max_rows", "10");
+    config.overrideConfig("tsd.query.limits.max_time", "5000");
+    config.overrideConfig("tsd.query.limits.graph.max_rows", "20");
+    config.overrideConfig("tsd.query.limits.global.max_bytes", "4096");
+    final QueryLimits query = QueryLimits.fromConfig(config, "query");
+    assertEquals(10L, Whitebox.getInternalState(query, "max_rows"));
+    assertEquals(5000L, Whitebox.getInternalState(query, "max_time"));
+    assertEquals(0L, Whitebox.getInternalState(query, "max_bytes"));
+    assertEquals(4096L, Whitebox.getInternalState(query, "global_max_bytes"));
+    final QueryLimits graph = QueryLimits.fromConfig(config, "graph");
+    assertEquals(20L, Whitebox.getInternalState(graph, "max_rows"));
+    assertEquals(5000L, Whitebox.getInternalState(graph, "max_time"));
+  }
+}
@@ -0,0 +1,458 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  CompactionQueue.class, GetRequest.class, PutRequest.class, KeyValue.class,
+  Scanner.class, TsdbQuery.class, DeleteRequest.class, Annotation.class,
+  RowKey.class, Span.class, SpanGroup.class, IncomingDataPoints.class })
+public final class TestRollups {
+  /**
+   * The data is stored in the fifth and sixth hours of this day, so that the
+   * raw rows read before it don't include the rollup rows, as the mock has a
+   * single table.
+   */
+  private static final byte[] FAMILY = { 't' };
+  private static final long DAY = 1356998400L;
+  private static final long HOUR1 = DAY + 4 * 3600;
+  private static final long HOUR2 = DAY + 5 * 3600;
+  private static final int OFFSET1 = (int) (HOUR1 - DAY);
+  private static final int OFFSET2 = (int) (HOUR2 - DAY);
+  private static final byte[] WEB01 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] WEB02 =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+
+  private Config config;
+  private TSDB tsdb = null;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage = null;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+    .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    tsdb = new TSDB(config);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("sys.cpu.user"));
+    when(tag_names.getId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_names.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("host"));
+    when(tag_values.getId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 1 }))
+      .thenAnswer(name("web01"));
+    when(tag_values.getId("web02")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getNameAsync(new byte[] { 0, 0, 2 }))
+      .thenAnswer(name("web02"));
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+
+    storeTimeSeries();
+  }
+
+  @Test
+  public void parseIntervals() throws Exception {
+    assertArrayEquals(new int[] { 60, 3600 },
+                      Rollups.parseIntervals("1h, 1m,1m"));
+    assertArrayEquals(new int[] { 10, 300 },
+                      Rollups.parseIntervals("10s,5m,"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseIntervalsNotDividingAnHour() throws Exception {
+    Rollups.parseIntervals("1m,7m");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseIntervalsDay() throws Exception {
+    Rollups.parseIntervals("1d");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseIntervalsMilliseconds() throws Exception {
+    Rollups.parseIntervals("500ms");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void parseIntervalsEmpty() throws Exception {
+    Rollups.parseIntervals(" ");
+  }
+
+  @Test
+  public void route() throws Exception {
+    final Rollups rollups = new Rollups(tsdb, config);
+    final long cutoff = HOUR2;
+    assertEquals(60, rollups.route(Aggregators.SUM, 60000, DAY, cutoff));
+    assertEquals(60, rollups.route(Aggregators.MAX, 300000, DAY, cutoff));
+    assertEquals(3600,
+                 rollups.route(Aggregators.ZIMSUM, 7200000, DAY, cutoff));
+    assertEquals(3600, rollups.route(Aggregators.AVG, 3600000, DAY, cutoff));
+    // Averages of averages aren't averages.
+    assertEquals(0, rollups.route(Aggregators.AVG, 300000, DAY, cutoff));
+    assertEquals(0, rollups.route(Aggregators.DEV, 3600000, DAY, cutoff));
+    assertEquals(0, rollups.route(Aggregators.SUM, 90000, DAY, cutoff));
+    assertEquals(0, rollups.route(Aggregators.SUM, 60500, DAY, cutoff));
+    assertEquals(0, rollups.route(null, 0, DAY, cutoff));
+    assertEquals(0, rollups.route(Aggregators.SUM, 60000, cutoff, cutoff));
+  }
+
+  @Test
+  public void cutoff() throws Exception {
+    config.overrideConfig("tsd.rollups.query_delay", "3600");
+    final Rollups rollups = new Rollups(tsdb, config);
+    assertEquals(HOUR1, rollups.cutoff(HOUR2 + 1800));
+  }
+
+  @Test
+  public void write() throws Exception {
+    writeRollups();
+    final byte[] key = MockBase.concatByteArrays(new byte[] { 0, 0, 1 },
+        Bytes.fromInt((int) DAY), new byte[] { 0, 0, 1, 0, 0, 1 });
+    // web01 has 0 and 1 in the first minute of the first hour.
+    assertCell(key, Rollups.qualifier(60, Rollups.SUM, OFFSET1),
+               Rollups.LONG, 1);
+    assertCell(key, Rollups.qualifier(60, Rollups.COUNT, OFFSET1),
+               Rollups.LONG, 2);
+    assertCell(key, Rollups.qualifier(60, Rollups.MIN, OFFSET1),
+               Rollups.LONG, 0);
+    assertCell(key, Rollups.qualifier(60, Rollups.MAX, OFFSET1),
+               Rollups.LONG, 1);
+    // and 0 to 119 over the hour.
+    assertCell(key, Rollups.qualifier(3600, Rollups.SUM, OFFSET1),
+               Rollups.LONG, 119 * 120 / 2);
+    assertCell(key, Rollups.qualifier(3600, Rollups.COUNT, OFFSET1),
+               Rollups.LONG, 120);
+    assertCell(key, Rollups.qualifier(3600, Rollups.MAX, OFFSET2),
+               Rollups.LONG, 239);
+    assertNull(storage.getColumn(key, Rollups.qualifier(3600, Rollups.SUM,
+                                                         OFFSET2 + 3600)));
+    // Both raw rows are covered.
+    assertArrayEquals(new byte[] { 4 },
+                      Rollups.coverageQualifier(OFFSET1));
+    assertNotNull(storage.getColumn(key, Rollups.coverageQualifier(OFFSET1)));
+    assertNotNull(storage.getColumn(key, Rollups.coverageQualifier(OFFSET2)));
+    assertNull(storage.getColumn(key,
+                                 Rollups.coverageQualifier(OFFSET2 + 3600)));
+
+    key[key.length - 1] = 2;
+    assertCell(key, Rollups.qualifier(60, Rollups.SUM, OFFSET1),
+               Rollups.DOUBLE, Double.doubleToRawLongBits(0.5));
+    assertCell(key, Rollups.qualifier(60, Rollups.COUNT, OFFSET1),
+               Rollups.LONG, 2);
+  }
+
+  @Test
+  public void querySumMixedWithRawData() throws Exception {
+    final DataPoints[] expected = query(Aggregators.SUM, 60000);
+    writeRollups();
+    enableRollups(HOUR2);
+    final DataPoints[] dps = query(Aggregators.SUM, 60000);
+    assertSameData(expected, dps, 60000);
+    // Rollups are at the start of their interval, the raw data after the
+    // cutoff is downsampled as usual.
+    assertEquals(HOUR1 * 1000, dps[0].timestamp(0));
+    assertEquals(HOUR2 * 1000 + 15000, dps[0].timestamp(60));
+  }
+
+  @Test
+  public void queryMax() throws Exception {
+    final DataPoints[] expected = query(Aggregators.MAX, 600000);
+    writeRollups();
+    enableRollups(HOUR2 + 3600);
+    final DataPoints[] dps = query(Aggregators.MAX, 600000);
+    assertSameData(expected, dps, 600000);
+  }
+
+  @Test
+  public void queryAvg() throws Exception {
+    final DataPoints[] expected = query(Aggregators.AVG, 3600000);
+    writeRollups();
+    enableRollups(HOUR2 + 3600);
+    final DataPoints[] dps = query(Aggregators.AVG, 3600000);
+    assertSameData(expected, dps, 3600000);
+    assertEquals(2, dps[0].size());
+    // The averages of integers are integers, as with the avg aggregator.
+    assertEquals(59, dps[0].longValue(0));
+    assertEquals(29.75, dps[1].doubleValue(0), 0.0001);
+  }
+
+  @Test
+  public void queryRawRowNotRolledUp() throws Exception {
+    final DataPoints[] expected = query(Aggregators.SUM, 60000);
+    writeRollups(WEB02, HOUR2);
+    enableRollups(HOUR2 + 3600);
+    final DataPoints[] dps = query(Aggregators.SUM, 60000);
+    assertSameData(expected, dps, 60000);
+    // web02 is read from the raw data in the hour it has no rollups for.
+    assertEquals(HOUR2 * 1000, dps[0].timestamp(60));
+    assertEquals(HOUR1 * 1000, dps[1].timestamp(0));
+    assertEquals(HOUR2 * 1000 + 15000, dps[1].timestamp(60));
+  }
+
+  @Test
+  public void queryRollupsWithoutCoverage() throws Exception {
+    final DataPoints[] expected = query(Aggregators.SUM, 60000);
+    writeRollups();
+    enableRollups(HOUR2 + 3600);
+    // Like the rollups written before the coverage cells were, which can't
+    // be told apart from a partial write.
+    final byte[] key = WEB01.clone();
+    Bytes.setInt(key, (int) DAY, 3);
+    storage.flushColumn(key, FAMILY, Rollups.coverageQualifier(OFFSET1));
+    final DataPoints[] dps = query(Aggregators.SUM, 60000);
+    assertSameData(expected, dps, 60000);
+    // So web01 is read from the raw data in that hour.
+    assertEquals(HOUR1 * 1000 + 15000, dps[0].timestamp(0));
+    assertEquals(HOUR2 * 1000, dps[0].timestamp(60));
+    assertEquals(HOUR1 * 1000, dps[1].timestamp(0));
+  }
+
+  @Test
+  public void querySeriesWithoutRollups() throws Exception {
+    final DataPoints[] expected = query(Aggregators.SUM, 60000);
+    writeRollups(WEB02, 0);
+    enableRollups(HOUR2 + 3600);
+    final DataPoints[] dps = query(Aggregators.SUM, 60000);
+    assertSameData(expected, dps, 60000);
+    // web02 has no rollups at all, so it's read from the raw data.
+    assertEquals(HOUR1 * 1000, dps[0].timestamp(0));
+    assertEquals(HOUR1 * 1000 + 15000, dps[1].timestamp(0));
+  }
+
+  @Test
+  public void queryMarkedComplete() throws Exception {
+    writeRollups(WEB02, 0);
+    enableRollups(HOUR2 + 3600);
+    Internal.markRolledUp(tsdb, new byte[] { 0, 0, 1 }, HOUR1, HOUR2)
+      .joinUninterruptibly();
+    final byte[] key = MockBase.concatByteArrays(new byte[] { 0, 0, 1 },
+                                                 Bytes.fromInt((int) DAY));
+    assertNotNull(storage.getColumn(key, Rollups.coverageQualifier(OFFSET1)));
+    assertNotNull(storage.getColumn(key, Rollups.coverageQualifier(OFFSET2)));
+    assertNull(storage.getColumn(key,
+                                 Rollups.coverageQualifier(OFFSET2 + 3600)));
+    // The raw data of the hours marked isn't read, so web02 is missed.
+    final DataPoints[] dps = query(Aggregators.SUM, 60000);
+    assertEquals(1, dps.length);
+    assertEquals(HOUR1 * 1000, dps[0].timestamp(0));
+  }
+
+  @Test
+  public void queryNotRouted() throws Exception {
+    writeRollups();
+    enableRollups(HOUR2 + 3600);
+    // The rollup rows would be read as raw rows, as the mock has a single
+    // table, so get them out of the way.
+    for (final byte[] template : new byte[][] { WEB01, WEB02 }) {
+      final byte[] key = template.clone();
+      Bytes.setInt(key, (int) DAY, 3);
+      storage.flushRow(key);
+    }
+    // Standard deviations can't be computed from the rollups, so the raw
+    // data is read.
+    final DataPoints[] dps = query(Aggregators.DEV, 3600000);
+    assertEquals(2, dps[0].size());
+  }
+
+  /** Runs a query for both hosts, downsampled, until the end of the data. */
+  private DataPoints[] query(final Aggregator downsampler,
+                             final long interval) throws Exception {
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "*");
+    final TsdbQuery query = new TsdbQuery(tsdb);
+    query.setStartTime(HOUR1);
+    query.setEndTime(HOUR2 + 3599);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.downsample(interval, downsampler);
+    return query.run();
+  }
+
+  /** Compacts the raw rows, which writes their rollups. */
+  private void writeRollups() throws Exception {
+    writeRollups(null, 0);
+  }
+
+  /**
+   * Compacts the raw rows but some, which writes their rollups.
+   * @param skipped_template The key of the series of the rows to leave as is.
+   * @param skipped_base_time The base time of the row to leave as is, or 0
+   * to leave all the rows of the series.
+   */
+  private void writeRollups(final byte[] skipped_template,
+                            final long skipped_base_time) throws Exception {
+    Whitebox.setInternalState(tsdb, "rollups", new Rollups(tsdb, config));
+    for (final byte[] template : new byte[][] { WEB01, WEB02 }) {
+      for (final long base_time : new long[] { HOUR1, HOUR2 }) {
+        if (template == skipped_template
+            && (skipped_base_time == 0 || base_time == skipped_base_time)) {
+          continue;
+        }
+        final byte[] key = template.clone();
+        Bytes.setInt(key, (int) base_time, 3);
+        final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+        for (final Map.Entry<byte[], byte[]> cell :
+             storage.getColumnFamily(key, FAMILY).entrySet()) {
+          row.add(new KeyValue(key, FAMILY, cell.getKey(), cell.getValue()));
+        }
+        Internal.compactRow(tsdb, row).joinUninterruptibly();
+      }
+    }
+  }
+
+  /** Makes queries read the rollups before the given time. */
+  private void enableRollups(final long cutoff) {
+    config.overrideConfig("tsd.rollups.query_delay",
+        Long.toString(System.currentTimeMillis() / 1000 - cutoff));
+    Whitebox.setInternalState(tsdb, "rollups", new Rollups(tsdb, config));
+  }
+
+  private void assertCell(final byte[] key, final byte[] qualifier,
+                          final byte type, final long value) {
+    final byte[] cell = storage.getColumn(key, qualifier);
+    assertNotNull(cell);
+    assertEquals(type, cell[0]);
+    assertEquals(value, Bytes.getLong(cell, 1));
+  }
+
+  /**
+   * Checks that the results are the same, except for the timestamps of the
+   * rollups, which are the start of their interval rather than the average
+   * time of their data points.
+   */
+  private static void assertSameData(final DataPoints[] expected,
+                                     final DataPoints[] actual,
+                                     final long interval) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      final SeekableView expected_it = expected[i].iterator();
+      final SeekableView actual_it = actual[i].iterator();
+      int n = 0;
+      while (expected_it.hasNext()) {
+        final DataPoint expected_dp = expected_it.next();
+        final DataPoint dp = actual_it.next();
+        assertEquals(expected_dp.timestamp() / interval,
+                     dp.timestamp() / interval);
+        assertEquals(expected_dp.isInteger(), dp.isInteger());
+        assertEquals(expected_dp.toDouble(), dp.toDouble(), 0.0001);
+        n++;
+      }
+      assertEquals(n, actual[i].size());
+    }
+  }
+
+  /**
+   * Mocks out the UniqueId calls to fetch names for the data points,
+   * returning a new deferred on each call.
+   */
+  private static Answer<Deferred<String>> name(final String name) {
+    return new Answer<Deferred<String>>() {
+      public Deferred<String> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(name);
+      }
+    };
+  }
+
+  /**
+   * Stores a point every 30 seconds over two hours, integers from 0 for
+   * web01 and floats from 0 by 0.5 for web02.
+   */
+  @SuppressWarnings("unchecked")
+  private void storeTimeSeries() throws Exception {
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.setFamily(FAMILY);
+
+    PowerMockito.mockStatic(IncomingDataPoints.class);
+    PowerMockito.doAnswer(
+        new Answer<byte[]>() {
+          public byte[] answer(final InvocationOnMock args)
+            throws Exception {
+            final Map<String, String> tags =
+              (Map<String, String>)args.getArguments()[2];
+            return tags.get("host").equals("web01")
+              ? WEB01.clone() : WEB02.clone();
+          }
+        }
+    ).when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(), anyString(),
+        (Map<String, String>)any());
+
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    for (int i = 0; i < 240; i++) {
+      tags.put("host", "web01");
+      tsdb.addPoint("sys.cpu.user", HOUR1 + i * 30, i, tags)
+        .joinUninterruptibly();
+      tags.put("host", "web02");
+      tsdb.addPoint("sys.cpu.user", HOUR1 + i * 30, i * 0.5f, tags)
+        .joinUninterruptibly();
+    }
+  }
+}
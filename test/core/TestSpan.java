@@ -14,6 +14,7 @@ package net.opentsdb.core;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import net.opentsdb.storage.MockBase;
@@ -301,6 +302,122 @@ public final class TestSpan {
     
   }
 
+  @Test
+  public void addRowMergeDuplicates() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual3 = { 0x00, 0x17 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, 
+        MockBase.concatByteArrays(qual1, qual2), 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR1, FAMILY, 
+        MockBase.concatByteArrays(qual1, qual3), 
+        MockBase.concatByteArrays(val3, val3, ZERO)));
+    assertEquals(3, span.size());
+    
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(4, span.longValue(0));
+    assertEquals(1356998401000L, span.timestamp(1));
+    assertEquals(6, span.longValue(1));
+    assertEquals(1356998402000L, span.timestamp(2));
+    assertEquals(5, span.longValue(2));
+  }
+  
+  @Test
+  public void mixedTypes() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x2B };
+    final byte[] val2 = Bytes.fromInt(Float.floatToRawIntBits(5.5F));
+    final byte[] qual3 = { 0x00, 0x4F };
+    final byte[] val3 = Bytes.fromLong(Double.doubleToRawLongBits(6.25));
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, 
+        MockBase.concatByteArrays(qual1, qual2, qual3), 
+        MockBase.concatByteArrays(val1, val2, val3, ZERO)));
+    
+    assertTrue(span.isInteger(0));
+    assertEquals(4, span.longValue(0));
+    assertFalse(span.isInteger(1));
+    assertEquals(5.5, span.doubleValue(1), 0.0001);
+    assertFalse(span.isInteger(2));
+    assertEquals(6.25, span.doubleValue(2), 0.0001);
+  }
+  
+  @Test (expected = ClassCastException.class)
+  public void longValueOfFloat() {
+    final byte[] qual1 = { 0x00, 0x0B };
+    final byte[] val1 = Bytes.fromInt(Float.floatToRawIntBits(5.5F));
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, 
+        MockBase.concatByteArrays(val1, ZERO)));
+    span.longValue(0);
+  }
+  
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampOutOfBounds() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, 
+        MockBase.concatByteArrays(val1, ZERO)));
+    span.timestamp(1);
+  }
+  
+  @Test
+  public void seek() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    
+    final SeekableView it = span.iterator();
+    it.seek(1356998401000L);
+    assertEquals(1356998402000L, it.next().timestamp());
+    it.seek(1357002000000L);
+    assertEquals(1357002000000L, it.next().timestamp());
+    it.seek(1357002003000L);
+    assertFalse(it.hasNext());
+    it.seek(0);
+    assertEquals(1356998400000L, it.next().timestamp());
+  }
+  
+  @Test
+  public void addSpan() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    final Span other = new Span(tsdb);
+    other.addRow(new KeyValue(HOUR2, FAMILY, qual12, 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addSpan(other);
+    
+    assertEquals(4, span.size());
+    assertEquals(1357002000000L, span.timestamp(2));
+    assertEquals(5, span.longValue(3));
+  }
+
   @Test
   public void lastTimestampInRow() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
@@ -15,12 +15,17 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 
+import java.io.File;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -36,10 +41,14 @@ import org.hbase.async.Bytes;
 import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyValue;
+import org.hbase.async.NonRecoverableException;
 import org.hbase.async.PutRequest;
 import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timer;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -47,6 +56,7 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
@@ -66,6 +76,9 @@ public final class TestTSDB {
   private UniqueId tag_values = mock(UniqueId.class);
   private CompactionQueue compactionq = mock(CompactionQueue.class);
   private MockBase storage;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
   
   @Before
   public void before() throws Exception {
@@ -803,6 +816,212 @@ public final class TestTSDB {
     assertEquals(42, value[0]);
   }
   
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCached() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint("sys.cpu.user", 1357002000, 24, tags).joinUninterruptibly();
+    PowerMockito.verifyStatic(times(1));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+    
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    final byte[] row2 = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x35, 0x10, 
+        0, 0, 1, 0, 0, 1};
+    assertEquals(24, storage.getColumn(row2, new byte[] { 0, 0 })[0]);
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCacheNewTags() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    // mutating the caller's map must not corrupt the cached entry
+    tags.put("host", "web02");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    PowerMockito.verifyStatic(times(2));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCacheDropCaches() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.dropCaches();
+    tsdb.addPoint("sys.cpu.user", 1356998401, 42, tags).joinUninterruptibly();
+    PowerMockito.verifyStatic(times(2));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void addPointRowKeyCacheNullTags() throws Exception {
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCacheDisabled() throws Exception {
+    Field cache = tsdb.getClass().getDeclaredField("row_key_cache");
+    cache.setAccessible(true);
+    cache.set(tsdb, null);
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint("sys.cpu.user", 1356998401, 42, tags).joinUninterruptibly();
+    PowerMockito.verifyStatic(times(2));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointAsync() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42, tags)
+      .joinUninterruptibly();
+    tsdb.addPointAsync("sys.cpu.user", 1357002000, 24, tags)
+      .joinUninterruptibly();
+    PowerMockito.verifyStatic(times(1));
+    IncomingDataPoints.rowKeyTemplateAsync((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+    PowerMockito.verifyStatic(times(0));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+    
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    final byte[] row2 = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x35, 0x10, 
+        0, 0, 1, 0, 0, 1};
+    assertEquals(24, storage.getColumn(row2, new byte[] { 0, 0 })[0]);
+  }
+  
+  @Test
+  public void addPointAsyncFloat() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42.5F, tags)
+      .joinUninterruptibly();
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 11 });
+    assertNotNull(value);
+    assertEquals(42.5F, Float.intBitsToFloat(Bytes.getInt(value)), 0.0000001);
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test (expected = NoSuchUniqueName.class)
+  public void addPointAsyncNoAutoMetric() throws Exception {
+    setupAddPointStorage();
+    when(IncomingDataPoints.rowKeyTemplateAsync((TSDB)any(), anyString(), 
+        (Map<String, String>)any()))
+      .thenReturn(Deferred.<byte[]>fromError(
+          new NoSuchUniqueName("sys.cpu.user", "metric")));
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42, tags)
+      .joinUninterruptibly();
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointAsyncCopiesTags() throws Exception {
+    setupAddPointStorage();
+    final Deferred<byte[]> resolution = new Deferred<byte[]>();
+    when(IncomingDataPoints.rowKeyTemplateAsync((TSDB)any(), anyString(), 
+        (Map<String, String>)any()))
+      .thenReturn(resolution);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final Deferred<Object> write = 
+      tsdb.addPointAsync("sys.cpu.user", 1356998400, 42, tags);
+    // the caller is free to reuse its map while the UIDs are resolved
+    tags.put("host", "web02");
+    resolution.callback(new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1});
+    write.joinUninterruptibly();
+    
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998401, 42, tags)
+      .joinUninterruptibly();
+    PowerMockito.verifyStatic(times(1));
+    IncomingDataPoints.rowKeyTemplateAsync((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+
+  @Test
+  public void addPointCoalesced() throws Exception {
+    setupAddPointStorage();
+    final WriteCoalescer coalescer =
+      new WriteCoalescer(tsdb, mock(Timer.class), 100);
+    Field field = tsdb.getClass().getDeclaredField("coalescer");
+    field.setAccessible(true);
+    field.set(tsdb, coalescer);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final Deferred<Object> d1 = 
+      tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags);
+    final Deferred<Object> d2 = 
+      tsdb.addPoint("sys.cpu.user", 1356998401, 24, tags);
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    assertNull(storage.getColumn(row, new byte[] { 0, 0 }));
+
+    when(compactionq.flush()).thenReturn(
+        Deferred.fromResult(new ArrayList<Object>()));
+    tsdb.flush().joinUninterruptibly();
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(row, new byte[] { 0, 0x10 })[0]);
+  }
+
+  @Test
+  public void addPointSpooled() throws Exception {
+    setupAddPointStorage();
+    final WriteSpool spool = setupSpool();
+    doReturn(Deferred.fromError(Whitebox.invokeConstructor(
+        NonRecoverableException.class, new Class<?>[] { String.class },
+        new Object[] { "Too many attempts" })))
+      .when(client).put(any(PutRequest.class));
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    assertNull(tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags)
+      .joinUninterruptibly());
+    assertEquals(1, spool.depth());
+  }
+
+  @Test (expected = RuntimeException.class)
+  public void addPointNotSpooled() throws Exception {
+    setupAddPointStorage();
+    final WriteSpool spool = setupSpool();
+    doReturn(Deferred.fromError(new RuntimeException("Boom!")))
+      .when(client).put(any(PutRequest.class));
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    try {
+      tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags)
+        .joinUninterruptibly();
+    } finally {
+      assertEquals(0, spool.depth());
+    }
+  }
+  
   /**
    * Helper to mock the UID caches with valid responses
    */
@@ -848,6 +1067,15 @@ public final class TestTSDB {
    * data points correctly.
    */
   @SuppressWarnings("unchecked")
+  private WriteSpool setupSpool() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb, client, "tsdb".getBytes(),
+        new File(folder.getRoot(), "spool"), 1024, 1024 * 10, 1000);
+    Field field = tsdb.getClass().getDeclaredField("spool");
+    field.setAccessible(true);
+    field.set(tsdb, spool);
+    return spool;
+  }
+
   private void setupAddPointStorage() throws Exception {
     storage = new MockBase(tsdb, client, true, true, true, true);
     
@@ -862,6 +1090,15 @@ public final class TestTSDB {
         }
     ).when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(), anyString(), 
         (Map<String, String>)any());
+    PowerMockito.doAnswer(
+        new Answer<Deferred<byte[]>>() {
+          public Deferred<byte[]> answer(final InvocationOnMock unused) 
+            throws Exception {
+            return Deferred.fromResult(row.clone());
+          }
+        }
+    ).when(IncomingDataPoints.class, "rowKeyTemplateAsync", (TSDB)any(), 
+        anyString(), (Map<String, String>)any());
         
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
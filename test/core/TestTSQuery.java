@@ -68,6 +68,13 @@ public final class TestTSQuery {
     q.validateAndSetQuery();
   }
   
+  @Test (expected = IllegalArgumentException.class)
+  public void validateNegativeScanParallelism() {
+    TSQuery q = this.getMetricForValidate();
+    q.setScanParallelism(-1);
+    q.validateAndSetQuery();
+  }
+  
   @Test
   public void validateNullEnd() {
     PowerMockito.mockStatic(System.class);
@@ -16,8 +16,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -26,6 +30,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.storage.MockBase;
@@ -41,6 +46,9 @@ import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyValue;
 import org.hbase.async.PutRequest;
 import org.hbase.async.Scanner;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -108,6 +116,11 @@ public final class TestTsdbQuery {
       .thenReturn(Deferred.fromResult("sys.cpu.user"));
     when(metrics.getId("sys.cpu.system"))
       .thenThrow(new NoSuchUniqueName("sys.cpu.system", "metric"));
+    when(metrics.getIdAsync("sys.cpu.user")).thenReturn(
+        Deferred.fromResult(new byte[] { 0, 0, 1 }));
+    when(metrics.getIdAsync("sys.cpu.system")).thenReturn(
+        Deferred.<byte[]>fromError(
+            new NoSuchUniqueName("sys.cpu.system", "metric")));
     when(metrics.getId("sys.cpu.nice")).thenReturn(new byte[] { 0, 0, 2 });
     when(metrics.getNameAsync(new byte[] { 0, 0, 2 }))
       .thenReturn(Deferred.fromResult("sys.cpu.nice"));
@@ -257,6 +270,45 @@ public final class TestTsdbQuery {
     query.setTimeSeries("sys.cpu.system", tags, Aggregators.SUM, false);
   }
 
+  @Test
+  public void setTimeSeriesAsync() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeriesAsync("sys.cpu.user", tags, Aggregators.SUM, false,
+        new RateOptions()).joinUninterruptibly();
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals(300, dps[0].size());
+  }
+
+  @Test
+  public void setTimeSeriesAsyncGroupBy() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01|web02");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeriesAsync("sys.cpu.user", tags, Aggregators.SUM, false,
+        new RateOptions()).joinUninterruptibly();
+    assertTrue(tags.isEmpty());
+    final DataPoints[] dps = query.run();
+    assertEquals(2, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    assertEquals("web02", dps[1].getTags().get("host"));
+  }
+
+  @Test (expected = NoSuchUniqueName.class)
+  public void setTimeSeriesAsyncNosuchMetric() throws Exception {
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setTimeSeriesAsync("sys.cpu.system", tags, Aggregators.SUM, false,
+        new RateOptions()).joinUninterruptibly();
+  }
+
   @Test
   public void setTimeSeriesTS() throws Exception {
     final List<String> tsuids = new ArrayList<String>(2);
@@ -310,6 +362,155 @@ public final class TestTsdbQuery {
     assertEquals(300, dps[0].aggregatedSize());
   }
   
+  @Test
+  public void runLongSingleTSParallel() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setScanParallelism(4);
+
+    final DataPoints[] dps = query.run();
+    
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    assertEquals("web01", dps[0].getTags().get("host"));
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+    verify(client, times(4)).newScanner(tsdb.table);
+  }
+
+  @Test
+  public void runLongTwoAggSumParallelConfig() throws Exception {
+    config.overrideConfig("tsd.query.scan_parallelism", "3");
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>();
+    query.setStartTime(1356998400L);
+    query.setEndTime(1357041600L);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    final DataPoints[] dps = query.run();
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    for (DataPoint dp : dps[0]) {
+      assertEquals(301, dp.longValue());
+    }
+    assertEquals(300, dps[0].size());
+    verify(client, times(3)).newScanner(tsdb.table);
+  }
+
+  @Test
+  public void runParallelMoreScannersThanRows() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1356998460);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setScanParallelism(100);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    // 2 rows before the start time, plus the rows of the range
+    verify(client, times(4)).newScanner(tsdb.table);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void setScanParallelismZero() throws Exception {
+    query.setScanParallelism(0);
+  }
+
+  @Test
+  public void runWithinLimits() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setLimits(new QueryLimits(100, 300, 1000000, 60000, 0));
+    final Timer timer = mock(Timer.class);
+    final Timeout timeout = mock(Timeout.class);
+    when(client.getTimer()).thenReturn(timer);
+    when(timer.newTimeout(any(TimerTask.class), anyLong(),
+                          any(TimeUnit.class))).thenReturn(timeout);
+    final DataPoints[] dps = query.run();
+    assertEquals(1, dps.length);
+    assertEquals(300, dps[0].aggregatedSize());
+    verify(timeout).cancel();
+  }
+
+  @Test
+  public void runOutOfTime() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setLimits(new QueryLimits(0, 0, 0, 60000, 0));
+    // the timer fires right away, as if HBase never answered
+    final Timer timer = mock(Timer.class);
+    when(client.getTimer()).thenReturn(timer);
+    when(timer.newTimeout(any(TimerTask.class), anyLong(),
+                          any(TimeUnit.class))).thenAnswer(
+        new Answer<Timeout>() {
+          @Override
+          public Timeout answer(final InvocationOnMock invocation)
+            throws Throwable {
+            final Timeout timeout = mock(Timeout.class);
+            ((TimerTask) invocation.getArguments()[0]).run(timeout);
+            return timeout;
+          }
+        });
+    try {
+      query.run();
+      fail("Expected a QueryLimitException");
+    } catch (QueryLimitException e) {
+      assertTrue(e.isTimeout());
+    }
+  }
+
+  @Test (expected = QueryLimitException.class)
+  public void runTooManyRows() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setLimits(new QueryLimits(1, 0, 0, 0, 0));
+    query.run();
+  }
+
+  @Test (expected = QueryLimitException.class)
+  public void runTooManyDataPointsParallel() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>();
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setScanParallelism(4);
+    query.setLimits(new QueryLimits(0, 599, 0, 0, 0));
+    query.run();
+  }
+
+  @Test (expected = QueryLimitException.class)
+  public void runTooManyBytes() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    query.setLimits(new QueryLimits(0, 0, 1024, 0, 0));
+    query.run();
+  }
+
   @Test
   public void runLongSingleTSMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -0,0 +1,119 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestTsuidSet {
+  private static final byte[] TIMESTAMP = Bytes.fromInt(1356998400);
+
+  private TsuidSet set;
+
+  @Before
+  public void before() {
+    set = new TsuidSet(3);
+  }
+
+  @Test
+  public void addAndDrain() throws Exception {
+    assertTrue(set.add(row(1)));
+    assertTrue(set.add(row(2)));
+    assertFalse(set.add(row(1)));
+    assertEquals(2, set.size());
+    assertTrue(set.contains(row(2)));
+    assertFalse(set.contains(row(3)));
+
+    final List<byte[]> rows = new ArrayList<byte[]>();
+    assertEquals(2, set.drain(10, TIMESTAMP, rows));
+    assertEquals(2, rows.size());
+    assertTrue(set.isEmpty());
+    assertFalse(set.contains(row(1)));
+    final Set<Integer> tags = new HashSet<Integer>();
+    for (final byte[] row : rows) {
+      tags.add((int) row[row.length - 1]);
+      assertArrayEquals(row(row[row.length - 1]), row);
+    }
+    assertEquals(2, tags.size());
+  }
+
+  @Test
+  public void partialDrain() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      set.add(row(i));
+    }
+    final List<byte[]> rows = new ArrayList<byte[]>();
+    assertEquals(30, set.drain(30, TIMESTAMP, rows));
+    assertEquals(70, set.size());
+    // drained rows can be added again, the others are still there
+    for (final byte[] row : rows) {
+      assertFalse(set.contains(row));
+      assertTrue(set.add(row));
+    }
+    assertFalse(set.add(row(0)));
+    assertEquals(100, set.drain(1000, TIMESTAMP, rows));
+    assertEquals(130, rows.size());
+  }
+
+  @Test
+  public void growAndReset() throws Exception {
+    final long empty = set.bytes();
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(set.add(row(i)));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(set.contains(row(i)));
+    }
+    assertTrue(set.bytes() > empty);
+    set.drain(Integer.MAX_VALUE, TIMESTAMP, new ArrayList<byte[]>());
+    assertEquals(empty, set.bytes());
+  }
+
+  @Test
+  public void churn() throws Exception {
+    // adding and draining forever must not leak tombstones
+    final List<byte[]> rows = new ArrayList<byte[]>();
+    set.add(row(0));
+    for (int i = 1; i < 10000; i++) {
+      set.add(row(i));
+      assertEquals(1, set.drain(1, TIMESTAMP, rows));
+      assertEquals(1, set.size());
+    }
+    assertTrue(set.bytes() < 4096);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void rowTooLong() throws Exception {
+    set.add(new byte[0x10000 + Const.TIMESTAMP_BYTES]);
+  }
+
+  /** @return A row key with the given tag value ID. */
+  private static byte[] row(final int tagv) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 };
+    System.arraycopy(TIMESTAMP, 0, row, 3, 4);
+    Bytes.setShort(row, (short) tagv, 11);
+    row[10] = (byte) (tagv >>> 16);
+    return row;
+  }
+}
@@ -0,0 +1,189 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class })
+public final class TestWriteCoalescer {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b' };
+  private static final byte[] ROW1 = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW2 = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+    0, 0, 1, 0, 0, 2 };
+
+  private TSDB tsdb;
+  private Timer timer;
+  private WriteCoalescer coalescer;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    when(tsdb.put(any(PutRequest.class)))
+      .thenReturn(Deferred.<Object>fromResult(null));
+    timer = mock(Timer.class);
+    coalescer = new WriteCoalescer(tsdb, timer, 100);
+  }
+
+  @Test
+  public void schedulesFlushes() throws Exception {
+    verify(timer).newTimeout(coalescer, 100, TimeUnit.MILLISECONDS);
+    coalescer.run(null);
+    verify(timer, times(2)).newTimeout(coalescer, 100, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void coalesceByRow() throws Exception {
+    final Deferred<Object> d1 = coalescer.add(ROW1, new byte[] { 0, 0x10 },
+                                              new byte[] { 1 });
+    final Deferred<Object> d2 = coalescer.add(ROW2, new byte[] { 0, 0 },
+                                              new byte[] { 2 });
+    final Deferred<Object> d3 = coalescer.add(ROW1.clone(),
+        new byte[] { 0, 0 }, new byte[] { 3 });
+    verify(tsdb, never()).put(any(PutRequest.class));
+
+    coalescer.flush().joinUninterruptibly();
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(tsdb, times(2)).put(puts.capture());
+    final PutRequest put1 = find(puts.getAllValues(), ROW1);
+    assertArrayEquals(TABLE, put1.table());
+    assertArrayEquals(TSDB.FAMILY, put1.family());
+    // the qualifiers are sorted
+    assertEquals(2, put1.qualifiers().length);
+    assertArrayEquals(new byte[] { 0, 0 }, put1.qualifiers()[0]);
+    assertArrayEquals(new byte[] { 3 }, put1.values()[0]);
+    assertArrayEquals(new byte[] { 0, 0x10 }, put1.qualifiers()[1]);
+    assertArrayEquals(new byte[] { 1 }, put1.values()[1]);
+    assertArrayEquals(new byte[] { 2 },
+        find(puts.getAllValues(), ROW2).value());
+
+    d1.joinUninterruptibly();
+    d2.joinUninterruptibly();
+    d3.joinUninterruptibly();
+
+    // nothing left to flush
+    coalescer.flush().joinUninterruptibly();
+    verify(tsdb, times(2)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void lastValueWins() throws Exception {
+    coalescer.add(ROW1, new byte[] { 0, 0 }, new byte[] { 1 });
+    coalescer.add(ROW1, new byte[] { 0, 0 }, new byte[] { 2 });
+    coalescer.flush().joinUninterruptibly();
+    final ArgumentCaptor<PutRequest> put =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(tsdb).put(put.capture());
+    assertEquals(1, put.getValue().qualifiers().length);
+    assertArrayEquals(new byte[] { 2 }, put.getValue().value());
+  }
+
+  @Test
+  public void fullRowSentRightAway() throws Exception {
+    for (int i = 0; i < WriteCoalescer.MAX_CELLS; i++) {
+      coalescer.add(ROW1, new byte[] { (byte) (i >>> 4), (byte) (i << 4) },
+                    new byte[] { 1 });
+    }
+    final ArgumentCaptor<PutRequest> put =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(tsdb).put(put.capture());
+    assertEquals(WriteCoalescer.MAX_CELLS, put.getValue().qualifiers().length);
+  }
+
+  @Test
+  public void errorsPassedToEachPoint() throws Exception {
+    final RuntimeException e = new RuntimeException("Boom!");
+    when(tsdb.put(any(PutRequest.class)))
+      .thenReturn(Deferred.<Object>fromError(e));
+    final Deferred<Object> d1 = coalescer.add(ROW1, new byte[] { 0, 0 },
+                                              new byte[] { 1 });
+    final Deferred<Object> d2 = coalescer.add(ROW1, new byte[] { 0, 0x10 },
+                                              new byte[] { 1 });
+    // the failed put is counted, it doesn't fail the flush
+    coalescer.flush().joinUninterruptibly();
+    assertEquals(1, ((AtomicLong) Whitebox.getInternalState(coalescer,
+        "errors")).get());
+    for (final Deferred<Object> d : new Deferred[] { d1, d2 }) {
+      try {
+        d.joinUninterruptibly();
+        fail("Expected the put to fail");
+      } catch (RuntimeException thrown) {
+        assertSame(e, thrown);
+      }
+    }
+  }
+
+  @Test
+  public void shutdown() throws Exception {
+    coalescer.add(ROW1, new byte[] { 0, 0 }, new byte[] { 1 });
+    coalescer.shutdown().joinUninterruptibly();
+    verify(tsdb).put(any(PutRequest.class));
+
+    // no more coalescing nor scheduling
+    coalescer.add(ROW1, new byte[] { 0, 0x10 }, new byte[] { 1 });
+    verify(tsdb, times(2)).put(any(PutRequest.class));
+    coalescer.run(null);
+    verify(timer).newTimeout(any(TimerTask.class), anyLong(),
+                             any(TimeUnit.class));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void invalidWindow() throws Exception {
+    new WriteCoalescer(tsdb, timer, 0);
+  }
+
+  private static PutRequest find(final List<PutRequest> puts,
+                                 final byte[] row) {
+    for (final PutRequest put : puts) {
+      if (Arrays.equals(row, put.key())) {
+        return put;
+      }
+    }
+    throw new AssertionError("No put for the row");
+  }
+}
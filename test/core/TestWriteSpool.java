@@ -0,0 +1,221 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.NonRecoverableException;
+import org.hbase.async.PutRequest;
+import org.hbase.async.TableNotFoundException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, TSDB.class })
+public final class TestWriteSpool {
+  private static final byte[] TABLE = { 't', 's', 'd', 'b' };
+  private static final byte[] KEY = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0,
+    0, 1, 0, 0, 1 };
+  private static final int SEGMENT_SIZE = 1024;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private File directory;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = mock(TSDB.class);
+    client = mock(HBaseClient.class);
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+    directory = new File(folder.getRoot(), "spool");
+  }
+
+  @Test
+  public void appendAndReplay() throws Exception {
+    final WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    assertTrue(spool.append(put(0, 42)));
+    assertTrue(spool.append(new PutRequest(TABLE, KEY, TSDB.FAMILY,
+        new byte[][] { { 0, 0x10 }, { 0, 0x20 } },
+        new byte[][] { { 1 }, { 2, 3 } })));
+    assertEquals(2, spool.depth());
+
+    assertEquals(2, spool.replay(10));
+    assertEquals(0, spool.depth());
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(2)).put(puts.capture());
+    final List<PutRequest> replayed = puts.getAllValues();
+    assertArrayEquals(TABLE, replayed.get(0).table());
+    assertArrayEquals(KEY, replayed.get(0).key());
+    assertArrayEquals(TSDB.FAMILY, replayed.get(0).family());
+    assertArrayEquals(new byte[] { 0, 0 }, replayed.get(0).qualifier());
+    assertArrayEquals(new byte[] { 42 }, replayed.get(0).value());
+    assertEquals(2, replayed.get(1).qualifiers().length);
+    assertArrayEquals(new byte[] { 0, 0x20 }, replayed.get(1).qualifiers()[1]);
+    assertArrayEquals(new byte[] { 2, 3 }, replayed.get(1).values()[1]);
+    // the replayed rows are compacted again
+    verify(tsdb, times(2)).scheduleForCompaction(KEY, 1356998400);
+
+    // nothing left to replay
+    assertEquals(0, spool.replay(10));
+  }
+
+  @Test
+  public void replayFailureRespools() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromError(new RuntimeException("Boom!")));
+    final WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    assertTrue(spool.append(put(0, 42)));
+    assertTrue(spool.append(put(1, 24)));
+
+    // the first failure makes the replay back off
+    assertEquals(1, spool.replay(10));
+    assertEquals(2, spool.depth());
+    assertEquals(0, spool.replay(10));
+
+    Whitebox.setInternalState(spool, "backoff_until", 0L);
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+    assertEquals(2, spool.replay(10));
+    assertEquals(0, spool.depth());
+    // failed replays don't schedule compactions
+    verify(tsdb, times(2)).scheduleForCompaction(KEY, 1356998400);
+  }
+
+  @Test
+  public void rollAndDeleteSegments() throws Exception {
+    final WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    int count = 0;
+    while (directory.list().length < 3) {
+      assertTrue(spool.append(put(count, count)));
+      count++;
+    }
+    assertEquals(count, spool.replay(count));
+    assertEquals(0, spool.depth());
+    // only the current segment is left
+    assertEquals(1, directory.list().length);
+  }
+
+  @Test
+  public void full() throws Exception {
+    final WriteSpool spool = newSpool(2 * SEGMENT_SIZE);
+    int count = 0;
+    while (spool.append(put(count, count))) {
+      count++;
+    }
+    assertEquals(count, spool.depth());
+    assertEquals(2, directory.list().length);
+
+    // replaying frees the oldest segment
+    assertEquals(count, spool.replay(count));
+    assertTrue(spool.append(put(0, 0)));
+  }
+
+  @Test
+  public void recover() throws Exception {
+    WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    assertTrue(spool.append(put(0, 42)));
+    assertTrue(spool.append(put(1, 24)));
+    spool.shutdown();
+
+    spool = newSpool(10 * SEGMENT_SIZE);
+    assertEquals(2, spool.depth());
+    assertEquals(2, spool.replay(10));
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(2)).put(puts.capture());
+    assertArrayEquals(new byte[] { 0, 0x10 },
+        puts.getAllValues().get(1).qualifier());
+    assertArrayEquals(new byte[] { 24 }, puts.getAllValues().get(1).value());
+    assertEquals(0, spool.depth());
+  }
+
+  @Test
+  public void recoverEmpty() throws Exception {
+    newSpool(10 * SEGMENT_SIZE).shutdown();
+    final WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    assertEquals(0, spool.depth());
+    // the empty segment of the previous run was deleted
+    assertEquals(1, directory.list().length);
+  }
+
+  @Test
+  public void writeTooLarge() throws Exception {
+    final WriteSpool spool = newSpool(10 * SEGMENT_SIZE);
+    assertFalse(spool.append(new PutRequest(TABLE, KEY, TSDB.FAMILY,
+        new byte[] { 0, 0 }, new byte[SEGMENT_SIZE])));
+    assertEquals(0, spool.depth());
+    assertEquals(1L, ((AtomicLong) Whitebox.getInternalState(spool,
+        "too_large")).get());
+    // the spool still takes writes that fit
+    assertTrue(spool.append(put(0, 42)));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void maxSizeTooSmall() throws Exception {
+    newSpool(SEGMENT_SIZE - 1);
+  }
+
+  @Test
+  public void isSpoolable() throws Exception {
+    assertTrue(WriteSpool.isSpoolable(Whitebox.invokeConstructor(
+        NonRecoverableException.class, new Class<?>[] { String.class },
+        new Object[] { "Too many attempts" })));
+    assertFalse(WriteSpool.isSpoolable(Whitebox.invokeConstructor(
+        TableNotFoundException.class, new Class<?>[] { byte[].class },
+        new Object[] { TABLE })));
+    assertFalse(WriteSpool.isSpoolable(new RuntimeException("Boom!")));
+  }
+
+  private WriteSpool newSpool(final long max_size) {
+    return new WriteSpool(tsdb, client, TABLE, directory, SEGMENT_SIZE,
+                          max_size, 1000000);
+  }
+
+  /** @return A put of a single cell with the given offset and value. */
+  private static PutRequest put(final int offset, final int value) {
+    return new PutRequest(TABLE, KEY, TSDB.FAMILY,
+        new byte[] { (byte) (offset >>> 4), (byte) (offset << 4) },
+        new byte[] { (byte) value });
+  }
+}
@@ -57,7 +57,8 @@ import com.stumbleupon.async.Deferred;
  * <p>
  * <b>Note:</b> At this time, the implementation does not support multiple 
  * column families since almost all unit tests for OpenTSDB only work with one
- * CF at a time. There is also only one table and we don't have any timestamps.
+ * CF at a time. There is also only one table, unless {@link #addTable} is
+ * used, and we don't have any timestamps.
  * <p>
  * <b>Warning:</b> To use this class, you need to prepare the classes for testing
  * with the @PrepareForTest annotation. The classes you need to prepare are:
@@ -77,6 +78,11 @@ public final class MockBase {
   private TSDB tsdb;
   private Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
     new Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>>();
+  /** Tables stored apart from the others, see {@link #addTable}. */
+  private Bytes.ByteMap<
+      Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>>> tables = 
+    new Bytes.ByteMap<
+      Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>>>();
   private HashSet<MockScanner> scanners = new HashSet<MockScanner>(2);
   private byte[] default_family;
   
@@ -146,7 +152,8 @@ public final class MockBase {
         @Override
         public Scanner answer(InvocationOnMock arg0) throws Throwable {
           final Scanner scanner = mock(Scanner.class);
-          scanners.add(new MockScanner(scanner));
+          scanners.add(new MockScanner(scanner, 
+              (byte[]) arg0.getArguments()[0]));
           return scanner;
         }
         
@@ -178,6 +185,55 @@ public final class MockBase {
         default_get, default_put, default_delete, default_scan);
   }
   
+  /**
+   * Stores the rows of a table apart from the others, which otherwise all
+   * share the same storage.  The helpers that don't take a table only see
+   * the shared storage.
+   * @param table The name of the table
+   */
+  public void addTable(final byte[] table) {
+    tables.put(table, 
+        new Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>>());
+  }
+
+  /**
+   * Retrieve the contents of a single column of a table added with
+   * {@link #addTable}, with the default family
+   * @param table The name of the table
+   * @param key The row key of the column
+   * @param qualifier The column qualifier
+   * @return The byte array of data or null if not found
+   */
+  public byte[] getTableColumn(final byte[] table, final byte[] key,
+      final byte[] qualifier) {
+    final Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage(table).get(key);
+    if (row == null) {
+      return null;
+    }
+    final Bytes.ByteMap<byte[]> cf = row.get(default_family);
+    if (cf == null) {
+      return null;
+    }
+    return cf.get(qualifier);
+  }
+
+  /**
+   * Removes the entire row from a table added with {@link #addTable}
+   * @param table The name of the table
+   * @param key The row to remove
+   */
+  public void flushRow(final byte[] table, final byte[] key) {
+    storage(table).remove(key);
+  }
+
+  /** @return The storage of the given table */
+  private Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage(
+      final byte[] table) {
+    final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> separate = 
+      table == null ? null : tables.get(table);
+    return separate != null ? separate : storage;
+  }
+
   /** @param family Sets the family for calls that need it */
   public void setFamily(final byte[] family) {
     this.default_family = family;
@@ -470,6 +526,8 @@ public final class MockBase {
         throws Throwable {
       final Object[] args = invocation.getArguments();
       final GetRequest get = (GetRequest)args[0];
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(get.table());
       
       final Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage.get(get.key());
 
@@ -528,6 +586,8 @@ public final class MockBase {
       throws Throwable {
       final Object[] args = invocation.getArguments();
       final PutRequest put = (PutRequest)args[0];
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(put.table());
 
       Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage.get(put.key());
       if (row == null) {
@@ -566,6 +626,8 @@ public final class MockBase {
       final Object[] args = invocation.getArguments();
       final PutRequest put = (PutRequest)args[0];
       final byte[] expected = (byte[])args[1];
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(put.table());
       
       Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage.get(put.key());
       if (row == null) {
@@ -619,6 +681,8 @@ public final class MockBase {
         throws Throwable {
       final Object[] args = invocation.getArguments();
       final DeleteRequest delete = (DeleteRequest)args[0];
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(delete.table());
       
       Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage.get(delete.key());
       if (row == null) {
@@ -714,8 +778,10 @@ public final class MockBase {
     private byte[] family = null;
     private String regex = null;
     private boolean called;
+    private final byte[] table;
     
-    public MockScanner(final Scanner mock_scanner) {
+    public MockScanner(final Scanner mock_scanner, final byte[] table) {
+      this.table = table;
 
       // capture the scanner fields when set
       doAnswer(new Answer<Object>() {
@@ -801,6 +867,8 @@ public final class MockBase {
         return Deferred.fromResult(null);
       }
       called = true;
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(table);
       
       Pattern pattern = null;
       if (regex != null && !regex.isEmpty()) {
@@ -889,6 +957,8 @@ public final class MockBase {
       final Object[] args = invocation.getArguments();
       final AtomicIncrementRequest air = (AtomicIncrementRequest)args[0];
       final long amount = air.getAmount();
+      final Bytes.ByteMap<Bytes.ByteMap<Bytes.ByteMap<byte[]>>> storage = 
+        storage(air.table());
       Bytes.ByteMap<Bytes.ByteMap<byte[]>> row = storage.get(air.key());
       if (row == null) {
         row = new Bytes.ByteMap<Bytes.ByteMap<byte[]>>();
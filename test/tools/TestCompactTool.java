@@ -0,0 +1,176 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.lang.reflect.Field;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.DeleteRequest;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.io.Files;
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  GetRequest.class, PutRequest.class, KeyValue.class, CompactTool.class,
+  Scanner.class, DeleteRequest.class })
+public final class TestCompactTool {
+  private final static byte[] ROW1 =
+    MockBase.stringToBytes("00000150E22700000001000001");
+  private final static byte[] ROW1_SINGLE =
+    MockBase.stringToBytes("00000150E22700000001000002");
+  private final static byte[] ROW2 =
+    MockBase.stringToBytes("00000250E22700000001000001");
+  private final static byte[] QUAL1 = { 0x00, 0x07 };
+  private final static byte[] QUAL2 = { 0x00, 0x27 };
+  private final static byte[] VAL1 = Bytes.fromLong(4L);
+  private final static byte[] VAL2 = Bytes.fromLong(5L);
+  private Config config;
+  private TSDB tsdb = null;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private MockBase storage;
+  private File checkpoint;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.whenNew(HBaseClient.class)
+      .withArguments(anyString(), anyString()).thenReturn(client);
+    config = new Config(false);
+    tsdb = new TSDB(config);
+
+    storage = new MockBase(tsdb, client, true, true, true, true);
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    when(metrics.width()).thenReturn((short)3);
+
+    // max metric ID
+    storage.addColumn(new byte[] { 0 }, "id".getBytes(MockBase.ASCII()),
+        "metrics".getBytes(MockBase.ASCII()), Bytes.fromLong(2L));
+    storage.addColumn(ROW1, QUAL1, VAL1);
+    storage.addColumn(ROW1, QUAL2, VAL2);
+    storage.addColumn(ROW1_SINGLE, QUAL1, VAL1);
+    storage.addColumn(ROW2, QUAL1, VAL1);
+    storage.addColumn(ROW2, QUAL2, VAL2);
+
+    checkpoint = File.createTempFile("compact", ".checkpoint");
+    checkpoint.delete();
+  }
+
+  @After
+  public void after() {
+    checkpoint.delete();
+  }
+
+  @Test
+  public void compact() throws Exception {
+    assertEquals(0, CompactTool.compact(tsdb, 1356998400, 1357002000, 1, 0,
+        null));
+    assertCompacted(ROW1);
+    assertCompacted(ROW2);
+    assertEquals(1, storage.numColumns(ROW1_SINGLE));
+  }
+
+  @Test
+  public void compactOutOfRange() throws Exception {
+    assertEquals(0, CompactTool.compact(tsdb, 1357002000, 1357005600, 1, 0,
+        null));
+    assertEquals(2, storage.numColumns(ROW1));
+    assertEquals(2, storage.numColumns(ROW2));
+  }
+
+  @Test
+  public void compactRateLimited() throws Exception {
+    assertEquals(0, CompactTool.compact(tsdb, 1356998400, 1357002000, 1,
+        1000, null));
+    assertCompacted(ROW1);
+    assertCompacted(ROW2);
+  }
+
+  @Test
+  public void checkpointSaved() throws Exception {
+    assertEquals(0, CompactTool.compact(tsdb, 1356998400, 1357002000, 1, 0,
+        checkpoint));
+    assertEquals("1356998400 1357002000 3\n",
+        Files.toString(checkpoint, MockBase.ASCII()));
+  }
+
+  @Test
+  public void checkpointResume() throws Exception {
+    Files.write("1356998400 1357002000 2\n", checkpoint, MockBase.ASCII());
+    assertEquals(0, CompactTool.compact(tsdb, 1356998400, 1357002000, 1, 0,
+        checkpoint));
+    assertEquals(2, storage.numColumns(ROW1));
+    assertCompacted(ROW2);
+  }
+
+  @Test
+  public void checkpointNotPastFailedRows() throws Exception {
+    doAnswer(new Answer<Deferred<Object>>() {
+      public Deferred<Object> answer(final InvocationOnMock invocation) {
+        return Deferred.fromError(new RuntimeException("Boom!"));
+      }
+    }).when(client).put(any(PutRequest.class));
+    assertEquals(2, CompactTool.compact(tsdb, 1356998400, 1357002000, 1, 0,
+        checkpoint));
+    // a resumed run retries both metrics
+    assertEquals("1356998400 1357002000 1\n",
+        Files.toString(checkpoint, MockBase.ASCII()));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void checkpointOtherRange() throws Exception {
+    Files.write("1356998400 1357002000 2\n", checkpoint, MockBase.ASCII());
+    CompactTool.compact(tsdb, 1356998400, 1356998400, 1, 0, checkpoint);
+  }
+
+  private void assertCompacted(final byte[] row) {
+    assertEquals(1, storage.numColumns(row));
+    assertArrayEquals(MockBase.concatByteArrays(VAL1, VAL2, new byte[] { 0 }),
+        storage.getColumn(row, MockBase.concatByteArrays(QUAL1, QUAL2)));
+  }
+}
@@ -0,0 +1,205 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestBinaryPutDecoder {
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+  private BinaryPutDecoder decoder;
+  private Channel chan;
+
+  @Before
+  public void before() {
+    decoder = new BinaryPutDecoder();
+    chan = NettyMocks.fakeChannel();
+    when(chan.write(any())).thenReturn(mock(ChannelFuture.class));
+  }
+
+  @Test
+  public void decodePoints() throws Exception {
+    assertNull(decode(strings("sys.cpu.user", "host", "web01", "web02")));
+    assertNull(decode(series(0, 1, 2, 0, 1, 3)));
+
+    final ChannelBuffer points = frame(BinaryPutDecoder.POINTS);
+    points.writeInt(42);          // id
+    points.writeShort(2);         // series
+    points.writeInt(0);
+    points.writeShort(2);
+    points.writeLong(1356998400L);
+    points.writeByte(BinaryPutDecoder.TYPE_LONG);
+    points.writeLong(-24);
+    points.writeLong(1356998401000L);
+    points.writeByte(BinaryPutDecoder.TYPE_FLOAT);
+    points.writeInt(Float.floatToRawIntBits(42.5F));
+    points.writeInt(1);
+    points.writeShort(1);
+    points.writeLong(1356998400L);
+    points.writeByte(BinaryPutDecoder.TYPE_DOUBLE);
+    points.writeLong(Double.doubleToRawLongBits(0.125));
+
+    final BinaryPutDecoder.Points decoded =
+      (BinaryPutDecoder.Points) decode(points);
+    assertEquals(42, decoded.id);
+    assertEquals(3, decoded.size);
+    assertEquals("sys.cpu.user", decoded.series[0].metric);
+    assertEquals("web01", decoded.series[0].tags.get("host"));
+    assertSame(decoded.series[0], decoded.series[1]);
+    assertEquals("web02", decoded.series[2].tags.get("host"));
+    assertEquals(1356998400L, decoded.timestamps[0]);
+    assertEquals(-24, decoded.values[0]);
+    assertEquals(1356998401000L, decoded.timestamps[1]);
+    assertEquals(BinaryPutDecoder.TYPE_FLOAT, decoded.types[1]);
+    assertEquals(42.5F, Float.intBitsToFloat((int) decoded.values[1]), 0.0001);
+    assertEquals(BinaryPutDecoder.TYPE_DOUBLE, decoded.types[2]);
+    assertEquals(0.125, Double.longBitsToDouble(decoded.values[2]), 0.0001);
+    verify(chan, never()).write(any());
+  }
+
+  @Test
+  public void decodePartialFrame() throws Exception {
+    final ChannelBuffer frame = finish(strings("sys.cpu.user"));
+    final ChannelBuffer partial = frame.readSlice(frame.readableBytes() - 1);
+    assertNull(decoder.decode(null, chan, partial));
+    assertEquals(0, partial.readerIndex());
+  }
+
+  @Test
+  public void undefinedString() throws Exception {
+    assertNull(decode(strings("sys.cpu.user")));
+    assertNull(decode(series(0, 1, 2)));
+    verify(chan).write(any());
+  }
+
+  @Test
+  public void undefinedSeries() throws Exception {
+    final ChannelBuffer points = frame(BinaryPutDecoder.POINTS);
+    points.writeInt(1);
+    points.writeShort(1);
+    points.writeInt(0);
+    points.writeShort(0);
+    assertNull(decode(points));
+    verify(chan).write(any());
+  }
+
+  @Test
+  public void unknownFrameType() throws Exception {
+    assertNull(decode(frame((byte) 0x42)));
+    verify(chan).write(any());
+  }
+
+  @Test
+  public void truncatedFrame() throws Exception {
+    final ChannelBuffer strings = frame(BinaryPutDecoder.STRINGS);
+    strings.writeShort(1);
+    strings.writeShort(10);
+    strings.writeBytes("abc".getBytes(CHARSET));
+    assertNull(decode(strings));
+    verify(chan).write(any());
+  }
+
+  @Test
+  public void frameTooLong() throws Exception {
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    buf.writeInt(BinaryPutDecoder.MAX_FRAME_LENGTH + 1);
+    assertNull(decoder.decode(null, chan, buf));
+    verify(chan).write(any());
+    assertEquals(0, buf.readableBytes());
+  }
+
+  @Test
+  public void discardAfterError() throws Exception {
+    assertNull(decode(frame((byte) 0x42)));
+    assertNull(decode(strings("sys.cpu.user")));
+    assertNull(decode(series(0, 0, 0)));
+    // only the first error is reported
+    verify(chan).write(any());
+  }
+
+  @Test
+  public void ack() throws Exception {
+    final ChannelBuffer ack = BinaryPutDecoder.ack(42, 3, 1);
+    assertEquals(13, ack.readInt());
+    assertEquals(BinaryPutDecoder.ACK, ack.readByte());
+    assertEquals(42, ack.readInt());
+    assertEquals(3, ack.readInt());
+    assertEquals(1, ack.readInt());
+    assertEquals(0, ack.readableBytes());
+  }
+
+  private Object decode(final ChannelBuffer frame) throws Exception {
+    return decoder.decode(null, chan, finish(frame));
+  }
+
+  /** @return A buffer with a placeholder for the length and the type. */
+  private static ChannelBuffer frame(final byte type) {
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    buf.writeInt(0);
+    buf.writeByte(type);
+    return buf;
+  }
+
+  /** Sets the length of the frame. */
+  private static ChannelBuffer finish(final ChannelBuffer frame) {
+    frame.setInt(0, frame.readableBytes() - 4);
+    return frame;
+  }
+
+  private static ChannelBuffer strings(final String... strings) {
+    final ChannelBuffer buf = frame(BinaryPutDecoder.STRINGS);
+    buf.writeShort(strings.length);
+    for (final String s : strings) {
+      final byte[] bytes = s.getBytes(CHARSET);
+      buf.writeShort(bytes.length);
+      buf.writeBytes(bytes);
+    }
+    return buf;
+  }
+
+  /**
+   * @param indexes Triplets of metric, tagk and tagv indexes in the string
+   * table, one per series with a single tag.
+   */
+  private static ChannelBuffer series(final int... indexes) {
+    final ChannelBuffer buf = frame(BinaryPutDecoder.SERIES);
+    int count = 0;
+    final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    int i = 0;
+    while (i < indexes.length) {
+      body.writeInt(indexes[i++]);
+      body.writeByte(1);
+      body.writeInt(indexes[i++]);
+      body.writeInt(indexes[i++]);
+      count++;
+    }
+    buf.writeShort(count);
+    buf.writeBytes(body);
+    return buf;
+  }
+}
@@ -13,20 +13,43 @@
 package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.meta.Annotation;
 import net.opentsdb.utils.Config;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -83,6 +106,83 @@ public final class TestHttpJsonSerializer {
     assertEquals("application/json; charset=UTF-8", serdes.responseContentType());
   }
   
+  @Test
+  public void parsePutStreamV1Single() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}}");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<IncomingDataPoint> dps = serdes.parsePutStreamV1();
+    assertTrue(dps.hasNext());
+    final IncomingDataPoint dp = dps.next();
+    assertEquals("sys.cpu.nice", dp.getMetric());
+    assertEquals(1365465600, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals("web01", dp.getTags().get("host"));
+    assertFalse(dps.hasNext());
+  }
+  
+  @Test
+  public void parsePutStreamV1Array() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        " [{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<IncomingDataPoint> dps = serdes.parsePutStreamV1();
+    assertEquals("sys.cpu.nice", dps.next().getMetric());
+    assertEquals("sys.cpu.system", dps.next().getMetric());
+    assertFalse(dps.hasNext());
+    // the content is left untouched for anyone else
+    assertTrue(query.getContent().startsWith(" [{"));
+  }
+  
+  @Test
+  public void parsePutStreamV1EmptyArray() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", "[]");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    assertFalse(serdes.parsePutStreamV1().hasNext());
+  }
+  
+  @Test
+  public void parsePutStreamV1Charset() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}}", 
+        "application/json; charset=ISO-8859-1");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    assertEquals("sys.cpu.nice", serdes.parsePutStreamV1().next().getMetric());
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutStreamV1NoContent() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", null, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutStreamV1();
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutStreamV1NotJSON() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", "This is unparsable");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutStreamV1();
+  }
+  
+  @Test
+  public void parsePutStreamV1BadDataPoint() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},42]");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<IncomingDataPoint> dps = serdes.parsePutStreamV1();
+    assertEquals("sys.cpu.nice", dps.next().getMetric());
+    try {
+      dps.hasNext();
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) { }
+  }
+  
   @Test
   public void parseSuggestV1() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "", 
@@ -157,4 +257,126 @@ public final class TestHttpJsonSerializer {
         serdes.formatSerializersV1().toString(Charset.forName("UTF-8"))
         .substring(0, 15));
   }
+
+  @Test
+  public void streamQueryV1SameAsFormat() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTSQuery();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    results.add(new DataPoints[] { getDataPoints("web01", 2000), 
+        getDataPoints("web02", 2000) });
+    results.add(new DataPoints[0]);
+    results.add(new DataPoints[] { getDataPoints("web03", 10) });
+    final String expected = serdes.formatQueryV1(data_query, results, null)
+      .toString(Charset.forName("UTF-8"));
+    
+    final HttpJsonSerializer.QueryChunks chunks = 
+      serdes.new QueryChunks(data_query, results, null);
+    final ChannelBuffer streamed = ChannelBuffers.dynamicBuffer();
+    int nchunks = 0;
+    while (chunks.hasNextChunk()) {
+      final HttpChunk chunk = (HttpChunk) chunks.nextChunk();
+      if (chunk.isLast()) {
+        assertTrue(chunks.isEndOfInput());
+        break;
+      }
+      assertTrue(chunk.getContent().readableBytes() > 0);
+      streamed.writeBytes(chunk.getContent());
+      nchunks++;
+    }
+    assertTrue(nchunks > 1);
+    assertFalse(chunks.hasNextChunk());
+    assertEquals(expected, streamed.toString(Charset.forName("UTF-8")));
+  }
+  
+  @Test
+  public void streamQueryV1EmptyJSONP() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "?jsonp=func");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final HttpJsonSerializer.QueryChunks chunks = serdes.new QueryChunks(
+        getTSQuery(), new ArrayList<DataPoints[]>(), null);
+    final HttpChunk chunk = (HttpChunk) chunks.nextChunk();
+    assertEquals("func([])", 
+        chunk.getContent().toString(Charset.forName("UTF-8")));
+    assertFalse(chunks.isEndOfInput());
+    assertTrue(((HttpChunk) chunks.nextChunk()).isLast());
+    assertTrue(chunks.isEndOfInput());
+  }
+  
+  @Test
+  public void sendQueryV1Chunked() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    when(query.channel().write(any())).thenReturn(mock(ChannelFuture.class));
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.sendQueryV1(getTSQuery(), new ArrayList<DataPoints[]>(), null);
+    assertTrue(HttpHeaders.isTransferEncodingChunked(query.response()));
+    verify(query.channel()).write(isA(HttpJsonSerializer.QueryChunks.class));
+  }
+  
+  @Test
+  public void sendQueryV1HTTP10() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    query.request().setProtocolVersion(HttpVersion.HTTP_1_0);
+    when(query.channel().write(any())).thenReturn(mock(ChannelFuture.class));
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.sendQueryV1(getTSQuery(), new ArrayList<DataPoints[]>(), null);
+    assertFalse(HttpHeaders.isTransferEncodingChunked(query.response()));
+    assertEquals("[]", 
+        query.response().getContent().toString(Charset.forName("UTF-8")));
+  }
+  
+  /** @return A validated query over an hour */
+  private static TSQuery getTSQuery() {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric("sys.cpu.user");
+    sub.setAggregator("sum");
+    final ArrayList<TSSubQuery> queries = new ArrayList<TSSubQuery>(1);
+    queries.add(sub);
+    final TSQuery data_query = new TSQuery();
+    data_query.setStart("1356998400");
+    data_query.setEnd("1357002000");
+    data_query.setQueries(queries);
+    data_query.validateAndSetQuery();
+    return data_query;
+  }
+  
+  /** @return A series with one integer value per second from the start */
+  private static DataPoints getDataPoints(final String host, final int size) {
+    final List<DataPoint> points = new ArrayList<DataPoint>(size);
+    for (int i = 0; i < size; i++) {
+      final DataPoint dp = mock(DataPoint.class);
+      when(dp.timestamp()).thenReturn(1356998400000L + i * 1000);
+      when(dp.isInteger()).thenReturn(true);
+      when(dp.longValue()).thenReturn((long) i);
+      points.add(dp);
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", host);
+    final DataPoints dps = mock(DataPoints.class);
+    when(dps.metricName()).thenReturn("sys.cpu.user");
+    when(dps.getTags()).thenReturn(tags);
+    when(dps.getAggregatedTags()).thenReturn(new ArrayList<String>());
+    when(dps.getAnnotations()).thenReturn(new ArrayList<Annotation>());
+    when(dps.iterator()).thenAnswer(new Answer<SeekableView>() {
+      public SeekableView answer(final InvocationOnMock invocation) {
+        final Iterator<DataPoint> it = points.iterator();
+        return new SeekableView() {
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+          public DataPoint next() {
+            return it.next();
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+          public void seek(final long timestamp) {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    });
+    return dps;
+  }
 }
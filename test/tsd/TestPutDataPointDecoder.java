@@ -0,0 +1,204 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestPutDataPointDecoder {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+  private PutDataPointDecoder decoder;
+
+  @Before
+  public void before() {
+    decoder = new PutDataPointDecoder();
+  }
+
+  @Test
+  public void decodeInteger() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 42 host=web01");
+    assertEquals("sys.cpu.user", put.metric);
+    assertEquals(1356998400L, put.timestamp);
+    assertTrue(put.is_integer);
+    assertEquals(42, put.long_value);
+    assertEquals(1, put.tags.size());
+    assertEquals("web01", put.tags.get("host"));
+  }
+
+  @Test
+  public void decodeIntegerNegative() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 -42 host=web01");
+    assertTrue(put.is_integer);
+    assertEquals(-42, put.long_value);
+  }
+
+  @Test
+  public void decodeIntegerPositiveSign() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 +42 host=web01");
+    assertTrue(put.is_integer);
+    assertEquals(42, put.long_value);
+  }
+
+  @Test
+  public void decodeFloat() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 42.5 host=web01");
+    assertFalse(put.is_integer);
+    assertEquals(42.5F, put.float_value, 0.0001);
+  }
+
+  @Test
+  public void decodeFloatExponent() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 1e3 host=web01");
+    assertFalse(put.is_integer);
+    assertEquals(1000F, put.float_value, 0.0001);
+  }
+
+  @Test
+  public void decodeMsWithDot() throws Exception {
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400.500 42 host=web01");
+    assertEquals(1356998400500L, put.timestamp);
+  }
+
+  @Test
+  public void decodeManyTags() throws Exception {
+    final PutDataPointDecoder.Put put = decode("put sys.cpu.user 1356998400 "
+        + "42 host=web01  dc=lga a=1 b=2 c=3 d=4 e=5 f=6 g=7 host=web01");
+    assertEquals(9, put.tags.size());
+    assertEquals("web01", put.tags.get("host"));
+    assertEquals("lga", put.tags.get("dc"));
+    assertEquals("7", put.tags.get("g"));
+  }
+
+  @Test
+  public void decodeReusesStringsAndTags() throws Exception {
+    PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 42 host=web01");
+    final String metric = put.metric;
+    final HashMap<String, String> tags = put.tags;
+    final String host = put.tags.get("host");
+    put = decode("put sys.cpu.user 1356998401 24 host=web01");
+    assertSame(metric, put.metric);
+    assertSame(tags, put.tags);
+    assertSame(host, put.tags.get("host"));
+    assertEquals(24, put.long_value);
+  }
+
+  @Test
+  public void decodeNewTagsDontModifyPreviousMap() throws Exception {
+    PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 42 host=web01");
+    final HashMap<String, String> tags = put.tags;
+    put = decode("put sys.cpu.user 1356998401 24 host=web02");
+    // the previous map may still be held by the TSDB or a plugin
+    assertNotSame(tags, put.tags);
+    assertEquals("web01", tags.get("host"));
+    assertEquals("web02", put.tags.get("host"));
+    put = decode("put sys.cpu.user 1356998402 24 host=web02 dc=lga");
+    assertEquals(1, tags.size());
+    assertEquals(2, put.tags.size());
+  }
+
+  @Test
+  public void decodeTagsChanged() throws Exception {
+    decode("put sys.cpu.user 1356998400 42 host=web01 dc=lga");
+    final PutDataPointDecoder.Put put =
+      decode("put sys.cpu.user 1356998400 42 host=web02");
+    assertEquals(1, put.tags.size());
+    assertEquals("web02", put.tags.get("host"));
+  }
+
+  @Test
+  public void fallbackOtherCommand() throws Exception {
+    assertFallback("version");
+    assertFallback("stats");
+    assertFallback("pu");
+  }
+
+  @Test
+  public void fallbackNotEnoughArguments() throws Exception {
+    assertFallback("put");
+    assertFallback("put sys.cpu.user 1356998400 42");
+    assertFallback("put sys.cpu.user 1356998400 42 ");
+  }
+
+  @Test
+  public void fallbackEmptyMetric() throws Exception {
+    assertFallback("put  1356998400 42 host=web01");
+  }
+
+  @Test
+  public void fallbackBadTimestamp() throws Exception {
+    assertFallback("put sys.cpu.user 1356998400a 42 host=web01");
+    assertFallback("put sys.cpu.user -1356998400 42 host=web01");
+    assertFallback("put sys.cpu.user 0 42 host=web01");
+  }
+
+  @Test
+  public void fallbackBadValue() throws Exception {
+    assertFallback("put sys.cpu.user 1356998400 notanumber host=web01");
+    assertFallback("put sys.cpu.user 1356998400 4.2.4 host=web01");
+    assertFallback("put sys.cpu.user 1356998400 - host=web01");
+    assertFallback("put sys.cpu.user 1356998400 9223372036854775807 "
+        + "host=web01");
+  }
+
+  @Test
+  public void fallbackBadTags() throws Exception {
+    assertFallback("put sys.cpu.user 1356998400 42 host");
+    assertFallback("put sys.cpu.user 1356998400 42 host=");
+    assertFallback("put sys.cpu.user 1356998400 42 =web01");
+    assertFallback("put sys.cpu.user 1356998400 42 host=web=01");
+    assertFallback("put sys.cpu.user 1356998400 42 host=web01 host=web02");
+  }
+
+  @Test
+  public void passThroughNonBuffer() throws Exception {
+    final String[] words = new String[] { "version" };
+    assertSame(words, decoder.decode(null, null, words));
+  }
+
+  private PutDataPointDecoder.Put decode(final String line) throws Exception {
+    final Object decoded = decoder.decode(null, null, toBuffer(line));
+    assertTrue("Not decoded: " + line,
+        decoded instanceof PutDataPointDecoder.Put);
+    return (PutDataPointDecoder.Put) decoded;
+  }
+
+  private void assertFallback(final String line) throws Exception {
+    final ChannelBuffer buf = toBuffer(line);
+    final int reader_index = buf.readerIndex();
+    assertSame(line, buf, decoder.decode(null, null, buf));
+    assertEquals(reader_index, buf.readerIndex());
+  }
+
+  private static ChannelBuffer toBuffer(final String line) {
+    return ChannelBuffers.wrappedBuffer(line.getBytes(CHARSET));
+  }
+}
@@ -12,22 +12,35 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.HashMap;
 
 import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.utils.Config;
 
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
@@ -43,26 +56,40 @@ public final class TestPutRpc {
     tsdb = NettyMocks.getMockedHTTPTSDB();
     final HashMap<String, String> tags1 = new HashMap<String, String>();
     tags1.put("host", "web01");
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 42, tags1))
+    // each point needs its own deferred as the writes are chained on it
+    when(tsdb.resolveSeriesAsync(anyString(), 
+        anyMapOf(String.class, String.class)))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          return Deferred.<Object>fromResult(null);
+        }
+      });
+    when(tsdb.resolveSeriesAsync("doesnotexist", tags1))
+      .thenReturn(Deferred.<Object>fromError(
+          new NoSuchUniqueName("metric", "doesnotexist")));
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, 42, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, -42, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, -42, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 42.2f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, 42.2f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, -42.2f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, -42.2f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 4220.0f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, 4220.0f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, -4220.0f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, -4220.0f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, .0042f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, .0042f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.nice", 1365465600, -0.0042f, tags1))
+    when(tsdb.addPointAsync("sys.cpu.nice", 1365465600, -0.0042f, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("sys.cpu.system", 1365465600, 24, tags1))
+    when(tsdb.addPointAsync("sys.cpu.system", 1365465600, 24, tags1))
       .thenReturn(Deferred.fromResult(new Object()));
-    when(tsdb.addPoint("doesnotexist", 1365465600, 42, tags1))
-      .thenThrow(new NoSuchUniqueName("metric", "doesnotexist"));
+    when(tsdb.addPointAsync("doesnotexist", 1365465600, 42, tags1))
+      .thenReturn(Deferred.<Object>fromError(
+          new NoSuchUniqueName("metric", "doesnotexist")));
+    when(tsdb.addPointAsync("sys.cpu.user", 1365465600, 42, tags1))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("Boom!")));
   }
   
   @Test
@@ -312,6 +339,105 @@ public final class TestPutRpc {
     assertTrue(response.contains("\"success\":0"));
   }
 
+  @Test
+  public void noSuchUniqueNameNoDetails() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"doesnotexist\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+  }
+  
+  @Test
+  public void noSuchUniqueNameWaitsForResolution() throws Exception {
+    final Deferred<Object> resolved = new Deferred<Object>();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    when(tsdb.resolveSeriesAsync("sys.cpu.new", tags)).thenReturn(resolved);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"sys.cpu.new\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    resolved.callback(new NoSuchUniqueName("metric", "sys.cpu.new"));
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+  }
+  
+  @Test
+  public void storageErrorDetails() throws Exception {
+    // storage errors are only logged unless the put is sync
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
+        "[{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String response = 
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":0"));
+    assertTrue(response.contains("\"success\":2"));
+  }
+
+  @Test
+  public void storageErrorSyncDetails() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?sync&details", 
+        "[{\"metric\":\"sys.cpu.user\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"error\":\"Storage error\""));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":1"));
+  }
+
+  @Test
+  public void putSingleSync() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?sync", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+  }
+  
+  @Test
+  public void putSyncStorageError() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?sync", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.user\","
+        + "\"timestamp\":1365465600,\"value\":42,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+  }
+  
+  @Test
+  public void putSyncWaitsForStorage() throws Exception {
+    final Deferred<Object> write = new Deferred<Object>();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    when(tsdb.addPointAsync("sys.cpu.idle", 1365465600, 42, tags))
+      .thenReturn(write);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?sync", 
+        "{\"metric\":\"sys.cpu.idle\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    write.callback(null);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+  }
+  
   @Test
   public void missingMetric() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
@@ -602,4 +728,116 @@ public final class TestPutRpc {
     assertTrue(response.contains("\"failed\":1"));
     assertTrue(response.contains("\"success\":0"));
   }
+  
+  // Telnet RPC Tests ------------------------------------
+  
+  @Test
+  public void telnetPut() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, new String[] { "put", "sys.cpu.nice", 
+        "1365465600", "42", "host=web01" }).joinUninterruptibly();
+    verify(tsdb).addPointAsync("sys.cpu.nice", 1365465600, 42, 
+        new HashMap<String, String>(Collections.singletonMap("host", "web01")));
+    verify(chan, never()).write(any());
+  }
+  
+  @Test
+  public void telnetPutDecoded() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, decode("put sys.cpu.nice 1365465600 42.2 "
+        + "host=web01")).joinUninterruptibly();
+    verify(tsdb).addPointAsync("sys.cpu.nice", 1365465600, 42.2f, 
+        new HashMap<String, String>(Collections.singletonMap("host", "web01")));
+    verify(chan, never()).write(any());
+  }
+  
+  @Test
+  public void telnetPutDecodedUnknownMetric() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, decode("put doesnotexist 1365465600 42 "
+        + "host=web01"));
+    verify(chan).write(startsWith("put: unknown metric: "));
+  }
+  
+  @Test
+  public void telnetPutHBaseError() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, new String[] { "put", "sys.cpu.user", 
+        "1365465600", "42", "host=web01" });
+    verify(chan).write("put: HBase error: Boom!\n");
+  }
+  
+  @Test
+  public void telnetPutMaxInflight() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.core.max_inflight_points", "2");
+    final Deferred<Object> write1 = new Deferred<Object>();
+    final Deferred<Object> write2 = new Deferred<Object>();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    when(tsdb.addPointAsync("sys.cpu.idle", 1365465600, 42, tags))
+      .thenReturn(write1, write2);
+    final Channel chan = NettyMocks.fakeChannel();
+    when(chan.isOpen()).thenReturn(true);
+    when(chan.isReadable()).thenReturn(true, false, true);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    final String[] cmd = new String[] { "put", "sys.cpu.idle", "1365465600", 
+        "42", "host=web01" };
+    final PutDataPointRpc put = new PutDataPointRpc(config);
+    
+    put.execute(tsdb, chan, cmd.clone());
+    verify(chan, never()).setReadable(false);
+    put.execute(tsdb, chan, cmd.clone());
+    verify(chan).setReadable(false);
+    
+    write1.callback(null);
+    verify(chan).setReadable(true);
+    write2.callback(null);
+    verify(chan).setReadable(true);
+  }
+  
+  // Binary RPC Tests ------------------------------------
+  
+  @Test
+  public void binaryPut() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final BinaryPutDecoder.Points points = new BinaryPutDecoder.Points(7, 3);
+    points.add(new BinaryPutDecoder.Series("sys.cpu.nice", tags), 1365465600, 
+        BinaryPutDecoder.TYPE_LONG, 42);
+    points.add(new BinaryPutDecoder.Series("sys.cpu.nice", tags), 1365465600, 
+        BinaryPutDecoder.TYPE_FLOAT, Float.floatToRawIntBits(42.2f));
+    points.add(new BinaryPutDecoder.Series("doesnotexist", tags), 1365465600, 
+        BinaryPutDecoder.TYPE_LONG, 42);
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, points).joinUninterruptibly();
+    verify(tsdb).addPointAsync("sys.cpu.nice", 1365465600, 42.2f, tags);
+    verify(chan).write(BinaryPutDecoder.ack(7, 2, 1));
+  }
+  
+  @Test
+  public void binaryPutInvalid() throws Exception {
+    final Channel chan = NettyMocks.fakeChannel();
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    when(tsdb.addPointAsync("sys.cpu.nice", -1, 42, tags))
+      .thenThrow(new IllegalArgumentException("negative timestamp"));
+    final BinaryPutDecoder.Points points = new BinaryPutDecoder.Points(7, 1);
+    points.add(new BinaryPutDecoder.Series("sys.cpu.nice", tags), -1, 
+        BinaryPutDecoder.TYPE_LONG, 42);
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, chan, points).joinUninterruptibly();
+    verify(chan).write(BinaryPutDecoder.ack(7, 0, 1));
+  }
+  
+  private static PutDataPointDecoder.Put decode(final String line) 
+    throws Exception {
+    return (PutDataPointDecoder.Put) new PutDataPointDecoder().decode(null, 
+        null, ChannelBuffers.wrappedBuffer(line.getBytes()));
+  }
 }
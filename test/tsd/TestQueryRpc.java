@@ -16,6 +16,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -30,6 +34,7 @@ import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.utils.Config;
 
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
@@ -272,6 +277,36 @@ public final class TestQueryRpc {
     parseQuery.invoke(rpc, tsdb, query);
   }
   
+  @Test
+  public void executeRepliesFromCallback() throws Exception {
+    final Deferred<DataPoints[]> data = new Deferred<DataPoints[]>();
+    when(tsdb.runQuery(any(TSQuery.class), anyInt()))
+      .thenReturn(data);
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+      "/api/query?start=1h-ago&m=sum:sys.cpu.0");
+    when(query.channel().write(any())).thenReturn(mock(ChannelFuture.class));
+    rpc.execute(tsdb, query);
+    verify(query.channel(), never()).write(any());
+    data.callback(new DataPoints[0]);
+    // the response headers, then the chunks
+    verify(query.channel(), times(2)).write(any());
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+  }
+  
+  @Test
+  public void executeQueryFailed() throws Exception {
+    final Deferred<DataPoints[]> data = new Deferred<DataPoints[]>();
+    when(tsdb.runQuery(any(TSQuery.class), anyInt()))
+      .thenReturn(data);
+    HttpQuery query = NettyMocks.getQuery(tsdb, 
+      "/api/query?start=1h-ago&m=sum:sys.cpu.0");
+    when(query.channel().write(any())).thenReturn(mock(ChannelFuture.class));
+    rpc.execute(tsdb, query);
+    data.callback(new RuntimeException("Boom!"));
+    assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR, 
+        query.response().getStatus());
+  }
+  
   //TODO(cl) fix this up and add unit tests for the rate options parsing
 //  @SuppressWarnings({ "unchecked", "rawtypes" })
 //  @Test